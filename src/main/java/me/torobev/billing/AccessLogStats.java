@@ -0,0 +1,88 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * State of asynchronous access log. Records which do not fit in the queue are dropped rather than delaying
+ * requests, so {@link #getDropped()} tells whether queue is deep enough for the load.
+ */
+public class AccessLogStats {
+
+	@JsonProperty(value = "capacity")
+	private final int capacity;
+
+	@JsonProperty(value = "depth")
+	private final long depth;
+
+	@JsonProperty(value = "maxDepth")
+	private final long maxDepth;
+
+	@JsonProperty(value = "written")
+	private final long written;
+
+	@JsonProperty(value = "dropped")
+	private final long dropped;
+
+	@JsonProperty(value = "files")
+	private final long files;
+
+	/**
+	 * @param capacity maximum number of queued records
+	 * @param depth    number of records queued now
+	 * @param maxDepth greatest number of queued records seen by writer
+	 * @param written  number of records written to files
+	 * @param dropped  number of records dropped because queue was full
+	 * @param files    number of rolled files
+	 */
+	@JsonCreator
+	public AccessLogStats(@JsonProperty(value = "capacity") int capacity,
+												@JsonProperty(value = "depth") long depth,
+												@JsonProperty(value = "maxDepth") long maxDepth,
+												@JsonProperty(value = "written") long written,
+												@JsonProperty(value = "dropped") long dropped,
+												@JsonProperty(value = "files") long files) {
+		this.capacity = capacity;
+		this.depth = depth;
+		this.maxDepth = maxDepth;
+		this.written = written;
+		this.dropped = dropped;
+		this.files = files;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getDepth() {
+		return depth;
+	}
+
+	public long getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	@Override
+	public String toString() {
+		return "AccessLogStats{" +
+			"capacity=" + capacity +
+			", depth=" + depth +
+			", maxDepth=" + maxDepth +
+			", written=" + written +
+			", dropped=" + dropped +
+			", files=" + files +
+			'}';
+	}
+}
@@ -6,7 +6,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * Account state
+ * Account state. Version grows with every balance change of stored account, version 0 means account state
+ * is not versioned, e.g. historical or replica state.
  */
 public class Account {
 
@@ -16,12 +17,30 @@ public class Account {
 	@JsonProperty(value = "balance")
 	private final long balance;
 
+	@JsonProperty(value = "version")
+	private final long version;
+
+	public Account(int id, long amount) {
+		this(id, amount, 0L);
+	}
+
 	@JsonCreator
-	public Account(@JsonProperty(value = "id") int id, @JsonProperty(value = "amount") long amount) {
+	public Account(@JsonProperty(value = "id") int id,
+								 @JsonProperty(value = "amount") long amount,
+								 @JsonProperty(value = "version") long version) {
 		checkArgument(id > 0);
 		checkArgument(amount >= 0L);
+		checkArgument(version >= 0L);
 		this.id = id;
 		this.balance = amount;
+		this.version = version;
+	}
+
+	/**
+	 * @return the next version of account with given balance
+	 */
+	public Account withBalance(long balance) {
+		return new Account(id, balance, version + 1);
 	}
 
 	public int getId() {
@@ -32,6 +51,10 @@ public class Account {
 		return balance;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
@@ -55,6 +78,7 @@ public class Account {
 		return "Account{" +
 			"id=" + id +
 			", balance=" + balance +
+			", version=" + version +
 			'}';
 	}
 }
@@ -0,0 +1,79 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Accounts in id order encoded column by column, so that thousands of balances make one compact response
+ * instead of an object per account.
+ */
+public class AccountBatch {
+
+	@JsonProperty(value = "ids")
+	private final int[] ids;
+
+	@JsonProperty(value = "balances")
+	private final long[] balances;
+
+	@JsonProperty(value = "versions")
+	private final long[] versions;
+
+	/**
+	 * @param ids      account identifiers in ascending order
+	 * @param balances balance of every account in cents
+	 * @param versions version of every account
+	 */
+	@JsonCreator
+	public AccountBatch(@JsonProperty(value = "ids") int[] ids,
+											@JsonProperty(value = "balances") long[] balances,
+											@JsonProperty(value = "versions") long[] versions) {
+		checkArgument(ids.length == balances.length && ids.length == versions.length, "Columns of equal length required.");
+		this.ids = ids;
+		this.balances = balances;
+		this.versions = versions;
+	}
+
+	public AccountBatch(List<Account> accounts) {
+		this(new int[accounts.size()], new long[accounts.size()], new long[accounts.size()]);
+		for (int i = 0; i < accounts.size(); i++) {
+			Account account = accounts.get(i);
+			ids[i] = account.getId();
+			balances[i] = account.getBalance();
+			versions[i] = account.getVersion();
+		}
+	}
+
+	public int[] getIds() {
+		return ids;
+	}
+
+	public long[] getBalances() {
+		return balances;
+	}
+
+	public long[] getVersions() {
+		return versions;
+	}
+
+	@JsonIgnore
+	public List<Account> getAccounts() {
+		List<Account> accounts = new ArrayList<>(ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			accounts.add(new Account(ids[i], balances[i], versions[i]));
+		}
+		return accounts;
+	}
+
+	@Override
+	public String toString() {
+		return "AccountBatch{" +
+			"accounts=" + ids.length +
+			'}';
+	}
+}
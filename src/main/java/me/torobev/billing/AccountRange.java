@@ -0,0 +1,94 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Contiguous range of accounts created at once, all of them with the same initial balance
+ */
+public class AccountRange {
+
+	@JsonProperty(value = "firstId")
+	private final int firstId;
+
+	@JsonProperty(value = "count")
+	private final int count;
+
+	@JsonProperty(value = "balance")
+	private final long balance;
+
+	/**
+	 * @param firstId first account id in range
+	 * @param count   number of accounts in range
+	 * @param balance initial balance of every account in range
+	 */
+	@JsonCreator
+	public AccountRange(@JsonProperty(value = "firstId") int firstId,
+											@JsonProperty(value = "count") int count,
+											@JsonProperty(value = "balance") long balance) {
+		checkArgument(firstId > 0);
+		checkArgument(count > 0);
+		checkArgument(balance >= 0L);
+		this.firstId = firstId;
+		this.count = count;
+		this.balance = balance;
+	}
+
+	public int getFirstId() {
+		return firstId;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getBalance() {
+		return balance;
+	}
+
+	@JsonIgnore
+	public int getLastId() {
+		return firstId + count - 1;
+	}
+
+	/**
+	 * @return all account ids of the range
+	 */
+	public IntStream ids() {
+		return IntStream.rangeClosed(firstId, getLastId());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof AccountRange)) return false;
+
+		AccountRange that = (AccountRange) o;
+
+		if (firstId != that.firstId) return false;
+		if (count != that.count) return false;
+		return balance == that.balance;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = firstId;
+		result = 31 * result + count;
+		result = 31 * result + (int) (balance ^ (balance >>> 32));
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "AccountRange{" +
+			"firstId=" + firstId +
+			", count=" + count +
+			", balance=" + balance +
+			'}';
+	}
+}
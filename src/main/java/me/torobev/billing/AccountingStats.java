@@ -0,0 +1,121 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Global accounting aggregates. Money is conserved, so {@link #getBalance()} always equals
+ * {@link #getInflow()} minus {@link #getOutflow()}. Conservation is verified by summing account balances at
+ * consistent cut, e.g. on audit, and failed checks are counted in {@link #getViolations()}.
+ * Aggregates are read one by one, so they may disagree by operations in flight.
+ */
+public class AccountingStats {
+
+	@JsonProperty(value = "accounts")
+	private final long accounts;
+
+	@JsonProperty(value = "balance")
+	private final long balance;
+
+	@JsonProperty(value = "inflow")
+	private final long inflow;
+
+	@JsonProperty(value = "outflow")
+	private final long outflow;
+
+	@JsonProperty(value = "violations")
+	private final long violations;
+
+	@JsonProperty(value = "reclaimedAccounts")
+	private final long reclaimedAccounts;
+
+	@JsonProperty(value = "purgedEntries")
+	private final long purgedEntries;
+
+	@JsonProperty(value = "reclaimedBytes")
+	private final long reclaimedBytes;
+
+	/**
+	 * @param accounts          number of live accounts
+	 * @param balance           sum of all live accounts balances
+	 * @param inflow            total external income
+	 * @param outflow           total balance of removed accounts
+	 * @param violations        number of failed money conservation checks
+	 * @param reclaimedAccounts number of removed accounts which storage is freed
+	 * @param purgedEntries     number of transfer log entries of removed accounts archived or dropped
+	 * @param reclaimedBytes    approximate size of freed memory
+	 */
+	@JsonCreator
+	public AccountingStats(@JsonProperty(value = "accounts") long accounts,
+												 @JsonProperty(value = "balance") long balance,
+												 @JsonProperty(value = "inflow") long inflow,
+												 @JsonProperty(value = "outflow") long outflow,
+												 @JsonProperty(value = "violations") long violations,
+												 @JsonProperty(value = "reclaimedAccounts") long reclaimedAccounts,
+												 @JsonProperty(value = "purgedEntries") long purgedEntries,
+												 @JsonProperty(value = "reclaimedBytes") long reclaimedBytes) {
+		this.accounts = accounts;
+		this.balance = balance;
+		this.inflow = inflow;
+		this.outflow = outflow;
+		this.violations = violations;
+		this.reclaimedAccounts = reclaimedAccounts;
+		this.purgedEntries = purgedEntries;
+		this.reclaimedBytes = reclaimedBytes;
+	}
+
+	public long getAccounts() {
+		return accounts;
+	}
+
+	public long getBalance() {
+		return balance;
+	}
+
+	public long getInflow() {
+		return inflow;
+	}
+
+	public long getOutflow() {
+		return outflow;
+	}
+
+	public long getViolations() {
+		return violations;
+	}
+
+	public long getReclaimedAccounts() {
+		return reclaimedAccounts;
+	}
+
+	public long getPurgedEntries() {
+		return purgedEntries;
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes;
+	}
+
+	/**
+	 * @return difference between sum of balances and money that came from outside, zero when money is conserved
+	 */
+	@JsonIgnore
+	public long getDrift() {
+		return balance - (inflow - outflow);
+	}
+
+	@Override
+	public String toString() {
+		return "AccountingStats{" +
+			"accounts=" + accounts +
+			", balance=" + balance +
+			", inflow=" + inflow +
+			", outflow=" + outflow +
+			", violations=" + violations +
+			", reclaimedAccounts=" + reclaimedAccounts +
+			", purgedEntries=" + purgedEntries +
+			", reclaimedBytes=" + reclaimedBytes +
+			'}';
+	}
+}
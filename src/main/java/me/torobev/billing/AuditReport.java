@@ -0,0 +1,130 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Result of transfer log replay against account balances taken at consistent cut
+ */
+public class AuditReport {
+
+	@JsonProperty(value = "sequence")
+	private final long sequence;
+
+	@JsonProperty(value = "accounts")
+	private final int accounts;
+
+	@JsonProperty(value = "mismatchCount")
+	private final int mismatchCount;
+
+	@JsonProperty(value = "mismatches")
+	private final List<Mismatch> mismatches;
+
+	@JsonProperty(value = "elapsedMillis")
+	private final long elapsedMillis;
+
+	/**
+	 * @param sequence      number of replayed transfer log entries
+	 * @param accounts      number of verified accounts
+	 * @param mismatchCount number of accounts with balance that differs from replayed one
+	 * @param mismatches    first found mismatches
+	 * @param elapsedMillis audit duration
+	 */
+	@JsonCreator
+	public AuditReport(@JsonProperty(value = "sequence") long sequence,
+										 @JsonProperty(value = "accounts") int accounts,
+										 @JsonProperty(value = "mismatchCount") int mismatchCount,
+										 @JsonProperty(value = "mismatches") List<Mismatch> mismatches,
+										 @JsonProperty(value = "elapsedMillis") long elapsedMillis) {
+		this.sequence = sequence;
+		this.accounts = accounts;
+		this.mismatchCount = mismatchCount;
+		this.mismatches = unmodifiableList(mismatches);
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Account which balance does not match its history
+	 */
+	public static class Mismatch {
+
+		@JsonProperty(value = "id")
+		private final int id;
+
+		@JsonProperty(value = "expected")
+		private final long expected;
+
+		@JsonProperty(value = "actual")
+		private final long actual;
+
+		/**
+		 * @param id       account identifier
+		 * @param expected balance replayed from transfer log
+		 * @param actual   stored balance
+		 */
+		@JsonCreator
+		public Mismatch(@JsonProperty(value = "id") int id,
+										@JsonProperty(value = "expected") long expected,
+										@JsonProperty(value = "actual") long actual) {
+			this.id = id;
+			this.expected = expected;
+			this.actual = actual;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public long getExpected() {
+			return expected;
+		}
+
+		public long getActual() {
+			return actual;
+		}
+
+		@Override
+		public String toString() {
+			return "Mismatch{" +
+				"id=" + id +
+				", expected=" + expected +
+				", actual=" + actual +
+				'}';
+		}
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public int getAccounts() {
+		return accounts;
+	}
+
+	public int getMismatchCount() {
+		return mismatchCount;
+	}
+
+	public List<Mismatch> getMismatches() {
+		return mismatches;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "AuditReport{" +
+			"sequence=" + sequence +
+			", accounts=" + accounts +
+			", mismatchCount=" + mismatchCount +
+			", mismatches=" + mismatches +
+			", elapsedMillis=" + elapsedMillis +
+			'}';
+	}
+}
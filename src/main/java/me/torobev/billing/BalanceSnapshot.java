@@ -0,0 +1,112 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import static java.util.regex.Pattern.compile;
+
+/**
+ * Summary of balances export taken at one logical point: the state after first {@link #sequence} transfer log
+ * entries were applied.
+ */
+public class BalanceSnapshot {
+
+	/**
+	 * Comment line opening balances export
+	 */
+	public static final String HEADER = "# id,balance";
+
+	private static final Pattern TRAILER = compile("^# sequence=(?<seq>\\d+) accounts=(?<accounts>\\d+) total=(?<total>-?\\d+)$");
+
+	@JsonProperty(value = "sequence")
+	private final long sequence;
+
+	@JsonProperty(value = "accounts")
+	private final int accounts;
+
+	@JsonProperty(value = "total")
+	private final long total;
+
+	/**
+	 * @param sequence number of transfer log entries included into cut
+	 * @param accounts number of exported accounts
+	 * @param total    sum of exported balances
+	 */
+	@JsonCreator
+	public BalanceSnapshot(@JsonProperty(value = "sequence") long sequence,
+												 @JsonProperty(value = "accounts") int accounts,
+												 @JsonProperty(value = "total") long total) {
+		checkArgument(sequence >= 0L);
+		checkArgument(accounts >= 0);
+		this.sequence = sequence;
+		this.accounts = accounts;
+		this.total = total;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public int getAccounts() {
+		return accounts;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return comment line closing balances export
+	 */
+	public String toTrailer() {
+		return "# sequence=" + sequence + " accounts=" + accounts + " total=" + total;
+	}
+
+	/**
+	 * @param line last line of balances export
+	 * @return parsed summary, {@code null} when line is not a trailer
+	 */
+	public static BalanceSnapshot fromTrailer(String line) {
+		Matcher matcher = TRAILER.matcher(line);
+		if (!matcher.find()) {
+			return null;
+		}
+		return new BalanceSnapshot(parseLong(matcher.group("seq")), parseInt(matcher.group("accounts")),
+			parseLong(matcher.group("total")));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof BalanceSnapshot)) return false;
+
+		BalanceSnapshot that = (BalanceSnapshot) o;
+
+		if (sequence != that.sequence) return false;
+		if (accounts != that.accounts) return false;
+		return total == that.total;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = (int) (sequence ^ (sequence >>> 32));
+		result = 31 * result + accounts;
+		result = 31 * result + (int) (total ^ (total >>> 32));
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "BalanceSnapshot{" +
+			"sequence=" + sequence +
+			", accounts=" + accounts +
+			", total=" + total +
+			'}';
+	}
+}
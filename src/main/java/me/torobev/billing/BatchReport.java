@@ -0,0 +1,177 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Progress of batch job applying per account rule to all accounts. Job is throttled so that p99 latency of online
+ * transfers keeps within budget, {@link #getRateLimit()} tells how fast it is allowed to go.
+ */
+public class BatchReport {
+
+	@JsonProperty(value = "run")
+	private final String run;
+
+	@JsonProperty(value = "sequence")
+	private final long sequence;
+
+	@JsonProperty(value = "running")
+	private final boolean running;
+
+	@JsonProperty(value = "processedThrough")
+	private final int processedThrough;
+
+	@JsonProperty(value = "accounts")
+	private final long accounts;
+
+	@JsonProperty(value = "postings")
+	private final long postings;
+
+	@JsonProperty(value = "credited")
+	private final long credited;
+
+	@JsonProperty(value = "debited")
+	private final long debited;
+
+	@JsonProperty(value = "failed")
+	private final long failed;
+
+	@JsonProperty(value = "elapsedMillis")
+	private final long elapsedMillis;
+
+	@JsonProperty(value = "accountsPerSecond")
+	private final long accountsPerSecond;
+
+	@JsonProperty(value = "throttledMillis")
+	private final long throttledMillis;
+
+	@JsonProperty(value = "rateLimit")
+	private final long rateLimit;
+
+	@JsonProperty(value = "transferLatencyMicros")
+	private final long transferLatencyMicros;
+
+	/**
+	 * @param run                   name of run, starting it again resumes it after the last processed account
+	 * @param sequence              transfer log position balances are taken at, rule sees balances after entries
+	 *                              before it
+	 * @param running               whether job is still running
+	 * @param processedThrough      account id every account up to which is processed
+	 * @param accounts              number of processed accounts
+	 * @param postings              number of logged postings
+	 * @param credited              total amount credited in cents
+	 * @param debited               total amount debited in cents
+	 * @param failed                number of postings not applied, e.g. fee exceeding balance or account removed meanwhile
+	 * @param elapsedMillis         job duration so far
+	 * @param accountsPerSecond     average processing rate
+	 * @param throttledMillis       time job threads waited for throttle in total
+	 * @param rateLimit             current limit of accounts processed per second
+	 * @param transferLatencyMicros the latest p99 of online transfer latency in us, 0 without transfers
+	 */
+	@JsonCreator
+	public BatchReport(@JsonProperty(value = "run") String run,
+										 @JsonProperty(value = "sequence") long sequence,
+										 @JsonProperty(value = "running") boolean running,
+										 @JsonProperty(value = "processedThrough") int processedThrough,
+										 @JsonProperty(value = "accounts") long accounts,
+										 @JsonProperty(value = "postings") long postings,
+										 @JsonProperty(value = "credited") long credited,
+										 @JsonProperty(value = "debited") long debited,
+										 @JsonProperty(value = "failed") long failed,
+										 @JsonProperty(value = "elapsedMillis") long elapsedMillis,
+										 @JsonProperty(value = "accountsPerSecond") long accountsPerSecond,
+										 @JsonProperty(value = "throttledMillis") long throttledMillis,
+										 @JsonProperty(value = "rateLimit") long rateLimit,
+										 @JsonProperty(value = "transferLatencyMicros") long transferLatencyMicros) {
+		this.run = run;
+		this.sequence = sequence;
+		this.running = running;
+		this.processedThrough = processedThrough;
+		this.accounts = accounts;
+		this.postings = postings;
+		this.credited = credited;
+		this.debited = debited;
+		this.failed = failed;
+		this.elapsedMillis = elapsedMillis;
+		this.accountsPerSecond = accountsPerSecond;
+		this.throttledMillis = throttledMillis;
+		this.rateLimit = rateLimit;
+		this.transferLatencyMicros = transferLatencyMicros;
+	}
+
+	public String getRun() {
+		return run;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getProcessedThrough() {
+		return processedThrough;
+	}
+
+	public long getAccounts() {
+		return accounts;
+	}
+
+	public long getPostings() {
+		return postings;
+	}
+
+	public long getCredited() {
+		return credited;
+	}
+
+	public long getDebited() {
+		return debited;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public long getAccountsPerSecond() {
+		return accountsPerSecond;
+	}
+
+	public long getThrottledMillis() {
+		return throttledMillis;
+	}
+
+	public long getRateLimit() {
+		return rateLimit;
+	}
+
+	public long getTransferLatencyMicros() {
+		return transferLatencyMicros;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchReport{" +
+			"run='" + run + '\'' +
+			", sequence=" + sequence +
+			", running=" + running +
+			", processedThrough=" + processedThrough +
+			", accounts=" + accounts +
+			", postings=" + postings +
+			", credited=" + credited +
+			", debited=" + debited +
+			", failed=" + failed +
+			", elapsedMillis=" + elapsedMillis +
+			", accountsPerSecond=" + accountsPerSecond +
+			", throttledMillis=" + throttledMillis +
+			", rateLimit=" + rateLimit +
+			", transferLatencyMicros=" + transferLatencyMicros +
+			'}';
+	}
+}
@@ -0,0 +1,79 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Next portion of change feed subscription: either transfers in log order or a gap marker. Gap means subscriber
+ * fell too far behind and transfers logged from {@code gapFrom} to {@code gapTo} are skipped, they may be read again
+ * by subscribing from {@code gapFrom}.
+ */
+public class ChangeBatch {
+
+	public static final long NO_GAP = -1L;
+
+	@JsonProperty(value = "transfers")
+	private final List<Transfer> transfers;
+
+	@JsonProperty(value = "gapFrom")
+	private final long gapFrom;
+
+	@JsonProperty(value = "gapTo")
+	private final long gapTo;
+
+	@JsonProperty(value = "next")
+	private final long next;
+
+	/**
+	 * @param transfers transfers with sequence numbers, empty for gap marker
+	 * @param gapFrom   the first skipped log position, {@link #NO_GAP} if nothing is skipped
+	 * @param gapTo     log position after the last skipped one, {@link #NO_GAP} if nothing is skipped
+	 * @param next      log position to resume subscription from
+	 */
+	@JsonCreator
+	public ChangeBatch(@JsonProperty(value = "transfers") List<Transfer> transfers,
+										 @JsonProperty(value = "gapFrom") long gapFrom,
+										 @JsonProperty(value = "gapTo") long gapTo,
+										 @JsonProperty(value = "next") long next) {
+		this.transfers = unmodifiableList(transfers);
+		this.gapFrom = gapFrom;
+		this.gapTo = gapTo;
+		this.next = next;
+	}
+
+	public List<Transfer> getTransfers() {
+		return transfers;
+	}
+
+	public long getGapFrom() {
+		return gapFrom;
+	}
+
+	public long getGapTo() {
+		return gapTo;
+	}
+
+	public long getNext() {
+		return next;
+	}
+
+	@JsonIgnore
+	public boolean isGap() {
+		return gapFrom != NO_GAP;
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeBatch{" +
+			"transfers=" + transfers.size() +
+			", gapFrom=" + gapFrom +
+			", gapTo=" + gapTo +
+			", next=" + next +
+			'}';
+	}
+}
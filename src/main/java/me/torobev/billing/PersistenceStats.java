@@ -0,0 +1,110 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * State of write-behind persistence. Database lags behind accounting by {@link #getLagEntries()} transfer log
+ * entries, {@link #getFailures()} is non-zero while database keeps failing and writes are retried.
+ */
+public class PersistenceStats {
+
+	@JsonProperty(value = "position")
+	private final long position;
+
+	@JsonProperty(value = "lagEntries")
+	private final long lagEntries;
+
+	@JsonProperty(value = "lagMillis")
+	private final long lagMillis;
+
+	@JsonProperty(value = "batches")
+	private final long batches;
+
+	@JsonProperty(value = "rows")
+	private final long rows;
+
+	@JsonProperty(value = "retries")
+	private final long retries;
+
+	@JsonProperty(value = "failures")
+	private final long failures;
+
+	@JsonProperty(value = "lastError")
+	private final String lastError;
+
+	/**
+	 * @param position   database log position, i.e. number of persisted transfer log entries
+	 * @param lagEntries number of transfer log entries not persisted yet
+	 * @param lagMillis  age of the oldest transfer not persisted yet in ms
+	 * @param batches    number of committed batches
+	 * @param rows       number of written rows
+	 * @param retries    number of failed batches retried
+	 * @param failures   number of consecutive failures of the current batch
+	 * @param lastError  the last database error, {@code null} if there was none
+	 */
+	@JsonCreator
+	public PersistenceStats(@JsonProperty(value = "position") long position,
+													@JsonProperty(value = "lagEntries") long lagEntries,
+													@JsonProperty(value = "lagMillis") long lagMillis,
+													@JsonProperty(value = "batches") long batches,
+													@JsonProperty(value = "rows") long rows,
+													@JsonProperty(value = "retries") long retries,
+													@JsonProperty(value = "failures") long failures,
+													@JsonProperty(value = "lastError") String lastError) {
+		this.position = position;
+		this.lagEntries = lagEntries;
+		this.lagMillis = lagMillis;
+		this.batches = batches;
+		this.rows = rows;
+		this.retries = retries;
+		this.failures = failures;
+		this.lastError = lastError;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public long getLagEntries() {
+		return lagEntries;
+	}
+
+	public long getLagMillis() {
+		return lagMillis;
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public long getRetries() {
+		return retries;
+	}
+
+	public long getFailures() {
+		return failures;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	@Override
+	public String toString() {
+		return "PersistenceStats{" +
+			"position=" + position +
+			", lagEntries=" + lagEntries +
+			", lagMillis=" + lagMillis +
+			", batches=" + batches +
+			", rows=" + rows +
+			", retries=" + retries +
+			", failures=" + failures +
+			", lastError='" + lastError + '\'' +
+			'}';
+	}
+}
@@ -0,0 +1,80 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Latency distribution of one request phase. Percentiles are upper bounds of histogram buckets, which are
+ * at most 12.5% wide.
+ */
+public class PhaseTiming {
+
+	@JsonProperty(value = "count")
+	private final long count;
+
+	@JsonProperty(value = "meanNanos")
+	private final long meanNanos;
+
+	@JsonProperty(value = "p50Nanos")
+	private final long p50Nanos;
+
+	@JsonProperty(value = "p90Nanos")
+	private final long p90Nanos;
+
+	@JsonProperty(value = "p99Nanos")
+	private final long p99Nanos;
+
+	@JsonProperty(value = "maxNanos")
+	private final long maxNanos;
+
+	@JsonCreator
+	public PhaseTiming(@JsonProperty(value = "count") long count,
+										 @JsonProperty(value = "meanNanos") long meanNanos,
+										 @JsonProperty(value = "p50Nanos") long p50Nanos,
+										 @JsonProperty(value = "p90Nanos") long p90Nanos,
+										 @JsonProperty(value = "p99Nanos") long p99Nanos,
+										 @JsonProperty(value = "maxNanos") long maxNanos) {
+		this.count = count;
+		this.meanNanos = meanNanos;
+		this.p50Nanos = p50Nanos;
+		this.p90Nanos = p90Nanos;
+		this.p99Nanos = p99Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMeanNanos() {
+		return meanNanos;
+	}
+
+	public long getP50Nanos() {
+		return p50Nanos;
+	}
+
+	public long getP90Nanos() {
+		return p90Nanos;
+	}
+
+	public long getP99Nanos() {
+		return p99Nanos;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "PhaseTiming{" +
+			"count=" + count +
+			", meanNanos=" + meanNanos +
+			", p50Nanos=" + p50Nanos +
+			", p90Nanos=" + p90Nanos +
+			", p99Nanos=" + p99Nanos +
+			", maxNanos=" + maxNanos +
+			'}';
+	}
+}
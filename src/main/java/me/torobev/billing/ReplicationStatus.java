@@ -0,0 +1,90 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * State of operation stream replication between leader and standby. Positions are leader transfer log positions.
+ */
+public class ReplicationStatus {
+
+	public static final String LEADER = "LEADER";
+	public static final String STANDBY = "STANDBY";
+
+	@JsonProperty(value = "role")
+	private final String role;
+
+	@JsonProperty(value = "connected")
+	private final int connected;
+
+	@JsonProperty(value = "position")
+	private final long position;
+
+	@JsonProperty(value = "acknowledged")
+	private final long acknowledged;
+
+	@JsonProperty(value = "lag")
+	private final long lag;
+
+	@JsonProperty(value = "lagMillis")
+	private final long lagMillis;
+
+	/**
+	 * @param role         {@link #LEADER} or {@link #STANDBY}
+	 * @param connected    number of connected standbys for leader, 1 or 0 for standby connected to leader
+	 * @param position     leader log size for leader, applied log position for standby
+	 * @param acknowledged the most advanced log position acknowledged by standby
+	 * @param lag          number of log entries not applied by standby yet
+	 * @param lagMillis    time since the last applied leader transfer while standby is behind, known by standby only
+	 */
+	@JsonCreator
+	public ReplicationStatus(@JsonProperty(value = "role") String role,
+													 @JsonProperty(value = "connected") int connected,
+													 @JsonProperty(value = "position") long position,
+													 @JsonProperty(value = "acknowledged") long acknowledged,
+													 @JsonProperty(value = "lag") long lag,
+													 @JsonProperty(value = "lagMillis") long lagMillis) {
+		this.role = role;
+		this.connected = connected;
+		this.position = position;
+		this.acknowledged = acknowledged;
+		this.lag = lag;
+		this.lagMillis = lagMillis;
+	}
+
+	public String getRole() {
+		return role;
+	}
+
+	public int getConnected() {
+		return connected;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public long getAcknowledged() {
+		return acknowledged;
+	}
+
+	public long getLag() {
+		return lag;
+	}
+
+	public long getLagMillis() {
+		return lagMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "ReplicationStatus{" +
+			"role='" + role + '\'' +
+			", connected=" + connected +
+			", position=" + position +
+			", acknowledged=" + acknowledged +
+			", lag=" + lag +
+			", lagMillis=" + lagMillis +
+			'}';
+	}
+}
@@ -0,0 +1,65 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * State of transfer scheduler. {@link #getLateMillis()} tells how far behind due time transfers are executed.
+ */
+public class ScheduleStats {
+
+	@JsonProperty(value = "pending")
+	private final long pending;
+
+	@JsonProperty(value = "executed")
+	private final long executed;
+
+	@JsonProperty(value = "failed")
+	private final long failed;
+
+	@JsonProperty(value = "lateMillis")
+	private final long lateMillis;
+
+	/**
+	 * @param pending    number of scheduled transfers and standing orders
+	 * @param executed   number of runs executed
+	 * @param failed     number of runs with result other than OK
+	 * @param lateMillis delay of the last run past its due time in ms
+	 */
+	@JsonCreator
+	public ScheduleStats(@JsonProperty(value = "pending") long pending,
+											 @JsonProperty(value = "executed") long executed,
+											 @JsonProperty(value = "failed") long failed,
+											 @JsonProperty(value = "lateMillis") long lateMillis) {
+		this.pending = pending;
+		this.executed = executed;
+		this.failed = failed;
+		this.lateMillis = lateMillis;
+	}
+
+	public long getPending() {
+		return pending;
+	}
+
+	public long getExecuted() {
+		return executed;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public long getLateMillis() {
+		return lateMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "ScheduleStats{" +
+			"pending=" + pending +
+			", executed=" + executed +
+			", failed=" + failed +
+			", lateMillis=" + lateMillis +
+			'}';
+	}
+}
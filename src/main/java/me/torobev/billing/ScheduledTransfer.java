@@ -0,0 +1,109 @@
+package me.torobev.billing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Transfer executed at due time, once or every {@code periodMillis} like a standing order
+ */
+public class ScheduledTransfer {
+
+	@JsonProperty(value = "id")
+	private final long id;
+
+	@JsonProperty(value = "srcId")
+	private final int srcId;
+
+	@JsonProperty(value = "dstId")
+	private final int dstId;
+
+	@JsonProperty(value = "amount")
+	private final long amount;
+
+	@JsonProperty(value = "dueTime")
+	private final long dueTime;
+
+	@JsonProperty(value = "periodMillis")
+	private final long periodMillis;
+
+	@JsonProperty(value = "runs")
+	private final long runs;
+
+	@JsonProperty(value = "lastResult")
+	private final String lastResult;
+
+	/**
+	 * @param id           schedule identifier
+	 * @param srcId        source account
+	 * @param dstId        destination account
+	 * @param amount       amount in cents
+	 * @param dueTime      time of the next run in ms
+	 * @param periodMillis period of standing order, 0 for one-off transfer
+	 * @param runs         number of runs so far
+	 * @param lastResult   transfer result of the last run, {@code null} before the first one
+	 */
+	@JsonCreator
+	public ScheduledTransfer(@JsonProperty(value = "id") long id,
+													 @JsonProperty(value = "srcId") int srcId,
+													 @JsonProperty(value = "dstId") int dstId,
+													 @JsonProperty(value = "amount") long amount,
+													 @JsonProperty(value = "dueTime") long dueTime,
+													 @JsonProperty(value = "periodMillis") long periodMillis,
+													 @JsonProperty(value = "runs") long runs,
+													 @JsonProperty(value = "lastResult") String lastResult) {
+		this.id = id;
+		this.srcId = srcId;
+		this.dstId = dstId;
+		this.amount = amount;
+		this.dueTime = dueTime;
+		this.periodMillis = periodMillis;
+		this.runs = runs;
+		this.lastResult = lastResult;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public int getSrcId() {
+		return srcId;
+	}
+
+	public int getDstId() {
+		return dstId;
+	}
+
+	public long getAmount() {
+		return amount;
+	}
+
+	public long getDueTime() {
+		return dueTime;
+	}
+
+	public long getPeriodMillis() {
+		return periodMillis;
+	}
+
+	public long getRuns() {
+		return runs;
+	}
+
+	public String getLastResult() {
+		return lastResult;
+	}
+
+	@Override
+	public String toString() {
+		return "ScheduledTransfer{" +
+			"id=" + id +
+			", srcId=" + srcId +
+			", dstId=" + dstId +
+			", amount=" + amount +
+			", dueTime=" + dueTime +
+			", periodMillis=" + periodMillis +
+			", runs=" + runs +
+			", lastResult='" + lastResult + '\'' +
+			'}';
+	}
+}
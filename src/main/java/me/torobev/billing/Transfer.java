@@ -1,12 +1,17 @@
 package me.torobev.billing;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import static com.google.common.base.Preconditions.*;
 
 /**
- * Transfer between two billing accounts. External income has {@link #srcId} == 0.
+ * Transfer between two billing accounts. External income has {@link #srcId} == 0, withdrawal to external
+ * account has {@link #dstId} == 0. Money withdrawn before and returned back is external income marked as
+ * {@link #refund}.
+ * Logged transfers are stamped with global {@link #sequence} number and {@link #timestamp}, stamps are not taken
+ * into account by {@link #equals(Object)}.
  */
 public class Transfer {
 
@@ -16,24 +21,63 @@ public class Transfer {
 	private final int dstId;
 	@JsonProperty(value = "amount")
 	private final long amount;
+	@JsonProperty(value = "sequence")
+	private final long sequence;
+	@JsonProperty(value = "timestamp")
+	private final long timestamp;
+	@JsonProperty(value = "refund")
+	@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+	private final boolean refund;
 
 	/**
 	 * @param srcId  source account id. 0 for external.
-	 * @param dstId  destination account id.
+	 * @param dstId  destination account id. 0 for external.
 	 * @param amount amount of cents to transfer.
 	 */
+	public Transfer(int srcId, int dstId, long amount) {
+		this(srcId, dstId, amount, -1L, 0L);
+	}
+
+	/**
+	 * @param srcId     source account id. 0 for external.
+	 * @param dstId     destination account id. 0 for external.
+	 * @param amount    amount of cents to transfer.
+	 * @param sequence  position in transfer log, -1 for not logged transfer.
+	 * @param timestamp time of logging in ms.
+	 */
+	public Transfer(int srcId, int dstId, long amount, long sequence, long timestamp) {
+		this(srcId, dstId, amount, sequence, timestamp, false);
+	}
+
+	/**
+	 * @param srcId     source account id. 0 for external.
+	 * @param dstId     destination account id. 0 for external.
+	 * @param amount    amount of cents to transfer.
+	 * @param sequence  position in transfer log, -1 for not logged transfer.
+	 * @param timestamp time of logging in ms.
+	 * @param refund    external income which returns money withdrawn before.
+	 */
 	@JsonCreator
 	public Transfer(@JsonProperty(value = "srcId") int srcId,
 									@JsonProperty(value = "dstId") int dstId,
-									@JsonProperty(value = "amount") long amount
+									@JsonProperty(value = "amount") long amount,
+									@JsonProperty(value = "sequence") long sequence,
+									@JsonProperty(value = "timestamp") long timestamp,
+									@JsonProperty(value = "refund") boolean refund
 	) {
 		checkArgument(srcId >= 0);
-		checkArgument(dstId > 0);
+		checkArgument(dstId >= 0);
+		checkArgument(srcId > 0 || dstId > 0);
 		checkArgument(amount > 0);
+		checkArgument(sequence >= -1L);
+		checkArgument(!refund || srcId == 0, "Refund comes from external account");
 
 		this.srcId = srcId;
 		this.dstId = dstId;
 		this.amount = amount;
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.refund = refund;
 	}
 
 	public int getSrcId() {
@@ -48,6 +92,18 @@ public class Transfer {
 		return amount;
 	}
 
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean isRefund() {
+		return refund;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
@@ -74,6 +130,9 @@ public class Transfer {
 			"srcId=" + srcId +
 			", dstId=" + dstId +
 			", amount=" + amount +
+			", sequence=" + sequence +
+			", timestamp=" + timestamp +
+			", refund=" + refund +
 			'}';
 	}
 }
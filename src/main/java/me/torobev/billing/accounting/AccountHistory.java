@@ -0,0 +1,206 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Transfer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Transfer log index of a single account. Entries are appended only while account is borrowed, so they are ordered
+ * by both sequence number and timestamp, and ranges are found with binary search. Reads do not lock: entries are
+ * published by volatile {@link #size} write.
+ * <p>
+ * Balance before every {@link #CHECKPOINT_INTERVAL}-th entry is checkpointed, so historical balance is replayed
+ * from the nearest checkpoint over a bounded number of entries regardless of account age.
+ */
+class AccountHistory {
+
+	private static final Transfer[] EMPTY = new Transfer[0];
+	private static final long[] NO_CHECKPOINTS = new long[0];
+	private static final int INITIAL_CAPACITY = 4;
+	static final int CHECKPOINT_INTERVAL = 32;
+
+	private final int id;
+
+	private volatile Transfer[] entries = EMPTY;
+	private volatile long[] checkpoints = NO_CHECKPOINTS;
+	private volatile int size;
+	// balance after all appended entries, accessed by account borrower only
+	private long balance;
+
+	/**
+	 * @param id account identifier
+	 */
+	AccountHistory(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * Must be called by account borrower only
+	 *
+	 * @param transfer logged entry of the account
+	 */
+	void append(Transfer transfer) {
+		int n = size;
+		if (n % CHECKPOINT_INTERVAL == 0) {
+			int index = n / CHECKPOINT_INTERVAL;
+			long[] saved = checkpoints;
+			if (index == saved.length) {
+				saved = Arrays.copyOf(saved, Math.max(INITIAL_CAPACITY, index << 1));
+				saved[index] = balance;
+				checkpoints = saved;
+			} else {
+				saved[index] = balance;
+			}
+		}
+		balance += delta(transfer);
+
+		Transfer[] array = entries;
+		if (n == array.length) {
+			array = Arrays.copyOf(array, Math.max(INITIAL_CAPACITY, n << 1));
+			array[n] = transfer;
+			entries = array;
+		} else {
+			array[n] = transfer;
+		}
+		size = n + 1;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param from  first timestamp, inclusive
+	 * @param to    last timestamp, exclusive
+	 * @param limit maximum number of returned entries
+	 * @return first entries logged in time range, in log order
+	 */
+	List<Transfer> range(long from, long to, int limit) {
+		return range(from, to, limit, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param from  first timestamp, inclusive
+	 * @param to    last timestamp, exclusive
+	 * @param limit maximum number of returned entries
+	 * @param end   log position, entries with greater or equal sequence numbers are not returned
+	 * @return first entries logged in time range before log position, in log order
+	 */
+	List<Transfer> range(long from, long to, int limit, long end) {
+		return range(from, to, limit, end, new int[1]);
+	}
+
+	/**
+	 * @param from    first timestamp, inclusive
+	 * @param to      last timestamp, exclusive
+	 * @param limit   maximum number of returned entries
+	 * @param end     log position, entries with greater or equal sequence numbers are not returned
+	 * @param scanned receives number of entries read after binary search of range start
+	 * @return first entries logged in time range before log position, in log order
+	 */
+	List<Transfer> range(long from, long to, int limit, long end, int[] scanned) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
+		int n = size;
+		Transfer[] array = entries;
+		List<Transfer> result = new ArrayList<>(Math.min(limit, 16));
+		for (int i = firstAt(array, n, from); i < n && result.size() < limit; i++) {
+			scanned[0]++;
+			Transfer transfer = array[i];
+			if (transfer.getTimestamp() >= to || transfer.getSequence() >= end) {
+				break;
+			}
+			result.add(transfer);
+		}
+		return result;
+	}
+
+	/**
+	 * @param timestamp time in ms
+	 * @return balance after all entries logged not later than given time
+	 */
+	long balanceAsOf(long timestamp) {
+		int n = size;
+		Transfer[] array = entries;
+		return balanceBefore(array, firstAt(array, n, timestamp == Long.MAX_VALUE ? timestamp : timestamp + 1));
+	}
+
+	/**
+	 * @param sequence log sequence number
+	 * @return balance after all entries with sequence numbers not greater than given one
+	 */
+	long balanceAtSequence(long sequence) {
+		return sequence == Long.MAX_VALUE ? balanceAtPosition(sequence) : balanceAtPosition(sequence + 1);
+	}
+
+	/**
+	 * @param position log position
+	 * @return balance after all entries with sequence numbers less than given position
+	 */
+	long balanceAtPosition(long position) {
+		int n = size;
+		Transfer[] array = entries;
+		int low = 0;
+		int high = n;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (array[middle].getSequence() < position) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return balanceBefore(array, low);
+	}
+
+	/**
+	 * @param end number of leading entries to apply, not greater than size read before entries
+	 * @return balance after given number of entries replayed from the nearest checkpoint
+	 */
+	private long balanceBefore(Transfer[] array, int end) {
+		if (end == 0) {
+			return 0L;
+		}
+		// checkpoint before the last applied entry is published together with it
+		int index = (end - 1) / CHECKPOINT_INTERVAL;
+		long result = checkpoints[index];
+		for (int i = index * CHECKPOINT_INTERVAL; i < end; i++) {
+			result += delta(array[i]);
+		}
+		return result;
+	}
+
+	private long delta(Transfer transfer) {
+		long delta = 0L;
+		if (transfer.getDstId() == id) {
+			delta += transfer.getAmount();
+		}
+		if (transfer.getSrcId() == id) {
+			delta -= transfer.getAmount();
+		}
+		return delta;
+	}
+
+	/**
+	 * @return index of the first entry logged not earlier than given time
+	 */
+	private static int firstAt(Transfer[] array, int n, long timestamp) {
+		int low = 0;
+		int high = n;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (array[middle].getTimestamp() < timestamp) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
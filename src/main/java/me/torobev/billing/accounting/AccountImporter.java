@@ -0,0 +1,317 @@
+package me.torobev.billing.accounting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.nanoTime;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Collections.unmodifiableList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Parallel loader of accounts from CSV file with {@code id,balance} rows.
+ * File is memory mapped in chunks split on line boundaries, chunks are parsed in fork-join pool and accounts are
+ * put directly to {@link InMemoryAccounting} storage. Empty lines and lines starting with {@code #} are skipped,
+ * malformed rows are rejected and reported with their line numbers.
+ * <p>
+ * The first row of an account id in file order wins, later rows with the same id are rejected as duplicates. To
+ * keep this independent of chunk scheduling, chunks are parsed twice: the first pass collects ids of well-formed
+ * rows, duplicates are then marked in file order, and the second pass imports the rest.
+ */
+public class AccountImporter {
+
+	private static final int DEFAULT_CHUNK_SIZE = 16 << 20;
+	private static final int MAX_REPORTED_ERRORS = 100;
+
+	private final InMemoryAccounting accounting;
+	private final int parallelism;
+	private final int chunkSize;
+
+	public AccountImporter(InMemoryAccounting accounting, int parallelism) {
+		this(accounting, parallelism, DEFAULT_CHUNK_SIZE);
+	}
+
+	AccountImporter(InMemoryAccounting accounting, int parallelism, int chunkSize) {
+		checkArgument(parallelism > 0);
+		checkArgument(chunkSize > 0);
+		this.accounting = accounting;
+		this.parallelism = parallelism;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Import statistics
+	 */
+	public static class Result {
+
+		private final long rows;
+		private final long rejected;
+		private final List<String> errors;
+		private final long elapsedNanos;
+
+		Result(long rows, long rejected, List<String> errors, long elapsedNanos) {
+			this.rows = rows;
+			this.rejected = rejected;
+			this.errors = unmodifiableList(errors);
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * @return number of imported accounts
+		 */
+		public long getRows() {
+			return rows;
+		}
+
+		/**
+		 * @return number of malformed or duplicate rows
+		 */
+		public long getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * @return first rejected rows descriptions with line numbers
+		 */
+		public List<String> getErrors() {
+			return errors;
+		}
+
+		public long getElapsedMillis() {
+			return NANOSECONDS.toMillis(elapsedNanos);
+		}
+
+		public double getRowsPerSecond() {
+			return elapsedNanos == 0L ? 0d : rows * 1e9d / elapsedNanos;
+		}
+	}
+
+	public Result importFile(Path path) throws IOException {
+		long start = nanoTime();
+		try (FileChannel channel = FileChannel.open(path, READ)) {
+			List<Chunk> scans = split(channel, null);
+
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			List<Chunk> chunks;
+			try {
+				invokeAll(pool, scans);
+				chunks = split(channel, markDuplicates(scans));
+				invokeAll(pool, chunks);
+			} finally {
+				pool.shutdown();
+			}
+
+			long rows = 0L;
+			long rejected = 0L;
+			long line = 0L;
+			int maxId = 0;
+			List<String> errors = new ArrayList<>();
+			for (Chunk chunk : chunks) {
+				rows += chunk.rows;
+				rejected += chunk.rejected;
+				maxId = Math.max(maxId, chunk.maxId);
+				for (int i = 0; i < chunk.errorLines.size() && errors.size() < MAX_REPORTED_ERRORS; i++) {
+					errors.add("line " + (line + chunk.errorLines.get(i)) + ": " + chunk.errorMessages.get(i));
+				}
+				line += chunk.lines;
+			}
+			accounting.reserveIds(maxId);
+			return new Result(rows, rejected, errors, nanoTime() - start);
+		}
+	}
+
+	private static void invokeAll(ForkJoinPool pool, List<Chunk> chunks) {
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(chunks);
+			}
+		});
+	}
+
+	/**
+	 * @param scans chunks with collected ids
+	 * @return indexes of duplicate rows among well-formed rows of every chunk
+	 */
+	private static List<BitSet> markDuplicates(List<Chunk> scans) {
+		int maxId = 0;
+		for (Chunk scan : scans) {
+			maxId = Math.max(maxId, scan.maxId);
+		}
+		BitSet seen = new BitSet(maxId + 1);
+		List<BitSet> duplicates = new ArrayList<>(scans.size());
+		for (Chunk scan : scans) {
+			BitSet chunkDuplicates = new BitSet();
+			for (int i = 0; i < scan.count; i++) {
+				int id = scan.ids[i];
+				if (seen.get(id)) {
+					chunkDuplicates.set(i);
+				} else {
+					seen.set(id);
+				}
+			}
+			duplicates.add(chunkDuplicates);
+		}
+		return duplicates;
+	}
+
+	/**
+	 * @param duplicates duplicate rows of every chunk, {@code null} to split file for the first pass
+	 */
+	private List<Chunk> split(FileChannel channel, List<BitSet> duplicates) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		long size = channel.size();
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long from = 0L;
+		while (from < size) {
+			long to = Math.min(from + chunkSize, size);
+			// move chunk end right after the nearest line break
+			while (to < size) {
+				probe.clear();
+				int read = channel.read(probe, to);
+				int newLine = -1;
+				for (int i = 0; i < read; i++) {
+					if (probe.get(i) == '\n') {
+						newLine = i;
+						break;
+					}
+				}
+				if (newLine >= 0) {
+					to += newLine + 1;
+					break;
+				}
+				to += Math.max(read, 0);
+			}
+			chunks.add(new Chunk(channel, from, Math.min(to, size),
+				duplicates == null ? null : duplicates.get(chunks.size())));
+			from = to;
+		}
+		return chunks;
+	}
+
+	private class Chunk extends RecursiveAction {
+
+		private final FileChannel channel;
+		private final long from;
+		private final long to;
+		// null in the first pass, which only collects ids
+		private final BitSet duplicates;
+
+		private long lines;
+		private long rows;
+		private long rejected;
+		private int maxId;
+		private final List<Long> errorLines = new ArrayList<>();
+		private final List<String> errorMessages = new ArrayList<>();
+
+		// ids of well-formed rows in the first pass
+		private int[] ids;
+		private int count;
+
+		Chunk(FileChannel channel, long from, long to, BitSet duplicates) {
+			this.channel = channel;
+			this.from = from;
+			this.to = to;
+			this.duplicates = duplicates;
+			this.ids = duplicates == null ? new int[1024] : null;
+		}
+
+		@Override
+		protected void compute() {
+			MappedByteBuffer buffer;
+			try {
+				buffer = channel.map(READ_ONLY, from, to - from);
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to map file region " + from + ".." + to, e);
+			}
+
+			int limit = buffer.limit();
+			int pos = 0;
+			while (pos < limit) {
+				lines++;
+				int eol = pos;
+				while (eol < limit && buffer.get(eol) != '\n') {
+					eol++;
+				}
+				int end = eol;
+				if (end > pos && buffer.get(end - 1) == '\r') {
+					end--;
+				}
+				if (end > pos && buffer.get(pos) != '#') {
+					String error = parseRow(buffer, pos, end);
+					if (error != null && duplicates != null) {
+						rejected++;
+						if (errorLines.size() < MAX_REPORTED_ERRORS) {
+							errorLines.add(lines);
+							errorMessages.add(error);
+						}
+					}
+				}
+				pos = eol + 1;
+			}
+		}
+
+		private String parseRow(ByteBuffer buffer, int pos, int end) {
+			long id = 0L;
+			int i = pos;
+			for (; i < end && buffer.get(i) != ','; i++) {
+				int digit = buffer.get(i) - '0';
+				if (digit < 0 || digit > 9) {
+					return "malformed account id";
+				}
+				id = id * 10 + digit;
+				if (id > Integer.MAX_VALUE) {
+					return "account id out of range";
+				}
+			}
+			if (i == pos || i == end) {
+				return "expected id,balance";
+			}
+
+			long balance = 0L;
+			int balanceStart = ++i;
+			for (; i < end; i++) {
+				int digit = buffer.get(i) - '0';
+				if (digit < 0 || digit > 9) {
+					return "malformed balance";
+				}
+				if (balance > (Long.MAX_VALUE - digit) / 10) {
+					return "balance out of range";
+				}
+				balance = balance * 10 + digit;
+			}
+			if (i == balanceStart) {
+				return "balance required";
+			}
+			if (id == 0L || id > accounting.getMaxId()) {
+				return "account id out of range";
+			}
+			int row = count++;
+			maxId = Math.max(maxId, (int) id);
+			if (duplicates == null) {
+				if (row == ids.length) {
+					ids = Arrays.copyOf(ids, row * 2);
+				}
+				ids[row] = (int) id;
+				return null;
+			}
+			if (duplicates.get(row) || !accounting.importAccount((int) id, balance)) {
+				return "duplicate account " + id;
+			}
+			rows++;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package me.torobev.billing.accounting;
+
+/**
+ * Receives account creations and removals of {@link InMemoryAccounting} in the order of transfer log.
+ * Change at {@code position} follows log entries with smaller sequence numbers and precedes the rest.
+ * Listener is called while account is borrowed, so it must be fast and must not call accounting back.
+ */
+public interface AccountListener {
+
+	/**
+	 * @param id       created account identifier
+	 * @param position log position of creation
+	 */
+	void created(int id, long position);
+
+	/**
+	 * @param id       removed account identifier
+	 * @param position log position of removal
+	 */
+	void removed(int id, long position);
+}
@@ -0,0 +1,32 @@
+package me.torobev.billing.accounting;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of {@link InMemoryAccounting#getAccountLog(int, long, long, int) account log} scan
+ */
+@Name(AccountLogEvent.NAME)
+@Label("Account Log Scan")
+@Description("Read of account transfers in time range")
+@Category({"Billing", "Accounting"})
+@StackTrace(false)
+public class AccountLogEvent extends Event {
+
+	public static final String NAME = "me.torobev.billing.AccountLog";
+
+	@Label("Account")
+	int accountId;
+
+	@Label("Entries")
+	@Description("Number of account history entries read by the scan")
+	int entries;
+
+	@Label("Returned")
+	@Description("Number of returned transfers")
+	int returned;
+}
@@ -0,0 +1,48 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Account;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Per account rule of {@link BatchEngine} job, e.g. interest rate or fee schedule
+ */
+@FunctionalInterface
+public interface AccountRule {
+
+	/**
+	 * @param account account with balance the job is run against
+	 * @return amount in cents to credit account with, negative to debit it, 0 to leave account as is
+	 */
+	long posting(Account account);
+
+	/**
+	 * @return rule posting the sum of both rules in one log entry
+	 */
+	default AccountRule plus(AccountRule other) {
+		return account -> posting(account) + other.posting(account);
+	}
+
+	/**
+	 * @param annualRate yearly interest rate, e.g. 0.05, negative rate debits accounts
+	 * @return interest of one day out of 365 computed exactly in decimal, rounded towards zero to whole cents
+	 */
+	static AccountRule dailyInterest(BigDecimal annualRate) {
+		BigDecimal days = BigDecimal.valueOf(365L);
+		return account -> BigDecimal.valueOf(account.getBalance()).multiply(annualRate)
+			.divide(days, 0, RoundingMode.DOWN).longValueExact();
+	}
+
+	/**
+	 * @param fee   fee in cents
+	 * @param below balance the fee is waived from
+	 * @return fee charged to accounts with balance below given one
+	 */
+	static AccountRule fee(long fee, long below) {
+		checkArgument(fee >= 0L, "Non negative fee required.");
+		return account -> account.getBalance() < below ? -fee : 0L;
+	}
+}
@@ -1,8 +1,14 @@
 package me.torobev.billing.accounting;
 
 import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.BalanceSnapshot;
 import me.torobev.billing.Transfer;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 public interface Accounting {
@@ -24,6 +30,15 @@ public interface Accounting {
 	 */
 	Account createAccount();
 
+	/**
+	 * Creates {@code count} accounts with consecutive identifiers at once
+	 *
+	 * @param count          number of accounts to create
+	 * @param initialBalance initial balance in cents of every created account
+	 * @return range of created accounts
+	 */
+	AccountRange createAccounts(int count, long initialBalance);
+
 	/**
 	 * @param id account to remove
 	 * @return {@code true} if account successfully removed, {@code false} otherwise
@@ -36,6 +51,21 @@ public interface Accounting {
 	 */
 	Account getAccount(int id);
 
+	/**
+	 * Lists accounts page by page in id order, the next page starts after the last id of previous one
+	 *
+	 * @param afterId identifier preceding the first listed one, 0 to list from the beginning
+	 * @param limit   maximum number of returned accounts
+	 * @return existing accounts with identifiers greater than {@code afterId} ordered by id
+	 */
+	List<Account> listAccounts(int afterId, int limit);
+
+	/**
+	 * @param ids account identifiers
+	 * @return existing accounts of given ones ordered by id, unknown and repeated identifiers are skipped
+	 */
+	List<Account> getAccounts(int[] ids);
+
 	/**
 	 * increases account balance by amount provided
 	 *
@@ -45,6 +75,18 @@ public interface Accounting {
 	 */
 	boolean increaseAccountBalance(int id, long amount);
 
+	/**
+	 * increases account balance by amount provided once per idempotency key, repeated call with the same key
+	 * returns the first result without changing balance again
+	 *
+	 * @param id             account identifier
+	 * @param amount         amount in cents to add to balance
+	 * @param idempotencyKey unique key of this increase, {@code null} to increase unconditionally
+	 * @return {@code true} on success, {@code false} when account not found
+	 * @throws IdempotencyKeyReusedException if key was used for another modification
+	 */
+	boolean increaseAccountBalance(int id, long amount, String idempotencyKey);
+
 	/**
 	 * Executes provided money transfer between two accounts
 	 *
@@ -54,10 +96,83 @@ public interface Accounting {
 	 */
 	TransferResult execute(Transfer transfer);
 
+	/**
+	 * Executes provided money transfer once per idempotency key, so that transfer with unknown outcome may be
+	 * retried safely. Repeated call with the same key returns the first result without touching balances.
+	 *
+	 * @param transfer       desired transfer
+	 * @param idempotencyKey unique key of this transfer, {@code null} to execute unconditionally
+	 * @return result of transfer executed with given key first
+	 * @throws IdempotencyKeyReusedException if key was used for another modification
+	 */
+	TransferResult execute(Transfer transfer, String idempotencyKey);
+
 	/**
 	 * @param id account identifier
 	 * @return list of transfers related to given account
 	 */
 	List<Transfer> getAccountLog(int id);
 
+	/**
+	 * @param id    account identifier
+	 * @param from  first {@link Transfer#getTimestamp() timestamp} in ms, inclusive
+	 * @param to    last timestamp in ms, exclusive
+	 * @param limit maximum number of returned transfers
+	 * @return first transfers related to given account logged in time range, ordered by sequence number
+	 */
+	List<Transfer> getAccountLog(int id, long from, long to, int limit);
+
+	/**
+	 * @param id        account identifier
+	 * @param timestamp time in ms
+	 * @return account with balance after all its transfers logged not later than given time or {@code null} if
+	 * account is not found
+	 */
+	Account getAccountAsOf(int id, long timestamp);
+
+	/**
+	 * @param id       account identifier
+	 * @param sequence transfer log sequence number
+	 * @return account with balance after all its transfers with sequence numbers not greater than given one or
+	 * {@code null} if account is not found
+	 */
+	Account getAccountAtSequence(int id, long sequence);
+
+	/**
+	 * @param limit maximum number of returned accounts
+	 * @return accounts with the highest balances ordered by balance descending, then by id
+	 */
+	List<Account> getTopAccounts(int limit);
+
+	/**
+	 * @param from  the least balance in cents, inclusive
+	 * @param to    the greatest balance in cents, exclusive
+	 * @param limit maximum number of returned accounts
+	 * @return accounts with the lowest balances in range ordered by balance, then by id
+	 */
+	List<Account> getAccountsByBalance(long from, long to, int limit);
+
+	/**
+	 * Writes balances of all accounts taken at one logical point as CSV {@code id,balance} rows surrounded by
+	 * {@link BalanceSnapshot#HEADER header} and {@link BalanceSnapshot#toTrailer() trailer} comment lines.
+	 * Balances in export are exactly the result of first {@link BalanceSnapshot#getSequence()} transfer log entries.
+	 *
+	 * @param out stream to write export to, it is not closed
+	 * @return export summary
+	 * @throws IOException on write failure
+	 */
+	BalanceSnapshot exportBalances(OutputStream out) throws IOException;
+
+	/**
+	 * @return global aggregates, computed in constant time
+	 */
+	AccountingStats getStats();
+
+	/**
+	 * Verifies every account balance against transfer log, both taken at one logical point
+	 *
+	 * @return audit report with found mismatches
+	 */
+	AuditReport audit();
+
 }
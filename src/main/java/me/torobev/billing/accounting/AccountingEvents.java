@@ -0,0 +1,105 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.accounting.Accounting.TransferResult;
+
+/**
+ * Flight recorder events of accounting. Events are created only if the runtime provides flight recorder API,
+ * otherwise methods do nothing and event classes are never loaded.
+ */
+final class AccountingEvents {
+
+	/**
+	 * {@code true} if {@code jdk.jfr.Event} is available, checked once
+	 */
+	static final boolean ENABLED = isAvailable();
+
+	private AccountingEvents() {
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return started {@link BorrowEvent}, {@code null} if events are disabled
+	 */
+	static Object beginBorrow() {
+		if (!ENABLED) {
+			return null;
+		}
+		BorrowEvent event = new BorrowEvent();
+		event.begin();
+		return event;
+	}
+
+	static void endBorrow(Object started, int accountId, long spins) {
+		if (started == null) {
+			return;
+		}
+		BorrowEvent event = (BorrowEvent) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.accountId = accountId;
+			event.spins = spins;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return started {@link TransferEvent}, {@code null} if events are disabled
+	 */
+	static Object beginTransfer() {
+		if (!ENABLED) {
+			return null;
+		}
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		return event;
+	}
+
+	static void endTransfer(Object started, int srcId, int dstId, long amount, TransferResult result) {
+		if (started == null) {
+			return;
+		}
+		TransferEvent event = (TransferEvent) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.srcId = srcId;
+			event.dstId = dstId;
+			event.amount = amount;
+			event.result = result.name();
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return started {@link AccountLogEvent}, {@code null} if events are disabled
+	 */
+	static Object beginAccountLog() {
+		if (!ENABLED) {
+			return null;
+		}
+		AccountLogEvent event = new AccountLogEvent();
+		event.begin();
+		return event;
+	}
+
+	static void endAccountLog(Object started, int accountId, int entries, int returned) {
+		if (started == null) {
+			return;
+		}
+		AccountLogEvent event = (AccountLogEvent) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.accountId = accountId;
+			event.entries = entries;
+			event.returned = returned;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.AuditReport.Mismatch;
+import me.torobev.billing.BalanceSnapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Parallel verification of account balances against {@link TransferLog}.
+ * Balances are taken at consistent cut while transfers go on. Log prefix up to the cut is split into chunks
+ * replayed in fork-join pool into shared array of expected balances, then account space is split into ranges
+ * compared with stored balances in parallel.
+ */
+class Auditor {
+
+	private static final long REPLAY_CHUNK = 1 << 16;
+	private static final int COMPARE_CHUNK = 1 << 16;
+	private static final int MAX_REPORTED = 1000;
+	private static final long ABSENT = Long.MIN_VALUE;
+
+	private final ForkJoinPool pool;
+
+	Auditor(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	AuditReport audit(InMemoryAccounting accounting, TransferLog log) {
+		long start = nanoTime();
+
+		// arrays are indexed by account id starting from the first id of accounting
+		int base = accounting.getMinId();
+		Balances stored = new Balances(base);
+		long[] flow = new long[1];
+		BalanceSnapshot snapshot = accounting.snapshot(stored::put, flow);
+		accounting.checkConservation(snapshot, flow[0]);
+
+		AtomicLongArray expected = new AtomicLongArray(stored.size);
+		pool.invoke(new Replay(log, expected, base, 0L, snapshot.getSequence()));
+		Mismatches mismatches = pool.invoke(new Compare(stored.balances, expected, base, 0, stored.size));
+
+		return new AuditReport(snapshot.getSequence(), snapshot.getAccounts(), mismatches.count, mismatches.first,
+			NANOSECONDS.toMillis(nanoTime() - start));
+	}
+
+	/**
+	 * Dense array of balances indexed by account id minus base
+	 */
+	private static class Balances {
+
+		private final int base;
+		private long[] balances = new long[1024];
+		private int size = 0;
+
+		Balances(int base) {
+			this.base = base;
+			Arrays.fill(balances, ABSENT);
+		}
+
+		void put(Account account) {
+			int index = account.getId() - base;
+			if (index >= balances.length) {
+				int length = balances.length;
+				balances = Arrays.copyOf(balances, Math.max(2 * length, index + 1));
+				Arrays.fill(balances, length, balances.length, ABSENT);
+			}
+			balances[index] = account.getBalance();
+			size = Math.max(size, index + 1);
+		}
+	}
+
+	private static class Replay extends RecursiveAction {
+
+		private final TransferLog log;
+		private final AtomicLongArray expected;
+		private final int base;
+		private final long from;
+		private final long to;
+
+		Replay(TransferLog log, AtomicLongArray expected, int base, long from, long to) {
+			this.log = log;
+			this.expected = expected;
+			this.base = base;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > REPLAY_CHUNK) {
+				long middle = (from + to) >>> 1;
+				invokeAll(new Replay(log, expected, base, from, middle), new Replay(log, expected, base, middle, to));
+				return;
+			}
+			int length = expected.length();
+			log.forEach(from, to, t -> {
+				// accounts removed before cut are not verified, external account 0 is below base
+				int src = t.getSrcId() - base;
+				if (src >= 0 && src < length) {
+					expected.addAndGet(src, -t.getAmount());
+				}
+				int dst = t.getDstId() - base;
+				if (dst >= 0 && dst < length) {
+					expected.addAndGet(dst, t.getAmount());
+				}
+			});
+		}
+	}
+
+	private static class Mismatches {
+
+		private int count;
+		private final List<Mismatch> first = new ArrayList<>();
+
+		Mismatches merge(Mismatches other) {
+			count += other.count;
+			for (Mismatch mismatch : other.first) {
+				if (first.size() >= MAX_REPORTED) {
+					break;
+				}
+				first.add(mismatch);
+			}
+			return this;
+		}
+	}
+
+	private static class Compare extends RecursiveTask<Mismatches> {
+
+		private final long[] stored;
+		private final AtomicLongArray expected;
+		private final int base;
+		private final int from;
+		private final int to;
+
+		Compare(long[] stored, AtomicLongArray expected, int base, int from, int to) {
+			this.stored = stored;
+			this.expected = expected;
+			this.base = base;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Mismatches compute() {
+			if (to - from > COMPARE_CHUNK) {
+				int middle = (from + to) >>> 1;
+				Compare right = new Compare(stored, expected, base, middle, to);
+				right.fork();
+				Mismatches left = new Compare(stored, expected, base, from, middle).compute();
+				return left.merge(right.join());
+			}
+			Mismatches result = new Mismatches();
+			for (int index = from; index < to; index++) {
+				long actual = stored[index];
+				if (actual == ABSENT) {
+					continue;
+				}
+				long replayed = expected.get(index);
+				if (replayed != actual) {
+					result.count++;
+					if (result.first.size() < MAX_REPORTED) {
+						result.first.add(new Mismatch(base + index, replayed, actual));
+					}
+				}
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Account;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Collections.emptyList;
+
+/**
+ * Index of accounts by balance for top-N and balance range queries. Balances are split into log-linear buckets:
+ * exact below {@code 2^(SUB_BITS + 1)}, then {@code 2^SUB_BITS} buckets per power of two, i.e. less than 1% wide.
+ * Account moves to another bucket only when its balance change crosses bucket bound, so most transfers do not
+ * touch the index at all. Queries walk buckets in balance order, read current state of members of the buckets
+ * that may hold the answer, and sort them, so answers are exact while the write path keeps to hash set updates.
+ * <p>
+ * Index is updated while account is borrowed. Query is weakly consistent like iteration of concurrent collections:
+ * every returned account is read at some moment during the query, account moving between buckets meanwhile
+ * may be missed.
+ * <p>
+ * Query reads at most {@link #MAX_SCANNED} members, so a crowded bucket does not make it linear in number of
+ * accounts. When the budget runs out inside a bucket, returned accounts are still in range and in order, but some
+ * members of that bucket, within 1% of the returned balances, are not considered.
+ */
+class BalanceIndex {
+
+	private static final int SUB_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// 2^SUB_BITS buckets of the top power of two below 2^63 are the last ones
+	static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+	// members read by a single query
+	static final int MAX_SCANNED = 1 << 16;
+
+	static final Comparator<Account> BY_BALANCE =
+		Comparator.comparingLong(Account::getBalance).thenComparingInt(Account::getId);
+	static final Comparator<Account> BY_BALANCE_DESCENDING =
+		Comparator.comparingLong(Account::getBalance).reversed().thenComparingInt(Account::getId);
+
+	private final List<Set<Integer>> buckets = new ArrayList<>(BUCKETS);
+
+	BalanceIndex() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.add(ConcurrentHashMap.newKeySet());
+		}
+	}
+
+	/**
+	 * @return bucket of non-negative balance
+	 */
+	static int bucket(long balance) {
+		if (balance < 2 * SUB_BUCKETS) {
+			return (int) Math.max(0L, balance);
+		}
+		// number of dropped low bits, so that SUB_BITS + 1 high bits are left
+		int shift = 63 - SUB_BITS - Long.numberOfLeadingZeros(balance);
+		return (shift << SUB_BITS) + (int) (balance >>> shift);
+	}
+
+	/**
+	 * @return the least balance of bucket
+	 */
+	static long lowest(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BITS) - 1;
+		return (long) (bucket - (shift << SUB_BITS)) << shift;
+	}
+
+	void add(int id, long balance) {
+		buckets.get(bucket(balance)).add(id);
+	}
+
+	void remove(int id, long balance) {
+		buckets.get(bucket(balance)).remove(id);
+	}
+
+	/**
+	 * Moves account if its balance changed bucket
+	 */
+	void update(int id, long previous, long balance) {
+		int from = bucket(previous);
+		int to = bucket(balance);
+		if (from != to) {
+			buckets.get(to).add(id);
+			buckets.get(from).remove(id);
+		}
+	}
+
+	/**
+	 * @param limit  maximum number of returned accounts
+	 * @param reader current account state by id, {@code null} if account is removed
+	 * @return accounts with the highest balances, by balance descending, then by id
+	 */
+	List<Account> top(int limit, IntFunction<Account> reader) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
+		Map<Integer, Account> found = new HashMap<>();
+		int budget = MAX_SCANNED;
+		for (int bucket = BUCKETS - 1; bucket >= 0 && found.size() < limit && budget > 0; bucket--) {
+			budget = collect(bucket, Long.MIN_VALUE, Long.MAX_VALUE, reader, found, budget);
+		}
+		return sorted(found, BY_BALANCE_DESCENDING, limit);
+	}
+
+	/**
+	 * @param from   the least balance, inclusive
+	 * @param to     the greatest balance, exclusive
+	 * @param limit  maximum number of returned accounts
+	 * @param reader current account state by id, {@code null} if account is removed
+	 * @return accounts with balances in range, by balance, then by id
+	 */
+	List<Account> range(long from, long to, int limit, IntFunction<Account> reader) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
+		if (to <= 0L || to <= from) {
+			return emptyList();
+		}
+		Map<Integer, Account> found = new HashMap<>();
+		int budget = MAX_SCANNED;
+		int last = bucket(to - 1);
+		for (int bucket = bucket(from); bucket <= last && found.size() < limit && budget > 0; bucket++) {
+			budget = collect(bucket, from, to, reader, found, budget);
+		}
+		return sorted(found, BY_BALANCE, limit);
+	}
+
+	/**
+	 * @return budget left after members read
+	 */
+	private int collect(int bucket, long from, long to, IntFunction<Account> reader, Map<Integer, Account> found,
+											int budget) {
+		Set<Integer> members = buckets.get(bucket);
+		if (members.isEmpty()) {
+			return budget;
+		}
+		for (Integer id : members) {
+			if (budget == 0) {
+				break;
+			}
+			budget--;
+			Account account = reader.apply(id);
+			// balance is read after index, it may have left the range since
+			if (account != null && account.getBalance() >= from && account.getBalance() < to) {
+				found.put(id, account);
+			}
+		}
+		return budget;
+	}
+
+	private static List<Account> sorted(Map<Integer, Account> found, Comparator<Account> order, int limit) {
+		List<Account> accounts = new ArrayList<>(found.values());
+		accounts.sort(order);
+		return accounts.size() > limit ? new ArrayList<>(accounts.subList(0, limit)) : accounts;
+	}
+}
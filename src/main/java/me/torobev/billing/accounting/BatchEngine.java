@@ -0,0 +1,389 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.BatchReport;
+import me.torobev.billing.accounting.Accounting.TransferResult;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Batch jobs applying {@link AccountRule} to every account of {@link InMemoryAccounting}, e.g. end of day interest
+ * and fees. Account space is split into ranges processed in own fork-join pool. Rule sees account balances at
+ * log position the job started at, so transfers made while job runs do not change its outcome, and postings are
+ * logged as external income or withdrawal like any other change.
+ * <p>
+ * Job is throttled to keep online transfers within latency budget: accounts are processed at limited rate, which
+ * is halved while p99 latency of sampled transfers exceeds budget and grows back additively while it does not.
+ * One job runs at a time.
+ * <p>
+ * Every job is a named run, e.g. of business day. Run records the next account id of every chunk of accounts it
+ * processes, so starting cancelled or failed run again resumes it at the same log position from the first account
+ * not processed yet, and starting finished run returns its report without posting anything.
+ */
+public class BatchEngine implements Closeable {
+
+	private static final Logger LOGGER = getLogger(BatchEngine.class);
+
+	// accounts processed between throttle checks
+	private static final int CHUNK = 1024;
+	private static final long CONTROL_NANOS = MILLISECONDS.toNanos(100L);
+	private static final double QUANTILE = 0.99;
+	private static final double INITIAL_RATE = 100000.0;
+	private static final double MIN_RATE = 1000.0;
+
+	private final InMemoryAccounting accounting;
+	private final ForkJoinPool pool;
+	private final long latencyBudgetNanos;
+
+	private volatile Job job;
+	// runs by name, guarded by this
+	private final Map<String, Job> runs = new HashMap<>();
+
+	/**
+	 * @param accounting         accounting to apply rules to
+	 * @param parallelism        number of job threads
+	 * @param latencyBudgetNanos p99 latency of online transfers job must keep within
+	 */
+	public BatchEngine(InMemoryAccounting accounting, int parallelism, long latencyBudgetNanos) {
+		checkArgument(latencyBudgetNanos > 0L, "Positive latency budget required.");
+		this.accounting = accounting;
+		this.pool = new ForkJoinPool(parallelism);
+		this.latencyBudgetNanos = latencyBudgetNanos;
+	}
+
+	/**
+	 * Job state, counters are updated by job threads
+	 */
+	private class Job {
+
+		private final String run;
+		private final AccountRule rule;
+		// rule sees balances after log entries before position
+		private final long position;
+		private final long started = nanoTime();
+		private volatile long finished;
+		private volatile boolean cancelled;
+		private volatile boolean completed;
+		private volatile RuntimeException error;
+		private ForkJoinTask<?> task;
+
+		// accounts [first, end) are split into chunks, next account id to process in every chunk
+		private final int first;
+		private final int end;
+		private final AtomicIntegerArray progress;
+
+		private final LongAdder accounts = new LongAdder();
+		private final LongAdder postings = new LongAdder();
+		private final LongAdder credited = new LongAdder();
+		private final LongAdder debited = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder throttled = new LongAdder();
+
+		// throttle state
+		private volatile double rate = INITIAL_RATE;
+		private final AtomicLong next = new AtomicLong(started);
+		private final AtomicLong lastControl = new AtomicLong(started);
+		private volatile long lastAccounts;
+		private volatile long latency;
+
+		Job(String run, AccountRule rule, long position, int first, int end) {
+			this.run = run;
+			this.rule = rule;
+			this.position = position;
+			this.first = first;
+			this.end = end;
+			this.progress = new AtomicIntegerArray((int) (((long) end - first + CHUNK - 1) / CHUNK));
+			for (int chunk = 0; chunk < progress.length(); chunk++) {
+				progress.set(chunk, (int) (first + (long) chunk * CHUNK));
+			}
+		}
+
+		/**
+		 * Resumes interrupted run from its progress
+		 */
+		Job(Job interrupted, AccountRule rule) {
+			this.run = interrupted.run;
+			this.rule = rule;
+			this.position = interrupted.position;
+			this.first = interrupted.first;
+			this.end = interrupted.end;
+			this.progress = interrupted.progress;
+			accounts.add(interrupted.accounts.sum());
+			postings.add(interrupted.postings.sum());
+			credited.add(interrupted.credited.sum());
+			debited.add(interrupted.debited.sum());
+			failed.add(interrupted.failed.sum());
+			lastAccounts = accounts.sum();
+		}
+
+		/**
+		 * Stops job on the first failure, so that it may be resumed from there
+		 */
+		void fail(RuntimeException e) {
+			if (error == null) {
+				error = e;
+			}
+			cancelled = true;
+		}
+
+		int chunkEnd(int chunk) {
+			return (int) Math.min(end, first + (long) (chunk + 1) * CHUNK);
+		}
+
+		/**
+		 * @return the last account id every account up to which is processed, {@code first - 1} if none is
+		 */
+		int processedThrough() {
+			for (int chunk = 0; chunk < progress.length(); chunk++) {
+				int id = progress.get(chunk);
+				if (id < chunkEnd(chunk)) {
+					return id - 1;
+				}
+			}
+			return end - 1;
+		}
+
+		/**
+		 * Waits for permission to process given number of accounts at current rate
+		 */
+		void acquire(int count) {
+			long now = nanoTime();
+			control(now);
+			long cost = (long) (count * SECONDS.toNanos(1L) / rate);
+			long slot;
+			while (true) {
+				long free = next.get();
+				slot = Math.max(free, now);
+				if (next.compareAndSet(free, slot + cost)) {
+					break;
+				}
+			}
+			if (slot > now) {
+				parkNanos(slot - now);
+				throttled.add(slot - now);
+			}
+		}
+
+		/**
+		 * Adjusts rate once per control period by transfer latency of the period
+		 */
+		private void control(long now) {
+			long last = lastControl.get();
+			if (now - last < CONTROL_NANOS || !lastControl.compareAndSet(last, now)) {
+				return;
+			}
+			latency = accounting.getTransferLatency().drain(QUANTILE);
+			long processed = accounts.sum();
+			double achieved = (processed - lastAccounts) * (double) SECONDS.toNanos(1L) / (now - last);
+			lastAccounts = processed;
+			if (latency > latencyBudgetNanos) {
+				rate = Math.max(MIN_RATE, rate / 2);
+			} else {
+				// limit does not run far ahead of rate actually reached
+				rate = Math.min(rate + INITIAL_RATE, Math.max(INITIAL_RATE, 2 * achieved));
+			}
+		}
+
+		void apply(int id) {
+			Account account = accounting.getAccountAtPosition(id, position);
+			if (account == null) {
+				return;
+			}
+			long posting = rule.posting(account);
+			accounts.increment();
+			boolean applied;
+			if (posting > 0L) {
+				applied = accounting.increaseAccountBalance(id, posting);
+				if (applied) {
+					credited.add(posting);
+				}
+			} else if (posting < 0L) {
+				applied = accounting.withdraw(id, -posting) == TransferResult.OK;
+				if (applied) {
+					debited.add(-posting);
+				}
+			} else {
+				return;
+			}
+			if (applied) {
+				postings.increment();
+			} else {
+				failed.increment();
+			}
+		}
+
+		BatchReport report() {
+			long stopped = finished;
+			boolean running = stopped == 0L;
+			long elapsed = (running ? nanoTime() : stopped) - started;
+			long processed = accounts.sum();
+			return new BatchReport(run, position, running, processedThrough(), processed, postings.sum(), credited.sum(),
+				debited.sum(), failed.sum(), NANOSECONDS.toMillis(elapsed),
+				elapsed == 0L ? 0L : processed * SECONDS.toNanos(1L) / elapsed, NANOSECONDS.toMillis(throttled.sum()),
+				(long) rate, NANOSECONDS.toMicros(latency));
+		}
+	}
+
+	/**
+	 * Applies rule to range of account chunks
+	 */
+	private static class Apply extends RecursiveAction {
+
+		private final Job job;
+		private final int from;
+		private final int to;
+
+		Apply(Job job, int from, int to) {
+			this.job = job;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Apply(job, from, middle), new Apply(job, middle, to));
+				return;
+			}
+			if (job.cancelled || from == to) {
+				return;
+			}
+			int start = job.progress.get(from);
+			int end = job.chunkEnd(from);
+			if (start >= end) {
+				return;
+			}
+			job.acquire(end - start);
+			try {
+				for (int id = start; id < end; id++) {
+					job.apply(id);
+					// posted account is not processed again when run is resumed
+					job.progress.set(from, id + 1);
+				}
+			} catch (RuntimeException e) {
+				// not rethrown, so that job finishes only after all its chunks stop
+				job.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Starts run in background, or resumes it if it was cancelled or failed
+	 *
+	 * @param run  name of run, e.g. business day
+	 * @param rule rule to apply to every account
+	 * @return report of started job, report of the run if it is finished already
+	 * @throws IllegalStateException if another job is running
+	 */
+	public BatchReport start(String run, AccountRule rule) {
+		return submit(run, rule).report();
+	}
+
+	/**
+	 * Runs job and waits for it to finish
+	 *
+	 * @see #start(String, AccountRule)
+	 */
+	public BatchReport run(String run, AccountRule rule) {
+		Job started = submit(run, rule);
+		started.task.join();
+		return started.report();
+	}
+
+	private synchronized Job submit(String run, AccountRule rule) {
+		checkArgument(run != null && !run.isEmpty(), "Run name required.");
+		Job previous = job;
+		checkState(previous == null || previous.finished != 0L, "Batch job is running.");
+		Job interrupted = runs.get(run);
+		if (interrupted != null && interrupted.completed) {
+			return interrupted;
+		}
+		Job started;
+		if (interrupted != null) {
+			started = new Job(interrupted, rule);
+		} else {
+			// accounts created after the last id is read are not in the job
+			int last = accounting.getLastId();
+			started = new Job(run, rule, accounting.getLogSize(), accounting.getMinId(), last + 1);
+		}
+		Apply all = new Apply(started, 0, started.progress.length());
+		started.task = pool.submit(() -> {
+			try {
+				all.invoke();
+				if (started.error != null) {
+					LOGGER.error("Batch job {} failed at account {}", run, started.processedThrough() + 1, started.error);
+				}
+				started.completed = !started.cancelled;
+			} catch (RuntimeException e) {
+				LOGGER.error("Batch job {} failed", run, e);
+			} finally {
+				started.finished = nanoTime();
+				LOGGER.info("Batch job finished: {}", started.report());
+			}
+		});
+		runs.put(run, started);
+		job = started;
+		return started;
+	}
+
+	/**
+	 * Stops running job, accounts processed so far keep their postings and the run may be resumed
+	 *
+	 * @return report of stopped job, {@code null} if there was none
+	 */
+	public BatchReport cancel() {
+		Job last = job;
+		if (last == null) {
+			return null;
+		}
+		last.cancelled = true;
+		// failures are logged by job itself
+		last.task.join();
+		return last.report();
+	}
+
+	/**
+	 * @return report of running or the last job, {@code null} if there was none
+	 */
+	public BatchReport getReport() {
+		Job last = job;
+		return last == null ? null : last.report();
+	}
+
+	/**
+	 * Stops running job, accounts processed so far keep their postings
+	 */
+	@Override
+	public void close() {
+		Job last = job;
+		if (last != null) {
+			last.cancelled = true;
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(1, MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
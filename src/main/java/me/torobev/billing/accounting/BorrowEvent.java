@@ -0,0 +1,28 @@
+package me.torobev.billing.accounting;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of account borrow which had to wait for account borrowed by another thread
+ */
+@Name(BorrowEvent.NAME)
+@Label("Account Borrow")
+@Description("Wait for account borrowed by another thread")
+@Category({"Billing", "Accounting"})
+@StackTrace(false)
+public class BorrowEvent extends Event {
+
+	public static final String NAME = "me.torobev.billing.AccountBorrow";
+
+	@Label("Account")
+	int accountId;
+
+	@Label("Spins")
+	@Description("Number of failed borrow attempts")
+	long spins;
+}
@@ -0,0 +1,75 @@
+package me.torobev.billing.accounting;
+
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Periodic {@link InMemoryAccounting#checkConservation() money conservation check} of live accounting in
+ * background. Every run takes a consistent cut, so transfers go on, and violations are counted in accounting stats.
+ */
+public class ConservationCheck implements Runnable, Closeable {
+
+	private static final Logger LOGGER = getLogger(ConservationCheck.class);
+
+	private final InMemoryAccounting accounting;
+	private final LongAdder checks = new LongAdder();
+
+	private ScheduledExecutorService executor;
+
+	public ConservationCheck(InMemoryAccounting accounting) {
+		this.accounting = accounting;
+	}
+
+	/**
+	 * Starts periodic checks in background thread
+	 *
+	 * @param periodMillis delay between checks
+	 */
+	public void start(long periodMillis) {
+		checkArgument(periodMillis > 0L);
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "conservation-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this, periodMillis, periodMillis, MILLISECONDS);
+	}
+
+	@Override
+	public void run() {
+		try {
+			accounting.checkConservation();
+			checks.increment();
+		} catch (RuntimeException e) {
+			LOGGER.error("Failed to check money conservation", e);
+		}
+	}
+
+	/**
+	 * @return number of completed checks
+	 */
+	public long getChecks() {
+		return checks.sum();
+	}
+
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.accounting.Accounting.TransferResult;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Results of recent modifications by idempotency key. Modification with known key is not applied again,
+ * its first result is returned instead. Key is bound to the fingerprint of its modification, e.g. operation,
+ * accounts and amount, and is refused for another modification. Keys are forgotten in insertion order once there
+ * are too many of them or they are too old, so the cache stays bounded.
+ * <p>
+ * Key is claimed with pending result before modification is applied, so modification runs outside of map locks
+ * and concurrent duplicates wait for its result.
+ */
+public class IdempotencyCache {
+
+	private static class Entry {
+
+		private final String key;
+		private final long time;
+		private final String fingerprint;
+		private final CompletableFuture<TransferResult> result = new CompletableFuture<>();
+
+		Entry(String key, long time, String fingerprint) {
+			this.key = key;
+			this.time = time;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	private final int maxKeys;
+	private final long retentionMillis;
+
+	private final Map<String, Entry> results = new ConcurrentHashMap<>();
+	// entries in insertion order, to evict the oldest ones
+	private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * @param maxKeys         maximum number of remembered keys
+	 * @param retentionMillis how long to remember key
+	 */
+	public IdempotencyCache(int maxKeys, long retentionMillis) {
+		checkArgument(maxKeys > 0);
+		checkArgument(retentionMillis > 0L);
+		this.maxKeys = maxKeys;
+		this.retentionMillis = retentionMillis;
+	}
+
+	/**
+	 * Applies modification once per key. Concurrent duplicate waits for the first one to finish.
+	 *
+	 * @param key          idempotency key, {@code null} to apply modification unconditionally
+	 * @param fingerprint  description of modification, e.g. {@code transfer 1 2 100}
+	 * @param modification modification to apply, its failure is not remembered
+	 * @return result of modification applied with given key first
+	 * @throws IdempotencyKeyReusedException if key is known with another fingerprint
+	 */
+	public TransferResult apply(String key, String fingerprint, Supplier<TransferResult> modification) {
+		if (key == null) {
+			return modification.get();
+		}
+		while (true) {
+			Entry entry = results.get(key);
+			if (entry == null) {
+				Entry claimed = new Entry(key, currentTimeMillis(), fingerprint);
+				entry = results.putIfAbsent(key, claimed);
+				if (entry == null) {
+					return applyClaimed(claimed, modification);
+				}
+			}
+			if (!entry.fingerprint.equals(fingerprint)) {
+				throw new IdempotencyKeyReusedException("Idempotency key " + key + " is used for " + entry.fingerprint);
+			}
+			try {
+				return entry.result.join();
+			} catch (CompletionException e) {
+				// failed modification is forgotten, duplicate applies it again
+			}
+		}
+	}
+
+	private TransferResult applyClaimed(Entry claimed, Supplier<TransferResult> modification) {
+		TransferResult result;
+		try {
+			result = modification.get();
+		} catch (RuntimeException | Error e) {
+			results.remove(claimed.key, claimed);
+			claimed.result.completeExceptionally(e);
+			throw e;
+		}
+		claimed.result.complete(result);
+		order.offer(claimed);
+		size.incrementAndGet();
+		evict(claimed.time);
+		return result;
+	}
+
+	private void evict(long now) {
+		// one thread evicts at a time, others leave it to that thread
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			Entry eldest;
+			while ((eldest = order.peek()) != null
+				&& (size.get() > maxKeys || now - eldest.time >= retentionMillis)) {
+				order.poll();
+				results.remove(eldest.key, eldest);
+				size.decrementAndGet();
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * @return number of remembered keys
+	 */
+	public int size() {
+		return size.get();
+	}
+}
@@ -0,0 +1,11 @@
+package me.torobev.billing.accounting;
+
+/**
+ * Idempotency key of modification was already used with another modification
+ */
+public class IdempotencyKeyReusedException extends IllegalStateException {
+
+	public IdempotencyKeyReusedException(String message) {
+		super(message);
+	}
+}
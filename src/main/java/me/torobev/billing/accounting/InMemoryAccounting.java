@@ -1,41 +1,136 @@
 package me.torobev.billing.accounting;
 
 import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.BalanceSnapshot;
 import me.torobev.billing.Transfer;
+import org.slf4j.Logger;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.Collections.emptyList;
-import static java.util.stream.Collectors.toList;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.slf4j.LoggerFactory.getLogger;
 
 /**
  * In memory almost lock-free implementation of {@link Accounting}.
  * {@link #createAccount()} is blocking, but we assume that this method will not be used frequently.
+ * <p>
+ * Every account change is appended to {@link TransferLog} while account is borrowed, so log sequence numbers
+ * of account changes are ordered. Consistent cut of all balances at log position is taken without stopping
+ * transfers: while cut is active, the first change of an account after cut position preserves previous account
+ * state for the cut reader (copy-on-write). Every account also keeps index of its own log entries, so account
+ * history is searched by time without scanning the whole log.
+ * <p>
+ * Removed accounts stay in storage until {@link Reclaimer} frees them in background.
+ * <p>
+ * Global aggregates are maintained incrementally in striped counters. Money conservation is verified at consistent
+ * cut by {@link #checkConservation()}: the sum of balances must equal money that came from outside minus money that
+ * left. It runs with every audit and periodically on a live server, see {@link ConservationCheck}.
+ * <p>
+ * Accounts may be indexed by balance in {@link BalanceIndex} for top-N and balance range queries, the index is
+ * updated while account is borrowed and only when balance change crosses index bucket bound. Index is off by
+ * default, since it slows transfers down; without it these queries scan all accounts.
  */
 public class InMemoryAccounting implements Accounting {
 
-	private final AtomicInteger nextId = new AtomicInteger(0);
-	private static final long MAX_ID = 100000;
+	private static final Logger LOGGER = getLogger(InMemoryAccounting.class);
+
+	private final AtomicInteger nextId;
+	private static final int DEFAULT_MAX_ID = 10000000;
+	private final int minId;
+	private final int maxId;
 
 	private final Map<Integer, AccountHolder> accounts = new ConcurrentHashMap<>();
-	private final Queue<Transfer> transferLog = new ConcurrentLinkedQueue<>();
+	private final TransferLog transferLog = new TransferLog();
+	// null if accounts are not indexed by balance
+	private final BalanceIndex balanceIndex;
+	private final TransferLatency transferLatency = new TransferLatency();
+
+	private static final long NO_CUT = -1L;
+	private static final long CUT_PENDING = Long.MAX_VALUE;
+	// log position of active cut
+	private volatile long cut = NO_CUT;
+	// number of cuts taken so far, tells removals during different cuts at the same log position apart
+	private volatile long cutEpoch;
+	private final Object cutLock = new Object();
+
+	private final LongAdder liveAccounts = new LongAdder();
+	private final LongAdder totalBalance = new LongAdder();
+	private final LongAdder inflow = new LongAdder();
+	private final LongAdder outflow = new LongAdder();
+	private final LongAdder violations = new LongAdder();
+	// held shared by operations which move money in or out, exclusively to read the flow at cut position
+	private final StampedLock flowLock = new StampedLock();
+
+	// removed accounts waiting for reclamation
+	private final Queue<Reclaimer.Removal> removals = new ConcurrentLinkedQueue<>();
+	private final LongAdder reclaimedAccounts = new LongAdder();
+
+	private final List<AccountListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Approximate heap size of stored account: holder, its reference, account state and map entry
+	 */
+	private static final long ACCOUNT_BYTES = 144L;
+
+	// results of modifications with idempotency keys, bounded by count and age
+	private static final int IDEMPOTENCY_KEYS = 1 << 18;
+	private static final long IDEMPOTENCY_RETENTION_MILLIS = HOURS.toMillis(1);
+	private final IdempotencyCache idempotency = new IdempotencyCache(IDEMPOTENCY_KEYS, IDEMPOTENCY_RETENTION_MILLIS);
 
 	private static class AccountHolder {
 
 		private final AtomicReference<Account> account;
 		private volatile boolean deleted;
+		// log entries of the account, appended under borrow
+		private final AccountHistory history;
 
-		AccountHolder(Account account, boolean deleted) {
-			this.account = new AtomicReference<>(account);
-			this.deleted = deleted;
+		// fields below are guarded by account borrowing
+
+		// log sequence number of the last account change
+		private long seq;
+		// log sequence number of the last entry before account removal
+		private long deletedSeq;
+		// cut active when account was removed, removal is not logged so it is ordered after that cut
+		private long deletedEpoch;
+		// account state preserved for cut at log position cutSeq
+		private Account cutAccount;
+		private long cutSeq = NO_CUT;
+
+		AccountHolder(int id) {
+			// created borrowed
+			this.account = new AtomicReference<>(null);
+			this.history = new AccountHistory(id);
 		}
 
 		void markDeleted() {
@@ -43,26 +138,197 @@ public class InMemoryAccounting implements Accounting {
 		}
 	}
 
+	public InMemoryAccounting() {
+		this(DEFAULT_MAX_ID);
+	}
+
+	/**
+	 * @param indexBalance whether to keep {@link BalanceIndex} for {@link #getTopAccounts(int)} and
+	 *                     {@link #getAccountsByBalance(long, long, int)} at the cost of slower transfers
+	 */
+	public InMemoryAccounting(boolean indexBalance) {
+		this(1, DEFAULT_MAX_ID, indexBalance);
+	}
+
+	/**
+	 * @param maxId maximum number of accounts ever created
+	 */
+	public InMemoryAccounting(int maxId) {
+		this(1, maxId);
+	}
+
+	/**
+	 * @param minId the first account id, e.g. of partition owned by cluster node
+	 * @param maxId the last account id
+	 */
+	public InMemoryAccounting(int minId, int maxId) {
+		this(minId, maxId, false);
+	}
+
+	/**
+	 * @param minId        the first account id, e.g. of partition owned by cluster node
+	 * @param maxId        the last account id
+	 * @param indexBalance whether to keep {@link BalanceIndex} for {@link #getTopAccounts(int)} and
+	 *                     {@link #getAccountsByBalance(long, long, int)} at the cost of slower transfers
+	 */
+	public InMemoryAccounting(int minId, int maxId, boolean indexBalance) {
+		checkArgument(minId > 0 && minId <= maxId);
+		this.minId = minId;
+		this.maxId = maxId;
+		this.nextId = new AtomicInteger(minId - 1);
+		this.balanceIndex = indexBalance ? new BalanceIndex() : null;
+	}
+
 	@Override
 	public Account createAccount() {
 		int id = nextId.incrementAndGet();
-		checkState(id <= MAX_ID, "Storage size limit reached");
+		checkState(id <= maxId, "Storage size limit reached");
 
-		Account account = new Account(id, 0L);
-		accounts.put(id, new AccountHolder(account, false));
+		Account account = new Account(id, 0L, 1L);
+		addAccount(account);
 		return account;
 	}
 
+	@Override
+	public AccountRange createAccounts(int count, long initialBalance) {
+		checkArgument(count > 0, "Positive count required.");
+		checkArgument(initialBalance >= 0L, "Non negative balance required.");
+
+		// reserve whole id range at once
+		int last;
+		int first;
+		do {
+			last = nextId.get();
+			first = last + 1;
+			checkState((long) last + count <= maxId, "Storage size limit reached");
+		} while (!nextId.compareAndSet(last, last + count));
+
+		for (int id = first; id < first + count; id++) {
+			addAccount(new Account(id, initialBalance, 1L));
+		}
+		return new AccountRange(first, count, initialBalance);
+	}
+
+	/**
+	 * Puts new account to storage, non-zero initial balance is logged as external income
+	 *
+	 * @return {@code false} when account with same id already exists
+	 */
+	private boolean addAccount(Account account) {
+		long stamp = flowLock.readLock();
+		try {
+			return addAccount(account, new AccountHolder(account.getId()));
+		} finally {
+			flowLock.unlockRead(stamp);
+		}
+	}
+
+	private boolean addAccount(Account account, AccountHolder holder) {
+		if (accounts.putIfAbsent(account.getId(), holder) != null) {
+			return false;
+		}
+		// account is published borrowed, so cut reader waits for its initial balance to be logged
+		if (account.getBalance() > 0L) {
+			Transfer logged = transferLog.append(new Transfer(0, account.getId(), account.getBalance()));
+			holder.history.append(logged);
+			holder.seq = logged.getSequence();
+		} else {
+			// changes without log entry are ordered right after the last logged one
+			holder.seq = transferLog.size() - 1;
+		}
+		for (AccountListener listener : listeners) {
+			listener.created(account.getId(), holder.seq + 1);
+		}
+		if (balanceIndex != null) {
+			balanceIndex.add(account.getId(), account.getBalance());
+		}
+		liveAccounts.increment();
+		inflow.add(account.getBalance());
+		totalBalance.add(account.getBalance());
+		holder.account.set(account);
+		return true;
+	}
+
+	/**
+	 * Puts account directly to the storage bypassing {@link #createAccount()}, used for initial data load and
+	 * replication.
+	 * Caller is responsible to {@link #reserveIds(int) reserve} imported ids before new accounts are created.
+	 *
+	 * @param id      account identifier
+	 * @param balance initial account balance
+	 * @return {@code true} on success, {@code false} when account already exists
+	 */
+	public boolean importAccount(int id, long balance) {
+		checkArgument(id >= minId && id <= maxId, "Account id out of range.");
+		return addAccount(new Account(id, balance, 1L));
+	}
+
+	/**
+	 * Makes sure that ids up to given one will never be returned by {@link #createAccount()}
+	 *
+	 * @param id last reserved account identifier
+	 */
+	public void reserveIds(int id) {
+		nextId.accumulateAndGet(id, Math::max);
+	}
+
+	/**
+	 * @return the first account id
+	 */
+	public int getMinId() {
+		return minId;
+	}
+
+	int getMaxId() {
+		return maxId;
+	}
+
+	/**
+	 * @return the last account identifier given out so far
+	 */
+	int getLastId() {
+		return nextId.get();
+	}
+
+	/**
+	 * @return latency of sampled {@link #execute(Transfer)} calls
+	 */
+	TransferLatency getTransferLatency() {
+		return transferLatency;
+	}
+
 	@Override
 	public boolean removeAccount(int id) {
 		AccountHolder holder = accounts.get(id);
 		if (holder == null) {
 			return false;
 		}
+		long stamp = flowLock.readLock();
 		Account account = borrowAccount(holder);
-		holder.markDeleted();
-		holder.account.set(account);
+		try {
+			if (holder.deleted) {
+				return false;
+			}
+			holder.deletedSeq = transferLog.size() - 1;
+			if (activeCut() != NO_CUT) {
+				holder.deletedEpoch = cutEpoch;
+			}
+			holder.markDeleted();
+			if (balanceIndex != null) {
+				balanceIndex.remove(id, account.getBalance());
+			}
+			for (AccountListener listener : listeners) {
+				listener.removed(id, holder.deletedSeq + 1);
+			}
+			liveAccounts.decrement();
+			outflow.add(account.getBalance());
+			totalBalance.add(-account.getBalance());
+		} finally {
+			holder.account.set(account);
+			flowLock.unlockRead(stamp);
+		}
 
+		removals.offer(new Reclaimer.Removal(id, currentTimeMillis()));
 		return true;
 	}
 
@@ -79,43 +345,313 @@ public class InMemoryAccounting implements Accounting {
 		return read;
 	}
 
+	@Override
+	public List<Account> listAccounts(int afterId, int limit) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
+		List<Account> page = new ArrayList<>(Math.min(limit, 1 << 16));
+		// ids are dense, so page is read by walking them
+		int last = nextId.get();
+		for (long id = Math.max((long) afterId + 1, minId); id <= last && page.size() < limit; id++) {
+			Account account = getAccount((int) id);
+			if (account != null) {
+				page.add(account);
+			}
+		}
+		return page;
+	}
+
+	@Override
+	public List<Account> getAccounts(int[] ids) {
+		int[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		List<Account> found = new ArrayList<>(sorted.length);
+		for (int i = 0; i < sorted.length; i++) {
+			if (i > 0 && sorted[i] == sorted[i - 1]) {
+				continue;
+			}
+			Account account = getAccount(sorted[i]);
+			if (account != null) {
+				found.add(account);
+			}
+		}
+		return found;
+	}
+
 	@Override
 	public boolean increaseAccountBalance(int id, long amount) {
+		return increase(id, amount, false);
+	}
+
+	/**
+	 * Returns money {@link #withdraw withdrawn} before, e.g. when transfer to another cluster node is aborted.
+	 * Logged like income from external account 0 marked as {@link Transfer#isRefund() refund}, and taken back from
+	 * outflow instead of counted as new inflow.
+	 *
+	 * @param id     account identifier
+	 * @param amount amount of cents withdrawn
+	 * @return {@code false} if account is removed
+	 */
+	public boolean refund(int id, long amount) {
+		return increase(id, amount, true);
+	}
+
+	private boolean increase(int id, long amount, boolean refund) {
 		checkArgument(amount > 0L, "Positive value required.");
 		AccountHolder holder = accounts.get(id);
 		if (holder == null || holder.deleted) {
 			return false;
 		}
+		long stamp = flowLock.readLock();
 		Account account = borrowAccount(holder);
 
 		try {
-			account = new Account(account.getId(), account.getBalance() + amount);
-			Transfer e = new Transfer(0, account.getId(), amount);
-			while (!transferLog.offer(e)) ;
+			if (holder.deleted) {
+				return false;
+			}
+			Account updated = account.withBalance(account.getBalance() + amount);
+			Transfer logged = transferLog.append(new Transfer(0, account.getId(), amount, -1L, 0L, refund));
+			long seq = logged.getSequence();
+			holder.history.append(logged);
+			changed(holder, account, seq, activeCut());
+			if (balanceIndex != null) {
+				balanceIndex.update(account.getId(), account.getBalance(), updated.getBalance());
+			}
+
+			if (refund) {
+				outflow.add(-amount);
+			} else {
+				inflow.add(amount);
+			}
+			totalBalance.add(amount);
+			account = updated;
 		} finally {
 			// return account to holder
 			holder.account.set(account);
+			flowLock.unlockRead(stamp);
 		}
 
 		return true;
 	}
 
+	/**
+	 * Withdraws money out of accounting, e.g. to another cluster node. Logged as transfer to external account 0.
+	 *
+	 * @param id     account identifier
+	 * @param amount amount of cents to withdraw
+	 * @return {@link TransferResult#OK}, {@link TransferResult#SOURCE_NOT_FOUND} or
+	 * {@link TransferResult#SOURCE_BALANCE_CHECK_FAILED}
+	 */
+	public TransferResult withdraw(int id, long amount) {
+		checkArgument(amount > 0L, "Positive value required.");
+		AccountHolder holder = accounts.get(id);
+		if (holder == null || holder.deleted) {
+			return TransferResult.SOURCE_NOT_FOUND;
+		}
+		long stamp = flowLock.readLock();
+		Account account = borrowAccount(holder);
+
+		try {
+			if (holder.deleted) {
+				return TransferResult.SOURCE_NOT_FOUND;
+			}
+			long left = account.getBalance() - amount;
+			if (left < 0L) {
+				return TransferResult.SOURCE_BALANCE_CHECK_FAILED;
+			}
+			Account updated = account.withBalance(left);
+			Transfer logged = transferLog.append(new Transfer(account.getId(), 0, amount));
+			long seq = logged.getSequence();
+			holder.history.append(logged);
+			changed(holder, account, seq, activeCut());
+			if (balanceIndex != null) {
+				balanceIndex.update(account.getId(), account.getBalance(), updated.getBalance());
+			}
+
+			outflow.add(amount);
+			totalBalance.add(-amount);
+			account = updated;
+		} finally {
+			holder.account.set(account);
+			flowLock.unlockRead(stamp);
+		}
+
+		return TransferResult.OK;
+	}
+
+	/**
+	 * Verifies that sum of balances at consistent cut equals money that came from outside minus money that left
+	 * before the cut. Balances are summed from accounts themselves, so a transfer or a storage bug which creates or
+	 * destroys money is caught. Violation is logged and counted in {@link AccountingStats#getViolations()}.
+	 *
+	 * @return {@code true} if money is conserved
+	 */
+	public boolean checkConservation() {
+		long[] flow = new long[1];
+		BalanceSnapshot snapshot = snapshot(account -> {
+		}, flow);
+		return checkConservation(snapshot, flow[0]);
+	}
+
+	/**
+	 * @param snapshot balances at cut
+	 * @param flow     inflow minus outflow at cut
+	 */
+	boolean checkConservation(BalanceSnapshot snapshot, long flow) {
+		long drift = snapshot.getTotal() - flow;
+		if (drift == 0L) {
+			return true;
+		}
+		violations.increment();
+		LOGGER.error("Money conservation violated at log position {}: balances sum to {}, {} came from outside",
+			snapshot.getSequence(), snapshot.getTotal(), flow);
+		return false;
+	}
+
+	@Override
+	public AccountingStats getStats() {
+		long reclaimed = reclaimedAccounts.sum();
+		long purged = transferLog.getPurgedEntries();
+		long reclaimedBytes = reclaimed * ACCOUNT_BYTES + purged * TransferLog.ENTRY_BYTES
+			+ transferLog.getReleasedSegments() * TransferLog.SEGMENT_BYTES;
+		return new AccountingStats(liveAccounts.sum(), totalBalance.sum(), inflow.sum(), outflow.sum(), violations.sum(),
+			reclaimed, purged, reclaimedBytes);
+	}
+
+	/**
+	 * @param listener receives account creations and removals from now on
+	 */
+	public void addListener(AccountListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(AccountListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return number of transfer log entries, i.e. sequence number of the next entry
+	 */
+	public long getLogSize() {
+		return transferLog.size();
+	}
+
+	/**
+	 * Visits transfer log entries in log order, purged entries are skipped
+	 *
+	 * @param from    first sequence number
+	 * @param to      sequence number after the last one, not greater than {@link #getLogSize()}
+	 * @param visitor entries consumer
+	 */
+	public void readLog(long from, long to, Consumer<Transfer> visitor) {
+		transferLog.forEach(from, to, visitor);
+	}
+
+	/**
+	 * Frees storage of accounts removed so far. Removed accounts are not visible to any cut, so the only thing
+	 * to wait for is the cut being taken right now.
+	 *
+	 * @return reclaimed accounts
+	 */
+	List<Reclaimer.Removal> reclaimAccounts() {
+		List<Reclaimer.Removal> reclaimed = new ArrayList<>();
+		synchronized (cutLock) {
+			Reclaimer.Removal removal;
+			while ((removal = removals.poll()) != null) {
+				accounts.remove(removal.getId());
+				reclaimed.add(removal);
+			}
+		}
+		reclaimedAccounts.add(reclaimed.size());
+		return reclaimed;
+	}
+
+	/**
+	 * Purges transfer log entries. Must not be called concurrently.
+	 *
+	 * @param purgeable predicate of entries to purge, it must match only entries of reclaimed accounts
+	 * @param archive   receives purged entries with their sequence numbers
+	 */
+	void purgeHistory(Predicate<Transfer> purgeable, ObjLongConsumer<Transfer> archive) {
+		transferLog.purge(purgeable, archive);
+	}
+
+	private long activeCut() {
+		long cut;
+		// cut position is being read, it takes nanoseconds
+		do {
+			cut = this.cut;
+		} while (cut == CUT_PENDING);
+		return cut;
+	}
+
+	/**
+	 * Records account change, must be called while account is borrowed
+	 *
+	 * @param holder   changed account holder
+	 * @param previous account state before change
+	 * @param seq      log sequence number of change
+	 * @param cut      log position of active cut
+	 */
+	private static void changed(AccountHolder holder, Account previous, long seq, long cut) {
+		if (holder.seq < cut) {
+			// first change after cut position, keep state at cut
+			holder.cutAccount = previous;
+			holder.cutSeq = cut;
+		}
+		holder.seq = seq;
+	}
+
 	private Account borrowAccount(AccountHolder holder) {
+		Account account = holder.account.get();
+		if (account != null && holder.account.compareAndSet(account, null)) {
+			return account;
+		}
+		return awaitAccount(holder);
+	}
+
+	private Account awaitAccount(AccountHolder holder) {
+		Object event = AccountingEvents.beginBorrow();
 		// busy waiting account borrow
+		long spins = 0L;
 		while (true) {
 			Account account = holder.account.get();
 			if (account != null && holder.account.compareAndSet(account, null)) {
+				AccountingEvents.endBorrow(event, account.getId(), spins);
 				return account;
 			}
+			spins++;
 		}
 	}
 
+	@Override
+	public boolean increaseAccountBalance(int id, long amount, String idempotencyKey) {
+		if (idempotencyKey == null) {
+			return increaseAccountBalance(id, amount);
+		}
+		return idempotency.apply(idempotencyKey, "increase " + id + " " + amount, () -> increaseAccountBalance(id, amount)
+			? TransferResult.OK : TransferResult.DESTINATION_NOT_FOUND) == TransferResult.OK;
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer, String idempotencyKey) {
+		if (idempotencyKey == null) {
+			return execute(transfer);
+		}
+		return idempotency.apply(idempotencyKey,
+			"transfer " + transfer.getSrcId() + " " + transfer.getDstId() + " " + transfer.getAmount(),
+			() -> execute(transfer));
+	}
+
 	@Override
 	public TransferResult execute(Transfer transfer) {
+		Object event = AccountingEvents.beginTransfer();
+		boolean sampled = transferLatency.sample();
+		long start = sampled ? System.nanoTime() : 0L;
 		TransferResult result = transfer(transfer.getSrcId(), transfer.getDstId(), transfer.getAmount());
-		if (result == TransferResult.OK) {
-
+		if (sampled) {
+			transferLatency.record(System.nanoTime() - start);
 		}
+		AccountingEvents.endTransfer(event, transfer.getSrcId(), transfer.getDstId(), transfer.getAmount(), result);
 		return result;
 	}
 
@@ -160,11 +696,23 @@ public class InMemoryAccounting implements Accounting {
 			if (left < 0L) {
 				return TransferResult.SOURCE_BALANCE_CHECK_FAILED;
 			}
-			srcAccount = new Account(srcAccount.getId(), left);
-			dstAccount = new Account(dstAccount.getId(), dstAccount.getBalance() + amount);
+			Account srcUpdated = srcAccount.withBalance(left);
+			Account dstUpdated = dstAccount.withBalance(dstAccount.getBalance() + amount);
 
-			Transfer e = new Transfer(srcAccount.getId(), dstAccount.getId(), amount);
-			while (!transferLog.offer(e)) ;
+			Transfer logged = transferLog.append(new Transfer(srcAccount.getId(), dstAccount.getId(), amount));
+			long seq = logged.getSequence();
+			srcHolder.history.append(logged);
+			dstHolder.history.append(logged);
+			long cut = activeCut();
+			changed(srcHolder, srcAccount, seq, cut);
+			changed(dstHolder, dstAccount, seq, cut);
+			if (balanceIndex != null) {
+				balanceIndex.update(srcAccount.getId(), srcAccount.getBalance(), left);
+				balanceIndex.update(dstAccount.getId(), dstAccount.getBalance(), dstUpdated.getBalance());
+			}
+
+			srcAccount = srcUpdated;
+			dstAccount = dstUpdated;
 
 		} finally {
 			dstHolder.account.set(dstAccount);
@@ -175,18 +723,221 @@ public class InMemoryAccounting implements Accounting {
 
 	@Override
 	public List<Transfer> getAccountLog(int id) {
+		return getAccountLog(id, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id, long from, long to, int limit) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
 		AccountHolder holder = accounts.get(id);
 		if (holder == null || holder.deleted) {
 			return emptyList();
 		}
+		Object event = AccountingEvents.beginAccountLog();
+		int[] scanned = new int[1];
+		// per account index is read without borrowing, so history queries do not delay transfers
+		List<Transfer> log = holder.history.range(from, to, limit, Long.MAX_VALUE, scanned);
+		AccountingEvents.endAccountLog(event, id, scanned[0], log.size());
+		return log;
+	}
 
-		Account account = borrowAccount(holder);
+	@Override
+	public List<Account> getTopAccounts(int limit) {
+		if (balanceIndex != null) {
+			return balanceIndex.top(limit, this::getAccount);
+		}
+		return scanAccounts(account -> true, BalanceIndex.BY_BALANCE_DESCENDING, limit);
+	}
+
+	@Override
+	public List<Account> getAccountsByBalance(long from, long to, int limit) {
+		if (balanceIndex != null) {
+			return balanceIndex.range(from, to, limit, this::getAccount);
+		}
+		return scanAccounts(account -> account.getBalance() >= from && account.getBalance() < to,
+			BalanceIndex.BY_BALANCE, limit);
+	}
+
+	/**
+	 * Reads all accounts when balance index is off
+	 *
+	 * @return first accounts in given order, which match filter
+	 */
+	private List<Account> scanAccounts(Predicate<Account> filter, Comparator<Account> order, int limit) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
+		if (limit == 0) {
+			return emptyList();
+		}
+		// the last of first accounts is on top
+		PriorityQueue<Account> first = new PriorityQueue<>(Math.min(limit, 1 << 10), order.reversed());
+		int last = nextId.get();
+		for (long id = minId; id <= last; id++) {
+			Account account = getAccount((int) id);
+			if (account == null || !filter.test(account)) {
+				continue;
+			}
+			if (first.size() < limit) {
+				first.add(account);
+			} else if (order.compare(account, first.peek()) < 0) {
+				first.poll();
+				first.add(account);
+			}
+		}
+		List<Account> accounts = new ArrayList<>(first);
+		accounts.sort(order);
+		return accounts;
+	}
+
+	/**
+	 * @return history of account, {@code null} if account is reclaimed or never existed
+	 */
+	AccountHistory history(int id) {
+		AccountHolder holder = accounts.get(id);
+		return holder == null ? null : holder.history;
+	}
+
+	@Override
+	public Account getAccountAsOf(int id, long timestamp) {
+		AccountHolder holder = accounts.get(id);
+		if (holder == null || holder.deleted) {
+			return null;
+		}
+		return new Account(id, holder.history.balanceAsOf(timestamp));
+	}
+
+	@Override
+	public Account getAccountAtSequence(int id, long sequence) {
+		AccountHolder holder = accounts.get(id);
+		if (holder == null || holder.deleted) {
+			return null;
+		}
+		return new Account(id, holder.history.balanceAtSequence(sequence));
+	}
+
+	/**
+	 * @param id       account identifier
+	 * @param position transfer log position, i.e. number of log entries
+	 * @return account with balance after all its transfers logged before given position or {@code null} if account
+	 * is not found
+	 */
+	Account getAccountAtPosition(int id, long position) {
+		AccountHolder holder = accounts.get(id);
+		if (holder == null || holder.deleted) {
+			return null;
+		}
+		return new Account(id, holder.history.balanceAtPosition(position));
+	}
+
+	@Override
+	public BalanceSnapshot exportBalances(OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, US_ASCII), 1 << 16);
 		try {
-			return transferLog.stream()
-				.filter(t -> t.getDstId() == id || t.getSrcId() == id)
-				.collect(toList());
-		} finally {
-			holder.account.set(account);
+			writer.write(BalanceSnapshot.HEADER);
+			writer.write('\n');
+			BalanceSnapshot snapshot = snapshot(account -> {
+				try {
+					writer.write(Integer.toString(account.getId()));
+					writer.write(',');
+					writer.write(Long.toString(account.getBalance()));
+					writer.write('\n');
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			writer.write(snapshot.toTrailer());
+			writer.write('\n');
+			writer.flush();
+			return snapshot;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Replays transfer log in parallel and verifies every account balance at consistent cut, transfers are not
+	 * stopped during audit.
+	 */
+	@Override
+	public AuditReport audit() {
+		return new Auditor(ForkJoinPool.commonPool()).audit(this, transferLog);
+	}
+
+	/**
+	 * Visits balances of all accounts at consistent cut of {@link TransferLog}, transfers are not blocked
+	 * except for the moment particular account is read. Cuts are taken one at a time.
+	 *
+	 * @param visitor receives account states at cut in id order
+	 * @return cut summary
+	 */
+	public BalanceSnapshot snapshot(Consumer<Account> visitor) {
+		return snapshot(visitor, null);
+	}
+
+	/**
+	 * @param flow receives inflow minus outflow at cut, {@code null} if not needed
+	 */
+	BalanceSnapshot snapshot(Consumer<Account> visitor, long[] flow) {
+		synchronized (cutLock) {
+			long seq;
+			// operations moving money in or out complete before cut or are logged after it
+			long stamp = flow != null ? flowLock.writeLock() : 0L;
+			try {
+				cutEpoch++;
+				cut = CUT_PENDING;
+				seq = transferLog.size();
+				cut = seq;
+				if (flow != null) {
+					flow[0] = inflow.sum() - outflow.sum();
+				}
+			} finally {
+				if (flow != null) {
+					flowLock.unlockWrite(stamp);
+				}
+			}
+			try {
+				int count = 0;
+				long total = 0L;
+				int last = nextId.get();
+				for (int id = minId; id <= last; id++) {
+					AccountHolder holder = accounts.get(id);
+					if (holder == null) {
+						continue;
+					}
+					Account account = borrowAccount(holder);
+					Account atCut;
+					try {
+						atCut = accountAt(holder, account, seq, cutEpoch);
+					} finally {
+						holder.account.set(account);
+					}
+					if (atCut != null) {
+						visitor.accept(atCut);
+						count++;
+						total += atCut.getBalance();
+					}
+				}
+				return new BalanceSnapshot(seq, count, total);
+			} finally {
+				cut = NO_CUT;
+			}
+		}
+	}
+
+	/**
+	 * @return account state at log position {@code seq}, {@code null} when account did not exist, must be called
+	 * while account is borrowed
+	 */
+	private static Account accountAt(AccountHolder holder, Account current, long seq, long epoch) {
+		if (holder.deleted && holder.deletedSeq < seq && holder.deletedEpoch != epoch) {
+			return null;
+		}
+		if (holder.seq < seq) {
+			return current;
+		}
+		if (holder.cutSeq == seq) {
+			return holder.cutAccount;
 		}
+		// created after cut
+		return null;
 	}
 }
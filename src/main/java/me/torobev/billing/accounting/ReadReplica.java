@@ -0,0 +1,270 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.Transfer;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * In-process read replica of {@link InMemoryAccounting} for query traffic which accepts bounded staleness.
+ * Balances are copied once from a consistent cut, then kept up to date by replaying the transfer log tail in
+ * background, so replica never borrows accounts. Every period an immutable {@link View} is published,
+ * only chunks of accounts changed since the previous view are copied.
+ * <p>
+ * Account history is served from the shared append-only per account index, limited to the view position.
+ */
+public class ReadReplica implements AccountListener, Runnable, Closeable {
+
+	private static final Logger LOGGER = getLogger(ReadReplica.class);
+
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final long NO_ACCOUNT = Long.MIN_VALUE;
+	private static final long[][] NO_CHUNKS = new long[0][];
+
+	/**
+	 * Immutable state of accounts at log position
+	 */
+	public static class View {
+
+		private final InMemoryAccounting accounting;
+		private final long position;
+		private final long time;
+		private final long[][] chunks;
+
+		View(InMemoryAccounting accounting, long position, long time, long[][] chunks) {
+			this.accounting = accounting;
+			this.position = position;
+			this.time = time;
+			this.chunks = chunks;
+		}
+
+		/**
+		 * @return log position of the view, i.e. number of log entries applied
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return time in ms the view was published at
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return account state at view position, {@code null} if account did not exist
+		 */
+		public Account getAccount(int id) {
+			long balance = balance(chunks, id - accounting.getMinId());
+			return balance == NO_ACCOUNT ? null : new Account(id, balance);
+		}
+
+		/**
+		 * @see Accounting#getAccountLog(int, long, long, int)
+		 */
+		public List<Transfer> getAccountLog(int id, long from, long to, int limit) {
+			checkArgument(limit >= 0, "Non-negative limit required.");
+			if (getAccount(id) == null) {
+				return emptyList();
+			}
+			AccountHistory history = accounting.history(id);
+			return history == null ? emptyList() : history.range(from, to, limit, position);
+		}
+	}
+
+	/**
+	 * Account creation or removal waiting to be applied in log order
+	 */
+	private static class Event {
+
+		private final boolean created;
+		private final int id;
+		private final long position;
+		// order of events with the same position
+		private final long order;
+
+		Event(boolean created, int id, long position, long order) {
+			this.created = created;
+			this.id = id;
+			this.position = position;
+			this.order = order;
+		}
+	}
+
+	private static final Comparator<Event> EVENT_ORDER =
+		Comparator.<Event>comparingLong(e -> e.position).thenComparingLong(e -> e.order);
+
+	private final InMemoryAccounting accounting;
+	private final int base;
+
+	private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+	private final AtomicLong order = new AtomicLong();
+
+	// fields below are accessed by replica thread only
+	private final PriorityQueue<Event> pending = new PriorityQueue<>(EVENT_ORDER);
+	private long[][] working = NO_CHUNKS;
+	private final BitSet dirty = new BitSet();
+	private long position;
+
+	private volatile View view;
+	private ScheduledExecutorService executor;
+
+	public ReadReplica(InMemoryAccounting accounting) {
+		this.accounting = accounting;
+		this.base = accounting.getMinId();
+	}
+
+	/**
+	 * Copies balances at consistent cut and starts periodic publishing in background thread
+	 *
+	 * @param periodMillis delay between published views, i.e. staleness bound
+	 */
+	public void start(long periodMillis) {
+		checkArgument(periodMillis > 0L);
+		// events are collected before cut, so none is lost between cut and log tail
+		accounting.addListener(this);
+		position = accounting.snapshot(account -> put(account.getId(), account.getBalance())).getSequence();
+		// changes at cut position or before it are in cut already, they are applied idempotently
+		applyEvents(position);
+		publish();
+
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "read-replica");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this, periodMillis, periodMillis, MILLISECONDS);
+	}
+
+	/**
+	 * @return the latest published view
+	 */
+	public View getView() {
+		return view;
+	}
+
+	@Override
+	public void created(int id, long position) {
+		events.offer(new Event(true, id, position, order.getAndIncrement()));
+	}
+
+	@Override
+	public void removed(int id, long position) {
+		events.offer(new Event(false, id, position, order.getAndIncrement()));
+	}
+
+	@Override
+	public void run() {
+		try {
+			long size = accounting.getLogSize();
+			accounting.readLog(position, size, this::apply);
+			position = size;
+			applyEvents(position);
+			publish();
+		} catch (RuntimeException e) {
+			LOGGER.error("Failed to publish read replica view at position {}", position, e);
+		}
+	}
+
+	private void apply(Transfer transfer) {
+		applyEvents(transfer.getSequence());
+		if (transfer.getSrcId() != 0) {
+			add(transfer.getSrcId(), -transfer.getAmount());
+		}
+		if (transfer.getDstId() != 0) {
+			// initial balance of new account precedes its creation
+			add(transfer.getDstId(), transfer.getAmount());
+		}
+	}
+
+	/**
+	 * Applies events which precede log entry at given position
+	 */
+	private void applyEvents(long position) {
+		Event event;
+		while ((event = events.poll()) != null) {
+			pending.add(event);
+		}
+		while ((event = pending.peek()) != null && event.position <= position) {
+			pending.poll();
+			if (!event.created) {
+				put(event.id, NO_ACCOUNT);
+			} else if (balance(working, event.id - base) == NO_ACCOUNT) {
+				put(event.id, 0L);
+			}
+		}
+	}
+
+	private void add(int id, long amount) {
+		long balance = balance(working, id - base);
+		put(id, balance == NO_ACCOUNT ? amount : balance + amount);
+	}
+
+	private void put(int id, long balance) {
+		int index = id - base;
+		int chunk = index >>> CHUNK_BITS;
+		if (chunk >= working.length) {
+			working = Arrays.copyOf(working, Math.max(chunk + 1, working.length << 1));
+		}
+		if (working[chunk] == null) {
+			working[chunk] = new long[CHUNK_SIZE];
+			Arrays.fill(working[chunk], NO_ACCOUNT);
+		}
+		working[chunk][index & (CHUNK_SIZE - 1)] = balance;
+		dirty.set(chunk);
+	}
+
+	private void publish() {
+		View previous = view;
+		long[][] chunks = previous == null ? new long[working.length][] : Arrays.copyOf(previous.chunks, working.length);
+		for (int chunk = dirty.nextSetBit(0); chunk >= 0; chunk = dirty.nextSetBit(chunk + 1)) {
+			chunks[chunk] = working[chunk].clone();
+		}
+		dirty.clear();
+		view = new View(accounting, position, currentTimeMillis(), chunks);
+	}
+
+	private static long balance(long[][] chunks, int index) {
+		if (index < 0) {
+			return NO_ACCOUNT;
+		}
+		int chunk = index >>> CHUNK_BITS;
+		if (chunk >= chunks.length || chunks[chunk] == null) {
+			return NO_ACCOUNT;
+		}
+		return chunks[chunk][index & (CHUNK_SIZE - 1)];
+	}
+
+	@Override
+	public void close() {
+		accounting.removeListener(this);
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Transfer;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Background reclamation of removed accounts of {@link InMemoryAccounting}.
+ * Storage of removed accounts is freed on every run. Once {@link Policy#getRetentionMillis() retention} period passes,
+ * transfer log entries which involve only removed accounts are dropped or archived to CSV file with
+ * {@code seq,src,dst,amount} rows, depending on {@link History} mode. Live transfers are never paused.
+ */
+public class Reclaimer implements Runnable, Closeable {
+
+	private static final Logger LOGGER = getLogger(Reclaimer.class);
+
+	/**
+	 * What to do with history of removed accounts
+	 */
+	public enum History {
+		KEEP,
+		DROP,
+		ARCHIVE
+	}
+
+	/**
+	 * Retention policy of removed accounts history
+	 */
+	public static class Policy {
+
+		private final History history;
+		private final long retentionMillis;
+		private final Path archive;
+
+		/**
+		 * @param history         history mode
+		 * @param retentionMillis how long to keep history after account removal
+		 * @param archive         archive file, required for {@link History#ARCHIVE}
+		 */
+		public Policy(History history, long retentionMillis, Path archive) {
+			checkArgument(retentionMillis >= 0L);
+			checkArgument(history != History.ARCHIVE || archive != null, "Archive file required");
+			this.history = history;
+			this.retentionMillis = retentionMillis;
+			this.archive = archive;
+		}
+
+		public History getHistory() {
+			return history;
+		}
+
+		public long getRetentionMillis() {
+			return retentionMillis;
+		}
+
+		public Path getArchive() {
+			return archive;
+		}
+	}
+
+	/**
+	 * Removed account waiting for reclamation
+	 */
+	static class Removal {
+
+		private final int id;
+		private final long time;
+
+		Removal(int id, long time) {
+			this.id = id;
+			this.time = time;
+		}
+
+		int getId() {
+			return id;
+		}
+
+		long getTime() {
+			return time;
+		}
+	}
+
+	private final InMemoryAccounting accounting;
+	private final Policy policy;
+
+	// reclaimed accounts waiting for history retention to expire, in removal order
+	private final Deque<Removal> retained = new ArrayDeque<>();
+	// accounts with expired history
+	private final BitSet expired = new BitSet();
+
+	private ScheduledExecutorService executor;
+	private Writer archive;
+
+	public Reclaimer(InMemoryAccounting accounting, Policy policy) {
+		this.accounting = accounting;
+		this.policy = policy;
+	}
+
+	/**
+	 * Starts periodic reclamation in background thread
+	 *
+	 * @param periodMillis delay between runs
+	 */
+	public void start(long periodMillis) throws IOException {
+		checkArgument(periodMillis > 0L);
+		if (policy.getHistory() == History.ARCHIVE) {
+			archive = Files.newBufferedWriter(policy.getArchive(), US_ASCII, CREATE, APPEND);
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "reclaimer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this, periodMillis, periodMillis, MILLISECONDS);
+	}
+
+	@Override
+	public void run() {
+		try {
+			reclaim(currentTimeMillis());
+		} catch (RuntimeException e) {
+			LOGGER.error("Failed to reclaim removed accounts", e);
+		}
+	}
+
+	/**
+	 * Runs reclamation once, must not be called concurrently
+	 *
+	 * @param now current time in ms
+	 */
+	void reclaim(long now) {
+		retained.addAll(accounting.reclaimAccounts());
+		if (policy.getHistory() == History.KEEP) {
+			retained.clear();
+			return;
+		}
+
+		boolean expiredAny = false;
+		while (!retained.isEmpty() && retained.peekFirst().getTime() + policy.getRetentionMillis() <= now) {
+			expired.set(retained.pollFirst().getId());
+			expiredAny = true;
+		}
+		if (!expiredAny) {
+			return;
+		}
+
+		accounting.purgeHistory(
+			t -> (t.getSrcId() == 0 || expired.get(t.getSrcId())) && (t.getDstId() == 0 || expired.get(t.getDstId())),
+			this::archive
+		);
+		if (archive != null) {
+			try {
+				archive.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void archive(Transfer transfer, long seq) {
+		if (archive == null) {
+			return;
+		}
+		try {
+			archive.write(seq + "," + transfer.getSrcId() + "," + transfer.getDstId() + "," + transfer.getAmount() + "\n");
+		} catch (IOException e) {
+			// entry must not be dropped unless archived
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (archive != null) {
+			archive.close();
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package me.torobev.billing.accounting;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of {@link InMemoryAccounting#execute(me.torobev.billing.Transfer) transfer execution}
+ */
+@Name(TransferEvent.NAME)
+@Label("Transfer")
+@Description("Transfer executed by in-memory accounting")
+@Category({"Billing", "Accounting"})
+@StackTrace(false)
+public class TransferEvent extends Event {
+
+	public static final String NAME = "me.torobev.billing.Transfer";
+
+	@Label("Source Account")
+	int srcId;
+
+	@Label("Destination Account")
+	int dstId;
+
+	@Label("Amount")
+	long amount;
+
+	@Label("Result")
+	String result;
+}
@@ -0,0 +1,56 @@
+package me.torobev.billing.accounting;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of sampled transfers counted in power of two buckets. Samples are collected in windows, the single
+ * reader drains current window and starts the next one, so quantiles follow recent load. Quantile is known up to
+ * the factor of two, which is enough to tell whether transfers keep within latency budget.
+ */
+class TransferLatency {
+
+	// one of 16 transfers is timed
+	private static final int SAMPLE_MASK = (1 << 4) - 1;
+	private static final int BUCKETS = 64;
+
+	private volatile AtomicLongArray window = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * @return {@code true} if the next transfer is to be timed
+	 */
+	boolean sample() {
+		return (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+	}
+
+	void record(long nanos) {
+		window.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1L, nanos)));
+	}
+
+	/**
+	 * Starts the next window, samples recorded into drained window meanwhile are lost
+	 *
+	 * @param quantile quantile to return, e.g. 0.99
+	 * @return upper bound of latency quantile in ns of transfers sampled since previous call, 0 if there were none
+	 */
+	long drain(double quantile) {
+		AtomicLongArray drained = window;
+		window = new AtomicLongArray(BUCKETS);
+		long total = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += drained.get(i);
+		}
+		if (total == 0L) {
+			return 0L;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS - 2; i++) {
+			seen += drained.get(i);
+			if (seen >= rank) {
+				return 2L << i;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
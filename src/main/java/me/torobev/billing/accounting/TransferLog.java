@@ -0,0 +1,180 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Transfer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Lock-free append-only log of transfers. Position of a transfer in the log is its sequence number.
+ * Appended entries are stamped with sequence number and time of logging. Time never goes backwards in log order,
+ * so entries may be searched by time.
+ * Entries are stored in fixed size segments allocated on demand, so append never copies existing entries.
+ * History which is not needed anymore may be {@link #purge purged}: entries are replaced with {@link #PURGED}
+ * marker keeping sequence numbers intact, fully purged segments are released.
+ */
+class TransferLog {
+
+	private static final int SEGMENT_BITS = 16;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+	private static final int MAX_SEGMENTS = 1 << 15;
+
+	/**
+	 * Marker of purged entry, skipped by {@link #forEach}
+	 */
+	static final Transfer PURGED = new Transfer(0, Integer.MAX_VALUE, Long.MAX_VALUE);
+	private static final AtomicReferenceArray<Transfer> PURGED_SEGMENT = new AtomicReferenceArray<>(SEGMENT_SIZE);
+
+	static {
+		for (int i = 0; i < SEGMENT_SIZE; i++) {
+			PURGED_SEGMENT.set(i, PURGED);
+		}
+	}
+
+	/**
+	 * Approximate heap size of one segment and one entry
+	 */
+	static final long SEGMENT_BYTES = 16L + 4L * SEGMENT_SIZE;
+	static final long ENTRY_BYTES = 40L;
+
+	private final AtomicLong tail = new AtomicLong(0L);
+	private final AtomicReferenceArray<AtomicReferenceArray<Transfer>> segments =
+		new AtomicReferenceArray<>(MAX_SEGMENTS);
+
+	// latest timestamp, clock going backwards is clamped to it
+	private final AtomicLong lastTimestamp = new AtomicLong(Long.MIN_VALUE);
+
+	private final LongAdder purgedEntries = new LongAdder();
+	private final LongAdder releasedSegments = new LongAdder();
+
+	/**
+	 * @param transfer entry to append
+	 * @return appended entry stamped with sequence number and time
+	 */
+	Transfer append(Transfer transfer) {
+		long now = currentTimeMillis();
+		long seq;
+		long timestamp;
+		// timestamp is taken after previous sequence number is claimed, so it is not less than timestamp of that entry
+		do {
+			seq = tail.get();
+			timestamp = lastTimestamp.accumulateAndGet(now, Math::max);
+		} while (!tail.compareAndSet(seq, seq + 1));
+		Transfer stamped = new Transfer(transfer.getSrcId(), transfer.getDstId(), transfer.getAmount(), seq, timestamp,
+			transfer.isRefund());
+		segment(seq).set((int) (seq & SEGMENT_MASK), stamped);
+		return stamped;
+	}
+
+	/**
+	 * @return number of entries appended so far, i.e. sequence number of the next entry
+	 */
+	long size() {
+		return tail.get();
+	}
+
+	/**
+	 * @param seq sequence number less than {@link #size()}
+	 * @return entry with given sequence number or {@link #PURGED}, waits for entry being appended concurrently
+	 */
+	Transfer get(long seq) {
+		AtomicReferenceArray<Transfer> segment = segment(seq);
+		int offset = (int) (seq & SEGMENT_MASK);
+		Transfer transfer;
+		// busy waiting for concurrent append
+		do {
+			transfer = segment.get(offset);
+		} while (transfer == null);
+		return transfer;
+	}
+
+	/**
+	 * Visits entries with sequence numbers in range {@code [from, to)} in log order
+	 *
+	 * @param from    first sequence number
+	 * @param to      sequence number after the last one, not greater than {@link #size()}
+	 * @param visitor entries consumer
+	 */
+	void forEach(long from, long to, Consumer<Transfer> visitor) {
+		long seq = from;
+		while (seq < to) {
+			AtomicReferenceArray<Transfer> segment = segment(seq);
+			int offset = (int) (seq & SEGMENT_MASK);
+			int end = (int) Math.min(SEGMENT_SIZE, offset + (to - seq));
+			for (int i = offset; i < end; i++) {
+				Transfer transfer;
+				do {
+					transfer = segment.get(i);
+				} while (transfer == null);
+				if (transfer != PURGED) {
+					visitor.accept(transfer);
+				}
+			}
+			seq += end - offset;
+		}
+	}
+
+	/**
+	 * Purges entries matching predicate. Must not be called concurrently with another purge.
+	 *
+	 * @param purgeable predicate of entries to purge
+	 * @param archive   receives purged entries with their sequence numbers before purge
+	 */
+	void purge(Predicate<Transfer> purgeable, ObjLongConsumer<Transfer> archive) {
+		long size = size();
+		for (int index = 0; (long) index << SEGMENT_BITS < size; index++) {
+			AtomicReferenceArray<Transfer> segment = segments.get(index);
+			if (segment == PURGED_SEGMENT) {
+				continue;
+			}
+			long base = (long) index << SEGMENT_BITS;
+			int end = (int) Math.min(SEGMENT_SIZE, size - base);
+			int purged = 0;
+			for (int i = 0; i < end; i++) {
+				Transfer transfer;
+				do {
+					transfer = segment.get(i);
+				} while (transfer == null);
+				if (transfer == PURGED) {
+					purged++;
+				} else if (purgeable.test(transfer)) {
+					archive.accept(transfer, base + i);
+					segment.set(i, PURGED);
+					purgedEntries.increment();
+					purged++;
+				}
+			}
+			if (purged == SEGMENT_SIZE) {
+				segments.set(index, PURGED_SEGMENT);
+				releasedSegments.increment();
+			}
+		}
+	}
+
+	long getPurgedEntries() {
+		return purgedEntries.sum();
+	}
+
+	long getReleasedSegments() {
+		return releasedSegments.sum();
+	}
+
+	private AtomicReferenceArray<Transfer> segment(long seq) {
+		long index = seq >>> SEGMENT_BITS;
+		checkState(index < MAX_SEGMENTS, "Transfer log size limit reached");
+		AtomicReferenceArray<Transfer> segment = segments.get((int) index);
+		if (segment == null) {
+			segments.compareAndSet((int) index, null, new AtomicReferenceArray<>(SEGMENT_SIZE));
+			segment = segments.get((int) index);
+		}
+		return segment;
+	}
+}
@@ -59,6 +59,9 @@ public class App {
 		HashMap<String, Runnable> actions = new HashMap<>();
 		actions.put("server", new RunServer());
 		actions.put("demo", new RunDemo());
+		actions.put("import", new RunImport());
+		actions.put("audit", new RunAudit());
+		actions.put("jfr", new RunJfrSummary());
 		CommandLineDispatcher dispatcher = CommandLineDispatcher.createDispatcher(actions);
 		System.exit(dispatcher.performCommand(args));
 	}
@@ -0,0 +1,26 @@
+package me.torobev.billing.cli;
+
+import com.beust.jcommander.Parameter;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.rest.RestClient;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+public class RunAudit implements Runnable {
+
+	@Parameter(names = {"-u", "--url"}, description = "Server url")
+	private String url = "http://localhost:8080/";
+
+	@Override
+	public void run() {
+		try (RestClient accounting = new RestClient(url)) {
+			AuditReport report = accounting.audit();
+			System.out.format("Verified %d accounts against %d log entries in %d ms, %d mismatches\n",
+				report.getAccounts(), report.getSequence(), report.getElapsedMillis(), report.getMismatchCount());
+			report.getMismatches().forEach(System.out::println);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -2,27 +2,39 @@ package me.torobev.billing.cli;
 
 import com.beust.jcommander.Parameter;
 import com.google.common.base.Stopwatch;
-import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.ReplicationStatus;
 import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.cluster.ClusterClient;
+import me.torobev.billing.cluster.Partitioning;
+import me.torobev.billing.rest.MultiplexingClient;
 import me.torobev.billing.rest.RestClient;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAccumulator;
 
-import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Stopwatch.createStarted;
 import static java.lang.Runtime.getRuntime;
 import static java.lang.Thread.currentThread;
+import static java.util.Collections.singletonList;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static java.util.concurrent.ThreadLocalRandom.current;
 import static java.util.concurrent.TimeUnit.*;
-import static java.util.stream.IntStream.rangeClosed;
 
 public class RunDemo implements Runnable {
 
 
-	@Parameter(names = {"-u", "--url"}, description = "Server url")
-	private String url = "http://localhost:8080/";
+	@Parameter(names = {"-u", "--url"}, description = "Server url, or comma separated urls of all cluster nodes")
+	private List<String> urls;
+
+	@Parameter(names = {"--partition-size"}, description = "Number of account ids owned by each cluster node")
+	private int partitionSize = 1000000;
 
 	@Parameter(names = {"-c", "--concurrency"}, description = "Number of concurrent requests")
 	private int concurency = getRuntime().availableProcessors();
@@ -33,29 +45,60 @@ public class RunDemo implements Runnable {
 	@Parameter(names = {"-a", "--accounts"}, description = "Number of total created accounts")
 	private int accounts = 100;
 
+	@Parameter(names = {"-m", "--multiplex"}, description = "Multiplex concurrent transfers as HTTP/2 streams over given number of connections to server run with --http2, 0 for HTTP/1.1 connection per request")
+	private int multiplex = 0;
+
+	@Parameter(names = {"-s", "--standby"}, description = "Standby server url to measure replication lag")
+	private String standbyUrl;
+
 
 	@Override
 	public void run() {
 		ThreadPoolExecutor pool = new ThreadPoolExecutor(concurency, concurency,
 			1, MINUTES, new ArrayBlockingQueue<>(1000), new ThreadPoolExecutor.CallerRunsPolicy());
 
-		RestClient accounting = new RestClient(url);
+		if (urls == null) {
+			urls = singletonList("http://localhost:8080/");
+		}
+		RestClient server = new RestClient(urls.get(0), concurency);
+		MultiplexingClient multiplexing = multiplex > 0 && urls.size() == 1
+			? new MultiplexingClient(urls.get(0), multiplex)
+			: null;
+		Accounting accounting = urls.size() == 1
+			? multiplexing != null ? multiplexing : server
+			: new ClusterClient(new Partitioning(urls.size(), partitionSize), urls);
 
 		Stopwatch sw = createStarted();
-		rangeClosed(1, accounts)
-			.mapToObj(i -> requireNonNull(accounting.createAccount()))
-			.map(Account::getId)
-			.forEach(id -> checkState(accounting.increaseAccountBalance(id, 1000000L)));
+		// accounts are created on every cluster node in turn
+		List<AccountRange> ranges = new ArrayList<>();
+		for (int i = 0; i < urls.size(); i++) {
+			int count = accounts / urls.size() + (i < accounts % urls.size() ? 1 : 0);
+			ranges.add(requireNonNull(accounting.createAccounts(count, 1000000L)));
+		}
 
 		long elapsed = sw.elapsed(MILLISECONDS);
 		float rps = 1000f * accounts / elapsed;
 		System.out.format("Created %d accounts in %d ms, %.1f rps\n", accounts, elapsed, rps);
 
 
+		RestClient standby = standbyUrl == null ? null : new RestClient(standbyUrl);
+		ScheduledExecutorService sampler = newSingleThreadScheduledExecutor();
+		LongAccumulator maxLag = new LongAccumulator(Math::max, 0L);
+		LongAccumulator maxLagMillis = new LongAccumulator(Math::max, 0L);
+		if (standby != null) {
+			sampler.scheduleAtFixedRate(() -> {
+				ReplicationStatus status = standby.getReplicationStatus();
+				if (status != null) {
+					maxLag.accumulate(status.getLag());
+					maxLagMillis.accumulate(status.getLagMillis());
+				}
+			}, 0L, 10L, MILLISECONDS);
+		}
+
 		sw.reset().start();
 		for (int i = 0; i < transfers; i++) {
-			int from = current().nextInt(1, transfers + 1);
-			int to = current().nextInt(1, transfers + 1);
+			int from = randomId(ranges);
+			int to = randomId(ranges);
 			pool.submit(() -> accounting.execute(new Transfer(from, to, 1L)));
 		}
 		pool.shutdown();
@@ -63,11 +106,33 @@ public class RunDemo implements Runnable {
 			pool.awaitTermination(10, SECONDS);
 		} catch (InterruptedException e) {
 			currentThread().interrupt();
+			sampler.shutdownNow();
 			return;
 		}
 
 		elapsed = sw.elapsed(MILLISECONDS);
 		rps = 1000f * transfers / elapsed;
 		System.out.format("Executed %d transfers in %d ms, %.1f rps\n", transfers, elapsed, rps);
+		if (multiplexing != null) {
+			System.out.format("Up to %d transfers in flight over %d HTTP/2 connections\n", multiplexing.getMaxInFlight(),
+				multiplexing.getConnections());
+		}
+
+		sampler.shutdown();
+		if (standby != null) {
+			ReplicationStatus leaderStatus = requireNonNull(server.getReplicationStatus(), "Server does not replicate");
+			sw.reset().start();
+			ReplicationStatus status;
+			do {
+				status = requireNonNull(standby.getReplicationStatus(), "Standby does not replicate");
+			} while (status.getPosition() < leaderStatus.getPosition() && sw.elapsed(SECONDS) < 10L);
+			System.out.format("Standby caught up in %d ms, max lag %d entries, %d ms\n",
+				sw.elapsed(MILLISECONDS), maxLag.get(), maxLagMillis.get());
+		}
+	}
+
+	private static int randomId(List<AccountRange> ranges) {
+		AccountRange range = ranges.get(current().nextInt(ranges.size()));
+		return current().nextInt(range.getFirstId(), range.getLastId() + 1);
 	}
 }
@@ -0,0 +1,47 @@
+package me.torobev.billing.cli;
+
+import com.beust.jcommander.Parameter;
+import me.torobev.billing.accounting.AccountImporter;
+import me.torobev.billing.accounting.AccountImporter.Result;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import me.torobev.billing.web.WebServer;
+
+import java.nio.file.Paths;
+
+import static java.lang.Runtime.getRuntime;
+
+public class RunImport implements Runnable {
+
+	@Parameter(names = {"-f", "--file"}, required = true, description = "CSV file with id,balance rows")
+	private String file;
+
+	@Parameter(names = {"-p", "--port"}, description = "Start server on given port after import")
+	private int port = 0;
+
+	@Parameter(names = {"-t", "--threads"}, description = "Number of parsing threads")
+	private int threads = getRuntime().availableProcessors();
+
+	@Override
+	public void run() {
+		try {
+			InMemoryAccounting accounting = new InMemoryAccounting();
+			Result result = new AccountImporter(accounting, threads).importFile(Paths.get(file));
+
+			System.out.format("Imported %d accounts in %d ms, %.1f rows/s\n",
+				result.getRows(), result.getElapsedMillis(), result.getRowsPerSecond());
+			if (result.getRejected() > 0) {
+				System.out.format("Rejected %d rows\n", result.getRejected());
+				result.getErrors().forEach(System.out::println);
+			}
+
+			if (port > 0) {
+				WebServer server = new WebServer(port);
+				server.setAccounting(accounting);
+				server.start();
+				server.join();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package me.torobev.billing.cli;
+
+import com.beust.jcommander.Parameter;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import me.torobev.billing.accounting.AccountLogEvent;
+import me.torobev.billing.accounting.BorrowEvent;
+import me.torobev.billing.accounting.TransferEvent;
+import me.torobev.billing.web.RequestEvent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Comparator.comparing;
+import static java.util.Comparator.comparingLong;
+
+/**
+ * Summarizes flight recording of billing server: the slowest operations and the most contended accounts
+ */
+public class RunJfrSummary implements Runnable {
+
+	@Parameter(names = {"-f", "--file"}, required = true, description = "Flight recording file")
+	private String file;
+
+	@Parameter(names = {"-n", "--top"}, description = "Number of operations and accounts to show")
+	private int top = 10;
+
+	/**
+	 * Borrow waits of one account
+	 */
+	private static class Contention {
+
+		private final int accountId;
+		private long waits;
+		private long waitNanos;
+		private long spins;
+
+		Contention(int accountId) {
+			this.accountId = accountId;
+		}
+	}
+
+	@Override
+	public void run() {
+		checkArgument(top > 0, "Positive number required");
+		Comparator<RecordedEvent> byDuration = comparing(RecordedEvent::getDuration);
+		PriorityQueue<RecordedEvent> transfers = new PriorityQueue<>(byDuration);
+		PriorityQueue<RecordedEvent> requests = new PriorityQueue<>(byDuration);
+		PriorityQueue<RecordedEvent> logs = new PriorityQueue<>(byDuration);
+		Map<Integer, Contention> contention = new HashMap<>();
+
+		try (RecordingFile recording = new RecordingFile(Paths.get(file))) {
+			while (recording.hasMoreEvents()) {
+				RecordedEvent event = recording.readEvent();
+				switch (event.getEventType().getName()) {
+					case TransferEvent.NAME:
+						keep(transfers, event);
+						break;
+					case RequestEvent.NAME:
+						keep(requests, event);
+						break;
+					case AccountLogEvent.NAME:
+						keep(logs, event);
+						break;
+					case BorrowEvent.NAME:
+						Contention account = contention.computeIfAbsent(event.getInt("accountId"), Contention::new);
+						account.waits++;
+						account.waitNanos += event.getDuration().toNanos();
+						account.spins += event.getLong("spins");
+						break;
+					default:
+						break;
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		print("Slowest transfers", transfers, e -> String.format("%d -> %d, amount %d, %s",
+			e.getInt("srcId"), e.getInt("dstId"), e.getLong("amount"), e.getString("result")));
+		print("Slowest requests", requests, e -> String.format("%s %s, status %d, writing %.3f ms",
+			e.getString("method"), e.getString("target"), e.getInt("status"), e.getLong("writeTime") / 1e6));
+		print("Slowest account log scans", logs, e -> String.format("account %d, %d entries, %d returned",
+			e.getInt("accountId"), e.getInt("entries"), e.getInt("returned")));
+
+		List<Contention> accounts = new ArrayList<>(contention.values());
+		accounts.sort(comparingLong((Contention c) -> c.waitNanos).reversed());
+		System.out.format("Most contended accounts (%d):\n", accounts.size());
+		for (Contention account : accounts.subList(0, Math.min(top, accounts.size()))) {
+			System.out.format("  account %d: %d waits, %.3f ms total, %d spins\n",
+				account.accountId, account.waits, account.waitNanos / 1e6, account.spins);
+		}
+	}
+
+	private void keep(PriorityQueue<RecordedEvent> slowest, RecordedEvent event) {
+		slowest.offer(event);
+		if (slowest.size() > top) {
+			slowest.poll();
+		}
+	}
+
+	private static void print(String title, PriorityQueue<RecordedEvent> slowest,
+														Function<RecordedEvent, String> describe) {
+		List<RecordedEvent> events = new ArrayList<>(slowest);
+		events.sort(slowest.comparator().reversed());
+		System.out.format("%s (%d):\n", title, events.size());
+		for (RecordedEvent event : events) {
+			System.out.format("  %10.3f ms  %s  %s\n",
+				event.getDuration().toNanos() / 1e6, event.getStartTime(), describe.apply(event));
+		}
+	}
+}
@@ -1,22 +1,173 @@
 package me.torobev.billing.cli;
 
 import com.beust.jcommander.Parameter;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import me.torobev.billing.accounting.Reclaimer.History;
+import me.torobev.billing.accounting.Reclaimer.Policy;
+import me.torobev.billing.cluster.Partitioning;
+import me.torobev.billing.web.AdmissionHandler.Budget;
 import me.torobev.billing.web.WebServer;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.Integer.parseInt;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public class RunServer implements Runnable {
 
 	@Parameter(names = {"-p", "--port"}, required = true, description = "Server port")
 	private int port = 8080;
 
+	@Parameter(names = {"--max-reads"}, description = "Maximum number of in-flight read requests, 0 to admit all reads")
+	private int maxReads = 0;
+
+	@Parameter(names = {"--max-writes"}, description = "Maximum number of in-flight transfer and other write requests, transfers of a batch count one by one, 0 to admit all writes")
+	private int maxWrites = 0;
+
+	@Parameter(names = {"--target-delay"}, description = "Target queueing delay in ms, requests are shed when exceeded")
+	private long targetDelay = 10L;
+
+	@Parameter(names = {"--interval"}, description = "Interval in ms the queueing delay may stay above target")
+	private long interval = 100L;
+
+	@Parameter(names = {"--http2"}, description = "Accept cleartext HTTP/2 connections besides HTTP/1.1, for multiplexing clients")
+	private boolean http2 = false;
+
+	@Parameter(names = {"--history"}, description = "What to do with history of removed accounts: KEEP, DROP or ARCHIVE")
+	private History history = History.KEEP;
+
+	@Parameter(names = {"--retention"}, description = "How long to retain history of removed accounts in seconds")
+	private long retention = 86400L;
+
+	@Parameter(names = {"--archive"}, description = "Archive file for history of removed accounts")
+	private String archive = "archive.csv";
+
+	@Parameter(names = {"--read-replica"}, description = "How often in-process read replica is published in ms, 0 to disable it")
+	private long readReplica = 0L;
+
+	@Parameter(names = {"--conservation-check"}, description = "How often money conservation is checked at consistent cut in ms, 0 to disable checks")
+	private long conservationCheck = 60000L;
+
+	@Parameter(names = {"--balance-index"}, description = "Index accounts by balance for top and balance range queries, transfers get slower")
+	private boolean balanceIndex = false;
+
+	@Parameter(names = {"--feed-capacity"}, description = "Number of transfers buffered for every change feed subscriber, 0 to disable feed")
+	private int feedCapacity = 0;
+
+	@Parameter(names = {"--replication-port"}, description = "Port to accept standby connections on, replication is off when negative")
+	private int replicationPort = -1;
+
+	@Parameter(names = {"--semi-sync"}, description = "How long modifications wait for standby acknowledgement in ms, 0 for asynchronous replication")
+	private long semiSync = 0L;
+
+	@Parameter(names = {"--standby-of"}, description = "Run as read-only standby of leader replication address host:port")
+	private String leader;
+
+	@Parameter(names = {"--cluster"}, description = "Comma separated urls of all cluster nodes, in node order")
+	private List<String> cluster;
+
+	@Parameter(names = {"--node"}, description = "Index of this node in cluster")
+	private int node = 0;
+
+	@Parameter(names = {"--partition-size"}, description = "Number of account ids owned by each cluster node")
+	private int partitionSize = 1000000;
+
+	@Parameter(names = {"--in-doubt"}, description = "How long transfer to another node may stay prepared in ms before it is resolved")
+	private long inDoubt = 5000L;
+
+	@Parameter(names = {"--server-timing"}, description = "Answer every n-th request on average with Server-Timing header, 0 to answer only requests asking for it")
+	private int serverTiming = 0;
+
+	@Parameter(names = {"--schedule-tick"}, description = "Precision of scheduled transfers in ms, 0 to disable scheduler")
+	private long scheduleTick = 10L;
+
+	@Parameter(names = {"--batch-threads"}, description = "Number of threads of interest and fee batch jobs, 0 to disable batch jobs")
+	private int batchThreads = 2;
+
+	@Parameter(names = {"--batch-budget"}, description = "p99 latency of online transfers in us batch jobs are throttled to keep within")
+	private long batchBudget = 500L;
+
+	@Parameter(names = {"--shm"}, description = "Shared memory file to serve accounts to processes on the same host through")
+	private String sharedMemory;
+
+	@Parameter(names = {"--shm-capacity"}, description = "Number of account ids mirrored to shared memory file")
+	private int sharedMemoryCapacity = 1 << 22;
+
+	@Parameter(names = {"--db"}, description = "JDBC url of database to persist accounting to and restore it from, driver must be on classpath")
+	private String database;
+
+	@Parameter(names = {"--access-log"}, description = "Access log file written asynchronously, requests are logged to slf4j when not set")
+	private String accessLog;
+
+	@Parameter(names = {"--access-log-capacity"}, description = "Number of access log records queued for writing, power of two; records beyond it are dropped")
+	private int accessLogCapacity = 1 << 16;
+
+	@Parameter(names = {"--jfr"}, description = "Flight recording file written on exit with bundled billing settings")
+	private String jfr;
 
 	@Override
 	public void run() {
 		try {
+			if (jfr != null) {
+				startRecording(Paths.get(jfr));
+			}
 			WebServer server = new WebServer(port);
+			server.setAdmission(maxReads > 0 ? new Budget(maxReads, targetDelay, interval) : null,
+				maxWrites > 0 ? new Budget(maxWrites, targetDelay, interval) : null);
+			server.setHttp2(http2);
+			server.setRetention(new Policy(history, SECONDS.toMillis(retention), Paths.get(archive)));
+			server.setReadReplica(readReplica);
+			server.setConservationCheck(conservationCheck);
+			server.setBalanceIndex(balanceIndex);
+			server.setServerTiming(serverTiming);
+			server.setChangeFeed(feedCapacity);
+			server.setScheduler(scheduleTick);
+			server.setBatch(batchThreads, batchBudget);
+			if (sharedMemory != null) {
+				server.setSharedMemory(Paths.get(sharedMemory), sharedMemoryCapacity);
+			}
+			if (database != null) {
+				server.setDatabase(database);
+			}
+			if (accessLog != null) {
+				server.setAccessLog(Paths.get(accessLog), accessLogCapacity);
+			}
+			if (leader != null) {
+				int colon = leader.lastIndexOf(':');
+				checkArgument(colon > 0, "Leader address host:port expected");
+				server.setStandby(leader.substring(0, colon), parseInt(leader.substring(colon + 1)));
+			} else if (replicationPort >= 0) {
+				server.setLeader(replicationPort, semiSync);
+			}
+			if (cluster != null) {
+				server.setCluster(new Partitioning(cluster.size(), partitionSize), cluster, node, inDoubt);
+			}
 			server.start();
 			server.join();
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	private static void startRecording(Path destination) throws IOException, ParseException {
+		Configuration configuration;
+		try (Reader reader = new InputStreamReader(RunServer.class.getResourceAsStream("/billing.jfc"), UTF_8)) {
+			configuration = Configuration.create(reader);
+		}
+		Recording recording = new Recording(configuration);
+		recording.setName("billing");
+		recording.setToDisk(true);
+		recording.setDumpOnExit(true);
+		recording.setDestination(destination);
+		recording.start();
+	}
 }
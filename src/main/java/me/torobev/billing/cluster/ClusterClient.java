@@ -0,0 +1,350 @@
+package me.torobev.billing.cluster;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.AuditReport.Mismatch;
+import me.torobev.billing.BalanceSnapshot;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.rest.RestClient;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Collections.emptyList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Routing {@link Accounting} client of partitioned cluster. Single account operations and transfers within
+ * one node are sent to the node owning accounts. Transfers between nodes are coordinated in two phases,
+ * see {@link CrossNodeTransfers}. New accounts are created on nodes in turn.
+ * <p>
+ * Cluster-wide export, stats and audit combine results of nodes taken one by one, they are not a consistent cut
+ * of the whole cluster and transfers in flight between nodes are not accounted in balances.
+ */
+public class ClusterClient implements Accounting, Closeable {
+
+	private static final Logger LOGGER = getLogger(ClusterClient.class);
+
+	private final Partitioning partitioning;
+	private final List<RestClient> nodes = new ArrayList<>();
+	private final AtomicInteger nextNode = new AtomicInteger();
+
+	/**
+	 * @param partitioning partitioning of account ids
+	 * @param locations    urls of nodes by index
+	 */
+	public ClusterClient(Partitioning partitioning, List<String> locations) {
+		checkArgument(locations.size() == partitioning.getNodes(), "Url of every node required");
+		this.partitioning = partitioning;
+		for (String location : locations) {
+			nodes.add(new RestClient(location));
+		}
+	}
+
+	public Partitioning getPartitioning() {
+		return partitioning;
+	}
+
+	private RestClient next() {
+		return nodes.get(Math.floorMod(nextNode.getAndIncrement(), nodes.size()));
+	}
+
+	private RestClient owner(int id) {
+		int node = partitioning.nodeOf(id);
+		return node < 0 ? null : nodes.get(node);
+	}
+
+	@Override
+	public Account createAccount() {
+		return next().createAccount();
+	}
+
+	@Override
+	public AccountRange createAccounts(int count, long initialBalance) {
+		return next().createAccounts(count, initialBalance);
+	}
+
+	@Override
+	public boolean removeAccount(int id) {
+		RestClient node = owner(id);
+		return node != null && node.removeAccount(id);
+	}
+
+	@Override
+	public Account getAccount(int id) {
+		RestClient node = owner(id);
+		return node == null ? null : node.getAccount(id);
+	}
+
+	/**
+	 * Lists accounts of node owning the next id, continues with the following nodes while page is not full
+	 */
+	@Override
+	public List<Account> listAccounts(int afterId, int limit) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
+		List<Account> page = new ArrayList<>();
+		int first = partitioning.nodeOf(Math.max(afterId, 0) + 1);
+		for (int node = first; node >= 0 && node < nodes.size() && page.size() < limit; node++) {
+			page.addAll(nodes.get(node).listAccounts(afterId, limit - page.size()));
+		}
+		return page;
+	}
+
+	/**
+	 * Reads accounts of every node in one batch, partitions are ordered by id, so are merged accounts
+	 */
+	@Override
+	public List<Account> getAccounts(int[] ids) {
+		List<Account> accounts = new ArrayList<>();
+		for (int node = 0; node < nodes.size(); node++) {
+			int owner = node;
+			int[] owned = Arrays.stream(ids).filter(id -> partitioning.nodeOf(id) == owner).toArray();
+			if (owned.length > 0) {
+				accounts.addAll(nodes.get(node).getAccounts(owned));
+			}
+		}
+		return accounts;
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount) {
+		return increaseAccountBalance(id, amount, null);
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount, String idempotencyKey) {
+		RestClient node = owner(id);
+		return node != null && node.increaseAccountBalance(id, amount, idempotencyKey);
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer) {
+		return execute(transfer, null);
+	}
+
+	/**
+	 * Transfer between nodes uses idempotency key as two-phase transfer identifier, so its retry is prepared,
+	 * credited and committed at most once
+	 */
+	@Override
+	public TransferResult execute(Transfer transfer, String idempotencyKey) {
+		int src = partitioning.nodeOf(transfer.getSrcId());
+		int dst = partitioning.nodeOf(transfer.getDstId());
+		if (src < 0) {
+			return TransferResult.SOURCE_NOT_FOUND;
+		}
+		if (dst < 0) {
+			return TransferResult.DESTINATION_NOT_FOUND;
+		}
+		if (src == dst) {
+			return nodes.get(src).execute(transfer, idempotencyKey);
+		}
+
+		String tx = idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString();
+		TransferResult prepared;
+		try {
+			prepared = nodes.get(src).prepareTransfer(tx, transfer);
+		} catch (RuntimeException e) {
+			// prepare may have happened, abort returns amount or prevents late prepare
+			try {
+				nodes.get(src).abortTransfer(tx);
+			} catch (RuntimeException abortFailure) {
+				e.addSuppressed(abortFailure);
+			}
+			throw e;
+		}
+		if (prepared != TransferResult.OK) {
+			return prepared;
+		}
+
+		TransferResult credited;
+		try {
+			credited = nodes.get(dst).creditTransfer(tx, transfer);
+		} catch (RuntimeException e) {
+			throw new IllegalStateException("Transfer " + tx + " is in doubt, it is resolved by source node", e);
+		}
+		if (credited != TransferResult.OK) {
+			nodes.get(src).abortTransfer(tx);
+			return credited;
+		}
+
+		try {
+			nodes.get(src).commitTransfer(tx);
+		} catch (RuntimeException e) {
+			// destination is credited, source node commits transfer itself
+			LOGGER.warn("Failed to commit transfer {}, it is resolved by source node", tx, e);
+		}
+		return TransferResult.OK;
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id) {
+		RestClient node = owner(id);
+		return node == null ? emptyList() : node.getAccountLog(id);
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id, long from, long to, int limit) {
+		RestClient node = owner(id);
+		return node == null ? emptyList() : node.getAccountLog(id, from, to, limit);
+	}
+
+	@Override
+	public Account getAccountAsOf(int id, long timestamp) {
+		RestClient node = owner(id);
+		return node == null ? null : node.getAccountAsOf(id, timestamp);
+	}
+
+	@Override
+	public Account getAccountAtSequence(int id, long sequence) {
+		RestClient node = owner(id);
+		return node == null ? null : node.getAccountAtSequence(id, sequence);
+	}
+
+	/**
+	 * Merges top accounts of every node
+	 */
+	@Override
+	public List<Account> getTopAccounts(int limit) {
+		List<Account> accounts = new ArrayList<>();
+		for (RestClient node : nodes) {
+			accounts.addAll(node.getTopAccounts(limit));
+		}
+		accounts.sort(Comparator.comparingLong(Account::getBalance).reversed().thenComparingInt(Account::getId));
+		return accounts.size() > limit ? new ArrayList<>(accounts.subList(0, limit)) : accounts;
+	}
+
+	/**
+	 * Merges accounts in balance range of every node
+	 */
+	@Override
+	public List<Account> getAccountsByBalance(long from, long to, int limit) {
+		List<Account> accounts = new ArrayList<>();
+		for (RestClient node : nodes) {
+			accounts.addAll(node.getAccountsByBalance(from, to, limit));
+		}
+		accounts.sort(Comparator.comparingLong(Account::getBalance).thenComparingInt(Account::getId));
+		return accounts.size() > limit ? new ArrayList<>(accounts.subList(0, limit)) : accounts;
+	}
+
+	/**
+	 * Exports balances of nodes one after another
+	 *
+	 * @return snapshot summary with sequence -1 as there is no single log position of cluster
+	 */
+	@Override
+	public BalanceSnapshot exportBalances(OutputStream out) throws IOException {
+		out.write((BalanceSnapshot.HEADER + "\n").getBytes(US_ASCII));
+		int accounts = 0;
+		long total = 0L;
+		OutputStream rows = new RowsOnly(out);
+		for (RestClient node : nodes) {
+			BalanceSnapshot snapshot = node.exportBalances(rows);
+			accounts += snapshot.getAccounts();
+			total += snapshot.getTotal();
+		}
+		BalanceSnapshot snapshot = new BalanceSnapshot(-1L, accounts, total);
+		out.write((snapshot.toTrailer() + "\n").getBytes(US_ASCII));
+		out.flush();
+		return snapshot;
+	}
+
+	@Override
+	public AccountingStats getStats() {
+		long accounts = 0L;
+		long balance = 0L;
+		long inflow = 0L;
+		long outflow = 0L;
+		long violations = 0L;
+		long reclaimedAccounts = 0L;
+		long purgedEntries = 0L;
+		long reclaimedBytes = 0L;
+		for (RestClient node : nodes) {
+			AccountingStats stats = node.getStats();
+			accounts += stats.getAccounts();
+			balance += stats.getBalance();
+			inflow += stats.getInflow();
+			outflow += stats.getOutflow();
+			violations += stats.getViolations();
+			reclaimedAccounts += stats.getReclaimedAccounts();
+			purgedEntries += stats.getPurgedEntries();
+			reclaimedBytes += stats.getReclaimedBytes();
+		}
+		return new AccountingStats(accounts, balance, inflow, outflow, violations, reclaimedAccounts, purgedEntries,
+			reclaimedBytes);
+	}
+
+	/**
+	 * Audits nodes one after another
+	 *
+	 * @return combined report with total number of replayed entries of all nodes
+	 */
+	@Override
+	public AuditReport audit() {
+		long sequence = 0L;
+		int accounts = 0;
+		int mismatchCount = 0;
+		List<Mismatch> mismatches = new ArrayList<>();
+		long elapsed = 0L;
+		for (RestClient node : nodes) {
+			AuditReport report = node.audit();
+			sequence += report.getSequence();
+			accounts += report.getAccounts();
+			mismatchCount += report.getMismatchCount();
+			mismatches.addAll(report.getMismatches());
+			elapsed += report.getElapsedMillis();
+		}
+		return new AuditReport(sequence, accounts, mismatchCount, mismatches, elapsed);
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (RestClient node : nodes) {
+			node.close();
+		}
+	}
+
+	/**
+	 * Passes account rows only, header and trailer lines starting with {@code #} are dropped
+	 */
+	private static class RowsOnly extends FilterOutputStream {
+
+		private boolean lineStart = true;
+		private boolean comment;
+
+		RowsOnly(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (lineStart) {
+				comment = b == '#';
+			}
+			if (!comment) {
+				out.write(b);
+			}
+			lineStart = b == '\n';
+		}
+
+		@Override
+		public void close() throws IOException {
+			// underlying stream is closed by caller
+			flush();
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package me.torobev.billing.cluster;
+
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting.TransferResult;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import me.torobev.billing.rest.RestClient;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Node side of two-phase transfers between cluster nodes.
+ * <ol>
+ * <li>Source node {@link #prepare prepares} transfer: amount is withdrawn from source account and held by transfer.</li>
+ * <li>Destination node {@link #credit credits} destination account exactly once per transfer.</li>
+ * <li>Source node {@link #commit commits} transfer dropping the hold, or {@link #abort aborts} it returning amount
+ * to source account.</li>
+ * </ol>
+ * Transfer prepared but not finished by coordinator in time is {@link #run() resolved} by source node: destination
+ * node reports whether it credited the transfer and refuses to credit it afterwards, so money is neither lost nor
+ * duplicated whichever party stops in the middle. Outcomes are remembered for retention period to answer retries.
+ * <p>
+ * Transfer is claimed with a transient state before its account is touched, so accounts are borrowed outside of
+ * map locks and concurrent calls for the same transfer wait for the claim to finish.
+ */
+public class CrossNodeTransfers implements Runnable, Closeable {
+
+	private static final Logger LOGGER = getLogger(CrossNodeTransfers.class);
+
+	/**
+	 * Two-phase transfer state on one node
+	 */
+	public enum State {
+		PREPARING,
+		PREPARED,
+		COMMITTED,
+		ABORTED,
+		CREDITING,
+		CREDITED
+	}
+
+	private static class Entry {
+
+		private final Transfer transfer;
+		private final long time;
+		private final AtomicReference<State> state;
+
+		Entry(Transfer transfer, long time, State state) {
+			this.transfer = transfer;
+			this.time = time;
+			this.state = new AtomicReference<>(state);
+		}
+
+		/**
+		 * @return state after transient one, waits for concurrent claim to finish
+		 */
+		State await(State pending) {
+			State current;
+			// claims take microseconds
+			while ((current = state.get()) == pending) {
+				Thread.yield();
+			}
+			return current;
+		}
+	}
+
+	private final InMemoryAccounting accounting;
+	private final Partitioning partitioning;
+	private final int self;
+	private final List<RestClient> nodes;
+	private final long inDoubtMillis;
+	private final long retentionMillis;
+
+	// transfers from accounts of this node
+	private final Map<String, Entry> outgoing = new ConcurrentHashMap<>();
+	// transfers to accounts of this node
+	private final Map<String, Entry> incoming = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param accounting      accounting of this node
+	 * @param partitioning    partitioning of account ids
+	 * @param self            index of this node
+	 * @param nodes           clients of all cluster nodes by index
+	 * @param inDoubtMillis   how long coordinator may take to finish prepared transfer
+	 * @param retentionMillis how long to remember finished transfers, must be much longer than in doubt period
+	 */
+	public CrossNodeTransfers(InMemoryAccounting accounting, Partitioning partitioning, int self, List<RestClient> nodes,
+														long inDoubtMillis, long retentionMillis) {
+		checkArgument(nodes.size() == partitioning.getNodes());
+		checkArgument(retentionMillis > inDoubtMillis);
+		this.accounting = accounting;
+		this.partitioning = partitioning;
+		this.self = self;
+		this.nodes = nodes;
+		this.inDoubtMillis = inDoubtMillis;
+		this.retentionMillis = retentionMillis;
+	}
+
+	/**
+	 * Starts periodic resolution of transfers in doubt in background thread
+	 *
+	 * @param periodMillis delay between runs
+	 */
+	public void start(long periodMillis) {
+		checkArgument(periodMillis > 0L);
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "cross-node-transfers");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this, periodMillis, periodMillis, MILLISECONDS);
+	}
+
+	/**
+	 * Withdraws amount from source account of this node, repeated prepare of the same transfer has no effect
+	 *
+	 * @param tx       unique transfer identifier
+	 * @param transfer transfer from account of this node to account of another node
+	 * @return result of withdrawal, {@link TransferResult#ERROR} if transfer is already aborted
+	 */
+	public TransferResult prepare(String tx, Transfer transfer) {
+		if (partitioning.nodeOf(transfer.getSrcId()) != self) {
+			return TransferResult.SOURCE_NOT_FOUND;
+		}
+		if (partitioning.nodeOf(transfer.getDstId()) < 0) {
+			return TransferResult.DESTINATION_NOT_FOUND;
+		}
+		Entry claimed = new Entry(transfer, currentTimeMillis(), State.PREPARING);
+		Entry entry = outgoing.putIfAbsent(tx, claimed);
+		if (entry == null) {
+			TransferResult result = accounting.withdraw(transfer.getSrcId(), transfer.getAmount());
+			if (result != TransferResult.OK) {
+				// failed prepare leaves nothing behind, unless abort came first
+				if (claimed.state.compareAndSet(State.PREPARING, State.ABORTED)) {
+					outgoing.remove(tx, claimed);
+				}
+				return result;
+			}
+			if (claimed.state.compareAndSet(State.PREPARING, State.PREPARED)) {
+				return TransferResult.OK;
+			}
+			// aborted while withdrawing
+			refund(tx, transfer);
+			return TransferResult.ERROR;
+		}
+		State state = entry.await(State.PREPARING);
+		if (state == State.ABORTED && entry.transfer != null && outgoing.get(tx) != entry) {
+			// concurrent prepare failed, try again
+			return prepare(tx, transfer);
+		}
+		return state == State.ABORTED ? TransferResult.ERROR : TransferResult.OK;
+	}
+
+	/**
+	 * Finishes prepared transfer, source account keeps amount withdrawn
+	 *
+	 * @param tx transfer identifier
+	 * @return {@code false} if transfer is unknown or aborted
+	 */
+	public boolean commit(String tx) {
+		Entry entry = outgoing.get(tx);
+		if (entry == null) {
+			return false;
+		}
+		entry.await(State.PREPARING);
+		return entry.state.compareAndSet(State.PREPARED, State.COMMITTED) || entry.state.get() == State.COMMITTED;
+	}
+
+	/**
+	 * Returns amount of prepared transfer to source account. Unknown transfer is remembered as aborted,
+	 * so late prepare has no effect. Transfer being prepared is aborted by its prepare.
+	 *
+	 * @param tx transfer identifier
+	 * @return {@code false} if transfer is already committed
+	 */
+	public boolean abort(String tx) {
+		Entry entry = outgoing.computeIfAbsent(tx, k -> new Entry(null, currentTimeMillis(), State.ABORTED));
+		if (entry.state.compareAndSet(State.PREPARING, State.ABORTED)) {
+			return true;
+		}
+		if (entry.state.compareAndSet(State.PREPARED, State.ABORTED)) {
+			refund(tx, entry.transfer);
+			return true;
+		}
+		return entry.state.get() == State.ABORTED;
+	}
+
+	private void refund(String tx, Transfer transfer) {
+		if (!accounting.refund(transfer.getSrcId(), transfer.getAmount())) {
+			// removed account balance leaves accounting anyway, as its outflow
+			LOGGER.warn("Source account of aborted transfer {} is removed, {} is not returned", tx, transfer);
+		}
+	}
+
+	/**
+	 * Credits destination account of this node once per transfer
+	 *
+	 * @param tx       transfer identifier
+	 * @param transfer transfer from account of another node to account of this node
+	 * @return result of crediting, {@link TransferResult#ERROR} if transfer is already resolved as aborted
+	 */
+	public TransferResult credit(String tx, Transfer transfer) {
+		if (partitioning.nodeOf(transfer.getDstId()) != self) {
+			return TransferResult.DESTINATION_NOT_FOUND;
+		}
+		Entry claimed = new Entry(transfer, currentTimeMillis(), State.CREDITING);
+		Entry entry = incoming.putIfAbsent(tx, claimed);
+		if (entry == null) {
+			if (accounting.increaseAccountBalance(transfer.getDstId(), transfer.getAmount())) {
+				claimed.state.set(State.CREDITED);
+				return TransferResult.OK;
+			}
+			claimed.state.set(State.ABORTED);
+			return TransferResult.DESTINATION_NOT_FOUND;
+		}
+		return entry.await(State.CREDITING) == State.CREDITED ? TransferResult.OK : TransferResult.ERROR;
+	}
+
+	/**
+	 * Tells source node outcome of transfer in doubt. Transfer not credited so far is never credited afterwards.
+	 *
+	 * @param tx transfer identifier
+	 * @return {@code true} if transfer is credited and must be committed
+	 */
+	public boolean resolve(String tx) {
+		Entry entry = incoming.computeIfAbsent(tx, k -> new Entry(null, currentTimeMillis(), State.ABORTED));
+		return entry.await(State.CREDITING) == State.CREDITED;
+	}
+
+	/**
+	 * @return number of prepared transfers not committed or aborted yet
+	 */
+	public int getInDoubt() {
+		int count = 0;
+		for (Entry entry : outgoing.values()) {
+			if (entry.state.get() == State.PREPARED) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void run() {
+		long now = currentTimeMillis();
+		for (Map.Entry<String, Entry> row : outgoing.entrySet()) {
+			Entry entry = row.getValue();
+			if (entry.state.get() == State.PREPARED && now - entry.time >= inDoubtMillis) {
+				resolveInDoubt(row.getKey(), entry);
+			} else if (entry.state.get() != State.PREPARED && entry.state.get() != State.PREPARING
+				&& now - entry.time >= retentionMillis) {
+				outgoing.remove(row.getKey(), entry);
+			}
+		}
+		incoming.values().removeIf(entry -> entry.state.get() != State.CREDITING && now - entry.time >= retentionMillis);
+	}
+
+	private void resolveInDoubt(String tx, Entry entry) {
+		int node = partitioning.nodeOf(entry.transfer.getDstId());
+		try {
+			if (nodes.get(node).resolveTransfer(tx)) {
+				commit(tx);
+				LOGGER.info("Transfer {} in doubt committed", tx);
+			} else {
+				abort(tx);
+				LOGGER.info("Transfer {} in doubt aborted", tx);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.warn("Failed to resolve transfer {} with node {}, will retry", tx, node, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
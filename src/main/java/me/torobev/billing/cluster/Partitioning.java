@@ -0,0 +1,55 @@
+package me.torobev.billing.cluster;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Range partitioning of account ids between cluster nodes. Node {@code n} owns ids from
+ * {@code n * partitionSize + 1} to {@code (n + 1) * partitionSize}, so bulk created ranges never cross nodes.
+ */
+public class Partitioning {
+
+	private final int nodes;
+	private final int partitionSize;
+
+	/**
+	 * @param nodes         number of cluster nodes
+	 * @param partitionSize number of account ids owned by each node
+	 */
+	public Partitioning(int nodes, int partitionSize) {
+		checkArgument(nodes > 0);
+		checkArgument(partitionSize > 0);
+		checkArgument((long) nodes * partitionSize <= Integer.MAX_VALUE, "Too many account ids");
+		this.nodes = nodes;
+		this.partitionSize = partitionSize;
+	}
+
+	public int getNodes() {
+		return nodes;
+	}
+
+	public int getPartitionSize() {
+		return partitionSize;
+	}
+
+	/**
+	 * @param id account identifier
+	 * @return index of node owning account, -1 if id is out of all partitions
+	 */
+	public int nodeOf(int id) {
+		if (id <= 0) {
+			return -1;
+		}
+		int node = (id - 1) / partitionSize;
+		return node < nodes ? node : -1;
+	}
+
+	public int firstId(int node) {
+		checkArgument(node >= 0 && node < nodes);
+		return node * partitionSize + 1;
+	}
+
+	public int lastId(int node) {
+		checkArgument(node >= 0 && node < nodes);
+		return (node + 1) * partitionSize;
+	}
+}
@@ -0,0 +1,192 @@
+package me.torobev.billing.feed;
+
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Change feed of {@link InMemoryAccounting} transfers. Single dispatcher thread tails the transfer log and fans
+ * transfers out to bounded ring buffers of {@link Subscription}s. Transfers are never delayed by the feed:
+ * the log is read after the fact and a slow subscriber only gets a gap marker when its ring overflows.
+ * Subscriptions may start from any retained log position, which makes them resumable.
+ */
+public class ChangeFeed implements Runnable, Closeable {
+
+	private static final Logger LOGGER = getLogger(ChangeFeed.class);
+
+	/**
+	 * Subscribe from the current log size, i.e. to future transfers only
+	 */
+	public static final long NOW = -1L;
+
+	private static final int BATCH = 4096;
+	private static final long IDLE_NANOS = MILLISECONDS.toNanos(1L);
+	private static final long EXPIRE_PERIOD_MILLIS = 1000L;
+
+	private final InMemoryAccounting accounting;
+	private final int capacity;
+	private final long idleTimeoutMillis;
+
+	private final Map<Long, Subscription> subscriptions = new ConcurrentHashMap<>();
+	private final Queue<Subscription> added = new ConcurrentLinkedQueue<>();
+	private final AtomicLong ids = new AtomicLong();
+
+	// accessed by dispatcher only
+	private final List<Subscription> active = new ArrayList<>();
+	private long position;
+
+	private Thread dispatcher;
+	private volatile boolean closed;
+
+	/**
+	 * @param accounting        accounting to follow
+	 * @param capacity          ring buffer size of every subscription
+	 * @param idleTimeoutMillis subscription not polled for that long is dropped
+	 */
+	public ChangeFeed(InMemoryAccounting accounting, int capacity, long idleTimeoutMillis) {
+		checkArgument(capacity > 0);
+		checkArgument(idleTimeoutMillis > 0L);
+		this.accounting = accounting;
+		this.capacity = capacity;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public void start() {
+		position = accounting.getLogSize();
+		dispatcher = new Thread(this, "change-feed");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * @param from    log position to start from, {@link #NOW} for future transfers only
+	 * @param account account to follow, 0 for all accounts
+	 * @return new subscription
+	 */
+	public Subscription subscribe(long from, int account) {
+		checkArgument(from >= 0L || from == NOW, "Non-negative log position required.");
+		checkArgument(account >= 0, "Non-negative account id required.");
+		long start = from == NOW ? accounting.getLogSize() : from;
+		Subscription subscription = new Subscription(ids.incrementAndGet(), start, account, capacity);
+		subscriptions.put(subscription.getId(), subscription);
+		added.offer(subscription);
+		return subscription;
+	}
+
+	/**
+	 * @return subscription, {@code null} if it is unknown or expired
+	 */
+	public Subscription getSubscription(long id) {
+		return subscriptions.get(id);
+	}
+
+	/**
+	 * @return {@code false} if subscription is unknown or expired
+	 */
+	public boolean unsubscribe(long id) {
+		return subscriptions.remove(id) != null;
+	}
+
+	@Override
+	public void run() {
+		long expired = currentTimeMillis();
+		try {
+			while (!closed) {
+				boolean idle = true;
+				Subscription subscription;
+				while ((subscription = added.poll()) != null) {
+					if (subscription.getFrom() < position) {
+						// catch up from retained log, overflow becomes gap
+						accounting.readLog(subscription.getFrom(), position, subscription::offer);
+					}
+					active.add(subscription);
+					idle = false;
+				}
+
+				long size = accounting.getLogSize();
+				if (active.isEmpty()) {
+					position = size;
+				} else if (position < size) {
+					long end = Math.min(size, position + BATCH);
+					accounting.readLog(position, end, this::dispatch);
+					position = end;
+					idle = false;
+				}
+				for (Subscription s : active) {
+					// gap marker delayed by full ring is put as soon as subscriber frees space
+					s.scanned(position);
+					if (s.isReadable()) {
+						s.signal();
+					}
+				}
+
+				long now = currentTimeMillis();
+				if (now - expired >= EXPIRE_PERIOD_MILLIS) {
+					expire(now);
+					expired = now;
+				}
+				if (idle) {
+					parkNanos(IDLE_NANOS);
+				}
+			}
+		} catch (RuntimeException e) {
+			LOGGER.error("Change feed stopped at position {}", position, e);
+		}
+	}
+
+	private void dispatch(Transfer transfer) {
+		for (Subscription subscription : active) {
+			subscription.offer(transfer);
+		}
+	}
+
+	private void expire(long now) {
+		Iterator<Subscription> iterator = active.iterator();
+		while (iterator.hasNext()) {
+			Subscription subscription = iterator.next();
+			if (now - subscription.getLastPoll() >= idleTimeoutMillis) {
+				subscriptions.remove(subscription.getId(), subscription);
+				LOGGER.info("Change feed subscription {} expired", subscription.getId());
+			}
+			if (subscriptions.get(subscription.getId()) != subscription) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return number of live subscriptions
+	 */
+	public int getSubscriptions() {
+		return subscriptions.size();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (dispatcher != null) {
+			try {
+				dispatcher.join(MINUTES.toMillis(1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package me.torobev.billing.feed;
+
+import me.torobev.billing.ChangeBatch;
+import me.torobev.billing.Transfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.emptyList;
+
+/**
+ * Change feed subscription. Transfers are put to bounded ring buffer by {@link ChangeFeed} dispatcher only and taken
+ * by polling subscriber. When ring is full, new transfers are skipped and replaced with a single gap marker,
+ * so subscriber never slows down the dispatcher.
+ */
+public class Subscription {
+
+	/**
+	 * Transfers skipped because ring was full
+	 */
+	private static class Gap {
+
+		private final long from;
+		// written by dispatcher before gap is put to ring
+		private long to;
+
+		Gap(long from, long to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private final long id;
+	private final long from;
+	private final int account;
+
+	private final Object[] ring;
+	// index of the next entry to take, written by subscriber
+	private volatile long head;
+	// index of the next entry to put, written by dispatcher
+	private volatile long tail;
+	// log position all matching transfers before which are put to ring, written by dispatcher
+	private volatile long scanned;
+	// accessed by dispatcher only
+	private Gap gap;
+
+	// log position to resume from, guarded by this
+	private long next;
+	private volatile long lastPoll = currentTimeMillis();
+	private final AtomicReference<Runnable> waiter = new AtomicReference<>();
+
+	Subscription(long id, long from, int account, int capacity) {
+		this.id = id;
+		this.from = from;
+		this.account = account;
+		this.ring = new Object[capacity];
+		this.next = from;
+		this.scanned = from;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return log position subscription starts from
+	 */
+	public long getFrom() {
+		return from;
+	}
+
+	/**
+	 * @return account to follow, 0 for all accounts
+	 */
+	public int getAccount() {
+		return account;
+	}
+
+	long getLastPoll() {
+		return lastPoll;
+	}
+
+	/**
+	 * Puts matching transfer to ring, must be called by dispatcher in log order
+	 */
+	void offer(Transfer transfer) {
+		long seq = transfer.getSequence();
+		if (seq < from || account != 0 && transfer.getSrcId() != account && transfer.getDstId() != account) {
+			return;
+		}
+		if (gap != null) {
+			if (!put(gap)) {
+				gap.to = seq + 1;
+				return;
+			}
+			gap = null;
+		}
+		if (!put(transfer)) {
+			gap = new Gap(seq, seq + 1);
+		}
+	}
+
+	/**
+	 * Marks all transfers before given position offered, must be called by dispatcher
+	 */
+	void scanned(long position) {
+		if (gap != null && put(gap)) {
+			gap = null;
+		}
+		// position of skipped transfers is not passed until subscriber gets gap marker
+		scanned = Math.max(from, gap == null ? position : gap.from);
+	}
+
+	private boolean put(Object entry) {
+		long t = tail;
+		if (t - head >= ring.length) {
+			return false;
+		}
+		ring[(int) (t % ring.length)] = entry;
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * @return {@code true} if poll returns transfers or gap right away
+	 */
+	public boolean isReadable() {
+		return head != tail;
+	}
+
+	/**
+	 * Takes transfers in log order up to the next gap marker, or the gap marker itself
+	 *
+	 * @param max maximum number of transfers to take
+	 * @return possibly empty batch
+	 */
+	public synchronized ChangeBatch poll(int max) {
+		lastPoll = currentTimeMillis();
+		// everything scanned so far is in ring already
+		long scannedBefore = scanned;
+		long h = head;
+		long t = tail;
+		List<Transfer> transfers = new ArrayList<>(Math.min(max, 64));
+		while (h < t && transfers.size() < max) {
+			int index = (int) (h % ring.length);
+			Object entry = ring[index];
+			if (entry instanceof Gap) {
+				if (!transfers.isEmpty()) {
+					break;
+				}
+				Gap skipped = (Gap) entry;
+				ring[index] = null;
+				head = h + 1;
+				next = skipped.to;
+				return new ChangeBatch(emptyList(), skipped.from, skipped.to, next);
+			}
+			ring[index] = null;
+			transfers.add((Transfer) entry);
+			h++;
+		}
+		head = h;
+		if (!transfers.isEmpty()) {
+			next = transfers.get(transfers.size() - 1).getSequence() + 1;
+		}
+		if (h == t) {
+			next = Math.max(next, scannedBefore);
+		}
+		return new ChangeBatch(transfers, ChangeBatch.NO_GAP, ChangeBatch.NO_GAP, next);
+	}
+
+	/**
+	 * Calls back once there is something to poll, replacing previous callback
+	 *
+	 * @param wake non-blocking callback, called by dispatcher thread or right away
+	 */
+	public void await(Runnable wake) {
+		waiter.set(wake);
+		if (isReadable()) {
+			signal();
+		}
+	}
+
+	/**
+	 * @return {@code false} if callback is already called or is being called
+	 */
+	public boolean cancel(Runnable wake) {
+		return waiter.compareAndSet(wake, null);
+	}
+
+	void signal() {
+		Runnable wake = waiter.getAndSet(null);
+		if (wake != null) {
+			wake.run();
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package me.torobev.billing.persistence;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.PersistenceStats;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.AccountListener;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Write-behind persistence of {@link InMemoryAccounting} to SQL database, e.g. embedded H2 or SQLite.
+ * Single writer thread tails the transfer log after the fact, like change feed does, and writes account creations,
+ * transfers, balance changes and removals in JDBC batches. Every batch is committed in one transaction together with
+ * log position reached, so transfers are never delayed by the database and nothing is written twice.
+ * When database fails, batch is rolled back and retried with growing backoff, the log keeps whatever is not
+ * persisted yet. After a crash empty accounting is restored from database and writing goes on from there.
+ */
+public class JdbcWriteBehind implements AccountListener, Runnable, Closeable {
+
+	private static final Logger LOGGER = getLogger(JdbcWriteBehind.class);
+
+	private static final int BATCH = 4096;
+	private static final long IDLE_NANOS = MILLISECONDS.toNanos(1L);
+	private static final long MIN_BACKOFF_MILLIS = 10L;
+	private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+	// plain SQL understood by both H2 and SQLite
+	static final String[] SCHEMA = {
+		"CREATE TABLE IF NOT EXISTS accounts (id INTEGER PRIMARY KEY, balance BIGINT NOT NULL,"
+			+ " created_seq BIGINT NOT NULL, removed_seq BIGINT)",
+		"CREATE TABLE IF NOT EXISTS transfers (seq BIGINT PRIMARY KEY, src_id INTEGER NOT NULL,"
+			+ " dst_id INTEGER NOT NULL, amount BIGINT NOT NULL, ts BIGINT NOT NULL)",
+		"CREATE INDEX IF NOT EXISTS transfers_src ON transfers (src_id)",
+		"CREATE INDEX IF NOT EXISTS transfers_dst ON transfers (dst_id)",
+		"CREATE TABLE IF NOT EXISTS log_position (id INTEGER PRIMARY KEY, seq BIGINT NOT NULL)"
+	};
+	static final String SELECT_POSITION = "SELECT seq FROM log_position WHERE id = 1";
+	static final String INSERT_POSITION = "INSERT INTO log_position (id, seq) VALUES (1, ?)";
+	static final String UPDATE_POSITION = "UPDATE log_position SET seq = ? WHERE id = 1";
+	static final String SELECT_ACCOUNTS = "SELECT id, balance, removed_seq FROM accounts";
+	static final String INSERT_ACCOUNT = "INSERT INTO accounts (id, balance, created_seq) VALUES (?, ?, ?)";
+	static final String REMOVE_ACCOUNT = "UPDATE accounts SET removed_seq = ? WHERE id = ?";
+	static final String UPDATE_BALANCE = "UPDATE accounts SET balance = balance + ? WHERE id = ?";
+	static final String INSERT_TRANSFER = "INSERT INTO transfers (seq, src_id, dst_id, amount, ts) VALUES (?, ?, ?, ?, ?)";
+
+	/**
+	 * Account creation or removal at log position
+	 */
+	private static class Event {
+
+		private final boolean created;
+		private final int id;
+		private final long position;
+		// order of events with the same position
+		private final long order;
+
+		Event(boolean created, int id, long position, long order) {
+			this.created = created;
+			this.id = id;
+			this.position = position;
+			this.order = order;
+		}
+	}
+
+	private static final Comparator<Event> EVENT_ORDER =
+		Comparator.<Event>comparingLong(e -> e.position).thenComparingLong(e -> e.order);
+
+	private final InMemoryAccounting accounting;
+	private final String url;
+
+	private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+	private final AtomicLong order = new AtomicLong();
+
+	// accessed by writer only
+	private final PriorityQueue<Event> pending = new PriorityQueue<>(EVENT_ORDER);
+	// accounts present in database
+	private final BitSet known = new BitSet();
+	private Connection connection;
+
+	// database sequence number of log entry 0, accounting log restarts from 0 after restore
+	private long offset;
+	// next log entry to persist
+	private volatile long position;
+
+	private volatile long batches;
+	private volatile long rows;
+	private volatile long retries;
+	private volatile long failures;
+	private volatile String lastError;
+
+	private Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * @param accounting accounting to persist
+	 * @param url        JDBC url of database, its driver must be on classpath
+	 */
+	public JdbcWriteBehind(InMemoryAccounting accounting, String url) {
+		this.accounting = accounting;
+		this.url = url;
+	}
+
+	/**
+	 * Creates schema, then writes snapshot of accounting to empty database or restores empty accounting from
+	 * database, and starts writing behind
+	 *
+	 * @throws SQLException          if database is not available
+	 * @throws IllegalStateException if both database and accounting have accounts of their own
+	 */
+	public void start() throws SQLException {
+		connection = connect();
+		Long persisted = null;
+		try (Statement statement = connection.createStatement();
+				 ResultSet resultSet = statement.executeQuery(SELECT_POSITION)) {
+			if (resultSet.next()) {
+				persisted = resultSet.getLong(1);
+			}
+		}
+		if (persisted == null) {
+			// events are collected before snapshot, so none is lost between snapshot and writing
+			accounting.addListener(this);
+			initialize();
+		} else {
+			restore(persisted);
+			accounting.addListener(this);
+		}
+		writer = new Thread(this, "write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private Connection connect() throws SQLException {
+		Connection connection = DriverManager.getConnection(url);
+		try {
+			connection.setAutoCommit(false);
+			try (Statement statement = connection.createStatement()) {
+				for (String sql : SCHEMA) {
+					statement.execute(sql);
+				}
+			}
+			connection.commit();
+			return connection;
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	private void initialize() throws SQLException {
+		List<Account> accounts = new ArrayList<>();
+		long seq = accounting.snapshot(accounts::add).getSequence();
+		try (PreparedStatement insertAccount = connection.prepareStatement(INSERT_ACCOUNT);
+				 PreparedStatement insertPosition = connection.prepareStatement(INSERT_POSITION)) {
+			for (int i = 0; i < accounts.size(); i++) {
+				Account account = accounts.get(i);
+				insertAccount.setInt(1, account.getId());
+				insertAccount.setLong(2, account.getBalance());
+				insertAccount.setLong(3, seq);
+				insertAccount.addBatch();
+				if ((i + 1) % BATCH == 0) {
+					insertAccount.executeBatch();
+				}
+			}
+			insertAccount.executeBatch();
+			insertPosition.setLong(1, seq);
+			insertPosition.executeUpdate();
+			connection.commit();
+		} catch (SQLException e) {
+			accounting.removeListener(this);
+			connection.rollback();
+			throw e;
+		}
+		for (Account account : accounts) {
+			known.set(account.getId());
+		}
+		// changes at snapshot position or before it are in snapshot already
+		Event event;
+		while ((event = events.poll()) != null) {
+			if (event.position > seq) {
+				pending.add(event);
+			}
+		}
+		position = seq;
+		LOGGER.info("Database initialized with {} accounts at log position {}", accounts.size(), seq);
+	}
+
+	private void restore(long persisted) throws SQLException {
+		checkState(accounting.getLogSize() == 0L && accounting.getStats().getAccounts() == 0L,
+			"Database has accounts already, accounting must be empty to be restored from it");
+		int count = 0;
+		int maxId = 0;
+		try (Statement statement = connection.createStatement();
+				 ResultSet resultSet = statement.executeQuery(SELECT_ACCOUNTS)) {
+			while (resultSet.next()) {
+				int id = resultSet.getInt(1);
+				long balance = resultSet.getLong(2);
+				resultSet.getLong(3);
+				boolean removed = !resultSet.wasNull();
+				known.set(id);
+				maxId = Math.max(maxId, id);
+				if (!removed) {
+					accounting.importAccount(id, balance);
+					count++;
+				}
+			}
+		}
+		accounting.reserveIds(maxId);
+		// imported balances are logged again, they are in database already
+		offset = persisted - accounting.getLogSize();
+		position = accounting.getLogSize();
+		LOGGER.info("Accounting restored with {} accounts at database log position {}", count, persisted);
+	}
+
+	@Override
+	public void created(int id, long position) {
+		events.offer(new Event(true, id, position, order.getAndIncrement()));
+	}
+
+	@Override
+	public void removed(int id, long position) {
+		events.offer(new Event(false, id, position, order.getAndIncrement()));
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!closed) {
+				if (!flush()) {
+					parkNanos(IDLE_NANOS);
+				}
+			}
+			// persist everything logged before close while database is fine
+			while (flush()) {
+				LOGGER.debug("Write-behind flushed up to log position {}", position);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.error("Write-behind stopped at log position {}", position, e);
+		} finally {
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					LOGGER.warn("Failed to close database connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if batch is written
+	 */
+	private boolean flush() {
+		try {
+			if (connection == null) {
+				connection = connect();
+			}
+			boolean written = write();
+			failures = 0L;
+			return written;
+		} catch (SQLException e) {
+			retries++;
+			failures++;
+			lastError = e.toString();
+			if (failures == 1L) {
+				LOGGER.warn("Write-behind batch at log position {} failed, retrying", position, e);
+			}
+			if (connection != null) {
+				try {
+					connection.rollback();
+					connection.close();
+				} catch (SQLException ignored) {
+				}
+				connection = null;
+			}
+			if (!closed) {
+				long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(failures - 1L, 20L));
+				parkNanos(MILLISECONDS.toNanos(backoff));
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Writes log entries from current position and events preceding them in one transaction
+	 *
+	 * @return {@code false} if there was nothing to write
+	 */
+	private boolean write() throws SQLException {
+		Event event;
+		while ((event = events.poll()) != null) {
+			pending.add(event);
+		}
+		long end = Math.min(accounting.getLogSize(), position + BATCH);
+		List<Transfer> transfers = new ArrayList<>();
+		accounting.readLog(position, end, transfers::add);
+
+		List<Event> applied = new ArrayList<>();
+		BitSet created = new BitSet();
+		Map<Integer, Long> deltas = new HashMap<>();
+		int count = 0;
+		for (Transfer transfer : transfers) {
+			// creation with initial balance follows its log entry
+			takeEvents(transfer.getSequence() + 1, applied, created);
+			if (!isKnown(transfer.getSrcId(), created) || !isKnown(transfer.getDstId(), created)) {
+				// account creation is logged before listener is called, it is written with the next batch
+				end = transfer.getSequence();
+				break;
+			}
+			deltas.merge(transfer.getSrcId(), -transfer.getAmount(), Long::sum);
+			deltas.merge(transfer.getDstId(), transfer.getAmount(), Long::sum);
+			count++;
+		}
+		takeEvents(end, applied, created);
+		deltas.remove(0);
+		if (end == position && applied.isEmpty()) {
+			return false;
+		}
+
+		try (PreparedStatement insertAccount = connection.prepareStatement(INSERT_ACCOUNT);
+				 PreparedStatement insertTransfer = connection.prepareStatement(INSERT_TRANSFER);
+				 PreparedStatement updateBalance = connection.prepareStatement(UPDATE_BALANCE);
+				 PreparedStatement removeAccount = connection.prepareStatement(REMOVE_ACCOUNT);
+				 PreparedStatement updatePosition = connection.prepareStatement(UPDATE_POSITION)) {
+			int removals = 0;
+			for (Event change : applied) {
+				if (change.created) {
+					insertAccount.setInt(1, change.id);
+					insertAccount.setLong(2, 0L);
+					insertAccount.setLong(3, change.position + offset);
+					insertAccount.addBatch();
+				} else {
+					removeAccount.setLong(1, change.position + offset);
+					removeAccount.setInt(2, change.id);
+					removeAccount.addBatch();
+					removals++;
+				}
+			}
+			for (Transfer transfer : transfers.subList(0, count)) {
+				insertTransfer.setLong(1, transfer.getSequence() + offset);
+				insertTransfer.setInt(2, transfer.getSrcId());
+				insertTransfer.setInt(3, transfer.getDstId());
+				insertTransfer.setLong(4, transfer.getAmount());
+				insertTransfer.setLong(5, transfer.getTimestamp());
+				insertTransfer.addBatch();
+			}
+			for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+				updateBalance.setLong(1, delta.getValue());
+				updateBalance.setInt(2, delta.getKey());
+				updateBalance.addBatch();
+			}
+			updatePosition.setLong(1, end + offset);
+
+			// accounts go first, so that balances of created accounts are updated
+			if (removals < applied.size()) {
+				insertAccount.executeBatch();
+			}
+			if (count > 0) {
+				insertTransfer.executeBatch();
+				updateBalance.executeBatch();
+			}
+			if (removals > 0) {
+				removeAccount.executeBatch();
+			}
+			updatePosition.executeUpdate();
+			connection.commit();
+		} catch (SQLException e) {
+			pending.addAll(applied);
+			throw e;
+		}
+
+		known.or(created);
+		position = end;
+		batches++;
+		rows += applied.size() + count + deltas.size();
+		return true;
+	}
+
+	/**
+	 * Takes pending events which precede log entry at given position
+	 */
+	private void takeEvents(long position, List<Event> applied, BitSet created) {
+		Event event;
+		while ((event = pending.peek()) != null && event.position <= position) {
+			pending.poll();
+			if (event.created) {
+				if (known.get(event.id) || created.get(event.id)) {
+					continue;
+				}
+				created.set(event.id);
+			}
+			applied.add(event);
+		}
+	}
+
+	private boolean isKnown(int id, BitSet created) {
+		return id == 0 || known.get(id) || created.get(id);
+	}
+
+	/**
+	 * @return database position, lag and error counters
+	 */
+	public PersistenceStats getStats() {
+		long persisted = position;
+		long lag = Math.max(0L, accounting.getLogSize() - persisted);
+		long[] oldest = {0L};
+		if (lag > 0L) {
+			accounting.readLog(persisted, persisted + 1, transfer -> oldest[0] = transfer.getTimestamp());
+		}
+		long lagMillis = oldest[0] > 0L ? Math.max(0L, currentTimeMillis() - oldest[0]) : 0L;
+		return new PersistenceStats(persisted + offset, lag, lagMillis, batches, rows, retries, failures, lastError);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		accounting.removeListener(this);
+		if (writer != null) {
+			try {
+				writer.join(MINUTES.toMillis(1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
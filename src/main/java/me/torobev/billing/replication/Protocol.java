@@ -0,0 +1,41 @@
+package me.torobev.billing.replication;
+
+/**
+ * Replication stream record types. Leader sends snapshot as {@link #ACCOUNT} records terminated by
+ * {@link #SNAPSHOT} record with snapshot log position, then changes in log order interleaved with
+ * {@link #POSITION} records. Standby acknowledges every {@link #POSITION} record by sending the position back.
+ */
+final class Protocol {
+
+	/**
+	 * int id, long balance
+	 */
+	static final byte ACCOUNT = 'A';
+	/**
+	 * long log position of snapshot
+	 */
+	static final byte SNAPSHOT = 'S';
+	/**
+	 * long sequence, long timestamp, int source id, int destination id, long amount
+	 */
+	static final byte TRANSFER = 'T';
+	/**
+	 * the same as {@link #TRANSFER}, income which returns money withdrawn before
+	 */
+	static final byte REFUND = 'F';
+	/**
+	 * int id
+	 */
+	static final byte CREATED = 'C';
+	/**
+	 * int id
+	 */
+	static final byte REMOVED = 'R';
+	/**
+	 * long log position of sent stream, long leader log size
+	 */
+	static final byte POSITION = 'P';
+
+	private Protocol() {
+	}
+}
@@ -0,0 +1,13 @@
+package me.torobev.billing.replication;
+
+import me.torobev.billing.ReplicationStatus;
+
+import java.io.Closeable;
+
+/**
+ * Either side of operation stream replication
+ */
+public interface Replication extends Closeable {
+
+	ReplicationStatus getStatus();
+}
@@ -0,0 +1,174 @@
+package me.torobev.billing.replication;
+
+import me.torobev.billing.ReplicationStatus;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting.TransferResult;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.currentTimeMillis;
+import static me.torobev.billing.replication.Protocol.*;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Standby side of replication. Applies leader snapshot to empty {@link InMemoryAccounting} first, then applies
+ * leader changes in log order from snapshot position. Applied accounting serves reads while leader stays the only
+ * writer. Standby log gets its own sequence numbers and timestamps of applying.
+ */
+public class ReplicationFollower implements Replication, Runnable {
+
+	private static final Logger LOGGER = getLogger(ReplicationFollower.class);
+
+	private final InMemoryAccounting accounting;
+	private final String host;
+	private final int port;
+
+	private Socket socket;
+	private volatile boolean closed;
+	private volatile boolean connected;
+
+	// leader log position applied so far, -1 until snapshot is applied
+	private volatile long position = -1L;
+	private volatile long leaderPosition;
+	// leader timestamp of the last applied transfer
+	private volatile long appliedTimestamp;
+	private final LongAdder diverged = new LongAdder();
+
+	/**
+	 * @param accounting empty accounting to apply leader changes to
+	 * @param host       leader host
+	 * @param port       leader replication port
+	 */
+	public ReplicationFollower(InMemoryAccounting accounting, String host, int port) {
+		this.accounting = accounting;
+		this.host = host;
+		this.port = port;
+	}
+
+	public void start() throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		connected = true;
+		Thread thread = new Thread(this, "replication-follower");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			int maxId = 0;
+			while (true) {
+				byte type = in.readByte();
+				switch (type) {
+					case ACCOUNT: {
+						int id = in.readInt();
+						accounting.importAccount(id, in.readLong());
+						maxId = Math.max(maxId, id);
+						break;
+					}
+					case SNAPSHOT:
+						accounting.reserveIds(maxId);
+						leaderPosition = position = in.readLong();
+						LOGGER.info("Standby caught up with leader snapshot at position {}", position);
+						break;
+					case CREATED: {
+						int id = in.readInt();
+						// creation may be in snapshot already
+						accounting.importAccount(id, 0L);
+						accounting.reserveIds(id);
+						break;
+					}
+					case REMOVED:
+						accounting.removeAccount(in.readInt());
+						break;
+					case TRANSFER:
+					case REFUND: {
+						long seq = in.readLong();
+						long timestamp = in.readLong();
+						apply(new Transfer(in.readInt(), in.readInt(), in.readLong(), seq, timestamp, type == REFUND));
+						appliedTimestamp = timestamp;
+						position = seq + 1;
+						break;
+					}
+					case POSITION:
+						position = in.readLong();
+						leaderPosition = in.readLong();
+						out.writeLong(position);
+						out.flush();
+						break;
+					default:
+						throw new IOException("Unknown replication record " + type);
+				}
+			}
+		} catch (EOFException e) {
+			LOGGER.warn("Leader closed replication stream at position {}", position);
+		} catch (IOException e) {
+			if (!closed) {
+				LOGGER.error("Replication stopped at position {}", position, e);
+			}
+		} finally {
+			connected = false;
+		}
+	}
+
+	private void apply(Transfer transfer) {
+		if (transfer.isRefund()) {
+			// taken back from outflow like on leader
+			if (!accounting.refund(transfer.getDstId(), transfer.getAmount())) {
+				diverged.increment();
+				LOGGER.error("Standby diverged from leader, {} failed", transfer);
+			}
+			return;
+		}
+		if (transfer.getSrcId() == 0) {
+			// external income or initial balance of new account
+			if (!accounting.increaseAccountBalance(transfer.getDstId(), transfer.getAmount())) {
+				accounting.importAccount(transfer.getDstId(), transfer.getAmount());
+				accounting.reserveIds(transfer.getDstId());
+			}
+			return;
+		}
+		TransferResult result = transfer.getDstId() == 0
+			? accounting.withdraw(transfer.getSrcId(), transfer.getAmount())
+			: accounting.execute(transfer);
+		if (result != TransferResult.OK) {
+			diverged.increment();
+			LOGGER.error("Standby diverged from leader, {} failed with {}", transfer, result);
+		}
+	}
+
+	/**
+	 * @return number of leader changes which could not be applied
+	 */
+	public long getDiverged() {
+		return diverged.sum();
+	}
+
+	@Override
+	public ReplicationStatus getStatus() {
+		long applied = position;
+		long lag = Math.max(0L, leaderPosition - applied);
+		long lagMillis = lag > 0L && appliedTimestamp > 0L ? Math.max(0L, currentTimeMillis() - appliedTimestamp) : 0L;
+		return new ReplicationStatus(ReplicationStatus.STANDBY, connected ? 1 : 0, applied, applied, lag, lagMillis);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (socket != null) {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package me.torobev.billing.replication;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.ReplicationStatus;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.AccountListener;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static me.torobev.billing.replication.Protocol.*;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Leader side of replication. Every connected standby gets a consistent snapshot of balances followed by the
+ * transfer log tail starting at snapshot position, with account creations and removals merged in log order.
+ * Snapshot is copied to memory at the cut and sent after the cut is released, so slow standby does not hold the cut
+ * other readers of consistent state wait for.
+ * Transfer log itself is the replication buffer, so slow standby only lags behind and never slows down transfers.
+ * <p>
+ * Replication is asynchronous, {@link #awaitAcknowledged} lets writers wait for standby to make it semi-synchronous.
+ */
+public class ReplicationLeader implements Replication, AccountListener {
+
+	private static final Logger LOGGER = getLogger(ReplicationLeader.class);
+
+	private static final int BATCH = 4096;
+	private static final long IDLE_NANOS = MICROSECONDS.toNanos(100L);
+	private static final long HEARTBEAT_MILLIS = 100L;
+
+	private final InMemoryAccounting accounting;
+	private final int port;
+
+	private final List<Session> sessions = new CopyOnWriteArrayList<>();
+	private final Object ackLock = new Object();
+	// the most advanced log position acknowledged by any standby, guarded by ackLock
+	private volatile long acknowledged;
+
+	private ServerSocket serverSocket;
+	private volatile boolean closed;
+
+	/**
+	 * @param accounting replicated accounting
+	 * @param port       port to accept standby connections on, 0 for any free port
+	 */
+	public ReplicationLeader(InMemoryAccounting accounting, int port) {
+		this.accounting = accounting;
+		this.port = port;
+	}
+
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(port);
+		accounting.addListener(this);
+		Thread acceptor = new Thread(this::accept, "replication-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return port standby connects to
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket socket = serverSocket.accept();
+				LOGGER.info("Standby {} connected", socket.getRemoteSocketAddress());
+				new Session(socket).start();
+			} catch (IOException e) {
+				if (!closed) {
+					LOGGER.error("Failed to accept standby connection", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void created(int id, long position) {
+		for (Session session : sessions) {
+			session.offer(CREATED, id, position);
+		}
+	}
+
+	@Override
+	public void removed(int id, long position) {
+		for (Session session : sessions) {
+			session.offer(REMOVED, id, position);
+		}
+	}
+
+	/**
+	 * Waits until any standby applies log entries before given position
+	 *
+	 * @param position      log position to wait for
+	 * @param timeoutMillis maximum time to wait
+	 * @return {@code false} if no standby acknowledged position in time or there is no standby
+	 */
+	public boolean awaitAcknowledged(long position, long timeoutMillis) {
+		if (acknowledged >= position) {
+			return true;
+		}
+		if (sessions.isEmpty()) {
+			return false;
+		}
+		long deadline = currentTimeMillis() + timeoutMillis;
+		synchronized (ackLock) {
+			while (acknowledged < position) {
+				long remaining = deadline - currentTimeMillis();
+				if (remaining <= 0L) {
+					return false;
+				}
+				try {
+					ackLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void acknowledge(long position) {
+		synchronized (ackLock) {
+			if (position > acknowledged) {
+				acknowledged = position;
+				ackLock.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public ReplicationStatus getStatus() {
+		long size = accounting.getLogSize();
+		long ack = acknowledged;
+		return new ReplicationStatus(ReplicationStatus.LEADER, sessions.size(), size, ack, Math.max(0L, size - ack), 0L);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		accounting.removeListener(this);
+		if (serverSocket != null) {
+			serverSocket.close();
+		}
+		for (Session session : sessions) {
+			session.socket.close();
+		}
+	}
+
+	/**
+	 * Account creation or removal waiting to be sent in log order
+	 */
+	private static class Event {
+
+		private final byte type;
+		private final int id;
+		private final long position;
+		// order of events with the same position
+		private final long order;
+
+		Event(byte type, int id, long position, long order) {
+			this.type = type;
+			this.id = id;
+			this.position = position;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * Balances of snapshot copied at the cut
+	 */
+	private static class Balances {
+
+		private int[] ids = new int[1024];
+		private long[] balances = new long[1024];
+		private int size;
+
+		void add(Account account) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, 2 * size);
+				balances = Arrays.copyOf(balances, 2 * size);
+			}
+			ids[size] = account.getId();
+			balances[size] = account.getBalance();
+			size++;
+		}
+	}
+
+	private static final Comparator<Event> EVENT_ORDER =
+		Comparator.<Event>comparingLong(e -> e.position).thenComparingLong(e -> e.order);
+
+	/**
+	 * Replication stream to one standby
+	 */
+	private class Session implements Runnable {
+
+		private final Socket socket;
+		private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+		private final AtomicLong order = new AtomicLong();
+		// accessed by sender thread only
+		private final PriorityQueue<Event> pending = new PriorityQueue<>(EVENT_ORDER);
+		private DataOutputStream out;
+
+		Session(Socket socket) {
+			this.socket = socket;
+		}
+
+		void start() {
+			Thread sender = new Thread(this, "replication-sender-" + socket.getPort());
+			sender.setDaemon(true);
+			sender.start();
+		}
+
+		void offer(byte type, int id, long position) {
+			// called under account borrow, so events of the same account are ordered
+			events.offer(new Event(type, id, position, order.getAndIncrement()));
+		}
+
+		@Override
+		public void run() {
+			try {
+				socket.setTcpNoDelay(true);
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+				// events are collected before snapshot, so none is lost between snapshot and stream
+				sessions.add(this);
+
+				long position = writeSnapshot();
+				// changes at snapshot position or before it may be in snapshot already, standby applies them idempotently
+				writeEvents(position);
+
+				Thread reader = new Thread(this::readAcknowledgements, "replication-ack-" + socket.getPort());
+				reader.setDaemon(true);
+				reader.start();
+
+				long heartbeat = 0L;
+				while (!closed) {
+					long size = accounting.getLogSize();
+					boolean idle = position == size;
+					if (!idle) {
+						long end = Math.min(size, position + BATCH);
+						accounting.readLog(position, end, this::writeTransfer);
+						position = end;
+					}
+					boolean written = writeEvents(position);
+					long now = currentTimeMillis();
+					if (!idle || written || now - heartbeat >= HEARTBEAT_MILLIS) {
+						out.writeByte(POSITION);
+						out.writeLong(position);
+						out.writeLong(accounting.getLogSize());
+						out.flush();
+						heartbeat = now;
+					}
+					if (idle) {
+						parkNanos(IDLE_NANOS);
+					}
+				}
+			} catch (IOException | UncheckedIOException e) {
+				if (!closed) {
+					LOGGER.warn("Replication to standby {} stopped", socket.getRemoteSocketAddress(), e);
+				}
+			} finally {
+				sessions.remove(this);
+				try {
+					socket.close();
+				} catch (IOException e) {
+					LOGGER.warn("Failed to close standby connection", e);
+				}
+			}
+		}
+
+		private void readAcknowledgements() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while (true) {
+					acknowledge(in.readLong());
+				}
+			} catch (SocketException e) {
+				// closed by sender
+			} catch (IOException e) {
+				LOGGER.warn("Standby {} disconnected", socket.getRemoteSocketAddress());
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		/**
+		 * Sends balances copied at consistent cut
+		 *
+		 * @return snapshot position
+		 */
+		private long writeSnapshot() throws IOException {
+			Balances balances = new Balances();
+			long position = accounting.snapshot(balances::add).getSequence();
+			for (int i = 0; i < balances.size; i++) {
+				out.writeByte(ACCOUNT);
+				out.writeInt(balances.ids[i]);
+				out.writeLong(balances.balances[i]);
+			}
+			out.writeByte(SNAPSHOT);
+			out.writeLong(position);
+			return position;
+		}
+
+		private void writeTransfer(Transfer transfer) {
+			try {
+				writeEvents(transfer.getSequence());
+				out.writeByte(transfer.isRefund() ? REFUND : TRANSFER);
+				out.writeLong(transfer.getSequence());
+				out.writeLong(transfer.getTimestamp());
+				out.writeInt(transfer.getSrcId());
+				out.writeInt(transfer.getDstId());
+				out.writeLong(transfer.getAmount());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/**
+		 * Sends events which precede log entry at given position
+		 *
+		 * @return {@code true} if any event is sent
+		 */
+		private boolean writeEvents(long position) throws IOException {
+			Event event;
+			while ((event = events.poll()) != null) {
+				pending.add(event);
+			}
+			boolean written = false;
+			while ((event = pending.peek()) != null && event.position <= position) {
+				pending.poll();
+				out.writeByte(event.type);
+				out.writeInt(event.id);
+				written = true;
+			}
+			return written;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package me.torobev.billing.replication;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.BalanceSnapshot;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.accounting.InMemoryAccounting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Semi-synchronous replication: successful modification returns only after standby acknowledges leader log
+ * position reached by it. When no standby acknowledges in time, replication degrades to asynchronous
+ * for this modification, such modifications are counted.
+ * Creations of empty accounts and removals have no log entry of their own and are covered by the next position
+ * acknowledged by standby.
+ */
+public class SemiSyncAccounting implements Accounting {
+
+	private final InMemoryAccounting accounting;
+	private final ReplicationLeader leader;
+	private final long timeoutMillis;
+
+	private final LongAdder unacknowledged = new LongAdder();
+
+	/**
+	 * @param accounting    replicated accounting
+	 * @param leader        replication leader of accounting
+	 * @param timeoutMillis maximum time to wait for standby acknowledgement
+	 */
+	public SemiSyncAccounting(InMemoryAccounting accounting, ReplicationLeader leader, long timeoutMillis) {
+		this.accounting = accounting;
+		this.leader = leader;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	private void awaitStandby() {
+		if (!leader.awaitAcknowledged(accounting.getLogSize(), timeoutMillis)) {
+			unacknowledged.increment();
+		}
+	}
+
+	/**
+	 * @return number of modifications returned without standby acknowledgement
+	 */
+	public long getUnacknowledged() {
+		return unacknowledged.sum();
+	}
+
+	@Override
+	public Account createAccount() {
+		Account account = accounting.createAccount();
+		awaitStandby();
+		return account;
+	}
+
+	@Override
+	public AccountRange createAccounts(int count, long initialBalance) {
+		AccountRange range = accounting.createAccounts(count, initialBalance);
+		awaitStandby();
+		return range;
+	}
+
+	@Override
+	public boolean removeAccount(int id) {
+		boolean removed = accounting.removeAccount(id);
+		if (removed) {
+			awaitStandby();
+		}
+		return removed;
+	}
+
+	@Override
+	public Account getAccount(int id) {
+		return accounting.getAccount(id);
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount) {
+		boolean increased = accounting.increaseAccountBalance(id, amount);
+		if (increased) {
+			awaitStandby();
+		}
+		return increased;
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount, String idempotencyKey) {
+		boolean increased = accounting.increaseAccountBalance(id, amount, idempotencyKey);
+		if (increased) {
+			awaitStandby();
+		}
+		return increased;
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer) {
+		TransferResult result = accounting.execute(transfer);
+		if (result == TransferResult.OK) {
+			awaitStandby();
+		}
+		return result;
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer, String idempotencyKey) {
+		TransferResult result = accounting.execute(transfer, idempotencyKey);
+		if (result == TransferResult.OK) {
+			awaitStandby();
+		}
+		return result;
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id) {
+		return accounting.getAccountLog(id);
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id, long from, long to, int limit) {
+		return accounting.getAccountLog(id, from, to, limit);
+	}
+
+	@Override
+	public Account getAccountAsOf(int id, long timestamp) {
+		return accounting.getAccountAsOf(id, timestamp);
+	}
+
+	@Override
+	public Account getAccountAtSequence(int id, long sequence) {
+		return accounting.getAccountAtSequence(id, sequence);
+	}
+
+	@Override
+	public List<Account> listAccounts(int afterId, int limit) {
+		return accounting.listAccounts(afterId, limit);
+	}
+
+	@Override
+	public List<Account> getAccounts(int[] ids) {
+		return accounting.getAccounts(ids);
+	}
+
+	@Override
+	public List<Account> getTopAccounts(int limit) {
+		return accounting.getTopAccounts(limit);
+	}
+
+	@Override
+	public List<Account> getAccountsByBalance(long from, long to, int limit) {
+		return accounting.getAccountsByBalance(from, to, limit);
+	}
+
+	@Override
+	public BalanceSnapshot exportBalances(OutputStream out) throws IOException {
+		return accounting.exportBalances(out);
+	}
+
+	@Override
+	public AccountingStats getStats() {
+		return accounting.getStats();
+	}
+
+	@Override
+	public AuditReport audit() {
+		return accounting.audit();
+	}
+}
@@ -0,0 +1,308 @@
+package me.torobev.billing.rest;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.BalanceSnapshot;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.accounting.IdempotencyKeyReusedException;
+import me.torobev.billing.web.Handler;
+import me.torobev.billing.web.Handler.Result;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static javax.servlet.http.HttpServletResponse.*;
+
+/**
+ * {@link Accounting} client sharing a few cleartext HTTP/2 connections between many concurrent callers. Transfers
+ * and balance increases of every caller are sent as streams of their own, which are multiplexed over the same
+ * connections, so callers never wait for a free connection and every caller gets result of its own request.
+ * Connections are opened on demand, up to given number.
+ * <p>
+ * Other calls are rare and go through {@link RestClient}, which keeps HTTP/1.1 connections and caches accounts.
+ */
+public class MultiplexingClient implements Accounting, Closeable {
+
+	/**
+	 * Maximum number of calls waiting for a stream, queue of this size is allocated at once
+	 */
+	private static final int MAX_QUEUED = 1 << 14;
+
+	private static final TypeReference<Result<String>> TEXT_RESULT =
+		new TypeReference<Result<String>>() {
+		};
+
+	/**
+	 * Response of a stream
+	 */
+	private static class Reply {
+
+		private final int statusCode;
+		private final byte[] content;
+
+		Reply(int statusCode, byte[] content) {
+			this.statusCode = statusCode;
+			this.content = content;
+		}
+	}
+
+	private final URI base;
+	private final HttpClient httpClient;
+	private final RestClient client;
+	private final int connections;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	/**
+	 * @param location    server url
+	 * @param connections maximum number of connections to server
+	 */
+	public MultiplexingClient(String location, int connections) {
+		checkArgument(!isNullOrEmpty(location));
+		checkArgument(connections > 0, "Positive number of connections required.");
+		this.base = URI.create(location);
+		this.connections = connections;
+		QueuedThreadPool executor = new QueuedThreadPool();
+		executor.setName("multiplexing-client");
+		executor.setDaemon(true);
+		httpClient = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), null);
+		httpClient.setExecutor(executor);
+		httpClient.setMaxConnectionsPerDestination(connections);
+		// streams beyond concurrency limit of connections wait for their turn instead of failing
+		httpClient.setMaxRequestsQueuedPerDestination(MAX_QUEUED);
+		try {
+			httpClient.start();
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to start HTTP/2 client", e);
+		}
+		this.client = new RestClient(location, connections);
+	}
+
+	/**
+	 * @return the highest number of calls in flight at once
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	/**
+	 * @return maximum number of connections to server
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer) {
+		return execute(transfer, null);
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer, String idempotencyKey) {
+		Request request = modification("/transfer", idempotencyKey)
+			.param("src", Integer.toString(transfer.getSrcId()))
+			.param("dst", Integer.toString(transfer.getDstId()))
+			.param("amount", Long.toString(transfer.getAmount()));
+		Reply reply = await(send(request));
+		Result<String> r = read(reply);
+		switch (reply.statusCode) {
+			case SC_OK:
+			case SC_NOT_ACCEPTABLE:
+				return TransferResult.valueOf(r.message);
+			case SC_CONFLICT:
+				throw new IdempotencyKeyReusedException(r.result);
+			default:
+				throw new IllegalStateException("Unexpected status code " + reply.statusCode + ": " + r.message);
+		}
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount) {
+		return increaseAccountBalance(id, amount, null);
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount, String idempotencyKey) {
+		Request request = modification("/accounts/" + id + "/increase", idempotencyKey)
+			.param("amount", Long.toString(amount));
+		Reply reply = await(send(request));
+		switch (reply.statusCode) {
+			case SC_NOT_FOUND:
+				return false;
+			case SC_OK:
+				return true;
+			case SC_CONFLICT:
+				throw new IdempotencyKeyReusedException(read(reply).result);
+			default:
+				throw new IllegalStateException("Unexpected status code " + reply.statusCode + ": " + read(reply).message);
+		}
+	}
+
+	private Request modification(String path, String idempotencyKey) {
+		Request request = httpClient.newRequest(base.resolve(path))
+			.method(HttpMethod.POST);
+		if (idempotencyKey != null) {
+			request.header(Handler.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+		}
+		return request;
+	}
+
+	/**
+	 * Sends request as a stream of shared connection
+	 *
+	 * @return response completed by client thread
+	 */
+	private CompletableFuture<Reply> send(Request request) {
+		CompletableFuture<Reply> reply = new CompletableFuture<>();
+		int calls = inFlight.incrementAndGet();
+		maxInFlight.accumulateAndGet(calls, Math::max);
+		request.send(new BufferingResponseListener() {
+			@Override
+			public void onComplete(org.eclipse.jetty.client.api.Result result) {
+				inFlight.decrementAndGet();
+				if (result.isFailed()) {
+					reply.completeExceptionally(result.getFailure());
+				} else {
+					reply.complete(new Reply(result.getResponse().getStatus(), getContent()));
+				}
+			}
+		});
+		return reply;
+	}
+
+	private static Reply await(CompletableFuture<Reply> reply) {
+		try {
+			return reply.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw new UncheckedIOException((IOException) cause);
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private Result<String> read(Reply reply) {
+		try {
+			return mapper.readValue(reply.content, TEXT_RESULT);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public Account createAccount() {
+		return client.createAccount();
+	}
+
+	@Override
+	public AccountRange createAccounts(int count, long initialBalance) {
+		return client.createAccounts(count, initialBalance);
+	}
+
+	@Override
+	public boolean removeAccount(int id) {
+		return client.removeAccount(id);
+	}
+
+	@Override
+	public Account getAccount(int id) {
+		return client.getAccount(id);
+	}
+
+	@Override
+	public List<Account> listAccounts(int afterId, int limit) {
+		return client.listAccounts(afterId, limit);
+	}
+
+	@Override
+	public List<Account> getAccounts(int[] ids) {
+		return client.getAccounts(ids);
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id) {
+		return client.getAccountLog(id);
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id, long from, long to, int limit) {
+		return client.getAccountLog(id, from, to, limit);
+	}
+
+	@Override
+	public Account getAccountAsOf(int id, long timestamp) {
+		return client.getAccountAsOf(id, timestamp);
+	}
+
+	@Override
+	public Account getAccountAtSequence(int id, long sequence) {
+		return client.getAccountAtSequence(id, sequence);
+	}
+
+	@Override
+	public List<Account> getTopAccounts(int limit) {
+		return client.getTopAccounts(limit);
+	}
+
+	@Override
+	public List<Account> getAccountsByBalance(long from, long to, int limit) {
+		return client.getAccountsByBalance(from, to, limit);
+	}
+
+	@Override
+	public BalanceSnapshot exportBalances(OutputStream out) throws IOException {
+		return client.exportBalances(out);
+	}
+
+	@Override
+	public AccountingStats getStats() {
+		return client.getStats();
+	}
+
+	@Override
+	public AuditReport audit() {
+		return client.audit();
+	}
+
+	/**
+	 * Fails calls in flight
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			httpClient.stop();
+		} catch (Exception e) {
+			throw new IOException("Failed to stop HTTP/2 client", e);
+		} finally {
+			client.close();
+		}
+	}
+}
@@ -3,29 +3,60 @@ package me.torobev.billing.rest;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import me.torobev.billing.Account;
+import me.torobev.billing.AccountBatch;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.BalanceSnapshot;
+import me.torobev.billing.BatchReport;
+import me.torobev.billing.ChangeBatch;
+import me.torobev.billing.PhaseTiming;
+import me.torobev.billing.ReplicationStatus;
+import me.torobev.billing.ScheduleStats;
+import me.torobev.billing.ScheduledTransfer;
 import me.torobev.billing.Transfer;
 import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.accounting.IdempotencyKeyReusedException;
+import me.torobev.billing.web.Handler;
 import me.torobev.billing.web.Handler.Result;
+import org.apache.http.Header;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.joining;
 import static javax.servlet.http.HttpServletResponse.*;
+import static org.apache.http.entity.ContentType.APPLICATION_FORM_URLENCODED;
 
 /**
  * {@link Accounting} REST API client
@@ -34,33 +65,158 @@ public class RestClient implements Accounting, Closeable {
 
 	private final URI base;
 	private final CloseableHttpClient httpClient;
-
+	private volatile boolean replicaReads;
 
 	private final ObjectMapper mapper = new ObjectMapper();
 
+	private static final int ACCOUNT_CACHE_SIZE = 1024;
+
+	/**
+	 * Account read before with its entity tag
+	 */
+	private static class CachedAccount {
+
+		private final String etag;
+		private final Account account;
+
+		CachedAccount(String etag, Account account) {
+			this.etag = etag;
+			this.account = account;
+		}
+	}
+
+	// recently read accounts revalidated with If-None-Match, guarded by itself
+	private final Map<Integer, CachedAccount> accountCache =
+		new LinkedHashMap<Integer, CachedAccount>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, CachedAccount> eldest) {
+				return size() > ACCOUNT_CACHE_SIZE;
+			}
+		};
+
 	private static final TypeReference<Result<Account>> ACCOUNT_RESULT =
 		new TypeReference<Result<Account>>() {
 		};
 
+	private static final TypeReference<Result<AccountBatch>> ACCOUNT_BATCH_RESULT =
+		new TypeReference<Result<AccountBatch>>() {
+		};
+
+	private static final TypeReference<Result<List<Account>>> ACCOUNTS_RESULT =
+		new TypeReference<Result<List<Account>>>() {
+		};
+
+	private static final TypeReference<Result<AccountRange>> ACCOUNT_RANGE_RESULT =
+		new TypeReference<Result<AccountRange>>() {
+		};
+
 	private static final TypeReference<Result<List<Transfer>>> ACCOUNT_LOG_RESULT =
 		new TypeReference<Result<List<Transfer>>>() {
 		};
 
+	private static final TypeReference<Result<AccountingStats>> STATS_RESULT =
+		new TypeReference<Result<AccountingStats>>() {
+		};
+
+	private static final TypeReference<Result<Map<String, Map<String, PhaseTiming>>>> TIMINGS_RESULT =
+		new TypeReference<Result<Map<String, Map<String, PhaseTiming>>>>() {
+		};
+
+	private static final TypeReference<Result<ReplicationStatus>> REPLICATION_RESULT =
+		new TypeReference<Result<ReplicationStatus>>() {
+		};
+
+	private static final TypeReference<Result<AuditReport>> AUDIT_RESULT =
+		new TypeReference<Result<AuditReport>>() {
+		};
+
 	private static final TypeReference<Result<String>> TEXT_RESULT =
 		new TypeReference<Result<String>>() {
 		};
 
+	private static final TypeReference<Result<TransferResult>> TRANSFER_RESULT =
+		new TypeReference<Result<TransferResult>>() {
+		};
+
+	private static final TypeReference<Result<List<TransferResult>>> TRANSFER_RESULTS =
+		new TypeReference<Result<List<TransferResult>>>() {
+		};
+
+	private static final TypeReference<Result<Long>> LONG_RESULT =
+		new TypeReference<Result<Long>>() {
+		};
+
+	private static final TypeReference<Result<ScheduledTransfer>> SCHEDULED_TRANSFER_RESULT =
+		new TypeReference<Result<ScheduledTransfer>>() {
+		};
+
+	private static final TypeReference<Result<ScheduleStats>> SCHEDULE_STATS_RESULT =
+		new TypeReference<Result<ScheduleStats>>() {
+		};
+
+	private static final TypeReference<Result<ChangeBatch>> CHANGE_BATCH_RESULT =
+		new TypeReference<Result<ChangeBatch>>() {
+		};
+
+	private static final TypeReference<Result<BatchReport>> BATCH_REPORT_RESULT =
+		new TypeReference<Result<BatchReport>>() {
+		};
+
+	private static final TypeReference<Result<Boolean>> BOOLEAN_RESULT =
+		new TypeReference<Result<Boolean>>() {
+		};
+
 	public RestClient(String location) {
 		checkArgument(!isNullOrEmpty(location));
 		base = URI.create(location);
 		httpClient = HttpClients.createDefault();
 	}
 
+	/**
+	 * @param location       server url
+	 * @param maxConnections number of persistent connections kept to server, i.e. maximum number of requests
+	 *                       in flight
+	 */
+	public RestClient(String location, int maxConnections) {
+		checkArgument(!isNullOrEmpty(location));
+		checkArgument(maxConnections > 0, "Positive number of connections required.");
+		base = URI.create(location);
+		PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+		connections.setMaxTotal(maxConnections);
+		connections.setDefaultMaxPerRoute(maxConnections);
+		httpClient = HttpClients.custom()
+			.setConnectionManager(connections)
+			.build();
+	}
+
 	@Override
 	public void close() throws IOException {
 		httpClient.close();
 	}
 
+	/**
+	 * @param replicaReads whether to read accounts and their logs from server read replica, accepting staleness
+	 */
+	public void setReplicaReads(boolean replicaReads) {
+		this.replicaReads = replicaReads;
+	}
+
+	private HttpGet accountRead(URI uri) {
+		HttpGet get = new HttpGet(uri);
+		if (replicaReads) {
+			get.addHeader(Handler.READ_REPLICA_HEADER, "true");
+		}
+		return get;
+	}
+
+	private static HttpPost modification(URI uri, String idempotencyKey) {
+		HttpPost post = new HttpPost(uri);
+		if (idempotencyKey != null) {
+			post.addHeader(Handler.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+		}
+		return post;
+	}
+
 	@Override
 	public Account createAccount() {
 		URI uri;
@@ -83,6 +239,30 @@ public class RestClient implements Accounting, Closeable {
 		}
 	}
 
+	@Override
+	public AccountRange createAccounts(int count, long initialBalance) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/accounts/bulk")
+				.setParameter("count", Integer.toString(count))
+				.setParameter("balance", Long.toString(initialBalance))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpPost(uri))) {
+			int code = response.getStatusLine().getStatusCode();
+			checkState(code == SC_CREATED, "Unexpected status code %d", code);
+			Result<AccountRange> r = mapper.readValue(response.getEntity().getContent(), ACCOUNT_RANGE_RESULT);
+			return r.result;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	@Override
 	public boolean removeAccount(int id) {
 		URI uri;
@@ -122,6 +302,67 @@ public class RestClient implements Accounting, Closeable {
 			throw new IllegalStateException(e);
 		}
 
+		HttpGet get = accountRead(uri);
+		CachedAccount cached;
+		synchronized (accountCache) {
+			cached = replicaReads ? null : accountCache.get(id);
+		}
+		if (cached != null) {
+			// server answers 304 without a body while account version is the same
+			get.addHeader("If-None-Match", cached.etag);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(get)) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_NOT_MODIFIED:
+					checkState(cached != null, "Unexpected status code " + statusCode);
+					return cached.account;
+				case SC_NOT_FOUND:
+					synchronized (accountCache) {
+						accountCache.remove(id);
+					}
+					return null;
+				case SC_OK:
+					Result<Account> r = mapper.readValue(response.getEntity().getContent(), ACCOUNT_RESULT);
+					Header etag = response.getFirstHeader("ETag");
+					if (etag != null && r.result != null) {
+						synchronized (accountCache) {
+							accountCache.put(id, new CachedAccount(etag.getValue(), r.result));
+						}
+					}
+					return r.result;
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public Account getAccountAsOf(int id, long timestamp) {
+		return getAccountBalance(id, "asOf", timestamp);
+	}
+
+	@Override
+	public Account getAccountAtSequence(int id, long sequence) {
+		return getAccountBalance(id, "seq", sequence);
+	}
+
+	private Account getAccountBalance(int id, String parameter, long value) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/accounts/" + id + "/balance")
+				.addParameter(parameter, Long.toString(value))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
 		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
 			int statusCode = response.getStatusLine().getStatusCode();
 			switch (statusCode) {
@@ -139,8 +380,97 @@ public class RestClient implements Accounting, Closeable {
 		}
 	}
 
+	/**
+	 * Lists accounts with requests of up to {@link Handler#MAX_ACCOUNTS} accounts each
+	 */
+	@Override
+	public List<Account> listAccounts(int afterId, int limit) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
+		List<Account> accounts = new ArrayList<>();
+		int after = afterId;
+		while (accounts.size() < limit) {
+			int pageSize = Math.min(limit - accounts.size(), Handler.MAX_ACCOUNTS);
+			List<Account> page = listAccountsPage(after, pageSize);
+			accounts.addAll(page);
+			if (page.size() < pageSize) {
+				break;
+			}
+			after = page.get(page.size() - 1).getId();
+		}
+		return accounts;
+	}
+
+	private List<Account> listAccountsPage(int afterId, int limit) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/accounts")
+				.addParameter("after", Integer.toString(afterId))
+				.addParameter("limit", Integer.toString(limit))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+		return getAccountBatch(new HttpGet(uri));
+	}
+
+	/**
+	 * Reads accounts with requests of up to {@link Handler#MAX_ACCOUNTS} ids each
+	 */
+	@Override
+	public List<Account> getAccounts(int[] ids) {
+		int[] sorted = Arrays.stream(ids).sorted().distinct().toArray();
+		List<Account> accounts = new ArrayList<>(sorted.length);
+		for (int from = 0; from < sorted.length; from += Handler.MAX_ACCOUNTS) {
+			int to = Math.min(sorted.length, from + Handler.MAX_ACCOUNTS);
+			accounts.addAll(getAccountsBatch(Arrays.copyOfRange(sorted, from, to)));
+		}
+		return accounts;
+	}
+
+	private List<Account> getAccountsBatch(int[] ids) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/accounts/batch")
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+		// ids are sent as form body, they may not fit in url
+		HttpPost post = new HttpPost(uri);
+		post.setEntity(new StringEntity(Arrays.stream(ids).mapToObj(Integer::toString).collect(joining(",", "ids=", "")),
+			APPLICATION_FORM_URLENCODED));
+		return getAccountBatch(post);
+	}
+
+	private List<Account> getAccountBatch(HttpUriRequest request) {
+		try (CloseableHttpResponse response = httpClient.execute(request)) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_OK:
+					Result<AccountBatch> r = mapper.readValue(response.getEntity().getContent(), ACCOUNT_BATCH_RESULT);
+					return r.result.getAccounts();
+				case SC_NOT_ACCEPTABLE:
+					throw new IllegalArgumentException("Invalid request " + request.getURI());
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	@Override
 	public boolean increaseAccountBalance(int id, long amount) {
+		return increaseAccountBalance(id, amount, null);
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount, String idempotencyKey) {
 		URI uri;
 
 		try {
@@ -152,13 +482,16 @@ public class RestClient implements Accounting, Closeable {
 			throw new IllegalStateException(e);
 		}
 
-		try (CloseableHttpResponse response = httpClient.execute(new HttpPost(uri))) {
+		try (CloseableHttpResponse response = httpClient.execute(modification(uri, idempotencyKey))) {
 			int statusCode = response.getStatusLine().getStatusCode();
 			switch (statusCode) {
 				case SC_NOT_FOUND:
 					return false;
 				case SC_OK:
 					return true;
+				case SC_CONFLICT:
+					throw new IdempotencyKeyReusedException(
+						mapper.readValue(response.getEntity().getContent(), TEXT_RESULT).result);
 				default:
 					Result<String> r = mapper.readValue(response.getEntity().getContent(), TEXT_RESULT);
 					throw new IllegalStateException("Unexpected status code " + statusCode + ": " + r.message);
@@ -171,6 +504,11 @@ public class RestClient implements Accounting, Closeable {
 
 	@Override
 	public TransferResult execute(Transfer transfer) {
+		return execute(transfer, null);
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer, String idempotencyKey) {
 		URI uri;
 		try {
 			uri = new URIBuilder(base)
@@ -183,13 +521,15 @@ public class RestClient implements Accounting, Closeable {
 			throw new IllegalStateException(e);
 		}
 
-		try (CloseableHttpResponse response = httpClient.execute(new HttpPost(uri))) {
+		try (CloseableHttpResponse response = httpClient.execute(modification(uri, idempotencyKey))) {
 			int statusCode = response.getStatusLine().getStatusCode();
 			Result<String> r = mapper.readValue(response.getEntity().getContent(), TEXT_RESULT);
 			switch (statusCode) {
 				case SC_OK:
 				case SC_NOT_ACCEPTABLE:
 					return TransferResult.valueOf(r.message);
+				case SC_CONFLICT:
+					throw new IdempotencyKeyReusedException(r.result);
 				default:
 					throw new IllegalStateException("Unexpected status code " + statusCode + ": " + r.message);
 			}
@@ -199,26 +539,633 @@ public class RestClient implements Accounting, Closeable {
 		}
 	}
 
-	@Override
-	public List<Transfer> getAccountLog(int id) {
+	/**
+	 * Executes transfers one by one with requests of up to {@link Handler#MAX_TRANSFERS} transfers each
+	 *
+	 * @return results in order of transfers
+	 */
+	public List<TransferResult> executeAll(List<Transfer> transfers) {
+		List<TransferResult> results = new ArrayList<>(transfers.size());
+		for (int from = 0; from < transfers.size(); from += Handler.MAX_TRANSFERS) {
+			results.addAll(executeBatch(transfers.subList(from, Math.min(transfers.size(), from + Handler.MAX_TRANSFERS))));
+		}
+		return results;
+	}
+
+	private List<TransferResult> executeBatch(List<Transfer> transfers) {
 		URI uri;
 
 		try {
 			uri = new URIBuilder(base)
-				.setPath("/accounts/" + id + "/log")
+				.setPath("/transfers/batch")
 				.build();
 		} catch (URISyntaxException e) {
 			throw new IllegalStateException(e);
 		}
+		HttpPost post = new HttpPost(uri);
+		post.setEntity(new StringEntity(transfers.stream()
+			.map(t -> t.getSrcId() + ":" + t.getDstId() + ":" + t.getAmount())
+			.collect(joining(",", "transfers=", "")), APPLICATION_FORM_URLENCODED));
 
-		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+		try (CloseableHttpResponse response = httpClient.execute(post)) {
 			int statusCode = response.getStatusLine().getStatusCode();
 			switch (statusCode) {
-				case SC_NOT_FOUND:
-					return emptyList();
 				case SC_OK:
-					Result<List<Transfer>> r = mapper.readValue(response.getEntity().getContent(), ACCOUNT_LOG_RESULT);
+					Result<List<TransferResult>> r = mapper.readValue(response.getEntity().getContent(), TRANSFER_RESULTS);
+					checkState(r.result.size() == transfers.size(), "Result of every transfer expected");
 					return r.result;
+				case SC_NOT_ACCEPTABLE:
+					throw new IllegalArgumentException("Invalid transfers");
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Prepares two-phase transfer on node owning source account
+	 *
+	 * @param tx       unique transfer identifier
+	 * @param transfer cross-node transfer
+	 * @return result of source account withdrawal
+	 */
+	public TransferResult prepareTransfer(String tx, Transfer transfer) {
+		return clusterCall("prepare", tx, transfer, TRANSFER_RESULT);
+	}
+
+	/**
+	 * Credits destination account of two-phase transfer on node owning it
+	 *
+	 * @param tx       transfer identifier
+	 * @param transfer cross-node transfer
+	 * @return result of crediting, {@link TransferResult#ERROR} if transfer is aborted
+	 */
+	public TransferResult creditTransfer(String tx, Transfer transfer) {
+		return clusterCall("credit", tx, transfer, TRANSFER_RESULT);
+	}
+
+	/**
+	 * @param tx transfer identifier
+	 * @return {@code false} if transfer is unknown to source node or aborted
+	 */
+	public boolean commitTransfer(String tx) {
+		return clusterCall("commit", tx, null, BOOLEAN_RESULT);
+	}
+
+	/**
+	 * @param tx transfer identifier
+	 * @return {@code false} if transfer is already committed
+	 */
+	public boolean abortTransfer(String tx) {
+		return clusterCall("abort", tx, null, BOOLEAN_RESULT);
+	}
+
+	/**
+	 * @param tx transfer identifier
+	 * @return {@code true} if destination node credited transfer, otherwise it never will
+	 */
+	public boolean resolveTransfer(String tx) {
+		return clusterCall("resolve", tx, null, BOOLEAN_RESULT);
+	}
+
+	private <T> T clusterCall(String phase, String tx, Transfer transfer, TypeReference<Result<T>> type) {
+		URI uri;
+		try {
+			URIBuilder builder = new URIBuilder(base)
+				.setPath("/cluster/" + phase)
+				.setParameter("tx", tx);
+			if (transfer != null) {
+				builder
+					.setParameter("src", Integer.toString(transfer.getSrcId()))
+					.setParameter("dst", Integer.toString(transfer.getDstId()))
+					.setParameter("amount", Long.toString(transfer.getAmount()));
+			}
+			uri = builder.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpPost(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			checkState(statusCode == SC_OK, "Unexpected status code %d", statusCode);
+			Result<T> r = mapper.readValue(response.getEntity().getContent(), type);
+			return r.result;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public BalanceSnapshot exportBalances(OutputStream out) throws IOException {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/accounts/export")
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			checkState(statusCode == SC_OK, "Unexpected status code %d", statusCode);
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), US_ASCII));
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, US_ASCII));
+			String line;
+			String last = null;
+			while ((line = reader.readLine()) != null) {
+				writer.write(line);
+				writer.write('\n');
+				last = line;
+			}
+			writer.flush();
+
+			BalanceSnapshot snapshot = last == null ? null : BalanceSnapshot.fromTrailer(last);
+			checkState(snapshot != null, "Incomplete balances export");
+			return snapshot;
+		}
+	}
+
+	@Override
+	public AccountingStats getStats() {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/stats")
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			checkState(statusCode == SC_OK, "Unexpected status code %d", statusCode);
+			Result<AccountingStats> r = mapper.readValue(response.getEntity().getContent(), STATS_RESULT);
+			return r.result;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return server time spent on request phases by route and phase
+	 */
+	public Map<String, Map<String, PhaseTiming>> getPhaseTimings() {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/stats/timings")
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			checkState(statusCode == SC_OK, "Unexpected status code %d", statusCode);
+			Result<Map<String, Map<String, PhaseTiming>>> r =
+				mapper.readValue(response.getEntity().getContent(), TIMINGS_RESULT);
+			return r.result;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return replication status of server, {@code null} if server does not replicate
+	 */
+	public ReplicationStatus getReplicationStatus() {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/replication")
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_NOT_FOUND:
+					return null;
+				case SC_OK:
+					Result<ReplicationStatus> r = mapper.readValue(response.getEntity().getContent(), REPLICATION_RESULT);
+					return r.result;
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Subscribes to server change feed
+	 *
+	 * @param from    log position to start from, e.g. {@link ChangeBatch#getNext()} of the last batch to resume,
+	 *                negative for future transfers only
+	 * @param account account to follow, 0 for all accounts
+	 * @return subscription identifier
+	 */
+	public long subscribe(long from, int account) {
+		URI uri;
+
+		try {
+			URIBuilder builder = new URIBuilder(base)
+				.setPath("/feed")
+				.setParameter("account", Integer.toString(account));
+			if (from >= 0L) {
+				builder.setParameter("from", Long.toString(from));
+			}
+			uri = builder.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpPost(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			checkState(statusCode == SC_CREATED, "Unexpected status code %d", statusCode);
+			Result<Long> r = mapper.readValue(response.getEntity().getContent(), LONG_RESULT);
+			return r.result;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Long-polls change feed subscription
+	 *
+	 * @param subscription subscription identifier
+	 * @param max          maximum number of returned transfers
+	 * @param waitMillis   how long to wait for transfers when there are none
+	 * @return next transfers or gap marker, {@code null} if subscription is unknown or expired
+	 */
+	public ChangeBatch pollChanges(long subscription, int max, long waitMillis) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/feed/" + subscription)
+				.setParameter("max", Integer.toString(max))
+				.setParameter("wait", Long.toString(waitMillis))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_NOT_FOUND:
+					return null;
+				case SC_OK:
+					Result<ChangeBatch> r = mapper.readValue(response.getEntity().getContent(), CHANGE_BATCH_RESULT);
+					return r.result;
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param subscription subscription identifier
+	 * @return {@code false} if subscription is unknown or expired
+	 */
+	public boolean unsubscribe(long subscription) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/feed/" + subscription)
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpDelete(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_NOT_FOUND:
+					return false;
+				case SC_OK:
+					return true;
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Schedules future-dated transfer or standing order on server with transfer scheduler
+	 *
+	 * @param transfer     transfer to execute
+	 * @param dueTime      time in ms to execute transfer at
+	 * @param periodMillis period to repeat transfer with, 0 to execute it once
+	 * @return scheduled transfer
+	 */
+	public ScheduledTransfer scheduleTransfer(Transfer transfer, long dueTime, long periodMillis) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/transfers/scheduled")
+				.setParameter("src", Integer.toString(transfer.getSrcId()))
+				.setParameter("dst", Integer.toString(transfer.getDstId()))
+				.setParameter("amount", Long.toString(transfer.getAmount()))
+				.setParameter("at", Long.toString(dueTime))
+				.setParameter("period", Long.toString(periodMillis))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpPost(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_CREATED:
+					Result<ScheduledTransfer> r = mapper.readValue(response.getEntity().getContent(), SCHEDULED_TRANSFER_RESULT);
+					return r.result;
+				case SC_NOT_ACCEPTABLE:
+					Result<String> error = mapper.readValue(response.getEntity().getContent(), TEXT_RESULT);
+					throw new IllegalArgumentException(error.result);
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param id scheduled transfer identifier
+	 * @return scheduled transfer with its last result, {@code null} if it is unknown, cancelled or executed once
+	 * and for all
+	 */
+	public ScheduledTransfer getScheduledTransfer(long id) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/transfers/scheduled/" + id)
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_NOT_FOUND:
+					return null;
+				case SC_OK:
+					Result<ScheduledTransfer> r = mapper.readValue(response.getEntity().getContent(), SCHEDULED_TRANSFER_RESULT);
+					return r.result;
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param id scheduled transfer identifier
+	 * @return {@code false} if scheduled transfer is unknown, cancelled or executed once and for all
+	 */
+	public boolean cancelScheduledTransfer(long id) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/transfers/scheduled/" + id)
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpDelete(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_NOT_FOUND:
+					return false;
+				case SC_OK:
+					return true;
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return transfer scheduler stats
+	 */
+	public ScheduleStats getScheduleStats() {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/transfers/scheduled")
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			checkState(statusCode == SC_OK, "Unexpected status code %d", statusCode);
+			Result<ScheduleStats> r = mapper.readValue(response.getEntity().getContent(), SCHEDULE_STATS_RESULT);
+			return r.result;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Starts batch job on server with batch jobs enabled, or resumes interrupted run
+	 *
+	 * @param run        name of run, e.g. business day, finished run is not applied again
+	 * @param annualRate yearly interest rate credited for one day, 0 for no interest
+	 * @param fee        fee in cents, 0 for no fee
+	 * @param feeBelow   balance the fee is waived from, {@link Long#MAX_VALUE} to charge all accounts
+	 * @return report of started job
+	 * @throws IllegalArgumentException if job is rejected, e.g. another job is running
+	 */
+	public BatchReport startBatch(String run, BigDecimal annualRate, long fee, long feeBelow) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/batch")
+				.setParameter("run", run)
+				.setParameter("interest", annualRate.toPlainString())
+				.setParameter("fee", Long.toString(fee))
+				.setParameter("feeBelow", Long.toString(feeBelow))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpPost(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_ACCEPTED:
+					Result<BatchReport> r = mapper.readValue(response.getEntity().getContent(), BATCH_REPORT_RESULT);
+					return r.result;
+				case SC_NOT_ACCEPTABLE:
+					Result<String> error = mapper.readValue(response.getEntity().getContent(), TEXT_RESULT);
+					throw new IllegalArgumentException(error.result);
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return report of running or the last batch job, {@code null} if there was none
+	 */
+	public BatchReport getBatchReport() {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/batch")
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_NOT_FOUND:
+					return null;
+				case SC_OK:
+					Result<BatchReport> r = mapper.readValue(response.getEntity().getContent(), BATCH_REPORT_RESULT);
+					return r.result;
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public AuditReport audit() {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/audit")
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(new HttpPost(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			checkState(statusCode == SC_OK, "Unexpected status code %d", statusCode);
+			Result<AuditReport> r = mapper.readValue(response.getEntity().getContent(), AUDIT_RESULT);
+			return r.result;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id) {
+		return getAccountLog(id, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id, long from, long to, int limit) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/accounts/" + id + "/log")
+				.addParameter("from", Long.toString(from))
+				.addParameter("to", Long.toString(to))
+				.addParameter("limit", Integer.toString(limit))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(accountRead(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_NOT_FOUND:
+					return emptyList();
+				case SC_OK:
+					Result<List<Transfer>> r = mapper.readValue(response.getEntity().getContent(), ACCOUNT_LOG_RESULT);
+					return r.result;
+				default:
+					throw new IllegalStateException("Unexpected status code " + statusCode);
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public List<Account> getTopAccounts(int limit) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/accounts/top")
+				.addParameter("limit", Integer.toString(limit))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+		return getAccounts(uri);
+	}
+
+	@Override
+	public List<Account> getAccountsByBalance(long from, long to, int limit) {
+		URI uri;
+
+		try {
+			uri = new URIBuilder(base)
+				.setPath("/accounts/by-balance")
+				.addParameter("from", Long.toString(from))
+				.addParameter("to", Long.toString(to))
+				.addParameter("limit", Integer.toString(limit))
+				.build();
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+		return getAccounts(uri);
+	}
+
+	private List<Account> getAccounts(URI uri) {
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			switch (statusCode) {
+				case SC_OK:
+					Result<List<Account>> r = mapper.readValue(response.getEntity().getContent(), ACCOUNTS_RESULT);
+					return r.result;
+				case SC_NOT_ACCEPTABLE:
+					throw new IllegalArgumentException("Invalid query " + uri.getQuery());
 				default:
 					throw new IllegalStateException("Unexpected status code " + statusCode);
 			}
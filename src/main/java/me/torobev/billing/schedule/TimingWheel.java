@@ -0,0 +1,189 @@
+package me.torobev.billing.schedule;
+
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hierarchical timing wheel of timers due at ticks. Every level has 64 slots, level {@code l} slot holds timers whose
+ * deadline differs from the current tick in the {@code l}-th group of 6 bits at most. When the current tick crosses
+ * a level boundary, timers of the next slot of that level cascade to lower levels, so each timer is moved at most
+ * once per level. Timers are intrusive list nodes, adding and removing is constant time without allocation.
+ * Not thread safe.
+ *
+ * @param <T> timer type
+ */
+class TimingWheel<T extends TimingWheel.Timer> {
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 7;
+
+	/**
+	 * The last tick timer may be due at, ticks count from 0
+	 */
+	static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	/**
+	 * Node of slot list
+	 */
+	static class Timer {
+
+		private long deadline;
+		private Timer prev;
+		private Timer next;
+		// slot index the timer is in, -1 if it is not in wheel
+		private int slot = -1;
+
+		long getDeadline() {
+			return deadline;
+		}
+
+		boolean isScheduled() {
+			return slot >= 0;
+		}
+	}
+
+	private final Timer[] slots = new Timer[LEVELS * SLOTS];
+	private long current;
+	private int size;
+
+	/**
+	 * @return current tick, timers due at it or earlier are expired
+	 */
+	long getCurrent() {
+		return current;
+	}
+
+	/**
+	 * @return number of timers in wheel
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds timer, timer due at current tick or earlier expires at the next tick
+	 *
+	 * @param timer    timer not in wheel
+	 * @param deadline tick the timer is due at
+	 */
+	void add(T timer, long deadline) {
+		checkArgument(!timer.isScheduled(), "Timer is scheduled already");
+		checkArgument(deadline <= MAX_TICKS, "Deadline is too far");
+		((Timer) timer).deadline = deadline;
+		insert(timer);
+		size++;
+	}
+
+	private void insert(Timer timer) {
+		long deadline = Math.max(timer.deadline, current + 1);
+		long diff = deadline ^ current;
+		int level = (63 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+		int slot = level * SLOTS + (int) ((deadline >>> (level * SLOT_BITS)) & SLOT_MASK);
+		Timer head = slots[slot];
+		timer.prev = null;
+		timer.next = head;
+		if (head != null) {
+			head.prev = timer;
+		}
+		slots[slot] = timer;
+		timer.slot = slot;
+	}
+
+	/**
+	 * @return {@code false} if timer is not in wheel
+	 */
+	boolean remove(T timer) {
+		if (!timer.isScheduled()) {
+			return false;
+		}
+		unlink(timer);
+		size--;
+		return true;
+	}
+
+	private void unlink(Timer timer) {
+		if (timer.prev != null) {
+			timer.prev.next = timer.next;
+		} else {
+			slots[timer.slot] = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.prev = timer.prev;
+		}
+		timer.prev = null;
+		timer.next = null;
+		timer.slot = -1;
+	}
+
+	/**
+	 * Advances current tick, at most {@code limit} expired timers are taken out of wheel
+	 *
+	 * @param tick    tick to advance to
+	 * @param limit   maximum number of expired timers
+	 * @param expired receives expired timers tick by tick
+	 * @return number of expired timers, when it is {@code limit} the current tick may stay behind {@code tick}
+	 */
+	@SuppressWarnings("unchecked")
+	int advance(long tick, int limit, Consumer<T> expired) {
+		int count = 0;
+		while (count < limit) {
+			// timers due at current tick are left over by the previous call
+			int slot = (int) (current & SLOT_MASK);
+			Timer timer;
+			while (count < limit && (timer = slots[slot]) != null) {
+				unlink(timer);
+				size--;
+				count++;
+				expired.accept((T) timer);
+			}
+			if (count == limit || current >= tick) {
+				break;
+			}
+			current++;
+			cascade();
+		}
+		return count;
+	}
+
+	/**
+	 * Moves timers of slots reached by current tick at upper levels down
+	 */
+	private void cascade() {
+		int levels = 0;
+		while (levels + 1 < LEVELS && (current & ((1L << ((levels + 1) * SLOT_BITS)) - 1)) == 0L) {
+			levels++;
+		}
+		for (int level = levels; level > 0; level--) {
+			int slot = level * SLOTS + (int) ((current >>> (level * SLOT_BITS)) & SLOT_MASK);
+			Timer timer = slots[slot];
+			slots[slot] = null;
+			while (timer != null) {
+				Timer next = timer.next;
+				if (timer.deadline <= current) {
+					insertDue(timer);
+				} else {
+					insert(timer);
+				}
+				timer = next;
+			}
+		}
+	}
+
+	/**
+	 * Puts timer due right now to the current tick slot
+	 */
+	private void insertDue(Timer timer) {
+		int slot = (int) (current & SLOT_MASK);
+		Timer head = slots[slot];
+		timer.prev = null;
+		timer.next = head;
+		if (head != null) {
+			head.prev = timer;
+		}
+		slots[slot] = timer;
+		timer.slot = slot;
+	}
+}
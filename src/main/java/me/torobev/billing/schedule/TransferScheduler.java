@@ -0,0 +1,227 @@
+package me.torobev.billing.schedule;
+
+import me.torobev.billing.ScheduleStats;
+import me.torobev.billing.ScheduledTransfer;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.accounting.Accounting.TransferResult;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Future-dated transfers and standing orders. Pending transfers are kept in {@link TimingWheel} of
+ * {@code tickMillis} ticks, so scheduling, cancelling and firing take constant time however many transfers are
+ * pending. Single thread advances the wheel and executes due transfers in batches through
+ * {@link Accounting#execute(Transfer)}, the same path as any other transfer. Transfer being executed when it is
+ * cancelled still runs, standing order is not repeated after that.
+ */
+public class TransferScheduler implements Runnable, Closeable {
+
+	private static final Logger LOGGER = getLogger(TransferScheduler.class);
+
+	private static final int BATCH = 4096;
+	private static final long IDLE_NANOS = MILLISECONDS.toNanos(1L);
+
+	/**
+	 * Scheduled transfer in wheel
+	 */
+	private static class Entry extends TimingWheel.Timer {
+
+		private final long id;
+		private final int srcId;
+		private final int dstId;
+		private final long amount;
+		private final long periodMillis;
+		// written by scheduler thread only
+		private volatile long dueTime;
+		private volatile long runs;
+		private volatile TransferResult lastResult;
+
+		Entry(long id, Transfer transfer, long dueTime, long periodMillis) {
+			this.id = id;
+			this.srcId = transfer.getSrcId();
+			this.dstId = transfer.getDstId();
+			this.amount = transfer.getAmount();
+			this.dueTime = dueTime;
+			this.periodMillis = periodMillis;
+		}
+
+		ScheduledTransfer toScheduledTransfer() {
+			TransferResult result = lastResult;
+			return new ScheduledTransfer(id, srcId, dstId, amount, dueTime, periodMillis, runs,
+				result == null ? null : result.name());
+		}
+	}
+
+	private final Accounting accounting;
+	private final long tickMillis;
+	// time of tick 0
+	private final long origin;
+
+	// guarded by itself
+	private final TimingWheel<Entry> wheel = new TimingWheel<>();
+	private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong ids = new AtomicLong();
+
+	private final LongAdder executed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private volatile long lateMillis;
+
+	private Thread worker;
+	private volatile boolean closed;
+
+	/**
+	 * @param accounting accounting to execute transfers with
+	 * @param tickMillis scheduling precision, transfer is executed within tick after its due time
+	 */
+	public TransferScheduler(Accounting accounting, long tickMillis) {
+		checkArgument(tickMillis > 0L, "Positive tick required.");
+		this.accounting = accounting;
+		this.tickMillis = tickMillis;
+		this.origin = currentTimeMillis();
+	}
+
+	public void start() {
+		worker = new Thread(this, "transfer-scheduler");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * @param transfer     transfer to execute
+	 * @param dueTime      time in ms to execute transfer at, past time means as soon as possible
+	 * @param periodMillis period to repeat transfer with, 0 to execute it once
+	 * @return scheduled transfer
+	 */
+	public ScheduledTransfer schedule(Transfer transfer, long dueTime, long periodMillis) {
+		checkArgument(transfer.getAmount() > 0L, "Positive amount required.");
+		checkArgument(periodMillis >= 0L, "Non negative period required.");
+		Entry entry = new Entry(ids.incrementAndGet(), transfer, dueTime, periodMillis);
+		long deadline = deadline(dueTime);
+		synchronized (wheel) {
+			wheel.add(entry, deadline);
+			entries.put(entry.id, entry);
+		}
+		return entry.toScheduledTransfer();
+	}
+
+	/**
+	 * @return scheduled transfer, {@code null} if it is unknown, cancelled or executed once and for all
+	 */
+	public ScheduledTransfer getScheduledTransfer(long id) {
+		Entry entry = entries.get(id);
+		return entry == null ? null : entry.toScheduledTransfer();
+	}
+
+	/**
+	 * @return {@code false} if scheduled transfer is unknown, cancelled or executed once and for all
+	 */
+	public boolean cancel(long id) {
+		Entry entry = entries.remove(id);
+		if (entry == null) {
+			return false;
+		}
+		synchronized (wheel) {
+			wheel.remove(entry);
+		}
+		return true;
+	}
+
+	/**
+	 * @return tick transfer due at given time is executed at
+	 */
+	private long deadline(long dueTime) {
+		// rounded up, so that transfer is never executed early
+		return Math.max(0L, Math.floorDiv(dueTime - origin + tickMillis - 1, tickMillis));
+	}
+
+	@Override
+	public void run() {
+		List<Entry> due = new ArrayList<>(BATCH);
+		try {
+			while (!closed) {
+				long now = currentTimeMillis();
+				synchronized (wheel) {
+					wheel.advance(Math.floorDiv(now - origin, tickMillis), BATCH, due::add);
+				}
+				for (Entry entry : due) {
+					fire(entry, now);
+				}
+				if (due.size() < BATCH) {
+					parkNanos(IDLE_NANOS);
+				}
+				due.clear();
+			}
+		} catch (RuntimeException e) {
+			LOGGER.error("Transfer scheduler stopped", e);
+		}
+	}
+
+	private void fire(Entry entry, long now) {
+		if (entries.get(entry.id) != entry) {
+			// cancelled after it expired
+			return;
+		}
+		TransferResult result;
+		try {
+			result = accounting.execute(new Transfer(entry.srcId, entry.dstId, entry.amount));
+		} catch (RuntimeException e) {
+			LOGGER.warn("Scheduled transfer {} failed", entry.id, e);
+			result = TransferResult.ERROR;
+		}
+		executed.increment();
+		if (result != TransferResult.OK) {
+			failed.increment();
+		}
+		lateMillis = now - entry.dueTime;
+		entry.lastResult = result;
+		entry.runs++;
+
+		if (entry.periodMillis > 0L) {
+			entry.dueTime += entry.periodMillis;
+			long deadline = deadline(entry.dueTime);
+			synchronized (wheel) {
+				if (deadline > TimingWheel.MAX_TICKS) {
+					entries.remove(entry.id, entry);
+				} else if (entries.get(entry.id) == entry) {
+					wheel.add(entry, deadline);
+				}
+			}
+		} else {
+			entries.remove(entry.id, entry);
+		}
+	}
+
+	/**
+	 * @return number of pending transfers and run counters
+	 */
+	public ScheduleStats getStats() {
+		return new ScheduleStats(entries.size(), executed.sum(), failed.sum(), lateMillis);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (worker != null) {
+			try {
+				worker.join(MINUTES.toMillis(1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
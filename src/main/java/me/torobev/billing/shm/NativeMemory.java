@@ -0,0 +1,178 @@
+package me.torobev.billing.shm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Access to memory at absolute addresses, e.g. of mapped file, with ordering and atomic operations Java 8 has no
+ * public API for. Backed by {@code sun.misc.Unsafe}, which is only looked up reflectively, so that code does not
+ * depend on internal API at compile time. Method handles are constants, so calls are inlined like direct ones.
+ */
+final class NativeMemory {
+
+	private static final MethodHandle GET_INT;
+	private static final MethodHandle PUT_INT;
+	private static final MethodHandle GET_INT_VOLATILE;
+	private static final MethodHandle PUT_INT_VOLATILE;
+	private static final MethodHandle GET_LONG;
+	private static final MethodHandle PUT_LONG;
+	private static final MethodHandle GET_LONG_VOLATILE;
+	private static final MethodHandle PUT_ORDERED_LONG;
+	private static final MethodHandle COMPARE_AND_SWAP_LONG;
+	private static final MethodHandle LOAD_FENCE;
+	private static final MethodHandle STORE_FENCE;
+	private static final MethodHandle GET_OBJECT_LONG;
+	private static final long BUFFER_ADDRESS;
+
+	static {
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			GET_INT = lookup.findVirtual(type, "getInt", methodType(int.class, long.class)).bindTo(unsafe);
+			PUT_INT = lookup.findVirtual(type, "putInt", methodType(void.class, long.class, int.class)).bindTo(unsafe);
+			GET_INT_VOLATILE = lookup.findVirtual(type, "getIntVolatile", methodType(int.class, Object.class, long.class))
+				.bindTo(unsafe);
+			PUT_INT_VOLATILE = lookup.findVirtual(type, "putIntVolatile",
+				methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+			GET_LONG = lookup.findVirtual(type, "getLong", methodType(long.class, long.class)).bindTo(unsafe);
+			PUT_LONG = lookup.findVirtual(type, "putLong", methodType(void.class, long.class, long.class)).bindTo(unsafe);
+			GET_LONG_VOLATILE = lookup.findVirtual(type, "getLongVolatile", methodType(long.class, Object.class, long.class))
+				.bindTo(unsafe);
+			PUT_ORDERED_LONG = lookup.findVirtual(type, "putOrderedLong",
+				methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+			COMPARE_AND_SWAP_LONG = lookup.findVirtual(type, "compareAndSwapLong",
+				methodType(boolean.class, Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+			LOAD_FENCE = lookup.findVirtual(type, "loadFence", methodType(void.class)).bindTo(unsafe);
+			STORE_FENCE = lookup.findVirtual(type, "storeFence", methodType(void.class)).bindTo(unsafe);
+			GET_OBJECT_LONG = lookup.findVirtual(type, "getLong", methodType(long.class, Object.class, long.class))
+				.bindTo(unsafe);
+			MethodHandle offset = lookup.findVirtual(type, "objectFieldOffset", methodType(long.class, Field.class))
+				.bindTo(unsafe);
+			BUFFER_ADDRESS = (long) offset.invokeExact(Buffer.class.getDeclaredField("address"));
+		} catch (Throwable e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private NativeMemory() {
+	}
+
+	/**
+	 * @return address of direct buffer memory
+	 */
+	static long address(Buffer buffer) {
+		try {
+			return (long) GET_OBJECT_LONG.invokeExact((Object) buffer, BUFFER_ADDRESS);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static int getInt(long address) {
+		try {
+			return (int) GET_INT.invokeExact(address);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static void putInt(long address, int value) {
+		try {
+			PUT_INT.invokeExact(address, value);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static int getIntVolatile(long address) {
+		try {
+			return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static void putIntVolatile(long address, int value) {
+		try {
+			PUT_INT_VOLATILE.invokeExact((Object) null, address, value);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static long getLong(long address) {
+		try {
+			return (long) GET_LONG.invokeExact(address);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static void putLong(long address, long value) {
+		try {
+			PUT_LONG.invokeExact(address, value);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static long getLongVolatile(long address) {
+		try {
+			return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	/**
+	 * Store which is not reordered with preceding stores
+	 */
+	static void putOrderedLong(long address, long value) {
+		try {
+			PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static boolean compareAndSwapLong(long address, long expected, long value) {
+		try {
+			return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address, expected, value);
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static void loadFence() {
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	static void storeFence() {
+		try {
+			STORE_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw failed(e);
+		}
+	}
+
+	private static RuntimeException failed(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new IllegalStateException(e);
+	}
+}
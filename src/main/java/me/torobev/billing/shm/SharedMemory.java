@@ -0,0 +1,362 @@
+package me.torobev.billing.shm;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+/**
+ * Memory-mapped file shared by billing server and client processes on the same host. All fields are in native
+ * byte order and aligned to their size, offsets in bytes:
+ * <pre>
+ * header      0  int  magic, written last when file is ready
+ *             4  int  layout version
+ *             8  int  the first account id
+ *            12  int  number of account slots
+ *            16  int  number of request slots, power of two
+ *            20  int  1 when server is closed
+ *            24  long log position balances are mirrored at
+ *            32  long the last mirrored account id
+ *            64  long request queue tail, next ticket to claim
+ *           128  long request queue head, next ticket to serve
+ * requests  192  64 bytes per slot, slot of ticket t is t &amp; (slots - 1)
+ *             0  long sequence: t free for ticket t, -t - 2 taken by its producer or expired, t + 1 ready
+ *             8  int  operation
+ *            12  int  account id or source id
+ *            16  int  destination id or count
+ *            24  long amount
+ *            32  long ticket of the last result
+ *            40  long result
+ * accounts  192 + 64 * requests, 32 bytes per account id from the first one
+ *             0  long seqlock sequence, odd while slot is written
+ *             8  long balance
+ *            16  long version, 0 when there is no account
+ * </pre>
+ * Account slots have single writer, the server, and are read under seqlock. Request slots form bounded
+ * multi-producer queue: producer claims ticket by CAS of tail, takes its slot by CAS of sequence before writing it,
+ * server serves tickets in order, writes result and frees slot for the ticket of the next round. Server expires
+ * ticket claimed but not taken for too long by the same CAS, so that producer which died after claim does not
+ * block the queue, and producer which is merely late finds its ticket expired instead of writing a reused slot.
+ * <p>
+ * Memory is accessed through {@link NativeMemory}.
+ */
+final class SharedMemory {
+
+	static final int MAGIC = 0x42494c4c;
+	static final int LAYOUT_VERSION = 2;
+
+	static final int OP_CREATE = 1;
+	static final int OP_CREATE_RANGE = 2;
+	static final int OP_REMOVE = 3;
+	static final int OP_INCREASE = 4;
+	static final int OP_TRANSFER = 5;
+	// result of request failed with exception
+	static final long FAILED = -1L;
+	// result of ticket expired before its request was put
+	static final long EXPIRED = -2L;
+
+	private static final long MAGIC_OFFSET = 0L;
+	private static final long LAYOUT_OFFSET = 4L;
+	private static final long MIN_ID_OFFSET = 8L;
+	private static final long CAPACITY_OFFSET = 12L;
+	private static final long QUEUE_SIZE_OFFSET = 16L;
+	private static final long CLOSED_OFFSET = 20L;
+	private static final long POSITION_OFFSET = 24L;
+	private static final long LAST_ID_OFFSET = 32L;
+	private static final long TAIL_OFFSET = 64L;
+	private static final long HEAD_OFFSET = 128L;
+	private static final long HEADER_SIZE = 192L;
+
+	private static final int REQUEST_BITS = 6;
+	private static final long REQUEST_SEQUENCE = 0L;
+	private static final long REQUEST_OP = 8L;
+	private static final long REQUEST_ID = 12L;
+	private static final long REQUEST_OTHER = 16L;
+	private static final long REQUEST_AMOUNT = 24L;
+	private static final long REQUEST_TICKET = 32L;
+	private static final long REQUEST_RESULT = 40L;
+
+	private static final int ACCOUNT_BITS = 5;
+	private static final long ACCOUNT_SEQUENCE = 0L;
+	private static final long ACCOUNT_BALANCE = 8L;
+	private static final long ACCOUNT_VERSION = 16L;
+
+	// keeps mapping alive while memory is used
+	private final MappedByteBuffer buffer;
+	private final long address;
+	private final long requests;
+	private final long accounts;
+
+	final int minId;
+	final int capacity;
+	final int queueSize;
+
+	private SharedMemory(MappedByteBuffer buffer, int minId, int capacity, int queueSize) {
+		this.buffer = buffer;
+		this.address = NativeMemory.address(buffer);
+		this.minId = minId;
+		this.capacity = capacity;
+		this.queueSize = queueSize;
+		this.requests = address + HEADER_SIZE;
+		this.accounts = requests + ((long) queueSize << REQUEST_BITS);
+	}
+
+	private static long size(int capacity, int queueSize) {
+		return HEADER_SIZE + ((long) queueSize << REQUEST_BITS) + ((long) capacity << ACCOUNT_BITS);
+	}
+
+	/**
+	 * Creates new file in place of existing one, so that clients of previous file do not see it changing
+	 */
+	static SharedMemory create(Path file, int minId, int capacity, int queueSize) throws IOException {
+		checkArgument(capacity > 0, "Positive capacity required.");
+		checkArgument(Integer.bitCount(queueSize) == 1, "Power of two queue size required.");
+		long size = size(capacity, queueSize);
+		checkArgument(size <= Integer.MAX_VALUE, "Shared memory over 2 GB is not supported.");
+		Files.deleteIfExists(file);
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(size);
+			buffer = raf.getChannel().map(READ_WRITE, 0L, size);
+		}
+		SharedMemory memory = new SharedMemory(buffer, minId, capacity, queueSize);
+		NativeMemory.putInt(memory.address + LAYOUT_OFFSET, LAYOUT_VERSION);
+		NativeMemory.putInt(memory.address + MIN_ID_OFFSET, minId);
+		NativeMemory.putInt(memory.address + CAPACITY_OFFSET, capacity);
+		NativeMemory.putInt(memory.address + QUEUE_SIZE_OFFSET, queueSize);
+		NativeMemory.putLong(memory.address + LAST_ID_OFFSET, minId - 1L);
+		for (int i = 0; i < queueSize; i++) {
+			NativeMemory.putLong(memory.request(i) + REQUEST_SEQUENCE, i);
+			NativeMemory.putLong(memory.request(i) + REQUEST_TICKET, -1L);
+		}
+		return memory;
+	}
+
+	/**
+	 * Marks memory ready for clients once accounts are mirrored
+	 */
+	void ready() {
+		NativeMemory.putIntVolatile(address + MAGIC_OFFSET, MAGIC);
+	}
+
+	static SharedMemory open(Path file) throws IOException {
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+				 FileChannel channel = raf.getChannel()) {
+			checkState(channel.size() >= HEADER_SIZE, "Not a billing shared memory file: %s", file);
+			buffer = channel.map(READ_WRITE, 0L, channel.size());
+		}
+		long address = NativeMemory.address(buffer);
+		checkState(NativeMemory.getIntVolatile(address + MAGIC_OFFSET) == MAGIC,
+			"Not a billing shared memory file or it is not ready: %s", file);
+		checkState(NativeMemory.getInt(address + LAYOUT_OFFSET) == LAYOUT_VERSION, "Unsupported shared memory layout");
+		int capacity = NativeMemory.getInt(address + CAPACITY_OFFSET);
+		int queueSize = NativeMemory.getInt(address + QUEUE_SIZE_OFFSET);
+		checkState(buffer.capacity() == size(capacity, queueSize), "Shared memory file is truncated: %s", file);
+		return new SharedMemory(buffer, NativeMemory.getInt(address + MIN_ID_OFFSET), capacity, queueSize);
+	}
+
+	boolean isClosed() {
+		return NativeMemory.getIntVolatile(address + CLOSED_OFFSET) != 0;
+	}
+
+	void markClosed() {
+		NativeMemory.putIntVolatile(address + CLOSED_OFFSET, 1);
+	}
+
+	long getPosition() {
+		return NativeMemory.getLongVolatile(address + POSITION_OFFSET);
+	}
+
+	void setPosition(long position) {
+		NativeMemory.putOrderedLong(address + POSITION_OFFSET, position);
+	}
+
+	int getLastId() {
+		return (int) NativeMemory.getLongVolatile(address + LAST_ID_OFFSET);
+	}
+
+	void setLastId(int id) {
+		NativeMemory.putOrderedLong(address + LAST_ID_OFFSET, id);
+	}
+
+	/**
+	 * @return slot index of account, -1 if account is out of shared memory
+	 */
+	int index(int id) {
+		long index = (long) id - minId;
+		return index < 0L || index >= capacity ? -1 : (int) index;
+	}
+
+	private long account(int index) {
+		return accounts + ((long) index << ACCOUNT_BITS);
+	}
+
+	/**
+	 * Writes account slot, called by the single writer only
+	 *
+	 * @param version account version, 0 if there is no account
+	 */
+	void writeAccount(int index, long balance, long version) {
+		long slot = account(index);
+		long sequence = NativeMemory.getLong(slot + ACCOUNT_SEQUENCE);
+		NativeMemory.putOrderedLong(slot + ACCOUNT_SEQUENCE, sequence + 1L);
+		// odd sequence is visible before any field changes
+		NativeMemory.storeFence();
+		NativeMemory.putLong(slot + ACCOUNT_BALANCE, balance);
+		NativeMemory.putLong(slot + ACCOUNT_VERSION, version);
+		NativeMemory.putOrderedLong(slot + ACCOUNT_SEQUENCE, sequence + 2L);
+	}
+
+	long getBalance(int index) {
+		return NativeMemory.getLong(account(index) + ACCOUNT_BALANCE);
+	}
+
+	long getVersion(int index) {
+		return NativeMemory.getLong(account(index) + ACCOUNT_VERSION);
+	}
+
+	/**
+	 * Reads account slot consistently
+	 *
+	 * @param into array of balance and version to fill
+	 */
+	void readAccount(int index, long[] into) {
+		long slot = account(index);
+		while (true) {
+			long sequence = NativeMemory.getLongVolatile(slot + ACCOUNT_SEQUENCE);
+			if ((sequence & 1L) == 0L) {
+				long balance = NativeMemory.getLong(slot + ACCOUNT_BALANCE);
+				long version = NativeMemory.getLong(slot + ACCOUNT_VERSION);
+				// fields are read before sequence is checked again
+				NativeMemory.loadFence();
+				if (NativeMemory.getLong(slot + ACCOUNT_SEQUENCE) == sequence) {
+					into[0] = balance;
+					into[1] = version;
+					return;
+				}
+			}
+		}
+	}
+
+	private long request(long ticket) {
+		return requests + ((ticket & (queueSize - 1)) << REQUEST_BITS);
+	}
+
+	/**
+	 * @return claimed ticket, -1 if queue is full
+	 */
+	long claim() {
+		while (true) {
+			long tail = NativeMemory.getLongVolatile(address + TAIL_OFFSET);
+			long sequence = NativeMemory.getLongVolatile(request(tail) + REQUEST_SEQUENCE);
+			if (sequence < tail) {
+				return -1L;
+			}
+			if (sequence == tail && NativeMemory.compareAndSwapLong(address + TAIL_OFFSET, tail, tail + 1L)) {
+				return tail;
+			}
+		}
+	}
+
+	/**
+	 * @return {@code false} if ticket is expired by server
+	 */
+	boolean putRequest(long ticket, int op, int id, int other, long amount) {
+		long slot = request(ticket);
+		if (!NativeMemory.compareAndSwapLong(slot + REQUEST_SEQUENCE, ticket, taken(ticket))) {
+			return false;
+		}
+		NativeMemory.putInt(slot + REQUEST_OP, op);
+		NativeMemory.putInt(slot + REQUEST_ID, id);
+		NativeMemory.putInt(slot + REQUEST_OTHER, other);
+		NativeMemory.putLong(slot + REQUEST_AMOUNT, amount);
+		NativeMemory.putOrderedLong(slot + REQUEST_SEQUENCE, ticket + 1L);
+		return true;
+	}
+
+	private static long taken(long ticket) {
+		return -ticket - 2L;
+	}
+
+	/**
+	 * Takes slot of claimed ticket from its producer, called by the single consumer only. Expired ticket is served
+	 * like any other with {@link #EXPIRED} result.
+	 *
+	 * @return {@code false} if producer has taken slot already
+	 */
+	boolean expire(long ticket) {
+		return NativeMemory.compareAndSwapLong(request(ticket) + REQUEST_SEQUENCE, ticket, taken(ticket));
+	}
+
+	long getHead() {
+		return NativeMemory.getLongVolatile(address + HEAD_OFFSET);
+	}
+
+	/**
+	 * @return the next ticket to claim, tickets from head to it are claimed
+	 */
+	long getTail() {
+		return NativeMemory.getLongVolatile(address + TAIL_OFFSET);
+	}
+
+	/**
+	 * @return {@code true} if request of ticket is put by its producer
+	 */
+	boolean isReady(long ticket) {
+		return NativeMemory.getLongVolatile(request(ticket) + REQUEST_SEQUENCE) == ticket + 1L;
+	}
+
+	int getOp(long ticket) {
+		return NativeMemory.getInt(request(ticket) + REQUEST_OP);
+	}
+
+	int getId(long ticket) {
+		return NativeMemory.getInt(request(ticket) + REQUEST_ID);
+	}
+
+	int getOther(long ticket) {
+		return NativeMemory.getInt(request(ticket) + REQUEST_OTHER);
+	}
+
+	long getAmount(long ticket) {
+		return NativeMemory.getLong(request(ticket) + REQUEST_AMOUNT);
+	}
+
+	/**
+	 * Writes result of ticket and frees its slot for the next round, called by the single consumer only
+	 */
+	void putResult(long ticket, long result) {
+		long slot = request(ticket);
+		// producer of previous round still reading its result sees it is gone
+		NativeMemory.putOrderedLong(slot + REQUEST_TICKET, -1L);
+		NativeMemory.storeFence();
+		NativeMemory.putLong(slot + REQUEST_RESULT, result);
+		NativeMemory.putOrderedLong(slot + REQUEST_TICKET, ticket);
+		NativeMemory.putOrderedLong(slot + REQUEST_SEQUENCE, ticket + queueSize);
+		NativeMemory.putOrderedLong(address + HEAD_OFFSET, ticket + 1L);
+	}
+
+	/**
+	 * @return ticket of the last result written to the slot of given ticket, -1 while result is written
+	 */
+	long getServed(long ticket) {
+		return NativeMemory.getLongVolatile(request(ticket) + REQUEST_TICKET);
+	}
+
+	/**
+	 * @return result of the ticket, {@link Long#MIN_VALUE} if slot was reused by later ticket before result was read
+	 */
+	long getResult(long ticket) {
+		long slot = request(ticket);
+		long result = NativeMemory.getLong(slot + REQUEST_RESULT);
+		NativeMemory.loadFence();
+		return NativeMemory.getLong(slot + REQUEST_TICKET) == ticket ? result : Long.MIN_VALUE;
+	}
+}
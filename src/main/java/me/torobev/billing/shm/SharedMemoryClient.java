@@ -0,0 +1,252 @@
+package me.torobev.billing.shm;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.BalanceSnapshot;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+/**
+ * {@link Accounting} client of billing server on the same host, see {@link SharedMemoryServer}. Account reads are
+ * served directly from memory-mapped account slots under seqlock, without a system call. Creations, removals,
+ * balance increases and transfers are put to the shared request queue and wait for their results.
+ * <p>
+ * Reads of accounts out of shared memory, history, balance queries, export, stats, audit and modifications with
+ * idempotency key are delegated to fallback accounting, e.g. {@link me.torobev.billing.rest.RestClient}.
+ * Client is thread-safe.
+ */
+public class SharedMemoryClient implements Accounting {
+
+	// how long a request may wait for free slot and for its result
+	private static final long TIMEOUT_NANOS = SECONDS.toNanos(5L);
+	private static final int SPINS = 100;
+	private static final long BACKOFF_NANOS = MICROSECONDS.toNanos(10L);
+
+	private final SharedMemory memory;
+	private final Accounting fallback;
+
+	private final ThreadLocal<long[]> slot = ThreadLocal.withInitial(() -> new long[2]);
+
+	/**
+	 * @param file     shared memory file of running server
+	 * @param fallback accounting to delegate operations not served by shared memory to
+	 * @throws UncheckedIOException  if file can not be mapped
+	 * @throws IllegalStateException if file is not shared memory of billing server
+	 */
+	public SharedMemoryClient(Path file, Accounting fallback) {
+		try {
+			this.memory = SharedMemory.open(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to map shared memory file " + file, e);
+		}
+		this.fallback = fallback;
+	}
+
+	/**
+	 * @return log position balances are mirrored at
+	 */
+	public long getPosition() {
+		return memory.getPosition();
+	}
+
+	private void checkOpen() {
+		checkState(!memory.isClosed(), "Shared memory is closed by server");
+	}
+
+	/**
+	 * Puts request to the queue and waits for its result
+	 *
+	 * @return result of request
+	 * @throws IllegalStateException if server does not serve requests or request failed
+	 */
+	private long call(int op, int id, int other, long amount) {
+		long deadline = nanoTime() + TIMEOUT_NANOS;
+		long ticket;
+		for (int i = 0; (ticket = memory.claim()) < 0L; i++) {
+			backoff(i, deadline, "Shared memory request queue is full");
+		}
+		if (!memory.putRequest(ticket, op, id, other, amount)) {
+			throw new IllegalStateException("Shared memory request " + ticket + " expired before it was put");
+		}
+		for (int i = 0; ; i++) {
+			long served = memory.getServed(ticket);
+			if (served == ticket) {
+				long result = memory.getResult(ticket);
+				checkState(result != Long.MIN_VALUE, "Result of shared memory request %s is lost", ticket);
+				checkState(result != SharedMemory.FAILED, "Shared memory request %s failed on server", ticket);
+				return result;
+			}
+			// results of later rounds overwrite result which was not read in time
+			checkState(served < ticket, "Result of shared memory request %s is lost", ticket);
+			backoff(i, deadline, "Shared memory request is not served in time");
+		}
+	}
+
+	private void backoff(int attempt, long deadline, String timeoutMessage) {
+		checkOpen();
+		checkState(nanoTime() - deadline < 0L, timeoutMessage);
+		if (attempt < SPINS) {
+			Thread.yield();
+		} else {
+			parkNanos(BACKOFF_NANOS);
+		}
+	}
+
+	@Override
+	public Account createAccount() {
+		int id = (int) call(SharedMemory.OP_CREATE, 0, 0, 0L);
+		Account account = getAccount(id);
+		return account != null ? account : new Account(id, 0L, 1L);
+	}
+
+	@Override
+	public AccountRange createAccounts(int count, long initialBalance) {
+		checkArgument(count > 0, "Positive count required.");
+		checkArgument(initialBalance >= 0L, "Non negative balance required.");
+		return new AccountRange((int) call(SharedMemory.OP_CREATE_RANGE, 0, count, initialBalance), count, initialBalance);
+	}
+
+	@Override
+	public boolean removeAccount(int id) {
+		return call(SharedMemory.OP_REMOVE, id, 0, 0L) == 1L;
+	}
+
+	@Override
+	public Account getAccount(int id) {
+		int index = memory.index(id);
+		if (index < 0) {
+			return fallback.getAccount(id);
+		}
+		checkOpen();
+		long[] read = slot.get();
+		memory.readAccount(index, read);
+		return read[1] == 0L ? null : new Account(id, read[0], read[1]);
+	}
+
+	@Override
+	public List<Account> listAccounts(int afterId, int limit) {
+		checkArgument(limit >= 0, "Non-negative limit required.");
+		checkOpen();
+		int lastId = memory.getLastId();
+		List<Account> page = new ArrayList<>();
+		long[] read = slot.get();
+		for (long id = Math.max((long) afterId + 1, memory.minId); id <= lastId && page.size() < limit; id++) {
+			memory.readAccount(memory.index((int) id), read);
+			if (read[1] != 0L) {
+				page.add(new Account((int) id, read[0], read[1]));
+			}
+		}
+		int end = memory.minId + memory.capacity - 1;
+		if (page.size() < limit && lastId == end) {
+			// server may have accounts beyond shared memory
+			page.addAll(fallback.listAccounts(Math.max(afterId, end), limit - page.size()));
+		}
+		return page;
+	}
+
+	@Override
+	public List<Account> getAccounts(int[] ids) {
+		int[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		List<Account> accounts = new ArrayList<>(sorted.length);
+		for (int i = 0; i < sorted.length; i++) {
+			if (i > 0 && sorted[i] == sorted[i - 1]) {
+				continue;
+			}
+			Account account = getAccount(sorted[i]);
+			if (account != null) {
+				accounts.add(account);
+			}
+		}
+		return accounts;
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount) {
+		checkArgument(amount > 0L, "Positive value required.");
+		return call(SharedMemory.OP_INCREASE, id, 0, amount) == 1L;
+	}
+
+	@Override
+	public boolean increaseAccountBalance(int id, long amount, String idempotencyKey) {
+		return fallback.increaseAccountBalance(id, amount, idempotencyKey);
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer) {
+		try {
+			long result = call(SharedMemory.OP_TRANSFER, transfer.getSrcId(), transfer.getDstId(), transfer.getAmount());
+			return TransferResult.values()[(int) result];
+		} catch (IllegalStateException e) {
+			// outcome is unknown, like of lost HTTP response
+			return TransferResult.ERROR;
+		}
+	}
+
+	@Override
+	public TransferResult execute(Transfer transfer, String idempotencyKey) {
+		return fallback.execute(transfer, idempotencyKey);
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id) {
+		return fallback.getAccountLog(id);
+	}
+
+	@Override
+	public List<Transfer> getAccountLog(int id, long from, long to, int limit) {
+		return fallback.getAccountLog(id, from, to, limit);
+	}
+
+	@Override
+	public Account getAccountAsOf(int id, long timestamp) {
+		return fallback.getAccountAsOf(id, timestamp);
+	}
+
+	@Override
+	public Account getAccountAtSequence(int id, long sequence) {
+		return fallback.getAccountAtSequence(id, sequence);
+	}
+
+	@Override
+	public List<Account> getTopAccounts(int limit) {
+		return fallback.getTopAccounts(limit);
+	}
+
+	@Override
+	public List<Account> getAccountsByBalance(long from, long to, int limit) {
+		return fallback.getAccountsByBalance(from, to, limit);
+	}
+
+	@Override
+	public BalanceSnapshot exportBalances(OutputStream out) throws IOException {
+		return fallback.exportBalances(out);
+	}
+
+	@Override
+	public AccountingStats getStats() {
+		return fallback.getStats();
+	}
+
+	@Override
+	public AuditReport audit() {
+		return fallback.audit();
+	}
+}
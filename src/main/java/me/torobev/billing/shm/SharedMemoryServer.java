@@ -0,0 +1,370 @@
+package me.torobev.billing.shm;
+
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.AccountListener;
+import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Serves {@link InMemoryAccounting} to processes on the same host through memory-mapped file, see
+ * {@link SharedMemoryClient}. Single server thread mirrors balances into account slots by replaying the transfer
+ * log tail, like read replica does, and serves write requests of the shared queue in batches. Results of a batch
+ * are written after the log entries of the batch are mirrored, so client reads its own writes. Ticket at queue head
+ * which is claimed but not put within claim timeout, e.g. by client process killed in between, is expired and
+ * skipped.
+ */
+public class SharedMemoryServer implements AccountListener, Runnable, Closeable {
+
+	private static final Logger LOGGER = getLogger(SharedMemoryServer.class);
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+	public static final long DEFAULT_CLAIM_TIMEOUT_NANOS = SECONDS.toNanos(1L);
+
+	private static final int BATCH = 256;
+	// polls without work before server thread parks
+	private static final int SPINS = 100;
+	private static final long IDLE_NANOS = MICROSECONDS.toNanos(50L);
+
+	/**
+	 * Account creation or removal waiting to be applied in log order
+	 */
+	private static class Event {
+
+		private final boolean created;
+		private final int id;
+		private final long position;
+		// order of events with the same position
+		private final long order;
+
+		Event(boolean created, int id, long position, long order) {
+			this.created = created;
+			this.id = id;
+			this.position = position;
+			this.order = order;
+		}
+	}
+
+	private static final Comparator<Event> EVENT_ORDER =
+		Comparator.<Event>comparingLong(e -> e.position).thenComparingLong(e -> e.order);
+
+	private final InMemoryAccounting storage;
+	private final Accounting accounting;
+	private final Path file;
+	private final int minId;
+	private final int capacity;
+	private final int queueSize;
+	private final long claimTimeoutNanos;
+
+	private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+	private final AtomicLong order = new AtomicLong();
+
+	// fields below are accessed by server thread only
+	private final PriorityQueue<Event> pending = new PriorityQueue<>(EVENT_ORDER);
+	private final long[] results = new long[BATCH];
+	private SharedMemory memory;
+	private long position;
+	private int lastId;
+	// claimed ticket at queue head which is not put yet, and since when
+	private long stalledTicket = -1L;
+	private long stalledSince;
+
+	private volatile long served;
+	private volatile long expired;
+	private Thread server;
+	private volatile boolean closed;
+
+	/**
+	 * @param storage    accounting to mirror balances of
+	 * @param accounting accounting to apply write requests to, e.g. storage itself or semi-synchronous wrapper
+	 * @param file       file to create, existing file is replaced
+	 * @param capacity   number of mirrored account ids from the first one, reads of other accounts are not served
+	 * @param queueSize  number of write requests queued at once, power of two
+	 */
+	public SharedMemoryServer(InMemoryAccounting storage, Accounting accounting, Path file, int capacity,
+														int queueSize) {
+		this(storage, accounting, file, capacity, queueSize, DEFAULT_CLAIM_TIMEOUT_NANOS);
+	}
+
+	/**
+	 * @param storage           accounting to mirror balances of
+	 * @param accounting        accounting to apply write requests to, e.g. storage itself or semi-synchronous wrapper
+	 * @param file              file to create, existing file is replaced
+	 * @param capacity          number of mirrored account ids from the first one, reads of other accounts are not served
+	 * @param queueSize         number of write requests queued at once, power of two
+	 * @param claimTimeoutNanos how long ticket may stay claimed at queue head without request before it is expired
+	 */
+	public SharedMemoryServer(InMemoryAccounting storage, Accounting accounting, Path file, int capacity,
+														int queueSize, long claimTimeoutNanos) {
+		this.storage = storage;
+		this.accounting = accounting;
+		this.file = file;
+		this.minId = storage.getMinId();
+		this.capacity = capacity;
+		this.queueSize = queueSize;
+		this.claimTimeoutNanos = claimTimeoutNanos;
+	}
+
+	/**
+	 * Creates file, copies balances at consistent cut and starts server thread
+	 *
+	 * @throws UncheckedIOException if file can not be created
+	 */
+	public void start() {
+		try {
+			memory = SharedMemory.create(file, minId, capacity, queueSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to create shared memory file " + file, e);
+		}
+		lastId = minId - 1;
+		// events are collected before cut, so none is lost between cut and log tail
+		storage.addListener(this);
+		position = storage.snapshot(account -> put(account.getId(), account.getBalance(), account.getVersion()))
+			.getSequence();
+		applyEvents(position);
+		memory.setPosition(position);
+		memory.setLastId(lastId);
+		memory.ready();
+
+		server = new Thread(this, "shared-memory");
+		server.setDaemon(true);
+		server.start();
+		LOGGER.info("Shared memory {} serves {} accounts from id {}", file, capacity, minId);
+	}
+
+	@Override
+	public void created(int id, long position) {
+		events.offer(new Event(true, id, position, order.getAndIncrement()));
+	}
+
+	@Override
+	public void removed(int id, long position) {
+		events.offer(new Event(false, id, position, order.getAndIncrement()));
+	}
+
+	@Override
+	public void run() {
+		int idle = 0;
+		try {
+			while (!closed) {
+				int requests = serve();
+				boolean mirrored = mirror();
+				if (requests > 0) {
+					long head = memory.getHead();
+					for (int i = 0; i < requests; i++) {
+						memory.putResult(head + i, results[i]);
+					}
+					served += requests;
+				}
+				if (requests > 0 || mirrored) {
+					idle = 0;
+				} else if (++idle < SPINS) {
+					Thread.yield();
+				} else {
+					parkNanos(IDLE_NANOS);
+				}
+			}
+		} catch (RuntimeException e) {
+			LOGGER.error("Shared memory server stopped at log position {}", position, e);
+		} finally {
+			memory.markClosed();
+		}
+	}
+
+	/**
+	 * Executes ready requests from queue head, results are kept until their log entries are mirrored
+	 *
+	 * @return number of executed requests
+	 */
+	private int serve() {
+		long head = memory.getHead();
+		int count = 0;
+		while (count < BATCH) {
+			long ticket = head + count;
+			if (!memory.isReady(ticket)) {
+				if (!isStale(ticket)) {
+					break;
+				}
+				LOGGER.warn("Shared memory request {} is not put in time, ticket expired", ticket);
+				results[count++] = SharedMemory.EXPIRED;
+				expired++;
+				continue;
+			}
+			try {
+				results[count] = execute(memory.getOp(ticket), memory.getId(ticket), memory.getOther(ticket),
+					memory.getAmount(ticket));
+			} catch (RuntimeException e) {
+				LOGGER.warn("Shared memory request {} failed", ticket, e);
+				results[count] = SharedMemory.FAILED;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Expires ticket which is claimed but not put for longer than claim timeout
+	 *
+	 * @return {@code true} if ticket is expired
+	 */
+	private boolean isStale(long ticket) {
+		if (ticket >= memory.getTail()) {
+			// not claimed
+			return false;
+		}
+		long now = nanoTime();
+		if (ticket != stalledTicket) {
+			stalledTicket = ticket;
+			stalledSince = now;
+			return false;
+		}
+		return now - stalledSince > claimTimeoutNanos && memory.expire(ticket);
+	}
+
+	private long execute(int op, int id, int other, long amount) {
+		switch (op) {
+			case SharedMemory.OP_CREATE:
+				return accounting.createAccount().getId();
+			case SharedMemory.OP_CREATE_RANGE:
+				return accounting.createAccounts(other, amount).getFirstId();
+			case SharedMemory.OP_REMOVE:
+				return accounting.removeAccount(id) ? 1L : 0L;
+			case SharedMemory.OP_INCREASE:
+				return accounting.increaseAccountBalance(id, amount) ? 1L : 0L;
+			case SharedMemory.OP_TRANSFER:
+				return accounting.execute(new Transfer(id, other, amount)).ordinal();
+			default:
+				throw new IllegalArgumentException("Unknown operation " + op);
+		}
+	}
+
+	/**
+	 * Applies log tail to account slots
+	 *
+	 * @return {@code false} if there was nothing to apply
+	 */
+	private boolean mirror() {
+		long size = storage.getLogSize();
+		boolean changed = size > position || !events.isEmpty();
+		if (!changed) {
+			return false;
+		}
+		storage.readLog(position, size, this::apply);
+		position = size;
+		applyEvents(position);
+		memory.setLastId(lastId);
+		memory.setPosition(position);
+		return true;
+	}
+
+	private void apply(Transfer transfer) {
+		applyEvents(transfer.getSequence());
+		if (transfer.getSrcId() != 0) {
+			add(transfer.getSrcId(), -transfer.getAmount());
+		}
+		if (transfer.getDstId() != 0) {
+			// initial balance of new account precedes its creation
+			add(transfer.getDstId(), transfer.getAmount());
+		}
+	}
+
+	/**
+	 * Applies events which precede log entry at given position
+	 */
+	private void applyEvents(long position) {
+		Event event;
+		while ((event = events.poll()) != null) {
+			pending.add(event);
+		}
+		while ((event = pending.peek()) != null && event.position <= position) {
+			pending.poll();
+			int index = memory.index(event.id);
+			if (index < 0) {
+				continue;
+			}
+			if (!event.created) {
+				memory.writeAccount(index, 0L, 0L);
+			} else if (memory.getVersion(index) == 0L) {
+				put(event.id, 0L, 1L);
+			}
+		}
+	}
+
+	private void add(int id, long amount) {
+		int index = memory.index(id);
+		if (index < 0) {
+			return;
+		}
+		long version = memory.getVersion(index);
+		if (version == 0L) {
+			put(id, amount, 1L);
+		} else {
+			memory.writeAccount(index, memory.getBalance(index) + amount, version + 1L);
+		}
+	}
+
+	private void put(int id, long balance, long version) {
+		int index = memory.index(id);
+		if (index < 0) {
+			return;
+		}
+		memory.writeAccount(index, balance, version);
+		lastId = Math.max(lastId, id);
+	}
+
+	/**
+	 * @return number of write requests served so far
+	 */
+	public long getServed() {
+		return served;
+	}
+
+	/**
+	 * @return number of tickets expired without request
+	 */
+	public long getExpired() {
+		return expired;
+	}
+
+	/**
+	 * @return log position balances are mirrored at
+	 */
+	public long getPosition() {
+		return memory == null ? 0L : memory.getPosition();
+	}
+
+	/**
+	 * Stops serving, clients see shared memory closed
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		storage.removeListener(this);
+		if (server != null) {
+			try {
+				server.join(MINUTES.toMillis(1L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else if (memory != null) {
+			memory.markClosed();
+		}
+	}
+}
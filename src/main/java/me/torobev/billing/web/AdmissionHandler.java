@@ -0,0 +1,224 @@
+package me.torobev.billing.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.currentTimeMillis;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Admission control in front of {@link Handler}.
+ * Reads and writes have separate {@link Budget}s. Each budget caps the number of in-flight requests and
+ * watches the time requests spend in jetty queue before reaching the handler in CoDel manner: once queueing
+ * delay stays above target for the whole interval, requests are answered with
+ * {@code 503 Service Unavailable} and {@code Retry-After} header until delay drops below target again.
+ * Requests of a class without budget are always admitted. Batch of transfers is charged per transfer, so batch
+ * larger than free part of the budget is rejected. Charge is capped at the whole budget, so batch larger than
+ * the budget is admitted once nothing else is in flight instead of never.
+ */
+public class AdmissionHandler extends HandlerWrapper {
+
+	private static final Logger LOGGER = getLogger(AdmissionHandler.class);
+
+	private static final Handler.Result<?> OVERLOADED = new Handler.Result<>(SC_SERVICE_UNAVAILABLE, "OVERLOADED", null);
+
+	private final ObjectMapper mapper;
+	private final Budget reads;
+	private final Budget writes;
+
+	AdmissionHandler(ObjectMapper mapper, Budget reads, Budget writes) {
+		this.mapper = mapper;
+		this.reads = reads;
+		this.writes = writes;
+	}
+
+	/**
+	 * Admission budget of one request class
+	 */
+	public static class Budget {
+
+		private final int maxInFlight;
+		private final long targetDelayMillis;
+		private final long intervalMillis;
+
+		private final AtomicInteger inFlight = new AtomicInteger(0);
+		private final LongAdder admitted = new LongAdder();
+		private final LongAdder shed = new LongAdder();
+
+		// time when delay above target becomes persistent, 0 while delay is below target
+		private volatile long firstAboveTime;
+		private volatile boolean dropping;
+
+		/**
+		 * @param maxInFlight       maximum number of concurrently handled requests
+		 * @param targetDelayMillis acceptable queueing delay
+		 * @param intervalMillis    how long delay may stay above target before shedding starts
+		 */
+		public Budget(int maxInFlight, long targetDelayMillis, long intervalMillis) {
+			checkArgument(maxInFlight > 0);
+			checkArgument(targetDelayMillis > 0L);
+			checkArgument(intervalMillis > 0L);
+			this.maxInFlight = maxInFlight;
+			this.targetDelayMillis = targetDelayMillis;
+			this.intervalMillis = intervalMillis;
+		}
+
+		boolean tryAcquire(long now, long delay) {
+			return tryAcquire(now, delay, 1);
+		}
+
+		/**
+		 * @param permits number of in-flight requests to charge, e.g. number of transfers of a batch, at most
+		 *                {@code maxInFlight} are charged
+		 */
+		boolean tryAcquire(long now, long delay, int permits) {
+			if (delay < targetDelayMillis) {
+				firstAboveTime = 0L;
+				dropping = false;
+			} else {
+				long first = firstAboveTime;
+				if (first == 0L) {
+					firstAboveTime = now + intervalMillis;
+				} else if (now >= first) {
+					dropping = true;
+				}
+			}
+
+			if (dropping) {
+				shed.add(permits);
+				return false;
+			}
+			int charge = charge(permits);
+			if (inFlight.addAndGet(charge) > maxInFlight) {
+				inFlight.addAndGet(-charge);
+				shed.add(permits);
+				return false;
+			}
+			admitted.add(permits);
+			return true;
+		}
+
+		void release() {
+			release(1);
+		}
+
+		void release(int permits) {
+			inFlight.addAndGet(-charge(permits));
+		}
+
+		private int charge(int permits) {
+			return Math.min(permits, maxInFlight);
+		}
+
+		long retryAfterSeconds() {
+			return Math.max(1L, (intervalMillis + 999L) / 1000L);
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		public long getAdmitted() {
+			return admitted.sum();
+		}
+
+		public long getShed() {
+			return shed.sum();
+		}
+
+		public boolean isDropping() {
+			return dropping;
+		}
+
+		@Override
+		public String toString() {
+			return "Budget{" +
+				"maxInFlight=" + maxInFlight +
+				", targetDelayMillis=" + targetDelayMillis +
+				", intervalMillis=" + intervalMillis +
+				'}';
+		}
+	}
+
+	public Budget getReads() {
+		return reads;
+	}
+
+	public Budget getWrites() {
+		return writes;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+		if (request.getDispatcherType() == DispatcherType.ASYNC) {
+			// resumed request was admitted when it arrived
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		String method = request.getMethod();
+		Budget budget = "GET".equals(method) || "HEAD".equals(method) ? reads : writes;
+		if (budget == null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		long now = currentTimeMillis();
+		long delay = now - baseRequest.getTimeStamp();
+		int permits = permits(target, request);
+		if (!budget.tryAcquire(now, delay, permits)) {
+			reject(baseRequest, response, budget);
+			return;
+		}
+		try {
+			super.handle(target, baseRequest, request, response);
+		} finally {
+			budget.release(permits);
+		}
+	}
+
+	/**
+	 * @return number of transfers of batch request, 1 for any other request
+	 */
+	private static int permits(String target, HttpServletRequest request) {
+		if (!"/transfers/batch".equals(target) && !"/transfers/batch/".equals(target)) {
+			return 1;
+		}
+		String transfers = request.getParameter("transfers");
+		if (transfers == null) {
+			return 1;
+		}
+		int permits = 1;
+		for (int i = 0; i < transfers.length() && permits <= Handler.MAX_TRANSFERS; i++) {
+			if (transfers.charAt(i) == ',') {
+				permits++;
+			}
+		}
+		return permits;
+	}
+
+	private void reject(Request baseRequest, HttpServletResponse response, Budget budget) {
+		try {
+			response.setStatus(SC_SERVICE_UNAVAILABLE);
+			response.setContentType("application/json; charset=utf-8");
+			response.addHeader("Retry-After", Long.toString(budget.retryAfterSeconds()));
+			mapper.writeValue(response.getOutputStream(), OVERLOADED);
+		} catch (IOException e) {
+			LOGGER.debug("Failed to write overload response", e);
+		} finally {
+			baseRequest.setHandled(true);
+		}
+	}
+}
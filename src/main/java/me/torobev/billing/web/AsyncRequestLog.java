@@ -0,0 +1,281 @@
+package me.torobev.billing.web;
+
+import me.torobev.billing.AccessLogStats;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * NCSA access log written by background thread. Request threads only copy request fields to a preallocated slot
+ * of bounded ring buffer, claimed with a single CAS. Writer thread formats records and appends them to log file
+ * in batches, rolling file over when it grows too large. Records which do not fit in the ring are dropped
+ * and counted, so logging never delays requests.
+ */
+public class AsyncRequestLog extends AbstractLifeCycle implements RequestLog, Runnable {
+
+	private static final Logger LOGGER = getLogger(AsyncRequestLog.class);
+
+	private static final int BATCH = 4096;
+	private static final long IDLE_NANOS = MILLISECONDS.toNanos(1L);
+	private static final DateTimeFormatter DATE_FORMAT =
+		DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+	/**
+	 * Ring slot, fields are written by request thread which claimed it and read by writer after it is published
+	 */
+	private static class Record {
+
+		// position the slot is free for, or published at plus one
+		private volatile long sequence;
+
+		private long time;
+		private String remote;
+		private String method;
+		private String uri;
+		private String protocol;
+		private int status;
+		private long bytes;
+		private long latency;
+
+		Record(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	private final Path file;
+	private final long maxFileBytes;
+	private final int maxFiles;
+
+	private final Record[] ring;
+	private final int mask;
+	// next position to claim
+	private final AtomicLong tail = new AtomicLong();
+	// next position to write, written by writer only
+	private volatile long head;
+
+	private final LongAdder dropped = new LongAdder();
+	private volatile long written;
+	private volatile long maxDepth;
+	private volatile long files;
+
+	// accessed by writer only
+	private final StringBuilder batch = new StringBuilder();
+	private OutputStream out;
+	private long fileBytes;
+	private long dateSecond = Long.MIN_VALUE;
+	private String date;
+
+	private Thread writer;
+	private volatile boolean stopping;
+	private volatile boolean stopped;
+
+	/**
+	 * @param file         log file, rolled over to {@code file.1}, {@code file.2} and so on
+	 * @param capacity     maximum number of queued records, power of two
+	 * @param maxFileBytes size of log file to roll it over at
+	 * @param maxFiles     number of rolled over files to keep
+	 */
+	public AsyncRequestLog(Path file, int capacity, long maxFileBytes, int maxFiles) {
+		checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "Power of two capacity required");
+		checkArgument(maxFileBytes > 0L);
+		checkArgument(maxFiles >= 0);
+		this.file = file;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+		this.ring = new Record[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < capacity; i++) {
+			ring[i] = new Record(i);
+		}
+	}
+
+	@Override
+	public void log(Request request, Response response) {
+		long time = request.getTimeStamp();
+		offer(time, request.getRemoteAddr(), request.getMethod(), request.getOriginalURI(), request.getProtocol(),
+			response.getCommittedMetaData().getStatus(), response.getHttpChannel().getBytesWritten(),
+			currentTimeMillis() - time);
+	}
+
+	/**
+	 * @return {@code false} if record is dropped because ring is full
+	 */
+	boolean offer(long time, String remote, String method, String uri, String protocol, int status, long bytes,
+								long latency) {
+		if (stopped) {
+			dropped.increment();
+			return false;
+		}
+		long position;
+		Record record;
+		while (true) {
+			position = tail.get();
+			record = ring[(int) (position & mask)];
+			long sequence = record.sequence;
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if (sequence < position) {
+				// slot is not written yet since the previous round
+				dropped.increment();
+				return false;
+			}
+		}
+		record.time = time;
+		record.remote = remote;
+		record.method = method;
+		record.uri = uri;
+		record.protocol = protocol;
+		record.status = status;
+		record.bytes = bytes;
+		record.latency = latency;
+		record.sequence = position + 1;
+		return true;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		open();
+		stopping = false;
+		stopped = false;
+		writer = new Thread(this, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		stopping = true;
+		writer.join(MINUTES.toMillis(1));
+		out.close();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				if (drain() == 0) {
+					// stop once records claimed so far are written
+					if (stopping && head == tail.get()) {
+						break;
+					}
+					parkNanos(IDLE_NANOS);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.error("Access log stopped, records are dropped from now on", e);
+		} finally {
+			stopped = true;
+		}
+	}
+
+	private int drain() throws IOException {
+		long h = head;
+		maxDepth = Math.max(maxDepth, tail.get() - h);
+		int count = 0;
+		while (count < BATCH) {
+			Record record = ring[(int) (h & mask)];
+			if (record.sequence != h + 1) {
+				break;
+			}
+			format(record);
+			record.remote = null;
+			record.method = null;
+			record.uri = null;
+			record.protocol = null;
+			record.sequence = h + ring.length;
+			h++;
+			count++;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		head = h;
+		byte[] bytes = batch.toString().getBytes(UTF_8);
+		batch.setLength(0);
+		out.write(bytes);
+		out.flush();
+		written += count;
+		fileBytes += bytes.length;
+		if (fileBytes >= maxFileBytes) {
+			roll();
+		}
+		return count;
+	}
+
+	private void format(Record record) {
+		long second = Math.floorDiv(record.time, 1000L);
+		if (second != dateSecond) {
+			dateSecond = second;
+			date = DATE_FORMAT.format(Instant.ofEpochSecond(second));
+		}
+		batch.append(record.remote).append(" - - [").append(date).append("] \"")
+			.append(record.method).append(' ').append(record.uri).append(' ').append(record.protocol).append("\" ")
+			.append(record.status).append(' ').append(record.bytes).append(' ').append(record.latency).append('\n');
+	}
+
+	private void open() throws IOException {
+		out = new BufferedOutputStream(Files.newOutputStream(file, CREATE, APPEND), 1 << 16);
+		fileBytes = Files.size(file);
+	}
+
+	private void roll() throws IOException {
+		out.close();
+		if (maxFiles == 0) {
+			Files.delete(file);
+		} else {
+			for (int i = maxFiles - 1; i > 0; i--) {
+				Path rolled = rolled(i);
+				if (Files.exists(rolled)) {
+					Files.move(rolled, rolled(i + 1), REPLACE_EXISTING);
+				}
+			}
+			Files.move(file, rolled(1), REPLACE_EXISTING);
+		}
+		files++;
+		open();
+	}
+
+	private Path rolled(int index) {
+		return Paths.get(file.toString() + "." + index);
+	}
+
+	/**
+	 * @return queue and writer counters
+	 */
+	public AccessLogStats getStats() {
+		long h = head;
+		return new AccessLogStats(ring.length, Math.max(0L, tail.get() - h), maxDepth, written, dropped.sum(), files);
+	}
+}
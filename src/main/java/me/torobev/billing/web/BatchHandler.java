@@ -0,0 +1,102 @@
+package me.torobev.billing.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.torobev.billing.BatchReport;
+import me.torobev.billing.accounting.AccountRule;
+import me.torobev.billing.accounting.BatchEngine;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import static java.lang.Long.parseLong;
+import static javax.servlet.http.HttpServletResponse.*;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Serves batch jobs of {@link BatchEngine}.
+ * <ul>
+ * <li>{@code POST /batch?run=&interest=&fee=&feeBelow=} starts job crediting daily interest of {@code interest}
+ * annual rate and charging {@code fee} to accounts with balance below {@code feeBelow}, to all accounts if it is not
+ * given. Posting the same {@code run} again resumes it if it was interrupted and does nothing if it is finished</li>
+ * <li>{@code GET /batch} returns report of running or the last job</li>
+ * </ul>
+ * Other requests are passed to wrapped {@link Handler}.
+ */
+public class BatchHandler extends HandlerWrapper {
+
+	private static final Logger LOGGER = getLogger(BatchHandler.class);
+
+	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+	private static final Handler.Result<?> NOT_FOUND = new Handler.Result<>(SC_NOT_FOUND, "NOT_FOUND", null);
+	private static final Handler.Result<?> NOT_ALLOWED = new Handler.Result<>(SC_METHOD_NOT_ALLOWED, "NOT_ALLOWED", null);
+
+	private final ObjectMapper mapper;
+	private final BatchEngine engine;
+
+	BatchHandler(ObjectMapper mapper, BatchEngine engine) {
+		this.mapper = mapper;
+		this.engine = engine;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+		if (!"/batch".equals(target) && !"/batch/".equals(target)) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		Handler.Result<?> result;
+		switch (request.getMethod()) {
+			case "POST":
+				result = start(request);
+				break;
+			case "GET":
+				BatchReport report = engine.getReport();
+				result = report == null ? NOT_FOUND : new Handler.Result<>(SC_OK, "OK", report);
+				break;
+			default:
+				result = NOT_ALLOWED;
+		}
+
+		try {
+			response.setContentType(CONTENT_TYPE);
+			response.addHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+			response.setStatus(result.statusCode);
+			mapper.writeValue(response.getOutputStream(), result);
+		} catch (RuntimeException | IOException e) {
+			LOGGER.error("Failed to handle request {}", target, e);
+			response.setStatus(SC_INTERNAL_SERVER_ERROR);
+		} finally {
+			baseRequest.setHandled(true);
+		}
+	}
+
+	private Handler.Result<?> start(HttpServletRequest request) {
+		String run = request.getParameter("run");
+		String interest = request.getParameter("interest");
+		String fee = request.getParameter("fee");
+		String feeBelow = request.getParameter("feeBelow");
+		boolean withInterest = interest != null && !interest.isEmpty();
+		boolean withFee = fee != null && !fee.isEmpty();
+		if (!withInterest && !withFee) {
+			return new Handler.Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Interest or fee required");
+		}
+		try {
+			AccountRule rule = withInterest ? AccountRule.dailyInterest(new BigDecimal(interest)) : account -> 0L;
+			if (withFee) {
+				long below = feeBelow == null || feeBelow.isEmpty() ? Long.MAX_VALUE : parseLong(feeBelow);
+				rule = rule.plus(AccountRule.fee(parseLong(fee), below));
+			}
+			return new Handler.Result<>(SC_ACCEPTED, "ACCEPTED", engine.start(run, rule));
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			return new Handler.Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package me.torobev.billing.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.cluster.CrossNodeTransfers;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import static javax.servlet.http.HttpServletResponse.*;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Serves {@code /cluster/*} requests of two-phase transfers between cluster nodes, see {@link CrossNodeTransfers}.
+ * Other requests are passed to wrapped {@link Handler}.
+ */
+public class ClusterHandler extends HandlerWrapper {
+
+	private static final Logger LOGGER = getLogger(ClusterHandler.class);
+
+	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+	private static final String PREFIX = "/cluster/";
+
+	private static final Handler.Result<?> NOT_FOUND = new Handler.Result<>(SC_NOT_FOUND, "NOT_FOUND", null);
+	private static final Handler.Result<?> NOT_ALLOWED = new Handler.Result<>(SC_METHOD_NOT_ALLOWED, "NOT_ALLOWED", null);
+
+	private final ObjectMapper mapper;
+	private final CrossNodeTransfers transfers;
+
+	ClusterHandler(ObjectMapper mapper, CrossNodeTransfers transfers) {
+		this.mapper = mapper;
+		this.transfers = transfers;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+		if (!target.startsWith(PREFIX)) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		try {
+			response.setContentType(CONTENT_TYPE);
+			Handler.Result<?> result;
+			String tx = request.getParameter("tx");
+			if (!"POST".equals(request.getMethod())) {
+				result = NOT_ALLOWED;
+			} else if (tx == null || tx.isEmpty()) {
+				result = new Handler.Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Transfer id required");
+			} else {
+				switch (target.substring(PREFIX.length())) {
+					case "prepare":
+						result = new Handler.Result<>(SC_OK, "OK", transfers.prepare(tx, transfer(request)));
+						break;
+					case "credit":
+						result = new Handler.Result<>(SC_OK, "OK", transfers.credit(tx, transfer(request)));
+						break;
+					case "commit":
+						result = new Handler.Result<>(SC_OK, "OK", transfers.commit(tx));
+						break;
+					case "abort":
+						result = new Handler.Result<>(SC_OK, "OK", transfers.abort(tx));
+						break;
+					case "resolve":
+						result = new Handler.Result<>(SC_OK, "OK", transfers.resolve(tx));
+						break;
+					default:
+						result = NOT_FOUND;
+				}
+			}
+			response.setStatus(result.statusCode);
+			mapper.writeValue(response.getOutputStream(), result);
+		} catch (IllegalArgumentException e) {
+			LOGGER.error("Failed to handle request {}", target, e);
+			response.setStatus(SC_NOT_ACCEPTABLE);
+		} catch (RuntimeException e) {
+			LOGGER.error("Failed to handle request {}", target, e);
+			response.setStatus(SC_INTERNAL_SERVER_ERROR);
+		} finally {
+			baseRequest.setHandled(true);
+		}
+	}
+
+	private static Transfer transfer(HttpServletRequest request) {
+		String src = request.getParameter("src");
+		String dst = request.getParameter("dst");
+		String amount = request.getParameter("amount");
+		if (src == null || dst == null || amount == null) {
+			throw new IllegalArgumentException("Transfer src, dst and amount required");
+		}
+		return new Transfer(parseInt(src), parseInt(dst), parseLong(amount));
+	}
+}
@@ -0,0 +1,160 @@
+package me.torobev.billing.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.torobev.billing.feed.ChangeFeed;
+import me.torobev.billing.feed.Subscription;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import static java.util.regex.Pattern.compile;
+import static javax.servlet.http.HttpServletResponse.*;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Serves {@link ChangeFeed} subscriptions with long polling. Poll of empty subscription is suspended without holding
+ * a server thread and is dispatched again once transfers arrive or wait time passes.
+ * <ul>
+ * <li>{@code POST /feed?from=&account=} subscribes from log position, to future transfers by default</li>
+ * <li>{@code GET /feed/{id}?wait=&max=} takes the next transfers or gap marker, waiting up to {@code wait} ms</li>
+ * <li>{@code DELETE /feed/{id}} unsubscribes</li>
+ * </ul>
+ * Other requests are passed to wrapped {@link Handler}.
+ */
+public class FeedHandler extends HandlerWrapper {
+
+	private static final Logger LOGGER = getLogger(FeedHandler.class);
+
+	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+	private static final Pattern FEED = compile("^/feed/?$");
+	private static final Pattern SUBSCRIPTION = compile("^/feed/(?<id>[\\d]+)/?$");
+	private static final int DEFAULT_MAX = 1000;
+
+	private static final Handler.Result<?> NOT_FOUND = new Handler.Result<>(SC_NOT_FOUND, "NOT_FOUND", null);
+	private static final Handler.Result<?> NOT_ALLOWED = new Handler.Result<>(SC_METHOD_NOT_ALLOWED, "NOT_ALLOWED", null);
+
+	private final ObjectMapper mapper;
+	private final ChangeFeed feed;
+
+	FeedHandler(ObjectMapper mapper, ChangeFeed feed) {
+		this.mapper = mapper;
+		this.feed = feed;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+		Matcher matcher;
+		if (FEED.matcher(target).find()) {
+			respond(target, baseRequest, response, subscribe(request));
+		} else if ((matcher = SUBSCRIPTION.matcher(target)).find()) {
+			long id = parseLong(matcher.group("id"));
+			if ("DELETE".equals(request.getMethod())) {
+				Handler.Result<?> result = feed.unsubscribe(id) ? new Handler.Result<>(SC_OK, "OK", null) : NOT_FOUND;
+				respond(target, baseRequest, response, result);
+			} else if ("GET".equals(request.getMethod())) {
+				poll(target, id, baseRequest, request, response);
+			} else {
+				respond(target, baseRequest, response, NOT_ALLOWED);
+			}
+		} else {
+			super.handle(target, baseRequest, request, response);
+		}
+	}
+
+	private Handler.Result<?> subscribe(HttpServletRequest request) {
+		if (!"POST".equals(request.getMethod())) {
+			return NOT_ALLOWED;
+		}
+		String fromStr = request.getParameter("from");
+		String accountStr = request.getParameter("account");
+		try {
+			long from = fromStr == null || fromStr.isEmpty() ? ChangeFeed.NOW : parseLong(fromStr);
+			int account = accountStr == null || accountStr.isEmpty() ? 0 : parseInt(accountStr);
+			return new Handler.Result<>(SC_CREATED, "CREATED", feed.subscribe(from, account).getId());
+		} catch (IllegalArgumentException e) {
+			return new Handler.Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", e.getMessage());
+		}
+	}
+
+	private void poll(String target, long id, Request baseRequest, HttpServletRequest request,
+										HttpServletResponse response) {
+		Subscription subscription = feed.getSubscription(id);
+		if (subscription == null) {
+			respond(target, baseRequest, response, NOT_FOUND);
+			return;
+		}
+		String maxStr = request.getParameter("max");
+		String waitStr = request.getParameter("wait");
+		int max;
+		long wait;
+		try {
+			max = maxStr == null || maxStr.isEmpty() ? DEFAULT_MAX : parseInt(maxStr);
+			wait = waitStr == null || waitStr.isEmpty() ? 0L : parseLong(waitStr);
+			checkArgument(max > 0, "Positive max required.");
+		} catch (IllegalArgumentException e) {
+			respond(target, baseRequest, response, new Handler.Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", e.getMessage()));
+			return;
+		}
+		if (request.getDispatcherType() == DispatcherType.ASYNC || wait <= 0L || subscription.isReadable()) {
+			respond(target, baseRequest, response, new Handler.Result<>(SC_OK, "OK", subscription.poll(max)));
+			return;
+		}
+
+		// suspend until dispatcher wakes subscription up or wait time passes, then poll again
+		AsyncContext async = request.startAsync();
+		async.setTimeout(wait);
+		Runnable wake = async::dispatch;
+		async.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				if (subscription.cancel(wake)) {
+					async.dispatch();
+				}
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				subscription.cancel(wake);
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		subscription.await(wake);
+		baseRequest.setHandled(true);
+	}
+
+	private void respond(String target, Request baseRequest, HttpServletResponse response, Handler.Result<?> result) {
+		try {
+			response.setContentType(CONTENT_TYPE);
+			response.addHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+			response.setStatus(result.statusCode);
+			mapper.writeValue(response.getOutputStream(), result);
+		} catch (RuntimeException | IOException e) {
+			LOGGER.error("Failed to handle request {}", target, e);
+			response.setStatus(SC_INTERNAL_SERVER_ERROR);
+		} finally {
+			baseRequest.setHandled(true);
+		}
+	}
+}
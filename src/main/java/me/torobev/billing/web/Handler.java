@@ -4,9 +4,16 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import me.torobev.billing.Account;
+import me.torobev.billing.AccountBatch;
+import me.torobev.billing.AccountRange;
 import me.torobev.billing.Transfer;
 import me.torobev.billing.accounting.Accounting;
 import me.torobev.billing.accounting.Accounting.TransferResult;
+import me.torobev.billing.accounting.IdempotencyKeyReusedException;
+import me.torobev.billing.accounting.ReadReplica;
+import me.torobev.billing.persistence.JdbcWriteBehind;
+import me.torobev.billing.replication.Replication;
+import me.torobev.billing.replication.ReplicationFollower;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.slf4j.Logger;
@@ -14,12 +21,14 @@ import org.slf4j.Logger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.Long.parseLong;
+import static java.lang.System.currentTimeMillis;
 import static java.util.regex.Pattern.compile;
 import static javax.servlet.http.HttpServletResponse.*;
 import static me.torobev.billing.accounting.Accounting.TransferResult.OK;
@@ -29,22 +38,82 @@ public class Handler extends AbstractHandler {
 
 	private final ObjectMapper mapper;
 	private final Accounting accounting;
+	private final Replication replication;
+	private final boolean standby;
+	private final ReadReplica replica;
+	private final PhaseStats phases;
+	private final AsyncRequestLog accessLog;
+	private final JdbcWriteBehind persistence;
+
+	/**
+	 * Request header asking to serve account reads from read replica, {@code replica=true} parameter does the same
+	 */
+	public static final String READ_REPLICA_HEADER = "X-Read-Replica";
+	/**
+	 * Response header with log position of read replica view the request is served from
+	 */
+	public static final String REPLICA_POSITION_HEADER = "X-Replica-Position";
+	/**
+	 * Response header with age of read replica view in ms
+	 */
+	public static final String REPLICA_AGE_HEADER = "X-Replica-Age";
+	/**
+	 * Request header with unique key of transfer or increase, request repeated with the same key is not applied again
+	 */
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	/**
+	 * Message of {@code 409 Conflict} answer to request with idempotency key used for another request
+	 */
+	public static final String KEY_REUSED = "IDEMPOTENCY_KEY_REUSED";
+	/**
+	 * Request header asking to answer with {@code Server-Timing} header of request phases
+	 */
+	public static final String SERVER_TIMING_HEADER = "X-Server-Timing";
+	/**
+	 * Maximum number of accounts listed or read in one request
+	 */
+	public static final int MAX_ACCOUNTS = 10000;
+	/**
+	 * Maximum number of transfers executed in one request
+	 */
+	public static final int MAX_TRANSFERS = 1000;
+	/**
+	 * Request attribute with name of route the request is handled by
+	 */
+	static final String ROUTE_ATTRIBUTE = "me.torobev.billing.route";
 
 	private static final Logger LOGGER = getLogger(Handler.class);
 
 	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+	private static final String CSV_CONTENT_TYPE = "text/csv; charset=us-ascii";
 
 	private static final Pattern ACCOUNT = compile("/accounts/(?<id>[\\d]+)/?$");
 	private static final Pattern ACCOUNT_INCREASE = compile("/accounts/(?<id>[\\d]+)/increase/?$");
 	private static final Pattern ACCOUNT_LOG = compile("/accounts/(?<id>[\\d]+)/log/?$");
+	private static final Pattern ACCOUNT_BALANCE = compile("/accounts/(?<id>[\\d]+)/balance/?$");
+
+	// number of accounts returned by balance queries without limit
+	private static final int DEFAULT_TOP_ACCOUNTS = 100;
 
 	private static final Result<?> NOT_FOUND = new Result<>(SC_NOT_FOUND, "NOT_FOUND", null);
 	private static final Result<?> NOT_ALLOWED = new Result<>(SC_METHOD_NOT_ALLOWED, "NOT_ALLOWED", null);
+	private static final Result<?> STANDBY = new Result<>(SC_SERVICE_UNAVAILABLE, "STANDBY", null);
+	private static final Result<?> NOT_MODIFIED = new Result<>(SC_NOT_MODIFIED, "NOT_MODIFIED", null);
+
+	// account versions restart with server, so entity tags are told apart by server start time
+	private final String epoch = Long.toString(currentTimeMillis(), 36);
 
 
-	Handler(ObjectMapper mapper, Accounting accounting) {
+	Handler(ObjectMapper mapper, Accounting accounting, Replication replication, ReadReplica replica,
+					PhaseStats phases, AsyncRequestLog accessLog, JdbcWriteBehind persistence) {
 		this.mapper = mapper;
 		this.accounting = accounting;
+		this.replication = replication;
+		this.standby = replication instanceof ReplicationFollower;
+		this.replica = replica;
+		this.phases = phases;
+		this.accessLog = accessLog;
+		this.persistence = persistence;
 	}
 
 	public static class Result<T> {
@@ -68,6 +137,8 @@ public class Handler extends AbstractHandler {
 
 	@Override
 	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) {
+		Object event = RequestEvents.begin();
+		PhaseClock clock = new PhaseClock();
 		try {
 			response.setContentType(CONTENT_TYPE);
 
@@ -79,23 +150,102 @@ public class Handler extends AbstractHandler {
 			response.addHeader("Pragma", "no-cache");
 			response.addHeader("Expires", "0");
 
-			if ("/transfer".equals(target) || "/transfer/".equals(target)) {
-				result = transfer(request);
+			if (standby && !"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())
+				&& !target.startsWith("/accounts/batch")) {
+				// standby applies leader changes only, batch read is posted for its size
+				clock.route("standby");
+				result = STANDBY;
+			} else if ("/transfer".equals(target) || "/transfer/".equals(target)) {
+				clock.route("transfer");
+				result = transfer(request, clock);
+			} else if ("/transfers/batch".equals(target) || "/transfers/batch/".equals(target)) {
+				clock.route("transfers/batch");
+				result = transfers(request, clock);
 			} else if ("/accounts/create".equals(target) || "/accounts/create/".equals(target)) {
+				clock.route("accounts/create");
 				result = createAccount(baseRequest, response);
+			} else if ("/accounts/bulk".equals(target) || "/accounts/bulk/".equals(target)) {
+				clock.route("accounts/bulk");
+				result = createAccounts(request, clock);
+			} else if ("/accounts/export".equals(target) || "/accounts/export/".equals(target)) {
+				clock.route("accounts/export");
+				if ("GET".equals(request.getMethod())) {
+					exportBalances(response);
+					clock.mark(Phase.SERIALIZE);
+					return;
+				}
+				result = NOT_ALLOWED;
+			} else if ("/accounts".equals(target) || "/accounts/".equals(target)) {
+				clock.route("accounts");
+				result = listAccounts(request, clock);
+			} else if ("/accounts/batch".equals(target) || "/accounts/batch/".equals(target)) {
+				clock.route("accounts/batch");
+				result = getAccounts(request, clock);
+			} else if ("/accounts/top".equals(target) || "/accounts/top/".equals(target)) {
+				clock.route("accounts/top");
+				result = topAccounts(request, clock);
+			} else if ("/accounts/by-balance".equals(target) || "/accounts/by-balance/".equals(target)) {
+				clock.route("accounts/by-balance");
+				result = accountsByBalance(request, clock);
+			} else if ("/audit".equals(target) || "/audit/".equals(target)) {
+				clock.route("audit");
+				result = audit(request);
+			} else if ("/replication".equals(target) || "/replication/".equals(target)) {
+				clock.route("replication");
+				if (replication != null) {
+					result = new Result<>(SC_OK, "OK", replication.getStatus());
+				}
+			} else if ("/stats".equals(target) || "/stats/".equals(target)) {
+				clock.route("stats");
+				result = new Result<>(SC_OK, "OK", accounting.getStats());
+			} else if ("/stats/timings".equals(target) || "/stats/timings/".equals(target)) {
+				clock.route("stats/timings");
+				result = new Result<>(SC_OK, "OK", phases.getTimings());
+			} else if ("/stats/access-log".equals(target) || "/stats/access-log/".equals(target)) {
+				clock.route("stats/access-log");
+				if (accessLog != null) {
+					result = new Result<>(SC_OK, "OK", accessLog.getStats());
+				}
+			} else if ("/stats/persistence".equals(target) || "/stats/persistence/".equals(target)) {
+				clock.route("stats/persistence");
+				if (persistence != null) {
+					result = new Result<>(SC_OK, "OK", persistence.getStats());
+				}
 			} else if ((matcher = ACCOUNT.matcher(target)).find()) {
+				clock.route("account");
+				int id = parseInt(matcher.group("id"));
+				clock.mark(Phase.PARSE);
 				if ("DELETE".equals(request.getMethod())) {
-					result = removeAccount(parseInt(matcher.group("id")));
+					result = removeAccount(id);
 				} else {
-					result = showAccount(parseInt(matcher.group("id")));
+					result = showAccount(id, request, response, replicaView(request, response));
 				}
 			} else if ((matcher = ACCOUNT_LOG.matcher(target)).find()) {
-				result = showAccountLog(parseInt(matcher.group("id")));
+				clock.route("account/log");
+				result = showAccountLog(parseInt(matcher.group("id")), request, clock, replicaView(request, response));
+			} else if ((matcher = ACCOUNT_BALANCE.matcher(target)).find()) {
+				clock.route("account/balance");
+				result = showAccountBalance(parseInt(matcher.group("id")), request, response, clock,
+					replicaView(request, response));
 			} else if ((matcher = ACCOUNT_INCREASE.matcher(target)).find()) {
-				result = accountIncrease(parseInt(matcher.group("id")), request);
+				clock.route("account/increase");
+				result = accountIncrease(parseInt(matcher.group("id")), request, clock);
+			} else {
+				clock.route(PhaseClock.OTHER);
 			}
+			// what is left after parsing is spent on accounting
+			clock.mark(Phase.ACCOUNTING);
 			response.setStatus(result.statusCode);
-			mapper.writeValue(response.getOutputStream(), result);
+			if ("true".equalsIgnoreCase(request.getHeader(SERVER_TIMING_HEADER)) || phases.sample()) {
+				// serialized before writing, so that serialization time makes it to the header
+				byte[] body = result != NOT_MODIFIED ? mapper.writeValueAsBytes(result) : new byte[0];
+				clock.mark(Phase.SERIALIZE);
+				response.setHeader("Server-Timing", clock.toServerTiming());
+				response.getOutputStream().write(body);
+			} else if (result != NOT_MODIFIED) {
+				mapper.writeValue(response.getOutputStream(), result);
+			}
+			clock.mark(Phase.SERIALIZE);
 		} catch (IllegalArgumentException e) {
 			LOGGER.error("Failed to handle request {}", target, e);
 			response.setStatus(SC_NOT_ACCEPTABLE);
@@ -104,10 +254,13 @@ public class Handler extends AbstractHandler {
 			response.setStatus(SC_INTERNAL_SERVER_ERROR);
 		} finally {
 			baseRequest.setHandled(true);
+			phases.record(clock);
+			request.setAttribute(ROUTE_ATTRIBUTE, clock.getRoute());
+			RequestEvents.end(event, request.getMethod(), target, response.getStatus(), clock.getNanos(Phase.SERIALIZE));
 		}
 	}
 
-	private Result<?> transfer(HttpServletRequest request) {
+	private Result<?> transfer(HttpServletRequest request, PhaseClock clock) {
 		if (!request.getMethod().equals("POST")) {
 			return NOT_ALLOWED;
 		}
@@ -126,11 +279,64 @@ public class Handler extends AbstractHandler {
 			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Dst account required");
 		}
 
-		TransferResult result = accounting.execute(new Transfer(parseInt(fromStr), parseInt(toStr), parseLong(amountStr)));
+		Transfer transfer = new Transfer(parseInt(fromStr), parseInt(toStr), parseLong(amountStr));
+		String idempotencyKey = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+		clock.mark(Phase.PARSE);
+		TransferResult result;
+		try {
+			result = accounting.execute(transfer, idempotencyKey);
+		} catch (IdempotencyKeyReusedException e) {
+			return new Result<>(SC_CONFLICT, KEY_REUSED, e.getMessage());
+		}
 		return new Result<>(result == OK ? SC_OK : SC_NOT_ACCEPTABLE, result.toString(), null);
 	}
 
-	private Result<?> accountIncrease(int id, HttpServletRequest request) {
+	/**
+	 * Executes transfers of comma separated {@code transfers} parameter of {@code src:dst:amount} items one by one,
+	 * which is usually sent in form body. Every transfer gets result of its own, malformed one is not executed and
+	 * gets {@link TransferResult#ERROR}.
+	 */
+	private Result<?> transfers(HttpServletRequest request, PhaseClock clock) {
+		if (!request.getMethod().equals("POST")) {
+			return NOT_ALLOWED;
+		}
+		String transfersStr = request.getParameter("transfers");
+		if (transfersStr == null || transfersStr.isEmpty()) {
+			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Transfers required");
+		}
+		String[] split = transfersStr.split(",");
+		if (split.length > MAX_TRANSFERS) {
+			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Up to " + MAX_TRANSFERS + " transfers");
+		}
+		// null for malformed item
+		List<Transfer> transfers = new ArrayList<>(split.length);
+		for (String item : split) {
+			transfers.add(parseTransfer(item));
+		}
+		clock.mark(Phase.PARSE);
+		List<TransferResult> results = new ArrayList<>(transfers.size());
+		for (Transfer transfer : transfers) {
+			results.add(transfer == null ? TransferResult.ERROR : accounting.execute(transfer));
+		}
+		return new Result<>(SC_OK, "OK", results);
+	}
+
+	/**
+	 * @return transfer of {@code src:dst:amount} item, {@code null} if item is malformed
+	 */
+	private static Transfer parseTransfer(String item) {
+		String[] fields = item.trim().split(":");
+		if (fields.length != 3) {
+			return null;
+		}
+		try {
+			return new Transfer(parseInt(fields[0]), parseInt(fields[1]), parseLong(fields[2]));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private Result<?> accountIncrease(int id, HttpServletRequest request, PhaseClock clock) {
 		if (!request.getMethod().equals("POST")) {
 			return NOT_ALLOWED;
 		}
@@ -139,7 +345,15 @@ public class Handler extends AbstractHandler {
 			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Amount required");
 		}
 		long amount = parseLong(amountStr);
-		if (accounting.increaseAccountBalance(id, amount)) {
+		String idempotencyKey = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+		clock.mark(Phase.PARSE);
+		boolean increased;
+		try {
+			increased = accounting.increaseAccountBalance(id, amount, idempotencyKey);
+		} catch (IdempotencyKeyReusedException e) {
+			return new Result<>(SC_CONFLICT, KEY_REUSED, e.getMessage());
+		}
+		if (increased) {
 			return new Result<>(SC_OK, "OK", null);
 		} else {
 			return NOT_FOUND;
@@ -156,13 +370,165 @@ public class Handler extends AbstractHandler {
 		}
 	}
 
-	private Result<?> showAccount(int id) {
-		Account account = accounting.getAccount(id);
+	private Result<?> createAccounts(HttpServletRequest request, PhaseClock clock) {
+		if (!request.getMethod().equals("POST")) {
+			return NOT_ALLOWED;
+		}
+		String countStr = request.getParameter("count");
+		if (countStr == null || countStr.isEmpty()) {
+			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Count required");
+		}
+		String balanceStr = request.getParameter("balance");
+		long balance = balanceStr == null || balanceStr.isEmpty() ? 0L : parseLong(balanceStr);
+		int count = parseInt(countStr);
+		clock.mark(Phase.PARSE);
+
+		AccountRange range = accounting.createAccounts(count, balance);
+		return new Result<>(SC_CREATED, "CREATED", range);
+	}
+
+	private void exportBalances(HttpServletResponse response) throws IOException {
+		response.setStatus(SC_OK);
+		response.setContentType(CSV_CONTENT_TYPE);
+		// streamed with chunked encoding while transfers go on
+		accounting.exportBalances(response.getOutputStream());
+	}
+
+	private Result<?> listAccounts(HttpServletRequest request, PhaseClock clock) {
+		if (!request.getMethod().equals("GET")) {
+			return NOT_ALLOWED;
+		}
+		String afterStr = request.getParameter("after");
+		int after = afterStr == null || afterStr.isEmpty() ? 0 : parseInt(afterStr);
+		String limitStr = request.getParameter("limit");
+		int limit = limitStr == null || limitStr.isEmpty() ? MAX_ACCOUNTS : parseInt(limitStr);
+		if (limit > MAX_ACCOUNTS) {
+			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Limit up to " + MAX_ACCOUNTS + " accounts");
+		}
+		clock.mark(Phase.PARSE);
+		return new Result<>(SC_OK, "OK", new AccountBatch(accounting.listAccounts(after, limit)));
+	}
+
+	/**
+	 * Reads accounts by comma separated {@code ids} parameter, which is usually sent in form body by POST
+	 */
+	private Result<?> getAccounts(HttpServletRequest request, PhaseClock clock) {
+		if (!request.getMethod().equals("GET") && !request.getMethod().equals("POST")) {
+			return NOT_ALLOWED;
+		}
+		String idsStr = request.getParameter("ids");
+		if (idsStr == null || idsStr.isEmpty()) {
+			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Ids required");
+		}
+		String[] split = idsStr.split(",");
+		if (split.length > MAX_ACCOUNTS) {
+			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Up to " + MAX_ACCOUNTS + " ids");
+		}
+		int[] ids = new int[split.length];
+		for (int i = 0; i < split.length; i++) {
+			ids[i] = parseInt(split[i].trim());
+		}
+		clock.mark(Phase.PARSE);
+		return new Result<>(SC_OK, "OK", new AccountBatch(accounting.getAccounts(ids)));
+	}
+
+	private Result<?> topAccounts(HttpServletRequest request, PhaseClock clock) {
+		if (!request.getMethod().equals("GET")) {
+			return NOT_ALLOWED;
+		}
+		int limit = balanceQueryLimit(request);
+		if (limit <= 0) {
+			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Positive limit required");
+		}
+		clock.mark(Phase.PARSE);
+		return new Result<>(SC_OK, "OK", accounting.getTopAccounts(limit));
+	}
+
+	private Result<?> accountsByBalance(HttpServletRequest request, PhaseClock clock) {
+		if (!request.getMethod().equals("GET")) {
+			return NOT_ALLOWED;
+		}
+		String fromStr = request.getParameter("from");
+		long from = fromStr == null || fromStr.isEmpty() ? 0L : parseLong(fromStr);
+		String toStr = request.getParameter("to");
+		long to = toStr == null || toStr.isEmpty() ? Long.MAX_VALUE : parseLong(toStr);
+		int limit = balanceQueryLimit(request);
+		if (limit <= 0) {
+			return new Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Positive limit required");
+		}
+		clock.mark(Phase.PARSE);
+		return new Result<>(SC_OK, "OK", accounting.getAccountsByBalance(from, to, limit));
+	}
+
+	/**
+	 * @return {@code limit} parameter clamped to {@link #MAX_ACCOUNTS}, so that query never answers with all accounts
+	 */
+	private static int balanceQueryLimit(HttpServletRequest request) {
+		String limitStr = request.getParameter("limit");
+		int limit = limitStr == null || limitStr.isEmpty() ? DEFAULT_TOP_ACCOUNTS : parseInt(limitStr);
+		return Math.min(limit, MAX_ACCOUNTS);
+	}
+
+	private Result<?> audit(HttpServletRequest request) {
+		if (!request.getMethod().equals("POST")) {
+			return NOT_ALLOWED;
+		}
+		return new Result<>(SC_OK, "OK", accounting.audit());
+	}
+
+	/**
+	 * @return read replica view if request accepts stale reads, {@code null} to read accounting itself
+	 */
+	private ReadReplica.View replicaView(HttpServletRequest request, HttpServletResponse response) {
+		if (replica == null || !"GET".equals(request.getMethod())) {
+			return null;
+		}
+		if (!"true".equalsIgnoreCase(request.getHeader(READ_REPLICA_HEADER))
+			&& !"true".equalsIgnoreCase(request.getParameter("replica"))) {
+			return null;
+		}
+		ReadReplica.View view = replica.getView();
+		response.addHeader(REPLICA_POSITION_HEADER, Long.toString(view.getPosition()));
+		response.addHeader(REPLICA_AGE_HEADER, Long.toString(Math.max(0L, currentTimeMillis() - view.getTime())));
+		return view;
+	}
+
+	/**
+	 * Tags versioned account and checks whether client has it already
+	 *
+	 * @return {@code null} if account is to be sent
+	 */
+	private Result<?> revalidate(Account account, HttpServletRequest request, HttpServletResponse response) {
+		if (account.getVersion() == 0L) {
+			return null;
+		}
+		String etag = '"' + epoch + '.' + account.getVersion() + '"';
+		// client may keep tagged account, but has to revalidate it on every read
+		response.setHeader("Cache-Control", "no-cache");
+		response.setHeader("ETag", etag);
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals(etag) || tag.equals("*")) {
+					return NOT_MODIFIED;
+				}
+			}
+		}
+		return null;
+	}
+
+	private Result<?> showAccount(int id, HttpServletRequest request, HttpServletResponse response,
+																ReadReplica.View view) {
+		Account account = view == null ? accounting.getAccount(id) : view.getAccount(id);
 		if (account == null) {
 			return NOT_FOUND;
-		} else {
-			return new Result<>(SC_OK, "OK", account);
 		}
+		Result<?> notModified = revalidate(account, request, response);
+		return notModified != null ? notModified : new Result<>(SC_OK, "OK", account);
 	}
 
 	private Result<?> removeAccount(int id) {
@@ -174,12 +540,47 @@ public class Handler extends AbstractHandler {
 	}
 
 
-	private Result<?> showAccountLog(int id) {
+	private Result<?> showAccountBalance(int id, HttpServletRequest request, HttpServletResponse response,
+																			 PhaseClock clock, ReadReplica.View view) {
+		String asOfStr = request.getParameter("asOf");
+		String seqStr = request.getParameter("seq");
+		boolean asOf = asOfStr != null && !asOfStr.isEmpty();
+		boolean atSequence = !asOf && seqStr != null && !seqStr.isEmpty();
+		long point = asOf ? parseLong(asOfStr) : atSequence ? parseLong(seqStr) : 0L;
+		clock.mark(Phase.PARSE);
+		Account account;
+		if (asOf) {
+			account = accounting.getAccountAsOf(id, point);
+		} else if (atSequence) {
+			account = accounting.getAccountAtSequence(id, point);
+		} else {
+			account = view == null ? accounting.getAccount(id) : view.getAccount(id);
+		}
+		if (account == null) {
+			return NOT_FOUND;
+		}
+		Result<?> notModified = revalidate(account, request, response);
+		return notModified != null ? notModified : new Result<>(SC_OK, "OK", account);
+	}
+
+	private Result<?> showAccountLog(int id, HttpServletRequest request, PhaseClock clock, ReadReplica.View view) {
+		String fromStr = request.getParameter("from");
+		long from = fromStr == null || fromStr.isEmpty() ? Long.MIN_VALUE : parseLong(fromStr);
+		String toStr = request.getParameter("to");
+		long to = toStr == null || toStr.isEmpty() ? Long.MAX_VALUE : parseLong(toStr);
+		String limitStr = request.getParameter("limit");
+		int limit = limitStr == null || limitStr.isEmpty() ? Integer.MAX_VALUE : parseInt(limitStr);
+		clock.mark(Phase.PARSE);
+
+		if (view != null) {
+			Account account = view.getAccount(id);
+			return account == null ? NOT_FOUND : new Result<>(SC_OK, "OK", view.getAccountLog(id, from, to, limit));
+		}
 		Account account = accounting.getAccount(id);
 		if (account == null) {
 			return NOT_FOUND;
 		} else {
-			List<Transfer> accountLog = accounting.getAccountLog(id);
+			List<Transfer> accountLog = accounting.getAccountLog(id, from, to, limit);
 			return new Result<>(SC_OK, "OK", accountLog);
 		}
 	}
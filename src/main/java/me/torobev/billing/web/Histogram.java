@@ -0,0 +1,89 @@
+package me.torobev.billing.web;
+
+import me.torobev.billing.PhaseTiming;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in ns. Every power of two range is split into 8 buckets, so recorded value is
+ * known within 12.5% while the histogram takes fixed 4 KB.
+ */
+class Histogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = 64 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long nanos) {
+		long value = Math.max(0L, nanos);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// retry
+		}
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return the greatest value recorded to bucket
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index >>> SUB_BITS) - 1;
+		long lower = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * @return distribution of values recorded so far, concurrent records may be partially included
+	 */
+	PhaseTiming snapshot() {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		long maximum = max.get();
+		long n = count.sum();
+		return new PhaseTiming(n, n == 0L ? 0L : sum.sum() / n,
+			percentile(snapshot, total, 0.5, maximum),
+			percentile(snapshot, total, 0.9, maximum),
+			percentile(snapshot, total, 0.99, maximum),
+			maximum);
+	}
+
+	private static long percentile(long[] snapshot, long total, double quantile, long maximum) {
+		if (total == 0L) {
+			return 0L;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0L;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), maximum);
+			}
+		}
+		return maximum;
+	}
+}
@@ -0,0 +1,42 @@
+package me.torobev.billing.web;
+
+/**
+ * Phases of request handling timed by {@link Handler}
+ */
+public enum Phase {
+	/**
+	 * Matching target to route
+	 */
+	ROUTE("route"),
+	/**
+	 * Parsing request parameters
+	 */
+	PARSE("parse"),
+	/**
+	 * Accounting operation
+	 */
+	ACCOUNTING("accounting"),
+	/**
+	 * Serializing and writing response
+	 */
+	SERIALIZE("serialize"),
+	/**
+	 * Writing request log line after response
+	 */
+	LOG("log");
+
+	static final Phase[] PHASES = values();
+
+	private final String metric;
+
+	Phase(String metric) {
+		this.metric = metric;
+	}
+
+	/**
+	 * @return name used in {@code Server-Timing} header and timing stats
+	 */
+	public String getMetric() {
+		return metric;
+	}
+}
@@ -0,0 +1,59 @@
+package me.torobev.billing.web;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Monotonic stopwatch of one request, time between marks is added to the marked phase
+ */
+class PhaseClock {
+
+	static final String OTHER = "other";
+
+	private final long start = nanoTime();
+	private long last = start;
+	private final long[] nanos = new long[Phase.PHASES.length];
+	private String route = OTHER;
+
+	/**
+	 * Ends routing
+	 *
+	 * @param route name of matched route
+	 */
+	void route(String route) {
+		this.route = route;
+		mark(Phase.ROUTE);
+	}
+
+	void mark(Phase phase) {
+		long now = nanoTime();
+		nanos[phase.ordinal()] += now - last;
+		last = now;
+	}
+
+	String getRoute() {
+		return route;
+	}
+
+	long getNanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	/**
+	 * @return {@code Server-Timing} header value of phases passed so far and their total, in ms
+	 */
+	String toServerTiming() {
+		StringBuilder builder = new StringBuilder();
+		for (Phase phase : Phase.PHASES) {
+			if (phase != Phase.LOG) {
+				append(builder, phase.getMetric(), nanos[phase.ordinal()]);
+				builder.append(", ");
+			}
+		}
+		append(builder, "total", last - start);
+		return builder.toString();
+	}
+
+	private static void append(StringBuilder builder, String metric, long nanos) {
+		builder.append(metric).append(";dur=").append(nanos / 1000L / 1000.0);
+	}
+}
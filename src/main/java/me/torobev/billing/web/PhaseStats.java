@@ -0,0 +1,80 @@
+package me.torobev.billing.web;
+
+import me.torobev.billing.PhaseTiming;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.ThreadLocalRandom.current;
+
+/**
+ * Histograms of request phase durations per route, and sampling of requests answered with {@code Server-Timing}
+ */
+public class PhaseStats {
+
+	private final int sampleEvery;
+	private final Map<String, Histogram[]> routes = new ConcurrentHashMap<>();
+
+	/**
+	 * @param sampleEvery answer every n-th request on average with {@code Server-Timing}, 0 to answer only
+	 *                    requests asking for it
+	 */
+	public PhaseStats(int sampleEvery) {
+		checkArgument(sampleEvery >= 0);
+		this.sampleEvery = sampleEvery;
+	}
+
+	boolean sample() {
+		return sampleEvery > 0 && current().nextInt(sampleEvery) == 0;
+	}
+
+	private Histogram[] histograms(String route) {
+		Histogram[] histograms = routes.get(route);
+		if (histograms == null) {
+			histograms = routes.computeIfAbsent(route, r -> {
+				Histogram[] created = new Histogram[Phase.PHASES.length];
+				for (int i = 0; i < created.length; i++) {
+					created[i] = new Histogram();
+				}
+				return created;
+			});
+		}
+		return histograms;
+	}
+
+	/**
+	 * Records all request phases except {@link Phase#LOG}, which comes after request is handled
+	 */
+	void record(PhaseClock clock) {
+		Histogram[] histograms = histograms(clock.getRoute());
+		for (Phase phase : Phase.PHASES) {
+			if (phase != Phase.LOG) {
+				histograms[phase.ordinal()].record(clock.getNanos(phase));
+			}
+		}
+	}
+
+	void record(String route, Phase phase, long nanos) {
+		histograms(route)[phase.ordinal()].record(nanos);
+	}
+
+	/**
+	 * @return phase durations by route and phase metric name
+	 */
+	public Map<String, Map<String, PhaseTiming>> getTimings() {
+		Map<String, Map<String, PhaseTiming>> timings = new TreeMap<>();
+		routes.forEach((route, histograms) -> {
+			Map<String, PhaseTiming> phases = new TreeMap<>();
+			for (Phase phase : Phase.PHASES) {
+				PhaseTiming timing = histograms[phase.ordinal()].snapshot();
+				if (timing.getCount() > 0L) {
+					phases.put(phase.getMetric(), timing);
+				}
+			}
+			timings.put(route, phases);
+		});
+		return timings;
+	}
+}
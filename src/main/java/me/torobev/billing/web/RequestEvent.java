@@ -0,0 +1,37 @@
+package me.torobev.billing.web;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event of request handled by {@link Handler}. Event duration covers the whole request,
+ * write time is the part spent on writing response.
+ */
+@Name(RequestEvent.NAME)
+@Label("Request")
+@Description("Request handled by billing handler")
+@Category({"Billing", "Web"})
+@StackTrace(false)
+public class RequestEvent extends Event {
+
+	public static final String NAME = "me.torobev.billing.Request";
+
+	@Label("Method")
+	String method;
+
+	@Label("Target")
+	String target;
+
+	@Label("Status")
+	int status;
+
+	@Label("Write Time")
+	@Description("Time spent on writing response")
+	@Timespan(Timespan.NANOSECONDS)
+	long writeTime;
+}
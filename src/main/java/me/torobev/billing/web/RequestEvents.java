@@ -0,0 +1,52 @@
+package me.torobev.billing.web;
+
+/**
+ * Flight recorder events of {@link Handler}. Events are created only if the runtime provides flight recorder API,
+ * otherwise methods do nothing and {@link RequestEvent} is never loaded.
+ */
+final class RequestEvents {
+
+	/**
+	 * {@code true} if {@code jdk.jfr.Event} is available, checked once
+	 */
+	static final boolean ENABLED = isAvailable();
+
+	private RequestEvents() {
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return started {@link RequestEvent}, {@code null} if events are disabled
+	 */
+	static Object begin() {
+		if (!ENABLED) {
+			return null;
+		}
+		RequestEvent event = new RequestEvent();
+		event.begin();
+		return event;
+	}
+
+	static void end(Object started, String method, String target, int status, long writeTime) {
+		if (started == null) {
+			return;
+		}
+		RequestEvent event = (RequestEvent) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.method = method;
+			event.target = target;
+			event.status = status;
+			event.writeTime = writeTime;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package me.torobev.billing.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.torobev.billing.ScheduledTransfer;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.schedule.TransferScheduler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import static java.lang.System.currentTimeMillis;
+import static java.util.regex.Pattern.compile;
+import static javax.servlet.http.HttpServletResponse.*;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Serves future-dated transfers and standing orders of {@link TransferScheduler}.
+ * <ul>
+ * <li>{@code POST /transfers/scheduled?src=&dst=&amount=&at=&delay=&period=} schedules transfer at {@code at} ms
+ * or {@code delay} ms from now, repeated every {@code period} ms if it is given</li>
+ * <li>{@code GET /transfers/scheduled} returns scheduler stats</li>
+ * <li>{@code GET /transfers/scheduled/{id}} returns scheduled transfer with its last result</li>
+ * <li>{@code DELETE /transfers/scheduled/{id}} cancels it</li>
+ * </ul>
+ * Other requests are passed to wrapped {@link Handler}.
+ */
+public class ScheduleHandler extends HandlerWrapper {
+
+	private static final Logger LOGGER = getLogger(ScheduleHandler.class);
+
+	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+	private static final Pattern SCHEDULE = compile("^/transfers/scheduled/?$");
+	private static final Pattern SCHEDULED = compile("^/transfers/scheduled/(?<id>[\\d]+)/?$");
+
+	private static final Handler.Result<?> NOT_FOUND = new Handler.Result<>(SC_NOT_FOUND, "NOT_FOUND", null);
+	private static final Handler.Result<?> NOT_ALLOWED = new Handler.Result<>(SC_METHOD_NOT_ALLOWED, "NOT_ALLOWED", null);
+
+	private final ObjectMapper mapper;
+	private final TransferScheduler scheduler;
+
+	ScheduleHandler(ObjectMapper mapper, TransferScheduler scheduler) {
+		this.mapper = mapper;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+		throws IOException, ServletException {
+		boolean schedule = SCHEDULE.matcher(target).find();
+		Matcher matcher = SCHEDULED.matcher(target);
+		if (!schedule && !matcher.find()) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		try {
+			Handler.Result<?> result;
+			try {
+				result = schedule ? schedules(request) : scheduled(matcher.group("id"), request);
+			} catch (IllegalArgumentException e) {
+				result = new Handler.Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", e.getMessage());
+			}
+			response.setContentType(CONTENT_TYPE);
+			response.addHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+			response.setStatus(result.statusCode);
+			mapper.writeValue(response.getOutputStream(), result);
+		} catch (RuntimeException | IOException e) {
+			LOGGER.error("Failed to handle request {}", target, e);
+			response.setStatus(SC_INTERNAL_SERVER_ERROR);
+		} finally {
+			baseRequest.setHandled(true);
+		}
+	}
+
+	private Handler.Result<?> schedules(HttpServletRequest request) {
+		switch (request.getMethod()) {
+			case "POST":
+				return schedule(request);
+			case "GET":
+				return new Handler.Result<>(SC_OK, "OK", scheduler.getStats());
+			default:
+				return NOT_ALLOWED;
+		}
+	}
+
+	private Handler.Result<?> scheduled(String idStr, HttpServletRequest request) {
+		long id = parseLong(idStr);
+		switch (request.getMethod()) {
+			case "GET":
+				ScheduledTransfer scheduled = scheduler.getScheduledTransfer(id);
+				return scheduled == null ? NOT_FOUND : new Handler.Result<>(SC_OK, "OK", scheduled);
+			case "DELETE":
+				return scheduler.cancel(id) ? new Handler.Result<>(SC_OK, "OK", null) : NOT_FOUND;
+			default:
+				return NOT_ALLOWED;
+		}
+	}
+
+	private Handler.Result<?> schedule(HttpServletRequest request) {
+		String src = request.getParameter("src");
+		String dst = request.getParameter("dst");
+		String amount = request.getParameter("amount");
+		String at = request.getParameter("at");
+		String delay = request.getParameter("delay");
+		String period = request.getParameter("period");
+		if (src == null || dst == null || amount == null) {
+			return new Handler.Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", "Transfer src, dst and amount required");
+		}
+		try {
+			long dueTime = at != null && !at.isEmpty()
+				? parseLong(at)
+				: currentTimeMillis() + (delay == null || delay.isEmpty() ? 0L : parseLong(delay));
+			long periodMillis = period == null || period.isEmpty() ? 0L : parseLong(period);
+			Transfer transfer = new Transfer(parseInt(src), parseInt(dst), parseLong(amount));
+			return new Handler.Result<>(SC_CREATED, "CREATED", scheduler.schedule(transfer, dueTime, periodMillis));
+		} catch (IllegalArgumentException e) {
+			return new Handler.Result<>(SC_NOT_ACCEPTABLE, "NOT_ACCEPTABLE", e.getMessage());
+		}
+	}
+}
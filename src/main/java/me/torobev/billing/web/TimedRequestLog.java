@@ -0,0 +1,32 @@
+package me.torobev.billing.web;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Request log recording time spent on logging as {@link Phase#LOG} of route handled by {@link Handler}
+ */
+class TimedRequestLog extends ContainerLifeCycle implements RequestLog {
+
+	private final RequestLog log;
+	private final PhaseStats stats;
+
+	TimedRequestLog(RequestLog log, PhaseStats stats) {
+		this.log = log;
+		this.stats = stats;
+		// wrapped log is started and stopped with this one
+		addBean(log);
+	}
+
+	@Override
+	public void log(Request request, Response response) {
+		long start = nanoTime();
+		log.log(request, response);
+		Object route = request.getAttribute(Handler.ROUTE_ATTRIBUTE);
+		stats.record(route instanceof String ? (String) route : PhaseClock.OTHER, Phase.LOG, nanoTime() - start);
+	}
+}
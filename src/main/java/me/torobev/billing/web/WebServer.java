@@ -1,6 +1,10 @@
 package me.torobev.billing.web;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.Slf4jRequestLog;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -9,32 +13,468 @@ import com.fasterxml.jackson.core.StreamWriteFeature;
 import com.fasterxml.jackson.core.json.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.accounting.BatchEngine;
+import me.torobev.billing.accounting.ConservationCheck;
+import me.torobev.billing.cluster.CrossNodeTransfers;
+import me.torobev.billing.cluster.Partitioning;
+import me.torobev.billing.feed.ChangeFeed;
+import me.torobev.billing.persistence.JdbcWriteBehind;
+import me.torobev.billing.schedule.TransferScheduler;
+import me.torobev.billing.shm.SharedMemoryServer;
 import me.torobev.billing.accounting.InMemoryAccounting;
+import me.torobev.billing.accounting.ReadReplica;
+import me.torobev.billing.accounting.Reclaimer;
+import me.torobev.billing.accounting.Reclaimer.History;
+import me.torobev.billing.accounting.Reclaimer.Policy;
+import me.torobev.billing.replication.Replication;
+import me.torobev.billing.replication.ReplicationFollower;
+import me.torobev.billing.replication.ReplicationLeader;
+import me.torobev.billing.replication.SemiSyncAccounting;
+import me.torobev.billing.rest.RestClient;
+import me.torobev.billing.web.AdmissionHandler.Budget;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.Runtime.getRuntime;
 import static java.lang.System.getProperty;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
 
 public class WebServer {
 
+	private static final int THREADS = 2 * getRuntime().availableProcessors();
+
 	private final int port;
 	private Server server;
 
+	private Budget reads;
+	private Budget writes;
+	private AdmissionHandler admission;
+	private Accounting accounting;
+	private PhaseStats phases = new PhaseStats(0);
+
+	private static final long ACCESS_LOG_FILE_BYTES = 100L << 20;
+	private static final int ACCESS_LOG_FILES = 10;
+	private Path accessLogFile;
+	private int accessLogCapacity;
+	private AsyncRequestLog accessLog;
+
+	private long scheduleTickMillis;
+	private TransferScheduler scheduler;
+
+	private Path sharedMemoryFile;
+	private int sharedMemoryCapacity;
+	private SharedMemoryServer sharedMemory;
+
+	private int batchParallelism;
+	private long batchBudgetMicros;
+	private BatchEngine batch;
+
+	private String databaseUrl;
+	private JdbcWriteBehind persistence;
+
+	private static final long RECLAIM_PERIOD_MILLIS = 10000L;
+	private Policy retention = new Policy(History.KEEP, 0L, null);
+	private Reclaimer reclaimer;
+
+	private long replicaPeriodMillis;
+	private ReadReplica replica;
+
+	private long conservationPeriodMillis = 60000L;
+	private ConservationCheck conservation;
+
+	private boolean balanceIndex;
+
+	private boolean http2;
+
+	private static final long FEED_IDLE_TIMEOUT_MILLIS = 60000L;
+	private int feedCapacity;
+	private ChangeFeed feed;
+
+	private int replicationPort = -1;
+	private long semiSyncMillis;
+	private String leaderHost;
+	private int leaderPort;
+	private Replication replication;
+
+	private static final long RESOLVE_PERIOD_MILLIS = 1000L;
+	private static final long OUTCOME_RETENTION_MILLIS = 3600000L;
+	private Partitioning partitioning;
+	private List<String> clusterNodes;
+	private int node;
+	private long inDoubtMillis;
+	private final List<RestClient> clusterClients = new ArrayList<>();
+	private CrossNodeTransfers crossNodeTransfers;
 
 	public WebServer(int port) {
 		this.port = port;
 	}
 
+	/**
+	 * Admission budgets, must be set before {@link #start()}. Requests are admitted without control by default.
+	 *
+	 * @param reads  budget for GET and HEAD requests, {@code null} to admit all of them
+	 * @param writes budget for transfers and all other modifications, {@code null} to admit all of them
+	 */
+	public void setAdmission(Budget reads, Budget writes) {
+		this.reads = reads;
+		this.writes = writes;
+	}
+
+	/**
+	 * Accounting to serve, must be set before {@link #start()}. Empty {@link InMemoryAccounting} is used by default.
+	 */
+	public void setAccounting(Accounting accounting) {
+		this.accounting = accounting;
+	}
+
+	/**
+	 * Retention policy of removed accounts history, must be set before {@link #start()}.
+	 * Applies to {@link InMemoryAccounting} only, history is kept by default.
+	 */
+	public void setRetention(Policy retention) {
+		this.retention = retention;
+	}
+
+	/**
+	 * Indexes accounts by balance for top and balance range queries, must be set before {@link #start()}.
+	 * Applies to default {@link InMemoryAccounting} only. Index is off by default: it slows transfers down,
+	 * and without it these queries scan all accounts.
+	 */
+	public void setBalanceIndex(boolean balanceIndex) {
+		this.balanceIndex = balanceIndex;
+	}
+
+	/**
+	 * Accepts cleartext HTTP/2 connections with prior knowledge or upgrade on the same port besides HTTP/1.1, must be
+	 * set before {@link #start()}. Lets multiplexing clients share a few connections. Server speaks HTTP/1.1 only
+	 * by default.
+	 */
+	public void setHttp2(boolean http2) {
+		this.http2 = http2;
+	}
+
+	/**
+	 * Serves account reads which ask for it from in-process read replica, must be set before {@link #start()}.
+	 * Applies to {@link InMemoryAccounting} only.
+	 *
+	 * @param periodMillis how often replica view is published, i.e. staleness bound, 0 to disable replica
+	 */
+	public void setReadReplica(long periodMillis) {
+		this.replicaPeriodMillis = periodMillis;
+	}
+
+	/**
+	 * Checks money conservation at consistent cut in background, must be set before {@link #start()}.
+	 * Applies to {@link InMemoryAccounting} only, accounting is checked every minute by default.
+	 *
+	 * @param periodMillis how often conservation is checked, 0 to disable checks
+	 */
+	public void setConservationCheck(long periodMillis) {
+		this.conservationPeriodMillis = periodMillis;
+	}
+
+	/**
+	 * @return background conservation check, {@code null} when it is disabled
+	 */
+	public ConservationCheck getConservationCheck() {
+		return conservation;
+	}
+
+	/**
+	 * Serves change feed of transfers at {@code /feed}, must be set before {@link #start()}.
+	 * Applies to {@link InMemoryAccounting} only.
+	 *
+	 * @param capacity number of transfers buffered for every subscriber, 0 to disable feed
+	 */
+	public void setChangeFeed(int capacity) {
+		this.feedCapacity = capacity;
+	}
+
+	/**
+	 * Serves future-dated transfers and standing orders at {@code /transfers/scheduled}, must be set before
+	 * {@link #start()}. Applies to leader or standalone server only.
+	 *
+	 * @param tickMillis scheduling precision in ms, 0 to disable scheduler
+	 */
+	public void setScheduler(long tickMillis) {
+		this.scheduleTickMillis = tickMillis;
+	}
+
+	/**
+	 * @return transfer scheduler, {@code null} when it is not set
+	 */
+	public TransferScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Serves accounts to processes on the same host through memory-mapped file, must be set before
+	 * {@link #start()}. Applies to {@link InMemoryAccounting} of leader or standalone server only.
+	 *
+	 * @param file     file to create, existing file is replaced
+	 * @param capacity number of account ids mirrored to file, from the first one
+	 * @see me.torobev.billing.shm.SharedMemoryClient
+	 */
+	public void setSharedMemory(Path file, int capacity) {
+		this.sharedMemoryFile = file;
+		this.sharedMemoryCapacity = capacity;
+	}
+
+	/**
+	 * @return shared memory server, {@code null} when it is not set
+	 */
+	public SharedMemoryServer getSharedMemory() {
+		return sharedMemory;
+	}
+
+	/**
+	 * Serves batch jobs applying interest and fees to all accounts at {@code /batch}, must be set before
+	 * {@link #start()}. Applies to {@link InMemoryAccounting} of leader or standalone server only.
+	 *
+	 * @param parallelism  number of job threads, 0 to disable batch jobs
+	 * @param budgetMicros p99 latency of online transfers in us jobs are throttled to keep within
+	 */
+	public void setBatch(int parallelism, long budgetMicros) {
+		this.batchParallelism = parallelism;
+		this.batchBudgetMicros = budgetMicros;
+	}
+
+	/**
+	 * @return batch job engine, {@code null} when it is not set
+	 */
+	public BatchEngine getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Persists accounting to SQL database behind its back, must be set before {@link #start()}.
+	 * Applies to {@link InMemoryAccounting} only. Accounting is restored from database which has accounts already.
+	 *
+	 * @param url JDBC url, e.g. {@code jdbc:h2:./billing} or {@code jdbc:sqlite:billing.db}
+	 */
+	public void setDatabase(String url) {
+		this.databaseUrl = url;
+	}
+
+	/**
+	 * @return write-behind persistence, {@code null} when database is not set
+	 */
+	public JdbcWriteBehind getPersistence() {
+		return persistence;
+	}
+
+	/**
+	 * Replicates accounting to standby servers, must be set before {@link #start()}.
+	 * Applies to {@link InMemoryAccounting} only.
+	 *
+	 * @param port           port to accept standby connections on, 0 for any free port
+	 * @param semiSyncMillis how long modifications wait for standby acknowledgement, 0 for asynchronous replication
+	 */
+	public void setLeader(int port, long semiSyncMillis) {
+		this.replicationPort = port;
+		this.semiSyncMillis = semiSyncMillis;
+	}
+
+	/**
+	 * Makes server read-only standby of leader server, must be set before {@link #start()}.
+	 * Accounting must be empty {@link InMemoryAccounting}, it is caught up with leader snapshot first.
+	 *
+	 * @param host leader host
+	 * @param port leader replication port
+	 */
+	public void setStandby(String host, int port) {
+		this.leaderHost = host;
+		this.leaderPort = port;
+	}
+
+	/**
+	 * Makes server a node of partitioned cluster, must be set before {@link #start()}.
+	 * Default {@link InMemoryAccounting} is limited to account ids of the node partition.
+	 *
+	 * @param partitioning  partitioning of account ids
+	 * @param nodes         urls of all cluster nodes by index
+	 * @param node          index of this node
+	 * @param inDoubtMillis how long transfer to another node may stay prepared before this node resolves it
+	 */
+	public void setCluster(Partitioning partitioning, List<String> nodes, int node, long inDoubtMillis) {
+		this.partitioning = partitioning;
+		this.clusterNodes = nodes;
+		this.node = node;
+		this.inDoubtMillis = inDoubtMillis;
+	}
+
+	/**
+	 * @return node side of transfers between cluster nodes, {@code null} when cluster is not set
+	 */
+	public CrossNodeTransfers getCrossNodeTransfers() {
+		return crossNodeTransfers;
+	}
+
+	/**
+	 * @return change feed, {@code null} when it is not set
+	 */
+	public ChangeFeed getChangeFeed() {
+		return feed;
+	}
+
+	/**
+	 * @return leader or standby side of replication, {@code null} when replication is not set
+	 */
+	public Replication getReplication() {
+		return replication;
+	}
+
+	/**
+	 * Answers sampled requests with {@code Server-Timing} header, must be set before {@link #start()}.
+	 * Requests with {@link Handler#SERVER_TIMING_HEADER} are answered with it anyway.
+	 *
+	 * @param sampleEvery answer every n-th request on average, 0 to disable sampling
+	 */
+	public void setServerTiming(int sampleEvery) {
+		this.phases = new PhaseStats(sampleEvery);
+	}
+
+	/**
+	 * @return request phase timings by route
+	 */
+	public PhaseStats getPhaseStats() {
+		return phases;
+	}
+
+	/**
+	 * Writes access log asynchronously to rolled over file instead of logging requests to slf4j,
+	 * must be set before {@link #start()}
+	 *
+	 * @param file     log file
+	 * @param capacity number of records queued for writing, power of two; records beyond it are dropped
+	 */
+	public void setAccessLog(Path file, int capacity) {
+		this.accessLogFile = file;
+		this.accessLogCapacity = capacity;
+	}
+
+	/**
+	 * @return asynchronous access log, {@code null} when it is not set
+	 */
+	public AsyncRequestLog getAccessLog() {
+		return accessLog;
+	}
+
+	/**
+	 * @return admission control, {@code null} when no budget is set
+	 */
+	public AdmissionHandler getAdmission() {
+		return admission;
+	}
+
 	public void start() throws Exception {
-		server = new Server(new QueuedThreadPool(2 * getRuntime().availableProcessors()));
-		ServerConnector connector = new ServerConnector(server);
+		server = new Server(new QueuedThreadPool(THREADS));
+		HttpConfiguration http = new HttpConfiguration();
+		ServerConnector connector = http2
+			? new ServerConnector(server, new HttpConnectionFactory(http), new HTTP2CServerConnectionFactory(http))
+			: new ServerConnector(server, new HttpConnectionFactory(http));
 		connector.setPort(port);
 		server.addConnector(connector);
 
-		server.setRequestLog(new Slf4jRequestLog());
+		if (accessLogFile != null) {
+			accessLog = new AsyncRequestLog(accessLogFile, accessLogCapacity, ACCESS_LOG_FILE_BYTES, ACCESS_LOG_FILES);
+			server.setRequestLog(new TimedRequestLog(accessLog, phases));
+		} else {
+			server.setRequestLog(new TimedRequestLog(new Slf4jRequestLog(), phases));
+		}
 		JsonFactory factory = JsonFactory.builder().disable(StreamWriteFeature.AUTO_CLOSE_TARGET).build();
 		ObjectMapper mapper = new ObjectMapper(factory);
-		Handler handler = new Handler(mapper, new InMemoryAccounting());
+		if (accounting == null) {
+			accounting = partitioning == null
+				? new InMemoryAccounting(balanceIndex)
+				: new InMemoryAccounting(partitioning.firstId(node), partitioning.lastId(node), balanceIndex);
+		}
+		Accounting served = accounting;
+		if (accounting instanceof InMemoryAccounting) {
+			InMemoryAccounting storage = (InMemoryAccounting) accounting;
+			if (databaseUrl != null) {
+				// restored before anything else sees accounting
+				persistence = new JdbcWriteBehind(storage, databaseUrl);
+				persistence.start();
+			}
+			reclaimer = new Reclaimer(storage, retention);
+			reclaimer.start(RECLAIM_PERIOD_MILLIS);
+			if (conservationPeriodMillis > 0L) {
+				conservation = new ConservationCheck(storage);
+				conservation.start(conservationPeriodMillis);
+			}
+			if (replicaPeriodMillis > 0L) {
+				replica = new ReadReplica(storage);
+				replica.start(replicaPeriodMillis);
+			}
+			if (feedCapacity > 0) {
+				feed = new ChangeFeed(storage, feedCapacity, FEED_IDLE_TIMEOUT_MILLIS);
+				feed.start();
+			}
+			if (leaderHost != null) {
+				ReplicationFollower follower = new ReplicationFollower(storage, leaderHost, leaderPort);
+				follower.start();
+				replication = follower;
+			} else if (replicationPort >= 0) {
+				ReplicationLeader leader = new ReplicationLeader(storage, replicationPort);
+				leader.start();
+				replication = leader;
+				if (semiSyncMillis > 0L) {
+					served = new SemiSyncAccounting(storage, leader, semiSyncMillis);
+				}
+			}
+			if (batchParallelism > 0 && leaderHost == null) {
+				batch = new BatchEngine(storage, batchParallelism, MICROSECONDS.toNanos(batchBudgetMicros));
+			}
+			if (sharedMemoryFile != null && leaderHost == null) {
+				sharedMemory = new SharedMemoryServer(storage, served, sharedMemoryFile, sharedMemoryCapacity,
+					SharedMemoryServer.DEFAULT_QUEUE_SIZE);
+				sharedMemory.start();
+			}
+		}
+		org.eclipse.jetty.server.Handler handler = new Handler(mapper, served, replication, replica, phases,
+			accessLog, persistence);
+		if (scheduleTickMillis > 0L && leaderHost == null) {
+			// standby applies leader changes only
+			scheduler = new TransferScheduler(served, scheduleTickMillis);
+			scheduler.start();
+			HandlerWrapper scheduleHandler = new ScheduleHandler(mapper, scheduler);
+			scheduleHandler.setHandler(handler);
+			handler = scheduleHandler;
+		}
+		if (batch != null) {
+			HandlerWrapper batchHandler = new BatchHandler(mapper, batch);
+			batchHandler.setHandler(handler);
+			handler = batchHandler;
+		}
+		if (feed != null) {
+			HandlerWrapper feedHandler = new FeedHandler(mapper, feed);
+			feedHandler.setHandler(handler);
+			handler = feedHandler;
+		}
+		if (partitioning != null) {
+			if (!(accounting instanceof InMemoryAccounting)) {
+				throw new IllegalStateException("Cluster node requires InMemoryAccounting");
+			}
+			for (String location : clusterNodes) {
+				clusterClients.add(new RestClient(location));
+			}
+			crossNodeTransfers = new CrossNodeTransfers((InMemoryAccounting) accounting, partitioning, node,
+				clusterClients, inDoubtMillis, Math.max(OUTCOME_RETENTION_MILLIS, 10 * inDoubtMillis));
+			crossNodeTransfers.start(Math.min(RESOLVE_PERIOD_MILLIS, inDoubtMillis));
+			HandlerWrapper clusterHandler = new ClusterHandler(mapper, crossNodeTransfers);
+			clusterHandler.setHandler(handler);
+			handler = clusterHandler;
+		}
+		if (reads != null || writes != null) {
+			admission = new AdmissionHandler(mapper, reads, writes);
+			admission.setHandler(handler);
+			handler = admission;
+		}
 		server.setHandler(handler);
 
 		server.start();
@@ -43,6 +483,39 @@ public class WebServer {
 	public void stop() throws Exception {
 		server.stop();
 		server.join();
+		if (sharedMemory != null) {
+			sharedMemory.close();
+		}
+		if (scheduler != null) {
+			scheduler.close();
+		}
+		if (batch != null) {
+			batch.close();
+		}
+		if (reclaimer != null) {
+			reclaimer.close();
+		}
+		if (conservation != null) {
+			conservation.close();
+		}
+		if (replica != null) {
+			replica.close();
+		}
+		if (feed != null) {
+			feed.close();
+		}
+		if (replication != null) {
+			replication.close();
+		}
+		if (persistence != null) {
+			persistence.close();
+		}
+		if (crossNodeTransfers != null) {
+			crossNodeTransfers.close();
+			for (RestClient client : clusterClients) {
+				client.close();
+			}
+		}
 	}
 
 	public void join() throws InterruptedException {
@@ -0,0 +1,61 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.accounting.AccountImporter.Result;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+public class AccountImporterTest {
+
+	@Test
+	public void importFile() throws IOException {
+		Path file = Files.createTempFile("accounts", ".csv");
+		try {
+			try (Writer writer = Files.newBufferedWriter(file, US_ASCII)) {
+				writer.write("# id,balance\n");
+				for (int id = 1; id <= 10000; id++) {
+					writer.write(id + "," + id * 10L + "\n");
+				}
+				writer.write("\n");
+				writer.write("10001,abc\r\n");
+				writer.write("10002\n");
+				writer.write("500,1\n");
+				writer.write("10003,7\n");
+				writer.write("10003,8");
+			}
+
+			InMemoryAccounting accounting = new InMemoryAccounting();
+			// small chunks to cross many chunk boundaries
+			Result result = new AccountImporter(accounting, 4, 1000).importFile(file);
+
+			assertThat(result.getRows(), is(10001L));
+			assertThat(result.getRejected(), is(4L));
+			assertThat(result.getErrors(), contains(
+				"line 10003: malformed balance",
+				"line 10004: expected id,balance",
+				"line 10005: duplicate account 500",
+				"line 10007: duplicate account 10003"
+			));
+
+			assertThat(accounting.getAccount(1), is(new Account(1, 10L)));
+			assertThat(accounting.getAccount(10000), is(new Account(10000, 100000L)));
+			assertThat(accounting.getAccount(10003), is(new Account(10003, 7L)));
+			assertThat(accounting.getAccount(10001), is(nullValue()));
+			// the first row of duplicate id wins
+			assertThat(accounting.getAccount(500), is(new Account(500, 5000L)));
+
+			assertThat(accounting.createAccount().getId(), is(10004));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
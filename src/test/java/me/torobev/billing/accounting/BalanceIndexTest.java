@@ -0,0 +1,189 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.Transfer;
+import org.testng.annotations.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BalanceIndexTest {
+
+	@Test
+	public void buckets() {
+		assertThat(BalanceIndex.bucket(0L), is(0));
+		assertThat(BalanceIndex.bucket(255L), is(255));
+		assertThat(BalanceIndex.bucket(256L), is(256));
+		assertThat(BalanceIndex.bucket(257L), is(256));
+		assertThat(BalanceIndex.bucket(Long.MAX_VALUE), is(BalanceIndex.BUCKETS - 1));
+		Random random = new Random(42L);
+		for (int i = 0; i < 100000; i++) {
+			long balance = random.nextLong() >>> (1 + random.nextInt(63));
+			int bucket = BalanceIndex.bucket(balance);
+			assertThat(BalanceIndex.lowest(bucket) <= balance, is(true));
+			assertThat(bucket == BalanceIndex.BUCKETS - 1 || BalanceIndex.lowest(bucket + 1) > balance, is(true));
+		}
+		for (int bucket = 1; bucket < BalanceIndex.BUCKETS; bucket++) {
+			assertThat(BalanceIndex.bucket(BalanceIndex.lowest(bucket)), is(bucket));
+			assertThat(BalanceIndex.bucket(BalanceIndex.lowest(bucket) - 1), is(bucket - 1));
+		}
+	}
+
+	@Test
+	public void topAndRange() {
+		// without index queries scan accounts and give the same answers
+		topAndRange(new InMemoryAccounting(true));
+		topAndRange(new InMemoryAccounting(false));
+	}
+
+	private static void topAndRange(InMemoryAccounting accounting) {
+		int count = 10000;
+		accounting.createAccounts(count, 1000L);
+		Random random = new Random(42L);
+		for (int i = 0; i < 200000; i++) {
+			int src = 1 + random.nextInt(count);
+			int dst = 1 + random.nextInt(count);
+			long amount = 1 + random.nextInt(random.nextBoolean() ? 10 : 1000);
+			accounting.execute(new Transfer(src, dst, amount));
+			if (i % 1000 == 0) {
+				accounting.increaseAccountBalance(dst, 1 + random.nextInt(100000));
+				accounting.removeAccount(src);
+			}
+		}
+		List<Account> all = IntStream.rangeClosed(1, count)
+			.mapToObj(accounting::getAccount)
+			.filter(a -> a != null)
+			.collect(Collectors.toList());
+
+		List<Account> top = accounting.getTopAccounts(100);
+		assertThat(top, is(all.stream()
+			.sorted(Comparator.comparingLong(Account::getBalance).reversed().thenComparingInt(Account::getId))
+			.limit(100)
+			.collect(Collectors.toList())));
+		assertThat(accounting.getTopAccounts(count * 2).size(), is(all.size()));
+		assertThat(accounting.getTopAccounts(0).size(), is(0));
+
+		long[][] ranges = {{0L, 1L}, {900L, 1100L}, {1000L, 1001L}, {5000L, Long.MAX_VALUE}, {0L, Long.MAX_VALUE}, {10L, 5L}};
+		for (long[] range : ranges) {
+			for (int limit : new int[]{10, 1000, count}) {
+				assertThat(accounting.getAccountsByBalance(range[0], range[1], limit), is(all.stream()
+					.filter(a -> a.getBalance() >= range[0] && a.getBalance() < range[1])
+					.sorted(Comparator.comparingLong(Account::getBalance).thenComparingInt(Account::getId))
+					.limit(limit)
+					.collect(Collectors.toList())));
+			}
+		}
+	}
+
+	@Test
+	public void crowdedBucket() {
+		BalanceIndex index = new BalanceIndex();
+		int count = BalanceIndex.MAX_SCANNED * 2;
+		for (int id = 1; id <= count; id++) {
+			index.add(id, 1000L);
+		}
+		index.add(count + 1, 5000L);
+		AtomicInteger reads = new AtomicInteger();
+		IntFunction<Account> reader = id -> {
+			reads.incrementAndGet();
+			return new Account(id, id == count + 1 ? 5000L : 1000L);
+		};
+
+		List<Account> top = index.top(10, reader);
+		assertThat(reads.get(), is(BalanceIndex.MAX_SCANNED));
+		assertThat(top.size(), is(10));
+		assertThat(top.get(0), is(new Account(count + 1, 5000L)));
+		top.subList(1, 10).forEach(account -> assertThat(account.getBalance(), is(1000L)));
+
+		reads.set(0);
+		assertThat(index.range(0L, 2000L, count, reader).size(), is(BalanceIndex.MAX_SCANNED));
+		assertThat(reads.get(), is(BalanceIndex.MAX_SCANNED));
+	}
+
+	@Test
+	public void benchmark() {
+		int count = 1000000;
+		int transfers = 5000000;
+		Random random = new Random(42L);
+		// balances spread over orders of magnitude like real ones
+		long[] initial = new long[count + 1];
+		for (int id = 1; id <= count; id++) {
+			initial[id] = (long) Math.pow(10, 2 + random.nextDouble() * 7);
+		}
+		int[] src = new int[transfers];
+		int[] dst = new int[transfers];
+		long[] amounts = new long[transfers];
+		for (int i = 0; i < transfers; i++) {
+			src[i] = 1 + random.nextInt(count);
+			dst[i] = 1 + random.nextInt(count);
+			amounts[i] = 1 + random.nextInt(1000);
+		}
+
+		// index updates of transfers on their own
+		BalanceIndex index = new BalanceIndex();
+		long[] balances = new long[count + 1];
+		for (int id = 1; id <= count; id++) {
+			balances[id] = initial[id];
+			index.add(id, balances[id]);
+		}
+		long moved = 0L;
+		long start = System.nanoTime();
+		for (int i = 0; i < transfers; i++) {
+			if (balances[src[i]] >= amounts[i] && src[i] != dst[i]) {
+				moved += BalanceIndex.bucket(balances[src[i]]) != BalanceIndex.bucket(balances[src[i]] - amounts[i]) ? 1 : 0;
+				index.update(src[i], balances[src[i]], balances[src[i]] -= amounts[i]);
+				index.update(dst[i], balances[dst[i]], balances[dst[i]] += amounts[i]);
+			}
+		}
+		long updates = System.nanoTime() - start;
+
+		InMemoryAccounting plain = new InMemoryAccounting(1, count, false);
+		plain.createAccounts(count, 0L);
+		for (int id = 1; id <= count; id++) {
+			plain.increaseAccountBalance(id, initial[id]);
+		}
+		start = System.nanoTime();
+		for (int i = 0; i < transfers; i++) {
+			plain.execute(new Transfer(src[i], dst[i], amounts[i]));
+		}
+		long unindexed = System.nanoTime() - start;
+
+		InMemoryAccounting accounting = new InMemoryAccounting(1, count, true);
+		accounting.createAccounts(count, 0L);
+		for (int id = 1; id <= count; id++) {
+			accounting.increaseAccountBalance(id, initial[id]);
+		}
+		start = System.nanoTime();
+		for (int i = 0; i < transfers; i++) {
+			accounting.execute(new Transfer(src[i], dst[i], amounts[i]));
+		}
+		long executed = System.nanoTime() - start;
+
+		int queries = 1000;
+		start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			assertThat(accounting.getTopAccounts(100).size(), is(100));
+		}
+		long top = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			long from = (long) Math.pow(10, 2 + random.nextDouble() * 7);
+			accounting.getAccountsByBalance(from, from * 2, 100);
+		}
+		long range = System.nanoTime() - start;
+
+		System.out.format("Balance index of %d accounts: update %.1f ns per transfer (%.1f%% of sources moved), " +
+				"transfer with index %.1f ns, without %.1f ns, top 100 in %.1f us, range in %.1f us\n",
+			count, (double) updates / transfers, 100.0 * moved / transfers, (double) executed / transfers,
+			(double) unindexed / transfers,
+			top / 1000.0 / queries, range / 1000.0 / queries);
+	}
+}
@@ -0,0 +1,204 @@
+package me.torobev.billing.accounting;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.BatchReport;
+import me.torobev.billing.Transfer;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BatchEngineTest {
+
+	@Test
+	public void interestAndFees() {
+		InMemoryAccounting accounting = new InMemoryAccounting();
+		int count = 10000;
+		accounting.createAccounts(count, 0L);
+		Random random = new Random(42L);
+		for (int id = 1; id <= count; id++) {
+			accounting.increaseAccountBalance(id, random.nextInt(1000000));
+		}
+		accounting.removeAccount(count / 2);
+		long[] before = new long[count + 1];
+		for (int id = 1; id <= count; id++) {
+			Account account = accounting.getAccount(id);
+			before[id] = account == null ? -1L : account.getBalance();
+		}
+
+		AccountRule rule = AccountRule.dailyInterest(new BigDecimal("0.05")).plus(AccountRule.fee(500L, 100000L));
+		try (BatchEngine engine = new BatchEngine(accounting, 2, MILLISECONDS.toNanos(10L))) {
+			BatchReport report = engine.run("day-1", rule);
+			assertThat(report.isRunning(), is(false));
+			assertThat(report.getAccounts(), is((long) count - 1));
+			assertThat(report.getProcessedThrough(), is(count));
+			assertThat(report.getSequence(), is((long) count));
+
+			long credited = 0L;
+			long debited = 0L;
+			long failed = 0L;
+			for (int id = 1; id <= count; id++) {
+				if (before[id] < 0L) {
+					assertThat(accounting.getAccount(id), is((Account) null));
+					continue;
+				}
+				long posting = rule.posting(new Account(id, before[id], 0L));
+				long expected = before[id] + posting;
+				if (expected < 0L) {
+					failed++;
+					expected = before[id];
+				} else if (posting > 0L) {
+					credited += posting;
+				} else {
+					debited -= posting;
+				}
+				assertThat(accounting.getAccount(id).getBalance(), is(expected));
+			}
+			assertThat(report.getCredited(), is(credited));
+			assertThat(report.getDebited(), is(debited));
+			assertThat(report.getFailed(), is(failed));
+			assertThat(engine.getReport().getSequence(), is(report.getSequence()));
+		}
+	}
+
+	@Test
+	public void concurrentTransfers() throws InterruptedException {
+		InMemoryAccounting accounting = new InMemoryAccounting();
+		int count = 200000;
+		accounting.createAccounts(count, 100000L);
+		long initial = accounting.getStats().getBalance();
+
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicLong transfers = new AtomicLong();
+		Thread load = new Thread(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while (!stop.get()) {
+				accounting.execute(new Transfer(1 + random.nextInt(count), 1 + random.nextInt(count), 1 + random.nextInt(1000)));
+				transfers.incrementAndGet();
+			}
+		});
+		load.start();
+
+		BatchReport report;
+		try (BatchEngine engine = new BatchEngine(accounting, 2, MICROSECONDS.toNanos(200L))) {
+			engine.start("day-1", AccountRule.dailyInterest(new BigDecimal("0.1")).plus(AccountRule.fee(30L, 100000L)));
+			try {
+				engine.start("day-2", AccountRule.fee(1L, Long.MAX_VALUE));
+				throw new AssertionError("Second job started");
+			} catch (IllegalStateException expected) {
+				// one job at a time
+			}
+			do {
+				Thread.sleep(100L);
+				report = engine.getReport();
+			} while (report.isRunning());
+		} finally {
+			stop.set(true);
+			load.join();
+		}
+
+		System.out.printf("Batch of %d accounts: %d accounts/s, throttled %d ms, rate limit %d, transfer p99 <= %d us, %d transfers%n",
+			report.getAccounts(), report.getAccountsPerSecond(), report.getThrottledMillis(), report.getRateLimit(),
+			report.getTransferLatencyMicros(), transfers.get());
+		assertThat(report.getAccounts(), is((long) count));
+		assertThat(report.getPostings() + report.getFailed() <= count, is(true));
+		AccountingStats stats = accounting.getStats();
+		assertThat(stats.getBalance(), is(initial + report.getCredited() - report.getDebited()));
+		assertThat(stats.getDrift(), is(0L));
+		assertThat(stats.getViolations(), is(0L));
+	}
+
+	@Test
+	public void exactInterest() {
+		// 55000 * 0.073 is 4014.999... in double
+		assertThat(AccountRule.dailyInterest(new BigDecimal("0.073")).posting(new Account(1, 55000L, 0L)), is(11L));
+		assertThat(AccountRule.dailyInterest(new BigDecimal("-0.05")).posting(new Account(1, 10000L, 0L)), is(-1L));
+		assertThat(AccountRule.dailyInterest(new BigDecimal("0.05")).posting(new Account(1, 9000000000000001L, 0L)),
+			is(1232876712328L));
+	}
+
+	@Test
+	public void emptyLog() {
+		InMemoryAccounting accounting = new InMemoryAccounting();
+		accounting.createAccounts(10, 0L);
+		assertThat(accounting.getLogSize(), is(0L));
+		try (BatchEngine engine = new BatchEngine(accounting, 2, MILLISECONDS.toNanos(10L))) {
+			BatchReport report = engine.run("day-1", account -> account.getBalance() + 5L);
+			assertThat(report.getSequence(), is(0L));
+			assertThat(report.getPostings(), is(10L));
+			for (int id = 1; id <= 10; id++) {
+				assertThat(accounting.getAccount(id).getBalance(), is(5L));
+			}
+		}
+	}
+
+	@Test
+	public void resumesFailedRun() {
+		InMemoryAccounting accounting = new InMemoryAccounting();
+		int count = 10000;
+		accounting.createAccounts(count, 1000L);
+		AtomicBoolean broken = new AtomicBoolean(true);
+		AccountRule rule = account -> {
+			if (account.getId() == count / 3 && broken.get()) {
+				throw new IllegalStateException("Rule failed");
+			}
+			return 10L;
+		};
+		try (BatchEngine engine = new BatchEngine(accounting, 2, MILLISECONDS.toNanos(10L))) {
+			BatchReport failed = engine.run("day-1", rule);
+			assertThat(failed.getProcessedThrough() < count / 3, is(true));
+			assertThat(failed.getAccounts() < count, is(true));
+			// transfers after the job started are not seen by resumed run
+			accounting.execute(new Transfer(count, 1, 500L));
+
+			broken.set(false);
+			BatchReport resumed = engine.run("day-1", rule);
+			assertThat(resumed.getSequence(), is(failed.getSequence()));
+			assertThat(resumed.getAccounts(), is((long) count));
+			assertThat(resumed.getPostings(), is((long) count));
+			assertThat(resumed.getCredited(), is(10L * count));
+			assertThat(resumed.getProcessedThrough(), is(count));
+
+			BatchReport again = engine.run("day-1", rule);
+			assertThat(again.getPostings(), is((long) count));
+		}
+		assertThat(accounting.getAccount(1).getBalance(), is(1510L));
+		for (int id = 2; id < count; id++) {
+			assertThat(accounting.getAccount(id).getBalance(), is(1010L));
+		}
+		assertThat(accounting.getAccount(count).getBalance(), is(510L));
+	}
+
+	@Test
+	public void resumesCancelledRun() throws InterruptedException {
+		InMemoryAccounting accounting = new InMemoryAccounting();
+		int count = 300000;
+		accounting.createAccounts(count, 1000L);
+		long initial = accounting.getStats().getBalance();
+		try (BatchEngine engine = new BatchEngine(accounting, 2, MILLISECONDS.toNanos(10L))) {
+			engine.start("day-1", AccountRule.fee(1L, Long.MAX_VALUE));
+			Thread.sleep(200L);
+			BatchReport cancelled = engine.cancel();
+			assertThat(cancelled.isRunning(), is(false));
+			assertThat(cancelled.getPostings() < count, is(true));
+			assertThat(accounting.getStats().getBalance(), is(initial - cancelled.getDebited()));
+
+			BatchReport resumed = engine.run("day-1", AccountRule.fee(1L, Long.MAX_VALUE));
+			assertThat(resumed.getPostings(), is((long) count));
+			assertThat(resumed.getDebited(), is((long) count));
+		}
+		assertThat(accounting.getStats().getBalance(), is(initial - count));
+		for (int id = 1; id <= count; id++) {
+			assertThat(accounting.getAccount(id).getBalance(), is(999L));
+		}
+	}
+}
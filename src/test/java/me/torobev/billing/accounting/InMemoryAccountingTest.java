@@ -2,21 +2,40 @@ package me.torobev.billing.accounting;
 
 
 import com.google.common.base.Stopwatch;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.BalanceSnapshot;
 import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Reclaimer.History;
+import me.torobev.billing.accounting.Reclaimer.Policy;
 import org.hamcrest.CoreMatchers;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Stopwatch.createStarted;
 import static java.lang.Runtime.getRuntime;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.ThreadLocalRandom.current;
 import static java.util.concurrent.TimeUnit.*;
@@ -25,6 +44,9 @@ import static java.util.stream.IntStream.rangeClosed;
 import static me.torobev.billing.accounting.Accounting.TransferResult.*;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.collection.IsEmptyCollection.empty;
 
 public class InMemoryAccountingTest {
@@ -110,6 +132,124 @@ public class InMemoryAccountingTest {
 		assertThat(accounting.execute(new Transfer(acc2.getId(), acc1.getId(), 1L)), is(DESTINATION_NOT_FOUND));
 	}
 
+	@Test
+	public void bulkCreate() {
+		Account single = accounting.createAccount();
+
+		int count = 1000000;
+		Stopwatch sw = createStarted();
+		AccountRange range = accounting.createAccounts(count, 100L);
+		long elapsed = sw.elapsed(MILLISECONDS);
+		System.out.format("Created %d accounts in bulk in %d ms\n", count, elapsed);
+
+		assertThat(range.getFirstId(), is(single.getId() + 1));
+		assertThat(range.getCount(), is(count));
+		assertThat(accounting.getAccount(range.getFirstId()), is(new Account(range.getFirstId(), 100L)));
+		assertThat(accounting.getAccount(range.getLastId()), is(new Account(range.getLastId(), 100L)));
+		assertThat(accounting.getAccount(range.getLastId() + 1), is(nullValue()));
+		assertThat(accounting.getAccountLog(range.getLastId()), hasItem(new Transfer(0, range.getLastId(), 100L)));
+
+		assertThat(accounting.createAccount().getId(), is(range.getLastId() + 1));
+		assertThat(accounting.execute(new Transfer(range.getFirstId(), single.getId(), 100L)), is(OK));
+	}
+
+	@Test(invocationCount = 5)
+	public void exportUnderLoad() throws Exception {
+		int count = 10000;
+		AccountRange range = accounting.createAccounts(count, 1000L);
+
+		int transfers = 200000;
+		for (int i = 0; i < transfers; i++) {
+			int from = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+			int to = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+			pool.submit(() -> accounting.execute(new Transfer(from, to, 1L + current().nextInt(100))));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BalanceSnapshot snapshot = accounting.exportBalances(out);
+		pool.shutdown();
+		pool.awaitTermination(10, SECONDS);
+
+		assertThat(snapshot.getAccounts(), is(count));
+		assertThat(snapshot.getTotal(), is(1000L * count));
+		assertThat(snapshot.getSequence(), greaterThanOrEqualTo((long) count));
+
+		List<String> lines = Arrays.asList(new String(out.toByteArray(), US_ASCII).split("\n"));
+		assertThat(lines.get(0), is(BalanceSnapshot.HEADER));
+		assertThat(BalanceSnapshot.fromTrailer(lines.get(lines.size() - 1)), is(snapshot));
+		long sum = lines.stream()
+			.filter(line -> !line.startsWith("#"))
+			.mapToLong(line -> Long.parseLong(line.substring(line.indexOf(',') + 1)))
+			.sum();
+		assertThat(sum, is(1000L * count));
+	}
+
+	@Test(invocationCount = 5)
+	public void auditUnderLoad() throws Exception {
+		int count = 10000;
+		AccountRange range = accounting.createAccounts(count, 1000L);
+		for (int id = range.getFirstId(); id <= range.getLastId(); id += 100) {
+			accounting.removeAccount(id);
+		}
+
+		int transfers = 1000000;
+		for (int i = 0; i < transfers; i++) {
+			int from = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+			int to = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+			if (i % 10 == 0) {
+				pool.submit(() -> accounting.increaseAccountBalance(to, 1L));
+			} else {
+				pool.submit(() -> accounting.execute(new Transfer(from, to, 1L + current().nextInt(100))));
+			}
+			if (i == transfers / 2) {
+				AuditReport report = accounting.audit();
+				assertThat(report.toString(), report.getMismatchCount(), is(0));
+				assertThat(report.getAccounts(), is(count - count / 100));
+			}
+		}
+		pool.shutdown();
+		pool.awaitTermination(10, SECONDS);
+
+		AuditReport report = accounting.audit();
+		System.out.format("Audited %d log entries in %d ms\n", report.getSequence(), report.getElapsedMillis());
+		assertThat(report.getMismatches(), empty());
+		assertThat(report.getMismatchCount(), is(0));
+	}
+
+	@Test
+	public void reclaim() throws Exception {
+		AccountRange range = accounting.createAccounts(3, 100L);
+		int removed1 = range.getFirstId();
+		int removed2 = range.getFirstId() + 1;
+		int live = range.getLastId();
+
+		assertThat(accounting.execute(new Transfer(removed1, removed2, 10L)), is(OK));
+		assertThat(accounting.execute(new Transfer(removed2, live, 20L)), is(OK));
+		assertThat(accounting.removeAccount(removed1), is(true));
+		assertThat(accounting.removeAccount(removed2), is(true));
+
+		Reclaimer reclaimer = new Reclaimer(accounting, new Policy(History.DROP, 1000L, null));
+		reclaimer.reclaim(currentTimeMillis());
+
+		AccountingStats stats = accounting.getStats();
+		assertThat(stats.getReclaimedAccounts(), is(2L));
+		assertThat(stats.getPurgedEntries(), is(0L));
+		assertThat(accounting.removeAccount(removed1), is(false));
+		assertThat(accounting.execute(new Transfer(live, removed1, 1L)), is(DESTINATION_NOT_FOUND));
+
+		// retention passed
+		reclaimer.reclaim(currentTimeMillis() + 1000L);
+
+		stats = accounting.getStats();
+		assertThat(stats.getPurgedEntries(), is(3L));
+		assertThat(stats.getReclaimedBytes(), greaterThan(0L));
+		assertThat(accounting.getAccountLog(live), hasItems(
+			new Transfer(0, live, 100L),
+			new Transfer(removed2, live, 20L)
+		));
+		assertThat(accounting.audit().getMismatchCount(), is(0));
+	}
+
 	@Test(invocationCount = 30)
 	public void underLoad() throws InterruptedException {
 		int count = 10000;
@@ -145,5 +285,383 @@ public class InMemoryAccountingTest {
 
 		sum = ids.stream().map(id -> accounting.getAccount(id)).mapToLong(Account::getBalance).sum();
 		assertThat("initial sum check", sum, is(1000000L * count));
+
+		AccountingStats stats = accounting.getStats();
+		assertThat(stats.getAccounts(), is((long) count));
+		assertThat(stats.getBalance(), is(sum));
+		assertThat(stats.getDrift(), is(0L));
+		assertThat(stats.getViolations(), is(0L));
+	}
+
+	@Test
+	public void listAccounts() {
+		AccountRange range = accounting.createAccounts(100, 1L);
+		accounting.removeAccount(range.getFirstId() + 10);
+		assertThat(accounting.listAccounts(0, 1000).size(), is(99));
+		assertThat(accounting.listAccounts(Integer.MAX_VALUE, 10), empty());
+		assertThat(accounting.listAccounts(range.getFirstId() + 9, 2).stream().map(Account::getId).collect(toList()),
+			contains(range.getFirstId() + 11, range.getFirstId() + 12));
+		assertThat(accounting.listAccounts(-5, 1).get(0).getId(), is(range.getFirstId()));
+		assertThat(accounting.getAccounts(new int[]{range.getLastId(), 0, -1, range.getFirstId() + 10, range.getFirstId()})
+			.stream().map(Account::getId).collect(toList()), contains(range.getFirstId(), range.getLastId()));
+	}
+
+	@Test
+	public void stats() {
+		AccountRange range = accounting.createAccounts(10, 100L);
+		Account account = accounting.createAccount();
+		accounting.increaseAccountBalance(account.getId(), 50L);
+		accounting.execute(new Transfer(range.getFirstId(), account.getId(), 30L));
+
+		AccountingStats stats = accounting.getStats();
+		assertThat(stats.getAccounts(), is(11L));
+		assertThat(stats.getInflow(), is(1050L));
+		assertThat(stats.getBalance(), is(1050L));
+
+		assertThat(accounting.removeAccount(account.getId()), is(true));
+		assertThat(accounting.removeAccount(account.getId()), is(false));
+
+		stats = accounting.getStats();
+		assertThat(stats.getAccounts(), is(10L));
+		assertThat(stats.getOutflow(), is(80L));
+		assertThat(stats.getBalance(), is(970L));
+		assertThat(stats.getDrift(), is(0L));
+		assertThat(stats.getViolations(), is(0L));
+	}
+
+	@Test
+	public void conservationViolation() throws Exception {
+		AccountRange range = accounting.createAccounts(10, 100L);
+		accounting.increaseAccountBalance(range.getFirstId(), 50L);
+		accounting.withdraw(range.getLastId(), 20L);
+		accounting.execute(new Transfer(range.getFirstId(), range.getLastId(), 30L));
+		assertThat(accounting.checkConservation(), is(true));
+		assertThat(accounting.getStats().getViolations(), is(0L));
+
+		// money created behind the accounting back, like by a lost update
+		Field accountsField = InMemoryAccounting.class.getDeclaredField("accounts");
+		accountsField.setAccessible(true);
+		Object holder = ((Map<?, ?>) accountsField.get(accounting)).get(range.getFirstId());
+		Field accountField = holder.getClass().getDeclaredField("account");
+		accountField.setAccessible(true);
+		@SuppressWarnings("unchecked")
+		AtomicReference<Account> account = (AtomicReference<Account>) accountField.get(holder);
+		account.set(account.get().withBalance(account.get().getBalance() + 1L));
+
+		assertThat(accounting.checkConservation(), is(false));
+		assertThat(accounting.getStats().getViolations(), is(1L));
+		// audit checks conservation at its cut too
+		accounting.audit();
+		assertThat(accounting.getStats().getViolations(), is(2L));
+
+		// and so does live server in background
+		ConservationCheck check = new ConservationCheck(accounting);
+		check.start(10L);
+		try {
+			long deadline = currentTimeMillis() + 10000L;
+			while (check.getChecks() < 2L && currentTimeMillis() < deadline) {
+				Thread.sleep(10L);
+			}
+		} finally {
+			check.close();
+		}
+		assertThat(check.getChecks() >= 2L, is(true));
+		assertThat(accounting.getStats().getViolations(), is(2L + check.getChecks()));
+	}
+
+	@Test
+	public void conservationUnderLoad() throws Exception {
+		int count = 10000;
+		AccountRange range = accounting.createAccounts(count, 1000L);
+		int operations = 200000;
+		for (int i = 0; i < operations; i++) {
+			int from = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+			int to = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+			if (i % 100 == 0) {
+				pool.submit(() -> accounting.removeAccount(to));
+			} else if (i % 10 == 0) {
+				pool.submit(() -> accounting.increaseAccountBalance(to, 1L));
+			} else if (i % 10 == 1) {
+				pool.submit(() -> accounting.withdraw(from, 1L));
+			} else {
+				pool.submit(() -> accounting.execute(new Transfer(from, to, 1L + current().nextInt(100))));
+			}
+			if (i % (operations / 10) == 0) {
+				assertThat(accounting.checkConservation(), is(true));
+			}
+		}
+		pool.shutdown();
+		pool.awaitTermination(10, SECONDS);
+
+		assertThat(accounting.checkConservation(), is(true));
+		assertThat(accounting.getStats().getViolations(), is(0L));
+	}
+
+	@Test
+	public void idempotentTransfers() throws InterruptedException {
+		AccountRange range = accounting.createAccounts(2, 100L);
+		int src = range.getFirstId();
+		int dst = range.getLastId();
+		// concurrent retries of the same transfers
+		for (int i = 0; i < 1000; i++) {
+			String key = "transfer-" + (i % 50);
+			pool.submit(() -> accounting.execute(new Transfer(src, dst, 1L), key));
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, MINUTES);
+
+		assertThat(accounting.getAccount(src).getBalance(), is(50L));
+		assertThat(accounting.getAccount(dst).getBalance(), is(150L));
+		assertThat(accounting.getAccountLog(src).size(), is(51));
+
+		// duplicate gets the first result even if it would fail now
+		assertThat(accounting.execute(new Transfer(src, dst, 100L), "big"), is(SOURCE_BALANCE_CHECK_FAILED));
+		accounting.increaseAccountBalance(src, 100L);
+		assertThat(accounting.execute(new Transfer(src, dst, 100L), "big"), is(SOURCE_BALANCE_CHECK_FAILED));
+		assertThat(accounting.execute(new Transfer(src, dst, 100L), null), is(OK));
+
+		assertThat(accounting.increaseAccountBalance(dst, 10L, "increase"), is(true));
+		assertThat(accounting.increaseAccountBalance(dst, 10L, "increase"), is(true));
+		assertThat(accounting.getAccount(dst).getBalance(), is(260L));
+		assertThat(accounting.increaseAccountBalance(dst + 1, 10L, "missing"), is(false));
+
+		// key is bound to its request
+		for (Runnable reuse : Arrays.<Runnable>asList(
+			() -> accounting.execute(new Transfer(src, dst, 99L), "big"),
+			() -> accounting.execute(new Transfer(dst, src, 100L), "big"),
+			() -> accounting.increaseAccountBalance(src, 100L, "big"),
+			() -> accounting.execute(new Transfer(src, dst, 10L), "increase"),
+			() -> accounting.increaseAccountBalance(dst, 11L, "increase"))) {
+			try {
+				reuse.run();
+				throw new AssertionError("Reused key is accepted");
+			} catch (IdempotencyKeyReusedException expected) {
+				// balances are not touched
+			}
+		}
+		assertThat(accounting.getAccount(dst).getBalance(), is(260L));
+	}
+
+	@Test
+	public void idempotencyCacheEviction() throws InterruptedException {
+		IdempotencyCache cache = new IdempotencyCache(10, 100L);
+		for (int i = 0; i < 20; i++) {
+			assertThat(cache.apply("key-" + i, "op", () -> OK), is(OK));
+		}
+		assertThat(cache.size(), is(10));
+		// evicted key is applied again
+		assertThat(cache.apply("key-0", "op", () -> ERROR), is(ERROR));
+		assertThat(cache.apply("key-19", "op", () -> ERROR), is(OK));
+
+		MILLISECONDS.sleep(150L);
+		assertThat(cache.apply("fresh", "op", () -> OK), is(OK));
+		assertThat(cache.size(), is(1));
+		assertThat(cache.apply("key-19", "op", () -> ERROR), is(ERROR));
+
+		// failure is not remembered
+		try {
+			cache.apply("failing", "op", () -> {
+				throw new IllegalStateException("failed");
+			});
+			throw new AssertionError("Failure is swallowed");
+		} catch (IllegalStateException expected) {
+			assertThat(expected.getMessage(), is("failed"));
+		}
+		assertThat(cache.apply("failing", "op", () -> OK), is(OK));
+	}
+
+	@Test
+	public void timeRangeLog() throws InterruptedException {
+		Account account = accounting.createAccount();
+		Account other = accounting.createAccount();
+		long start = currentTimeMillis();
+		for (int i = 1; i <= 10; i++) {
+			accounting.increaseAccountBalance(account.getId(), i);
+		}
+		MILLISECONDS.sleep(5);
+		long middle = currentTimeMillis();
+		accounting.execute(new Transfer(account.getId(), other.getId(), 5L));
+		accounting.increaseAccountBalance(account.getId(), 100L);
+
+		List<Transfer> log = accounting.getAccountLog(account.getId());
+		assertThat(log.size(), is(12));
+		for (int i = 1; i < log.size(); i++) {
+			assertThat(log.get(i).getSequence(), greaterThan(log.get(i - 1).getSequence()));
+			assertThat(log.get(i).getTimestamp(), greaterThanOrEqualTo(log.get(i - 1).getTimestamp()));
+		}
+
+		assertThat(accounting.getAccountLog(account.getId(), start, middle, Integer.MAX_VALUE).size(), is(10));
+		assertThat(accounting.getAccountLog(account.getId(), start, middle, 3), is(log.subList(0, 3)));
+		assertThat(accounting.getAccountLog(account.getId(), middle, Long.MAX_VALUE, 10), contains(
+			new Transfer(account.getId(), other.getId(), 5L),
+			new Transfer(0, account.getId(), 100L)
+		));
+		assertThat(accounting.getAccountLog(other.getId(), middle, Long.MAX_VALUE, 10), contains(
+			new Transfer(account.getId(), other.getId(), 5L)
+		));
+		assertThat(accounting.getAccountLog(account.getId(), Long.MIN_VALUE, start, 10), empty());
+	}
+
+	@Test
+	public void concurrentTimestamps() throws InterruptedException {
+		AccountRange range = accounting.createAccounts(100, 1000000L);
+		for (int i = 0; i < 200000; i++) {
+			int from = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+			int to = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+			pool.submit(() -> accounting.execute(new Transfer(from, to, 1L)));
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, MINUTES);
+
+		long[] last = {Long.MIN_VALUE};
+		accounting.readLog(0L, accounting.getLogSize(), transfer -> {
+			// time of concurrently appended entries does not go backwards in log order
+			assertThat(transfer.getTimestamp(), greaterThanOrEqualTo(last[0]));
+			last[0] = transfer.getTimestamp();
+		});
+	}
+
+	@Test
+	public void balanceAsOf() {
+		Account account = accounting.createAccount();
+		Account other = accounting.createAccount();
+		accounting.increaseAccountBalance(other.getId(), 1000L);
+		assertThat(accounting.getAccountAtSequence(account.getId(), 0L), is(new Account(account.getId(), 0L)));
+
+		long[] balances = new long[10 * AccountHistory.CHECKPOINT_INTERVAL + 5];
+		long balance = 0L;
+		for (int i = 0; i < balances.length; i++) {
+			if (i % 3 == 2) {
+				accounting.execute(new Transfer(account.getId(), other.getId(), 1L));
+				balance -= 1L;
+			} else if (i % 3 == 1) {
+				accounting.execute(new Transfer(other.getId(), account.getId(), 1L));
+				balance += 1L;
+			} else {
+				accounting.increaseAccountBalance(account.getId(), 2L);
+				balance += 2L;
+			}
+			balances[i] = balance;
+		}
+
+		List<Transfer> log = accounting.getAccountLog(account.getId());
+		assertThat(log.size(), is(balances.length));
+		for (int i = 0; i < balances.length; i++) {
+			Transfer transfer = log.get(i);
+			assertThat(accounting.getAccountAtSequence(account.getId(), transfer.getSequence()).getBalance(),
+				is(balances[i]));
+			if (i + 1 < balances.length && log.get(i + 1).getTimestamp() > transfer.getTimestamp()) {
+				assertThat(accounting.getAccountAsOf(account.getId(), transfer.getTimestamp()).getBalance(),
+					is(balances[i]));
+			}
+		}
+		assertThat(accounting.getAccountAsOf(account.getId(), Long.MAX_VALUE),
+			is(accounting.getAccount(account.getId())));
+		assertThat(accounting.getAccountAsOf(account.getId(), log.get(0).getTimestamp() - 1).getBalance(), is(0L));
+
+		assertThat(accounting.removeAccount(account.getId()), is(true));
+		assertThat(accounting.getAccountAsOf(account.getId(), Long.MAX_VALUE), nullValue());
+	}
+
+	@Test(invocationCount = 5)
+	public void readReplica() throws Exception {
+		AccountRange range = accounting.createAccounts(5000, 1000L);
+		Account removed = accounting.createAccount();
+		accounting.removeAccount(removed.getId());
+
+		ReadReplica replica = new ReadReplica(accounting);
+		try {
+			replica.start(10L);
+			for (int i = 0; i < 100000; i++) {
+				int n = i;
+				pool.submit(() -> {
+					if (n % 100 == 0) {
+						Account account = accounting.createAccount();
+						if (n % 200 == 0) {
+							accounting.increaseAccountBalance(account.getId(), 5L);
+						}
+						if (n % 300 == 0) {
+							accounting.removeAccount(account.getId());
+						}
+					} else {
+						int from = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+						int to = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+						accounting.execute(new Transfer(from, to, 1L + current().nextInt(100)));
+					}
+				});
+			}
+			ReadReplica.View stale = replica.getView();
+			pool.shutdown();
+			pool.awaitTermination(10, SECONDS);
+
+			long start = currentTimeMillis();
+			while (replica.getView().getPosition() < accounting.getLogSize()) {
+				assertThat(currentTimeMillis() - start < 5000L, is(true));
+				MILLISECONDS.sleep(10);
+			}
+			ReadReplica.View view = replica.getView();
+			int last = range.getLastId() + 1000;
+			for (int id = range.getFirstId(); id <= last; id++) {
+				assertThat(view.getAccount(id), is(accounting.getAccount(id)));
+			}
+			assertThat(view.getAccount(removed.getId()), nullValue());
+			assertThat(view.getAccountLog(range.getFirstId(), Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE),
+				is(accounting.getAccountLog(range.getFirstId())));
+
+			// published views do not change
+			assertThat(stale.getAccountLog(range.getFirstId(), Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE)
+				.stream().allMatch(t -> t.getSequence() < stale.getPosition()), is(true));
+			long total = 0L;
+			for (int id = range.getFirstId(); id <= range.getLastId(); id++) {
+				total += stale.getAccount(id).getBalance();
+			}
+			assertThat(total, is(1000L * 5000));
+		} finally {
+			replica.close();
+		}
+	}
+
+	@Test
+	public void flightRecorderEvents() throws Exception {
+		AccountRange range = accounting.createAccounts(2, 1000000L);
+		Path file = Files.createTempFile("billing", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(TransferEvent.NAME).withThreshold(Duration.ZERO);
+			recording.enable(AccountLogEvent.NAME).withThreshold(Duration.ZERO);
+			recording.enable(BorrowEvent.NAME).withThreshold(Duration.ZERO);
+			recording.start();
+			// two hot accounts make borrows wait
+			for (int i = 0; i < 10000; i++) {
+				int src = i % 2 == 0 ? range.getFirstId() : range.getLastId();
+				int dst = i % 2 == 0 ? range.getLastId() : range.getFirstId();
+				pool.submit(() -> accounting.execute(new Transfer(src, dst, 1L)));
+			}
+			pool.shutdown();
+			pool.awaitTermination(1, MINUTES);
+			accounting.execute(new Transfer(range.getFirstId(), range.getFirstId(), 1L));
+			accounting.getAccountLog(range.getFirstId(), Long.MIN_VALUE, Long.MAX_VALUE, 10);
+			recording.stop();
+			recording.dump(file);
+
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+			List<RecordedEvent> transfers = events.stream()
+				.filter(e -> e.getEventType().getName().equals(TransferEvent.NAME))
+				.collect(toList());
+			assertThat(transfers.size(), is(10001));
+			assertThat(transfers.stream().filter(e -> e.getString("result").equals(SAME_ACCOUNTS.name())).count(), is(1L));
+
+			RecordedEvent scan = events.stream()
+				.filter(e -> e.getEventType().getName().equals(AccountLogEvent.NAME))
+				.findFirst().orElseThrow(AssertionError::new);
+			assertThat(scan.getInt("accountId"), is(range.getFirstId()));
+			assertThat(scan.getInt("entries"), is(10));
+			assertThat(scan.getInt("returned"), is(10));
+
+			events.stream()
+				.filter(e -> e.getEventType().getName().equals(BorrowEvent.NAME))
+				.forEach(e -> assertThat(e.getInt("accountId"), either(is(range.getFirstId())).or(is(range.getLastId()))));
+		} finally {
+			Files.delete(file);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,188 @@
+package me.torobev.billing.cluster;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.rest.RestClient;
+import me.torobev.billing.web.WebServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BooleanSupplier;
+
+import static com.google.common.io.Closeables.close;
+import static java.lang.Runtime.getRuntime;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.ThreadLocalRandom.current;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static me.torobev.billing.accounting.Accounting.TransferResult.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+public class ClusterTest {
+
+	private static final int NODES = 3;
+	private static final long IN_DOUBT_MILLIS = 300L;
+
+	private final Partitioning partitioning = new Partitioning(NODES, 1000);
+	private final List<WebServer> servers = new ArrayList<>();
+	private final List<RestClient> nodes = new ArrayList<>();
+	private ClusterClient cluster;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		List<String> urls = new ArrayList<>();
+		for (int i = 0; i < NODES; i++) {
+			urls.add("http://localhost:" + freePort());
+		}
+		for (int i = 0; i < NODES; i++) {
+			WebServer server = new WebServer(Integer.parseInt(urls.get(i).substring(urls.get(i).lastIndexOf(':') + 1)));
+			server.setCluster(partitioning, urls, i, IN_DOUBT_MILLIS);
+			server.start();
+			servers.add(server);
+			nodes.add(new RestClient(urls.get(i)));
+		}
+		cluster = new ClusterClient(partitioning, urls);
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		close(cluster, true);
+		for (RestClient node : nodes) {
+			close(node, true);
+		}
+		for (WebServer server : servers) {
+			server.stop();
+		}
+		nodes.clear();
+		servers.clear();
+	}
+
+	@Test
+	public void crossNodeTransfers() throws Exception {
+		List<AccountRange> ranges = new ArrayList<>();
+		for (int i = 0; i < NODES; i++) {
+			AccountRange range = cluster.createAccounts(10, 1000L);
+			assertThat(partitioning.nodeOf(range.getFirstId()), is(partitioning.nodeOf(range.getLastId())));
+			ranges.add(range);
+		}
+		assertThat(cluster.getStats().getBalance(), is(NODES * 10 * 1000L));
+
+		ExecutorService pool =
+			new ThreadPoolExecutor(getRuntime().availableProcessors(), getRuntime().availableProcessors(),
+				1, MINUTES, new ArrayBlockingQueue<>(1000), new ThreadPoolExecutor.CallerRunsPolicy());
+		for (int i = 0; i < 2000; i++) {
+			int from = randomId(ranges);
+			int to = randomId(ranges);
+			pool.submit(() -> cluster.execute(new Transfer(from, to, current().nextInt(1, 100))));
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, MINUTES);
+
+		for (WebServer server : servers) {
+			assertThat(server.getCrossNodeTransfers().getInDoubt(), is(0));
+		}
+		assertThat(cluster.getStats().getBalance(), is(NODES * 10 * 1000L));
+		AuditReport report = cluster.audit();
+		assertThat(report.getMismatchCount(), is(0));
+		assertThat(report.getAccounts(), is(NODES * 10));
+	}
+
+	@Test
+	public void routing() {
+		int first = cluster.createAccount().getId();
+		int second = cluster.createAccount().getId();
+		assertThat(partitioning.nodeOf(first) == partitioning.nodeOf(second), is(false));
+		assertThat(cluster.increaseAccountBalance(first, 100L), is(true));
+
+		assertThat(cluster.execute(new Transfer(first, second, 30L)), is(OK));
+		assertThat(cluster.getAccount(first).getBalance(), is(70L));
+		assertThat(cluster.getAccount(second).getBalance(), is(30L));
+		assertThat(cluster.getAccountLog(second).size(), is(1));
+
+		assertThat(cluster.execute(new Transfer(first, second, 100L)), is(SOURCE_BALANCE_CHECK_FAILED));
+		assertThat(cluster.execute(new Transfer(first, partitioning.lastId(2), 10L)), is(DESTINATION_NOT_FOUND));
+		assertThat(cluster.getAccount(first).getBalance(), is(70L));
+		assertThat(cluster.execute(new Transfer(first, NODES * 1000 + 1, 10L)), is(DESTINATION_NOT_FOUND));
+		assertThat(cluster.listAccounts(0, 10), contains(new Account(first, 70L), new Account(second, 30L)));
+		assertThat(cluster.listAccounts(first, 10), contains(new Account(second, 30L)));
+		assertThat(cluster.getAccounts(new int[]{second, NODES * 1000 + 1, first}),
+			contains(new Account(first, 70L), new Account(second, 30L)));
+		assertThat(cluster.getTopAccounts(1), contains(new Account(first, 70L)));
+	}
+
+	@Test
+	public void abortAfterPrepare() throws Exception {
+		int src = nodes.get(0).createAccount().getId();
+		int dst = nodes.get(1).createAccount().getId();
+		nodes.get(0).increaseAccountBalance(src, 100L);
+
+		// coordinator stops after prepare
+		String tx = UUID.randomUUID().toString();
+		Transfer transfer = new Transfer(src, dst, 40L);
+		assertThat(nodes.get(0).prepareTransfer(tx, transfer), is(OK));
+		assertThat(nodes.get(0).getAccount(src).getBalance(), is(60L));
+
+		await(() -> servers.get(0).getCrossNodeTransfers().getInDoubt() == 0);
+		assertThat(nodes.get(0).getAccount(src).getBalance(), is(100L));
+		// refund reverses the hold instead of counting as new income
+		AccountingStats stats = nodes.get(0).getStats();
+		assertThat(stats.getInflow(), is(100L));
+		assertThat(stats.getOutflow(), is(0L));
+		assertThat(nodes.get(1).creditTransfer(tx, transfer), is(ERROR));
+		assertThat(nodes.get(1).getAccount(dst).getBalance(), is(0L));
+		assertThat(nodes.get(0).commitTransfer(tx), is(false));
+	}
+
+	@Test
+	public void commitAfterCredit() throws Exception {
+		int src = nodes.get(0).createAccount().getId();
+		int dst = nodes.get(2).createAccount().getId();
+		nodes.get(0).increaseAccountBalance(src, 100L);
+
+		// coordinator stops after credit, retried credit has no effect
+		String tx = UUID.randomUUID().toString();
+		Transfer transfer = new Transfer(src, dst, 40L);
+		assertThat(nodes.get(0).prepareTransfer(tx, transfer), is(OK));
+		assertThat(nodes.get(2).creditTransfer(tx, transfer), is(OK));
+		assertThat(nodes.get(2).creditTransfer(tx, transfer), is(OK));
+
+		await(() -> servers.get(0).getCrossNodeTransfers().getInDoubt() == 0);
+		assertThat(nodes.get(0).getAccount(src).getBalance(), is(60L));
+		assertThat(nodes.get(2).getAccount(dst).getBalance(), is(40L));
+		assertThat(nodes.get(0).abortTransfer(tx), is(false));
+		assertThat(nodes.get(0).getAccount(src).getBalance(), is(60L));
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long start = currentTimeMillis();
+		while (!condition.getAsBoolean()) {
+			assertThat(currentTimeMillis() - start < 10 * IN_DOUBT_MILLIS + 5000L, is(true));
+			MILLISECONDS.sleep(10);
+		}
+	}
+
+	private static int randomId(List<AccountRange> ranges) {
+		AccountRange range = ranges.get(current().nextInt(ranges.size()));
+		return current().nextInt(range.getFirstId(), range.getLastId() + 1);
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package me.torobev.billing.feed;
+
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.ChangeBatch;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.lang.Runtime.getRuntime;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.ThreadLocalRandom.current;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ChangeFeedTest {
+
+	private InMemoryAccounting accounting;
+	private ExecutorService pool;
+
+	@BeforeMethod
+	public void setUp() {
+		accounting = new InMemoryAccounting();
+		pool =
+			new ThreadPoolExecutor(getRuntime().availableProcessors(), getRuntime().availableProcessors(),
+				1, MINUTES, new ArrayBlockingQueue<>(1000), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test(invocationCount = 5)
+	public void followsTransfers() throws Exception {
+		AccountRange range = accounting.createAccounts(100, 1000L);
+		ChangeFeed feed = new ChangeFeed(accounting, 1 << 16, 60000L);
+		try {
+			feed.start();
+			long start = accounting.getLogSize();
+			Subscription all = feed.subscribe(ChangeFeed.NOW, 0);
+			Subscription one = feed.subscribe(ChangeFeed.NOW, range.getFirstId());
+			int transfers = 20000;
+			for (int i = 0; i < transfers; i++) {
+				pool.submit(() -> {
+					int from = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+					int to = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+					accounting.execute(new Transfer(from, to, 1L));
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(1, MINUTES);
+			List<Transfer> received = new ArrayList<>();
+			long next = poll(all, received, accounting.getLogSize());
+
+			assertThat(next, is(accounting.getLogSize()));
+			assertThat(received.size(), is((int) (next - start)));
+			long expected = start;
+			for (Transfer transfer : received) {
+				assertThat(transfer.getSequence(), is(expected++));
+			}
+
+			List<Transfer> own = new ArrayList<>();
+			poll(one, own, accounting.getLogSize());
+			assertThat(own, is(accounting.getAccountLog(range.getFirstId()).subList(1,
+				accounting.getAccountLog(range.getFirstId()).size())));
+		} finally {
+			feed.close();
+		}
+	}
+
+	@Test
+	public void gapAndResume() throws Exception {
+		AccountRange range = accounting.createAccounts(2, 1000L);
+		int src = range.getFirstId();
+		int dst = range.getLastId();
+		ChangeFeed feed = new ChangeFeed(accounting, 16, 60000L);
+		try {
+			feed.start();
+			long start = accounting.getLogSize();
+			Subscription subscription = feed.subscribe(start, src);
+			for (int i = 0; i < 100; i++) {
+				accounting.execute(new Transfer(src, dst, 1L));
+			}
+			awaitReadable(subscription);
+
+			ChangeBatch first = subscription.poll(100);
+			assertThat(first.getTransfers().size(), is(16));
+			assertThat(first.isGap(), is(false));
+			assertThat(first.getNext(), is(start + 16));
+
+			awaitReadable(subscription);
+			ChangeBatch gap = subscription.poll(100);
+			assertThat(gap.isGap(), is(true));
+			assertThat(gap.getGapFrom(), is(start + 16));
+			assertThat(gap.getGapTo(), is(start + 100));
+			assertThat(gap.getNext(), is(start + 100));
+
+			// skipped transfers are read again from retained log
+			Subscription resumed = feed.subscribe(gap.getGapFrom(), src);
+			awaitReadable(resumed);
+			ChangeBatch again = resumed.poll(100);
+			assertThat(again.getTransfers().get(0).getSequence(), is(gap.getGapFrom()));
+			assertThat(again.getTransfers().size(), is(16));
+
+			assertThat(feed.unsubscribe(resumed.getId()), is(true));
+			assertThat(feed.getSubscription(resumed.getId()) == null, is(true));
+		} finally {
+			feed.close();
+		}
+	}
+
+	private static long poll(Subscription subscription, List<Transfer> received, long until)
+		throws InterruptedException {
+		long start = currentTimeMillis();
+		long next = subscription.getFrom();
+		while (next < until) {
+			assertThat(currentTimeMillis() - start < 10000L, is(true));
+			ChangeBatch batch = subscription.poll(1000);
+			assertThat(batch.isGap(), is(false));
+			received.addAll(batch.getTransfers());
+			next = batch.getNext();
+			if (batch.getTransfers().isEmpty()) {
+				MILLISECONDS.sleep(1);
+			}
+		}
+		return next;
+	}
+
+	private static void awaitReadable(Subscription subscription) throws InterruptedException {
+		long start = currentTimeMillis();
+		while (!subscription.isReadable()) {
+			assertThat(currentTimeMillis() - start < 5000L, is(true));
+			MILLISECONDS.sleep(1);
+		}
+		// let dispatcher finish the batch
+		MILLISECONDS.sleep(50);
+	}
+}
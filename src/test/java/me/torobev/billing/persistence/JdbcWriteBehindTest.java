@@ -0,0 +1,206 @@
+package me.torobev.billing.persistence;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.PersistenceStats;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.torobev.billing.accounting.Accounting.TransferResult.OK;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class JdbcWriteBehindTest {
+
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	private String url;
+	// keeps in-memory database open between write-behind connections
+	private Connection database;
+
+	@BeforeMethod
+	public void setUp() throws SQLException {
+		// short lock timeout makes writes fail fast while another connection holds a row
+		url = "jdbc:h2:mem:billing" + DATABASES.incrementAndGet() + ";LOCK_TIMEOUT=50";
+		database = DriverManager.getConnection(url);
+	}
+
+	@AfterMethod
+	public void tearDown() throws SQLException {
+		database.close();
+	}
+
+	@Test
+	public void writesBehind() throws Exception {
+		InMemoryAccounting accounting = new InMemoryAccounting();
+		AccountRange before = accounting.createAccounts(10, 1000L);
+		accounting.execute(new Transfer(before.getFirstId(), before.getFirstId() + 1, 100L));
+
+		JdbcWriteBehind writeBehind = new JdbcWriteBehind(accounting, url);
+		writeBehind.start();
+		try {
+			AccountRange after = accounting.createAccounts(10, 500L);
+			Account empty = accounting.createAccount();
+			for (int i = 0; i < 1000; i++) {
+				int src = before.getFirstId() + i % 10;
+				int dst = after.getFirstId() + i % 10;
+				assertThat(accounting.execute(new Transfer(src, dst, 1L)), is(OK));
+			}
+			assertThat(accounting.increaseAccountBalance(empty.getId(), 42L), is(true));
+			assertThat(accounting.removeAccount(before.getFirstId() + 9), is(true));
+			awaitPersisted(writeBehind, accounting);
+		} finally {
+			writeBehind.close();
+		}
+
+		PersistenceStats stats = writeBehind.getStats();
+		assertThat(stats.getPosition(), is(accounting.getLogSize()));
+		assertThat(stats.getBatches(), greaterThan(0L));
+		assertThat(stats.getRetries(), is(0L));
+		assertMatches(accounting);
+		assertThat(queryLong("SELECT removed_seq FROM accounts WHERE id = " + (before.getFirstId() + 9)), notNullValue());
+		// transfers logged before start are in initial balances
+		assertThat(queryLong("SELECT COUNT(*) FROM transfers"), is(accounting.getLogSize() - 11L));
+		assertThat(queryLong("SELECT SUM(amount) FROM transfers WHERE src_id = " + before.getFirstId()), is(100L));
+		assertThat(queryLong("SELECT seq FROM log_position WHERE id = 1"), is(accounting.getLogSize()));
+	}
+
+	@Test
+	public void retriesAndRestores() throws Exception {
+		InMemoryAccounting accounting = new InMemoryAccounting();
+		JdbcWriteBehind writeBehind = new JdbcWriteBehind(accounting, url);
+		writeBehind.start();
+		AccountRange range;
+		try {
+			range = accounting.createAccounts(4, 1000L);
+			awaitPersisted(writeBehind, accounting);
+			long created = queryLong("SELECT COUNT(*) FROM transfers");
+
+			// position row locked by another transaction fails every batch until released
+			database.setAutoCommit(false);
+			try (Statement statement = database.createStatement()) {
+				statement.executeUpdate("UPDATE log_position SET seq = seq WHERE id = 1");
+			}
+			for (int i = 0; i < 100; i++) {
+				accounting.execute(new Transfer(range.getFirstId() + i % 4, range.getFirstId() + (i + 1) % 4, i + 1));
+			}
+			Thread.sleep(500L);
+			PersistenceStats failing = writeBehind.getStats();
+			assertThat(failing.getRetries(), greaterThan(0L));
+			assertThat(failing.getFailures(), greaterThan(0L));
+			assertThat(failing.getLagEntries(), greaterThan(0L));
+			assertThat(failing.getLastError(), notNullValue());
+			assertThat(queryLong("SELECT COUNT(*) FROM transfers"), is(created));
+
+			database.rollback();
+			database.setAutoCommit(true);
+			awaitPersisted(writeBehind, accounting);
+			assertThat(writeBehind.getStats().getFailures(), is(0L));
+			assertThat(accounting.removeAccount(range.getFirstId() + 3), is(true));
+			awaitPersisted(writeBehind, accounting);
+			assertMatches(accounting);
+		} finally {
+			writeBehind.close();
+		}
+		long persisted = writeBehind.getStats().getPosition();
+		long transfers = queryLong("SELECT COUNT(*) FROM transfers");
+		assertThat(transfers, is(accounting.getLogSize()));
+
+		// crash: accounting is lost, database survives
+		InMemoryAccounting restored = new InMemoryAccounting();
+		JdbcWriteBehind restoring = new JdbcWriteBehind(restored, url);
+		restoring.start();
+		try {
+			assertThat(restoring.getStats().getPosition(), is(persisted));
+			for (int id = range.getFirstId(); id < range.getFirstId() + 3; id++) {
+				assertThat(restored.getAccount(id).getBalance(), is(accounting.getAccount(id).getBalance()));
+			}
+			assertThat(restored.getAccount(range.getFirstId() + 3), nullValue());
+			assertThat(restored.createAccount().getId(), is(range.getFirstId() + 4));
+			assertThat(restored.execute(new Transfer(range.getFirstId(), range.getFirstId() + 1, 7L)), is(OK));
+			awaitPersisted(restoring, restored);
+		} finally {
+			restoring.close();
+		}
+		assertThat(restoring.getStats().getPosition(), is(persisted + 1L));
+		assertThat(queryLong("SELECT COUNT(*) FROM transfers"), is(transfers + 1));
+		assertThat(queryLong("SELECT MAX(seq) FROM transfers"), is(persisted));
+		assertThat(queryLong("SELECT amount FROM transfers WHERE seq = " + persisted), is(7L));
+		assertMatches(restored);
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void refusesForeignDatabase() throws Exception {
+		try (Statement statement = database.createStatement()) {
+			for (String sql : JdbcWriteBehind.SCHEMA) {
+				statement.execute(sql);
+			}
+		}
+		try (PreparedStatement statement = database.prepareStatement(JdbcWriteBehind.INSERT_POSITION)) {
+			statement.setLong(1, 10L);
+			statement.executeUpdate();
+		}
+		InMemoryAccounting accounting = new InMemoryAccounting();
+		accounting.createAccount();
+		new JdbcWriteBehind(accounting, url).start();
+	}
+
+	private static void awaitPersisted(JdbcWriteBehind writeBehind, InMemoryAccounting accounting)
+		throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
+		while (writeBehind.getStats().getLagEntries() > 0L || writeBehind.getStats().getFailures() > 0L) {
+			assertThat("Database lags behind " + writeBehind.getStats(), System.currentTimeMillis() < deadline, is(true));
+			Thread.sleep(5L);
+		}
+		// account changes without log entries follow shortly
+		Thread.sleep(50L);
+	}
+
+	private Long queryLong(String sql) throws SQLException {
+		try (Statement statement = database.createStatement();
+				 ResultSet resultSet = statement.executeQuery(sql)) {
+			if (!resultSet.next()) {
+				return null;
+			}
+			long value = resultSet.getLong(1);
+			return resultSet.wasNull() ? null : value;
+		}
+	}
+
+	private void assertMatches(InMemoryAccounting accounting) throws SQLException {
+		try (PreparedStatement statement = database.prepareStatement(
+			"SELECT balance, removed_seq FROM accounts WHERE id = ?")) {
+			accounting.snapshot(account -> {
+				try {
+					statement.setInt(1, account.getId());
+					try (ResultSet row = statement.executeQuery()) {
+						assertThat("Account " + account.getId(), row.next(), is(true));
+						assertThat("Account " + account.getId(), row.getLong(1), is(account.getBalance()));
+						row.getLong(2);
+						assertThat("Account " + account.getId(), row.wasNull(), is(true));
+					}
+				} catch (SQLException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+		// removed accounts are kept with removal position, live ones match accounting
+		assertThat(queryLong("SELECT COUNT(*) FROM accounts WHERE removed_seq IS NULL"),
+			is(accounting.getStats().getAccounts()));
+	}
+}
@@ -0,0 +1,259 @@
+package me.torobev.billing.replication;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.ReplicationStatus;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import me.torobev.billing.rest.RestClient;
+import me.torobev.billing.web.WebServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.google.common.io.Closeables.close;
+import static java.lang.Runtime.getRuntime;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.ThreadLocalRandom.current;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static me.torobev.billing.accounting.Accounting.TransferResult.OK;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ReplicationTest {
+
+	private InMemoryAccounting leaderAccounting;
+	private InMemoryAccounting standbyAccounting;
+	private ReplicationLeader leader;
+	private ReplicationFollower follower;
+	private ExecutorService pool;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		leaderAccounting = new InMemoryAccounting();
+		standbyAccounting = new InMemoryAccounting();
+		leader = new ReplicationLeader(leaderAccounting, 0);
+		leader.start();
+		follower = new ReplicationFollower(standbyAccounting, "localhost", leader.getPort());
+		pool =
+			new ThreadPoolExecutor(getRuntime().availableProcessors(), getRuntime().availableProcessors(),
+				1, MINUTES, new ArrayBlockingQueue<>(1000), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		close(follower, true);
+		close(leader, true);
+		pool.shutdownNow();
+	}
+
+	@Test(invocationCount = 5)
+	public void catchUpAndStream() throws Exception {
+		AccountRange range = leaderAccounting.createAccounts(1000, 100L);
+		for (int i = 0; i < 1000; i++) {
+			leaderAccounting.execute(new Transfer(range.getFirstId() + i, range.getFirstId() + (i * 7) % 1000, 10L));
+		}
+		Account removed = leaderAccounting.createAccount();
+		leaderAccounting.removeAccount(removed.getId());
+
+		follower.start();
+		for (int i = 0; i < 20000; i++) {
+			int n = i;
+			pool.submit(() -> {
+				if (n % 100 == 0) {
+					Account account = leaderAccounting.createAccount();
+					if (n % 200 == 0) {
+						leaderAccounting.increaseAccountBalance(account.getId(), 5L);
+					}
+					if (n % 300 == 0) {
+						leaderAccounting.removeAccount(account.getId());
+					}
+				} else {
+					int from = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+					int to = current().nextInt(range.getFirstId(), range.getLastId() + 1);
+					leaderAccounting.execute(new Transfer(from, to, current().nextInt(1, 20)));
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, MINUTES);
+		leaderAccounting.removeAccount(range.getFirstId());
+
+		awaitCaughtUp();
+		assertThat(follower.getDiverged(), is(0L));
+		assertThat(balances(standbyAccounting), is(balances(leaderAccounting)));
+		assertThat(standbyAccounting.getAccount(removed.getId()), nullValue());
+		assertThat(standbyAccounting.getAccount(range.getFirstId()), nullValue());
+		assertThat(standbyAccounting.getStats().getBalance(), is(leaderAccounting.getStats().getBalance()));
+	}
+
+	@Test
+	public void refundStats() throws Exception {
+		follower.start();
+		awaitConnected();
+		AccountRange range = leaderAccounting.createAccounts(2, 100L);
+		int first = range.getFirstId();
+		assertThat(leaderAccounting.increaseAccountBalance(first, 50L), is(true));
+		assertThat(leaderAccounting.withdraw(first, 70L), is(OK));
+		// aborted withdrawal returns money
+		assertThat(leaderAccounting.refund(first, 30L), is(true));
+		assertThat(leaderAccounting.execute(new Transfer(first, range.getLastId(), 10L)), is(OK));
+		awaitCaughtUp();
+
+		AccountingStats leaderStats = leaderAccounting.getStats();
+		AccountingStats standbyStats = standbyAccounting.getStats();
+		assertThat(standbyStats.getBalance(), is(leaderStats.getBalance()));
+		assertThat(standbyStats.getInflow(), is(leaderStats.getInflow()));
+		assertThat(standbyStats.getOutflow(), is(leaderStats.getOutflow()));
+		assertThat(standbyStats.getOutflow(), is(40L));
+		assertThat(follower.getDiverged(), is(0L));
+		assertThat(standbyAccounting.getAccountLog(first).stream().filter(Transfer::isRefund).count(), is(1L));
+	}
+
+	@Test
+	public void semiSynchronous() throws Exception {
+		follower.start();
+		SemiSyncAccounting accounting = new SemiSyncAccounting(leaderAccounting, leader, 5000L);
+		awaitConnected();
+
+		Account first = accounting.createAccount();
+		Account second = accounting.createAccount();
+		assertThat(accounting.increaseAccountBalance(first.getId(), 100L), is(true));
+		assertThat(standbyAccounting.getAccount(first.getId()).getBalance(), is(100L));
+
+		assertThat(accounting.execute(new Transfer(first.getId(), second.getId(), 30L)), is(OK));
+		assertThat(standbyAccounting.getAccount(first.getId()).getBalance(), is(70L));
+		assertThat(standbyAccounting.getAccount(second.getId()).getBalance(), is(30L));
+		assertThat(accounting.getUnacknowledged(), is(0L));
+
+		follower.close();
+		long start = currentTimeMillis();
+		while (leader.getStatus().getConnected() > 0 && currentTimeMillis() - start < 5000L) {
+			MILLISECONDS.sleep(10);
+		}
+		assertThat(accounting.increaseAccountBalance(first.getId(), 1L), is(true));
+		assertThat(accounting.getUnacknowledged(), is(1L));
+	}
+
+	@Test
+	public void stalledStandby() throws Exception {
+		leaderAccounting.createAccounts(1000000, 1L);
+		// standby which connects and never reads, snapshot does not fit socket buffers
+		try (Socket stalled = new Socket("localhost", leader.getPort())) {
+			long start = currentTimeMillis();
+			while (leader.getStatus().getConnected() == 0) {
+				assertThat(currentTimeMillis() - start < 5000L, is(true));
+				MILLISECONDS.sleep(10);
+			}
+			MILLISECONDS.sleep(500);
+			// consistent cut is not held by stalled sender
+			CompletableFuture<Boolean> conserved = CompletableFuture.supplyAsync(leaderAccounting::checkConservation);
+			assertThat(conserved.get(10, SECONDS), is(true));
+		}
+	}
+
+	@Test
+	public void standbyServer() throws Exception {
+		WebServer leaderServer = new WebServer(freePort());
+		leaderServer.setLeader(0, 0L);
+		leaderServer.setAccounting(leaderAccounting);
+		leaderServer.start();
+		int replicationPort = ((ReplicationLeader) leaderServer.getReplication()).getPort();
+
+		int standbyPort = freePort();
+		WebServer standbyServer = new WebServer(standbyPort);
+		standbyServer.setStandby("localhost", replicationPort);
+		standbyServer.setAccounting(standbyAccounting);
+		standbyServer.setScheduler(5L);
+		standbyServer.start();
+
+		RestClient standby = new RestClient("http://localhost:" + standbyPort);
+		try {
+			Account account = leaderAccounting.createAccount();
+			leaderAccounting.increaseAccountBalance(account.getId(), 10L);
+
+			long start = currentTimeMillis();
+			while (standby.getAccount(account.getId()) == null && currentTimeMillis() - start < 5000L) {
+				MILLISECONDS.sleep(10);
+			}
+			assertThat(standby.getAccount(account.getId()), notNullValue());
+			assertThat(standby.getAccountLog(account.getId()).size(), is(1));
+
+			ReplicationStatus status = standby.getReplicationStatus();
+			assertThat(status.getRole(), is(ReplicationStatus.STANDBY));
+			assertThat(status.getConnected(), is(1));
+			assertThat(leaderServer.getReplication().getStatus().getConnected(), is(1));
+
+			try {
+				standby.createAccount();
+				throw new AssertionError("Standby must not accept modifications");
+			} catch (IllegalStateException e) {
+				assertThat(standbyAccounting.getStats().getAccounts(), is(1L));
+			}
+			try {
+				standby.scheduleTransfer(new Transfer(account.getId(), account.getId() + 1, 1L), currentTimeMillis(), 0L);
+				throw new AssertionError("Standby must not accept scheduled transfers");
+			} catch (IllegalStateException e) {
+				assertThat(standbyServer.getScheduler(), nullValue());
+			}
+		} finally {
+			close(standby, true);
+			standbyServer.stop();
+			leaderServer.stop();
+		}
+	}
+
+	private void awaitConnected() throws InterruptedException {
+		long start = currentTimeMillis();
+		while (leader.getStatus().getConnected() == 0 || follower.getStatus().getPosition() < 0L) {
+			assertThat(currentTimeMillis() - start < 5000L, is(true));
+			MILLISECONDS.sleep(10);
+		}
+	}
+
+	private void awaitCaughtUp() throws InterruptedException {
+		long start = currentTimeMillis();
+		while ((leader.getStatus().getLag() > 0L || !balances(standbyAccounting).equals(balances(leaderAccounting)))
+			&& currentTimeMillis() - start < 10000L) {
+			MILLISECONDS.sleep(50);
+		}
+		assertThat(leader.getStatus().getLag(), is(0L));
+	}
+
+	private static List<String> balances(InMemoryAccounting accounting) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			accounting.exportBalances(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return Arrays.stream(new String(out.toByteArray(), US_ASCII).split("\n"))
+			.filter(line -> !line.startsWith("#"))
+			.collect(toList());
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
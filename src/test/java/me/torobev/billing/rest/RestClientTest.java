@@ -2,17 +2,45 @@ package me.torobev.billing.rest;
 
 import com.google.common.base.Stopwatch;
 import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.AccountingStats;
+import me.torobev.billing.AuditReport;
+import me.torobev.billing.BalanceSnapshot;
+import me.torobev.billing.BatchReport;
+import me.torobev.billing.ChangeBatch;
+import me.torobev.billing.PhaseTiming;
+import me.torobev.billing.ScheduledTransfer;
 import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.Accounting;
+import me.torobev.billing.accounting.Accounting.TransferResult;
+import me.torobev.billing.accounting.IdempotencyKeyReusedException;
+import me.torobev.billing.web.Handler;
 import me.torobev.billing.web.WebServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
 
@@ -20,20 +48,27 @@ import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Stopwatch.createStarted;
 import static com.google.common.io.Closeables.close;
 import static java.lang.Runtime.getRuntime;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Arrays.asList;
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.ThreadLocalRandom.current;
 import static java.util.concurrent.TimeUnit.*;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.IntStream.rangeClosed;
 import static me.torobev.billing.accounting.Accounting.TransferResult.*;
+import static org.apache.http.entity.ContentType.APPLICATION_FORM_URLENCODED;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
 
 public class RestClientTest {
 
 	private WebServer server;
+	private String location;
 	private RestClient accounting;
 	private ExecutorService pool;
 
@@ -44,8 +79,14 @@ public class RestClientTest {
 		socket.close();
 
 		server = new WebServer(port);
+		server.setReadReplica(10L);
+		server.setChangeFeed(64);
+		server.setScheduler(5L);
+		server.setBatch(1, 1000L);
+		server.setHttp2(true);
 		server.start();
-		accounting = new RestClient("http://localhost:" + port);
+		location = "http://localhost:" + port;
+		accounting = new RestClient(location);
 		pool =
 			new ThreadPoolExecutor(getRuntime().availableProcessors(), getRuntime().availableProcessors(),
 				1, MINUTES, new ArrayBlockingQueue<>(1000), new CallerRunsPolicy());
@@ -57,6 +98,49 @@ public class RestClientTest {
 		server.stop();
 	}
 
+	@Test
+	public void scheduledTransfers() throws InterruptedException {
+		AccountRange range = accounting.createAccounts(2, 100L);
+		int src = range.getFirstId();
+		int dst = src + 1;
+		long now = System.currentTimeMillis();
+
+		ScheduledTransfer once = accounting.scheduleTransfer(new Transfer(src, dst, 10L), now + 50L, 0L);
+		ScheduledTransfer standing = accounting.scheduleTransfer(new Transfer(dst, src, 1L), now, 20L);
+		ScheduledTransfer cancelled = accounting.scheduleTransfer(new Transfer(src, dst, 50L), now + 60000L, 0L);
+		assertThat(once.getRuns(), is(0L));
+		assertThat(accounting.getScheduledTransfer(cancelled.getId()).getDueTime(), is(now + 60000L));
+		assertThat(accounting.cancelScheduledTransfer(cancelled.getId()), is(true));
+		assertThat(accounting.cancelScheduledTransfer(cancelled.getId()), is(false));
+		assertThat(accounting.getScheduledTransfer(cancelled.getId()), nullValue());
+
+		Stopwatch stopwatch = createStarted();
+		while (accounting.getScheduledTransfer(once.getId()) != null
+			|| accounting.getScheduledTransfer(standing.getId()).getRuns() < 5L) {
+			checkState(stopwatch.elapsed(SECONDS) < 10L, "Scheduled transfers are not executed");
+			Thread.sleep(10L);
+		}
+		assertThat(accounting.cancelScheduledTransfer(standing.getId()), is(true));
+		assertThat(accounting.getScheduleStats().getPending(), is(0L));
+		assertThat(accounting.getScheduleStats().getFailed(), is(0L));
+		// run in flight when standing order is cancelled is executed anyway
+		Thread.sleep(50L);
+		long runs = accounting.getScheduleStats().getExecuted() - 1L;
+
+		assertThat(accounting.getAccount(src).getBalance(), is(100L - 10L + runs));
+		assertThat(accounting.getAccount(dst).getBalance(), is(100L + 10L - runs));
+		assertThat(accounting.getAccountLog(src).stream().filter(t -> t.getSrcId() == dst).count(), is(runs));
+	}
+
+	@Test
+	public void malformedScheduledId() throws IOException {
+		try (CloseableHttpClient client = HttpClients.createDefault();
+				 CloseableHttpResponse response = client.execute(new HttpGet(location + "/transfers/scheduled/99999999999999999999"))) {
+			assertThat(response.getStatusLine().getStatusCode(), is(406));
+			assertThat(EntityUtils.toString(response.getEntity()), containsString("NOT_ACCEPTABLE"));
+		}
+	}
+
 	@Test
 	public void commonScenario() {
 		Account account = accounting.createAccount();
@@ -105,6 +189,17 @@ public class RestClientTest {
 			new Transfer(account.getId(), account2.getId(), 4)
 		));
 
+		List<Transfer> log = accounting.getAccountLog(account2.getId());
+		long last = log.get(log.size() - 1).getTimestamp();
+		assertThat(accounting.getAccountLog(account2.getId(), Long.MIN_VALUE, Long.MAX_VALUE, 2), is(log.subList(0, 2)));
+		assertThat(accounting.getAccountLog(account2.getId(), last, last + 1, 10),
+			hasItem(new Transfer(account.getId(), account2.getId(), 4)));
+		assertThat(accounting.getAccountLog(account2.getId(), last + 1, Long.MAX_VALUE, 10), empty());
+
+		assertThat(accounting.getAccountAtSequence(account2.getId(), log.get(1).getSequence()),
+			is(new Account(account2.getId(), 25L)));
+		assertThat(accounting.getAccountAsOf(account2.getId(), last), is(new Account(account2.getId(), 30L)));
+
 		assertThat(accounting.removeAccount(account.getId()), is(true));
 
 		assertThat(accounting.execute(new Transfer(account.getId(), account2.getId(), 4)), is(SOURCE_NOT_FOUND));
@@ -112,6 +207,219 @@ public class RestClientTest {
 
 		assertThat(accounting.getAccount(account.getId()), nullValue());
 		assertThat(accounting.getAccountLog(account.getId()), empty());
+
+		AccountingStats stats = accounting.getStats();
+		assertThat(stats.getAccounts(), is(1L));
+		assertThat(stats.getInflow(), is(30L));
+		assertThat(stats.getBalance(), is(30L));
+		assertThat(stats.getDrift(), is(0L));
+
+		AuditReport report = accounting.audit();
+		assertThat(report.getAccounts(), is(1));
+		assertThat(report.getMismatchCount(), is(0));
+	}
+
+	@Test
+	public void bulkCreate() {
+		AccountRange range = accounting.createAccounts(1000, 50L);
+		assertThat(range.getCount(), is(1000));
+		assertThat(range.getBalance(), is(50L));
+
+		assertThat(accounting.getAccount(range.getFirstId()), is(new Account(range.getFirstId(), 50L)));
+		assertThat(accounting.getAccount(range.getLastId()), is(new Account(range.getLastId(), 50L)));
+		assertThat(accounting.execute(new Transfer(range.getFirstId(), range.getLastId(), 50L)), is(OK));
+		assertThat(accounting.getAccount(range.getLastId()).getBalance(), is(100L));
+	}
+
+	@Test
+	public void balanceQueries() {
+		AccountRange range = accounting.createAccounts(10, 100L);
+		int first = range.getFirstId();
+		assertThat(accounting.execute(new Transfer(first, first + 1, 60L)), is(OK));
+		assertThat(accounting.execute(new Transfer(first + 2, first + 3, 30L)), is(OK));
+
+		assertThat(accounting.getTopAccounts(3), contains(new Account(first + 1, 160L), new Account(first + 3, 130L),
+			new Account(first + 4, 100L)));
+		assertThat(accounting.getAccountsByBalance(0L, 100L, 10), contains(new Account(first, 40L),
+			new Account(first + 2, 70L)));
+		assertThat(accounting.getAccountsByBalance(100L, 101L, 2), contains(new Account(first + 4, 100L),
+			new Account(first + 5, 100L)));
+		assertThat(accounting.getAccountsByBalance(200L, 100L, 10), empty());
+
+		// limit is bounded
+		accounting.createAccounts(Handler.MAX_ACCOUNTS, 1L);
+		assertThat(accounting.getTopAccounts(Integer.MAX_VALUE).size(), is(Handler.MAX_ACCOUNTS));
+		assertThat(accounting.getAccountsByBalance(0L, Long.MAX_VALUE, Handler.MAX_ACCOUNTS + 1).size(),
+			is(Handler.MAX_ACCOUNTS));
+		for (int limit : new int[]{0, -1}) {
+			try {
+				accounting.getTopAccounts(limit);
+				throw new AssertionError("Non-positive limit is accepted");
+			} catch (IllegalArgumentException expected) {
+				// 406
+			}
+			try {
+				accounting.getAccountsByBalance(0L, 100L, limit);
+				throw new AssertionError("Non-positive limit is accepted");
+			} catch (IllegalArgumentException expected) {
+				// 406
+			}
+		}
+	}
+
+	@Test
+	public void listAndBatchRead() {
+		int count = 200000;
+		AccountRange range = accounting.createAccounts(count, 10L);
+		int first = range.getFirstId();
+		assertThat(accounting.removeAccount(first + 1), is(true));
+		assertThat(accounting.increaseAccountBalance(first + 2, 5L), is(true));
+
+		List<Account> page = accounting.listAccounts(0, 3);
+		assertThat(page, contains(new Account(first, 10L), new Account(first + 2, 15L), new Account(first + 3, 10L)));
+		assertThat(page.get(1).getVersion(), is(2L));
+		assertThat(accounting.listAccounts(range.getLastId(), 10), empty());
+		assertThat(accounting.getAccounts(new int[]{first + 3, first + 1, first, first, range.getLastId() + 1}),
+			contains(new Account(first, 10L), new Account(first + 3, 10L)));
+
+		Stopwatch sw = createStarted();
+		List<Account> all = accounting.listAccounts(0, Integer.MAX_VALUE);
+		long listed = sw.elapsed(MILLISECONDS);
+		assertThat(all.size(), is(count - 1));
+		sw.reset().start();
+		List<Account> read = accounting.getAccounts(all.stream().mapToInt(Account::getId).toArray());
+		long fetched = sw.elapsed(MILLISECONDS);
+		assertThat(read, is(all));
+		System.out.format("Listed %d accounts in %d ms, read them by id in %d ms, %d accounts per request\n",
+			all.size(), listed, fetched, Handler.MAX_ACCOUNTS);
+	}
+
+	@Test
+	public void batch() throws InterruptedException {
+		AccountRange range = accounting.createAccounts(3, 0L);
+		int first = range.getFirstId();
+		assertThat(accounting.increaseAccountBalance(first, 3650000L), is(true));
+		assertThat(accounting.increaseAccountBalance(first + 1, 2000L), is(true));
+		assertThat(accounting.getBatchReport(), nullValue());
+
+		BatchReport started = accounting.startBatch("day-1", new BigDecimal("0.1"), 100L, 10000L);
+		Stopwatch stopwatch = createStarted();
+		BatchReport report;
+		while ((report = accounting.getBatchReport()).isRunning()) {
+			checkState(stopwatch.elapsed(SECONDS) < 10L, "Batch job is not finished");
+			Thread.sleep(10L);
+		}
+		assertThat(report.getSequence(), is(started.getSequence()));
+		assertThat(report.getCredited(), is(1000L));
+		assertThat(report.getDebited(), is(100L));
+		assertThat(report.getFailed(), is(1L));
+		assertThat(accounting.getAccount(first).getBalance(), is(3651000L));
+		assertThat(accounting.getAccount(first + 1).getBalance(), is(1900L));
+		assertThat(accounting.getAccount(first + 2).getBalance(), is(0L));
+		// finished run is not applied again
+		BatchReport again = accounting.startBatch("day-1", new BigDecimal("0.1"), 100L, 10000L);
+		assertThat(again.isRunning(), is(false));
+		assertThat(again.getCredited(), is(1000L));
+		assertThat(accounting.getAccount(first).getBalance(), is(3651000L));
+		try {
+			accounting.startBatch("day-2", new BigDecimal("-1.0"), -1L, 0L);
+			throw new AssertionError("Negative fee accepted");
+		} catch (IllegalArgumentException expected) {
+			// rejected with 406
+		}
+	}
+
+	@Test(timeOut = 30000L)
+	public void http2Option() throws Exception {
+		AccountRange range = accounting.createAccounts(2, 100L);
+		int first = range.getFirstId();
+		try (MultiplexingClient client = new MultiplexingClient(location, 1)) {
+			assertThat(client.execute(new Transfer(first, first + 1, 10L)), is(OK));
+		}
+
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		// HTTP/1.1 only by default
+		WebServer http1 = new WebServer(port);
+		http1.start();
+		try (MultiplexingClient client = new MultiplexingClient("http://localhost:" + port, 1)) {
+			Account account = client.createAccount();
+			assertThat(account.getBalance(), is(0L));
+			try {
+				client.increaseAccountBalance(account.getId(), 10L);
+				throw new AssertionError("HTTP/2 stream is served by HTTP/1.1 only server");
+			} catch (RuntimeException expected) {
+				// connection is refused
+			}
+		} finally {
+			http1.stop();
+		}
+	}
+
+	@Test
+	public void multiplexedTransfers() throws Exception {
+		int count = 100;
+		AccountRange range = accounting.createAccounts(count, 1000000L);
+		int first = range.getFirstId();
+		assertThat(accounting.executeAll(asList(new Transfer(first, first + 1, 10L), new Transfer(first, first + count, 1L),
+			new Transfer(first + 1, first, 2000000L), new Transfer(first + 2, first + 2, 1L))),
+			contains(OK, DESTINATION_NOT_FOUND, SOURCE_BALANCE_CHECK_FAILED, SAME_ACCOUNTS));
+
+		int threads = 32;
+		int transfers = 20000;
+		for (int connections : new int[]{threads, 0}) {
+			Accounting client = connections == 0
+				? new MultiplexingClient(location, 2)
+				: new RestClient(location, connections);
+			ExecutorService callers = Executors.newFixedThreadPool(threads);
+			List<Future<TransferResult>> results = new ArrayList<>();
+			Stopwatch sw = createStarted();
+			for (int i = 0; i < transfers; i++) {
+				int from = first + current().nextInt(count);
+				int to = first + current().nextInt(count);
+				results.add(callers.submit(() -> client.execute(new Transfer(from, to, 1L))));
+			}
+			int shed = 0;
+			for (Future<TransferResult> result : results) {
+				try {
+					assertThat(result.get(), either(is(OK)).or(is(SAME_ACCOUNTS)));
+				} catch (ExecutionException e) {
+					// admission control sheds requests queued for too long
+					assertThat(e.getCause().getMessage(), containsString("OVERLOADED"));
+					shed++;
+				}
+			}
+			long elapsed = sw.elapsed(MILLISECONDS);
+			callers.shutdown();
+			if (client instanceof MultiplexingClient) {
+				int streams = ((MultiplexingClient) client).getMaxInFlight();
+				System.out.format("Executed %d transfers of %d callers over 2 HTTP/2 connections in %d ms, %d shed, up to %d streams in flight\n",
+					transfers, threads, elapsed, shed, streams);
+				assertThat(streams, greaterThan(2));
+			} else {
+				System.out.format("Executed %d transfers of %d callers over %d connections in %d ms, %d shed\n",
+					transfers, threads, connections, elapsed, shed);
+			}
+			close((Closeable) client, true);
+		}
+		AccountingStats stats = accounting.getStats();
+		assertThat(stats.getBalance(), is(1000000L * count));
+		assertThat(stats.getViolations(), is(0L));
+	}
+
+	@Test
+	public void export() throws IOException {
+		AccountRange range = accounting.createAccounts(100, 10L);
+		assertThat(accounting.execute(new Transfer(range.getFirstId(), range.getLastId(), 10L)), is(OK));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BalanceSnapshot snapshot = accounting.exportBalances(out);
+		assertThat(snapshot, is(new BalanceSnapshot(101L, 100, 1000L)));
+
+		String export = new String(out.toByteArray(), US_ASCII);
+		assertThat(export, startsWith(BalanceSnapshot.HEADER + "\n" + range.getFirstId() + ",0\n"));
+		assertThat(export, endsWith(range.getLastId() + ",20\n" + snapshot.toTrailer() + "\n"));
 	}
 
 	@Test(invocationCount = 10)
@@ -151,4 +459,141 @@ public class RestClientTest {
 		sum = ids.stream().map(id -> accounting.getAccount(id)).mapToLong(Account::getBalance).sum();
 		assertThat("initial sum check", sum, is(1000000L * count));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void idempotentRetries() {
+		AccountRange range = accounting.createAccounts(2, 10L);
+		assertThat(accounting.execute(new Transfer(range.getFirstId(), range.getLastId(), 10L), "retried"), is(OK));
+		assertThat(accounting.execute(new Transfer(range.getFirstId(), range.getLastId(), 10L), "retried"), is(OK));
+		assertThat(accounting.increaseAccountBalance(range.getFirstId(), 5L, "retried-increase"), is(true));
+		assertThat(accounting.increaseAccountBalance(range.getFirstId(), 5L, "retried-increase"), is(true));
+
+		assertThat(accounting.getAccount(range.getFirstId()).getBalance(), is(5L));
+		assertThat(accounting.getAccount(range.getLastId()).getBalance(), is(20L));
+
+		try {
+			accounting.increaseAccountBalance(range.getFirstId(), 10L, "retried");
+			throw new AssertionError("Key of transfer is accepted for increase");
+		} catch (IdempotencyKeyReusedException expected) {
+			assertThat(expected.getMessage(), containsString("transfer"));
+		}
+		try {
+			accounting.execute(new Transfer(range.getFirstId(), range.getLastId(), 1L), "retried");
+			throw new AssertionError("Key is accepted for another amount");
+		} catch (IdempotencyKeyReusedException expected) {
+			// conflict
+		}
+		assertThat(accounting.getAccount(range.getFirstId()).getBalance(), is(5L));
+	}
+
+	@Test
+	public void malformedBatchTransfers() throws IOException {
+		AccountRange range = accounting.createAccounts(2, 100L);
+		int first = range.getFirstId();
+		int last = range.getLastId();
+		HttpPost post = new HttpPost(location + "/transfers/batch");
+		post.setEntity(new StringEntity("transfers=" + first + ":" + last + ":10,x:1:1," + first + ":" + last + ","
+			+ first + ":" + last + ":0," + last + ":" + first + ":5", APPLICATION_FORM_URLENCODED));
+		try (CloseableHttpClient client = HttpClients.createDefault();
+				 CloseableHttpResponse response = client.execute(post)) {
+			// malformed transfers do not fail the others
+			assertThat(response.getStatusLine().getStatusCode(), is(200));
+			assertThat(EntityUtils.toString(response.getEntity()),
+				containsString("\"result\":[\"OK\",\"ERROR\",\"ERROR\",\"ERROR\",\"OK\"]"));
+		}
+		assertThat(accounting.getAccount(first).getBalance(), is(95L));
+		assertThat(accounting.getAccount(last).getBalance(), is(105L));
+	}
+
+	@Test
+	public void serverTiming() throws IOException {
+		AccountRange range = accounting.createAccounts(2, 10L);
+		assertThat(accounting.execute(new Transfer(range.getFirstId(), range.getLastId(), 1L)), is(OK));
+
+		HttpPost post = new HttpPost(location + "/transfer?src=" + range.getFirstId() + "&dst=" + range.getLastId()
+			+ "&amount=1");
+		post.addHeader(Handler.SERVER_TIMING_HEADER, "true");
+		try (CloseableHttpClient client = HttpClients.createDefault();
+				 CloseableHttpResponse response = client.execute(post)) {
+			assertThat(response.getStatusLine().getStatusCode(), is(200));
+			assertThat(response.getFirstHeader("Server-Timing").getValue(),
+				startsWith("route;dur="));
+		}
+
+		Map<String, Map<String, PhaseTiming>> timings = accounting.getPhaseTimings();
+		assertThat(timings.get("transfer").get("accounting").getCount(), is(2L));
+		assertThat(timings.get("accounts/bulk").get("parse").getCount(), is(1L));
+	}
+
+	@Test
+	public void replicaReads() throws InterruptedException {
+		Account account = accounting.createAccount();
+		accounting.increaseAccountBalance(account.getId(), 100L);
+
+		accounting.setReplicaReads(true);
+		long start = System.currentTimeMillis();
+		while (accounting.getAccount(account.getId()) == null
+			|| accounting.getAccount(account.getId()).getBalance() != 100L) {
+			assertThat(System.currentTimeMillis() - start < 5000L, is(true));
+			MILLISECONDS.sleep(10);
+		}
+		assertThat(accounting.getAccountLog(account.getId()), contains(new Transfer(0, account.getId(), 100L)));
+		assertThat(accounting.getAccount(account.getId() + 1), nullValue());
+
+		accounting.setReplicaReads(false);
+		assertThat(accounting.getAccount(account.getId()).getBalance(), is(100L));
+	}
+
+	@Test
+	public void conditionalReads() {
+		Account account = accounting.createAccount();
+		assertThat(account.getVersion(), is(1L));
+
+		Account read = accounting.getAccount(account.getId());
+		// unchanged account is not sent again
+		assertThat(accounting.getAccount(account.getId()), sameInstance(read));
+
+		accounting.increaseAccountBalance(account.getId(), 100L);
+		Account changed = accounting.getAccount(account.getId());
+		assertThat(changed.getBalance(), is(100L));
+		assertThat(changed.getVersion(), is(2L));
+		assertThat(accounting.getAccount(account.getId()), sameInstance(changed));
+
+		// historical state is not versioned
+		assertThat(accounting.getAccountAtSequence(account.getId(), 0L).getVersion(), is(0L));
+
+		Account removed = accounting.createAccount();
+		assertThat(accounting.getAccount(removed.getId()), notNullValue());
+		assertThat(accounting.removeAccount(removed.getId()), is(true));
+		assertThat(accounting.getAccount(removed.getId()), nullValue());
+	}
+
+	@Test
+	public void changeFeed() throws Exception {
+		Account src = accounting.createAccount();
+		Account dst = accounting.createAccount();
+		accounting.increaseAccountBalance(src.getId(), 100L);
+		long subscription = accounting.subscribe(-1L, dst.getId());
+
+		Stopwatch sw = createStarted();
+		assertThat(accounting.pollChanges(subscription, 10, 100L).getTransfers(), empty());
+		assertThat(sw.elapsed(MILLISECONDS), greaterThanOrEqualTo(90L));
+
+		pool.submit(() -> {
+			MILLISECONDS.sleep(100);
+			return accounting.execute(new Transfer(src.getId(), dst.getId(), 10L));
+		});
+		sw.reset().start();
+		ChangeBatch batch = accounting.pollChanges(subscription, 10, 5000L);
+		assertThat(sw.elapsed(MILLISECONDS), lessThan(5000L));
+		assertThat(batch.getTransfers(), contains(new Transfer(src.getId(), dst.getId(), 10L)));
+
+		// resumed from the first transfer of the account
+		long resumed = accounting.subscribe(batch.getTransfers().get(0).getSequence(), src.getId());
+		assertThat(accounting.pollChanges(resumed, 10, 5000L).getTransfers(),
+			contains(new Transfer(src.getId(), dst.getId(), 10L)));
+
+		assertThat(accounting.unsubscribe(subscription), is(true));
+		assertThat(accounting.pollChanges(subscription, 10, 0L), nullValue());
+	}
+}
@@ -0,0 +1,126 @@
+package me.torobev.billing.schedule;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TimingWheelTest {
+
+	private static class TestTimer extends TimingWheel.Timer {
+
+		private final int index;
+
+		TestTimer(int index) {
+			this.index = index;
+		}
+	}
+
+	@Test
+	public void expiresAtDeadline() {
+		Random random = new Random(42L);
+		TimingWheel<TestTimer> wheel = new TimingWheel<>();
+		int count = 100000;
+		List<TestTimer> timers = new ArrayList<>();
+		long[] deadlines = new long[count];
+		boolean[] cancelled = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			TestTimer timer = new TestTimer(i);
+			// spread over all levels
+			deadlines[i] = random.nextInt(4) == 0 ? random.nextInt(100) : (long) (Math.pow(2, random.nextDouble() * 30));
+			wheel.add(timer, deadlines[i]);
+			timers.add(timer);
+		}
+		for (int i = 0; i < count; i += 7) {
+			assertThat(wheel.remove(timers.get(i)), is(true));
+			assertThat(wheel.remove(timers.get(i)), is(false));
+			cancelled[i] = true;
+		}
+		assertThat(wheel.size(), is(count - (count + 6) / 7));
+
+		int[] expired = {0};
+		long tick = 0L;
+		while (wheel.size() > 0) {
+			long previous = tick;
+			tick += 1 + random.nextInt(1 << 16);
+			long now = tick;
+			wheel.advance(now, Integer.MAX_VALUE, timer -> {
+				long deadline = deadlines[timer.index];
+				assertThat(cancelled[timer.index], is(false));
+				// expired by the first advance reaching deadline
+				assertThat("Deadline " + deadline + " expired at " + now, deadline <= now && (deadline > previous || deadline == 0L), is(true));
+				expired[0]++;
+			});
+			assertThat(wheel.getCurrent(), is(now));
+		}
+		assertThat(expired[0], is(count - (count + 6) / 7));
+	}
+
+	@Test
+	public void expiresInOrder() {
+		TimingWheel<TestTimer> wheel = new TimingWheel<>();
+		long[] deadlines = {5L, 64L, 63L, 4096L, 4095L, 4160L, 262144L, 1L, 65L, 262143L};
+		for (int i = 0; i < deadlines.length; i++) {
+			wheel.add(new TestTimer(i), deadlines[i]);
+		}
+		List<Long> fired = new ArrayList<>();
+		for (long tick = 1; tick <= 262144L; tick++) {
+			long now = tick;
+			wheel.advance(now, Integer.MAX_VALUE, timer -> {
+				assertThat(deadlines[timer.index], is(now));
+				fired.add(now);
+			});
+		}
+		assertThat(fired.toString(), is("[1, 5, 63, 64, 65, 4095, 4096, 4160, 262143, 262144]"));
+
+		// batch limit leaves the rest due for the next call
+		for (int i = 0; i < 10; i++) {
+			wheel.add(new TestTimer(i), 262150L);
+		}
+		assertThat(wheel.advance(262200L, 4, timer -> {
+		}), is(4));
+		assertThat(wheel.getCurrent(), is(262150L));
+		assertThat(wheel.advance(262200L, 100, timer -> {
+		}), is(6));
+		assertThat(wheel.getCurrent(), is(262200L));
+	}
+
+	@Test
+	public void benchmark() {
+		int count = 10000000;
+		Random random = new Random(42L);
+		TimingWheel<TestTimer> wheel = new TimingWheel<>();
+		TestTimer[] timers = new TestTimer[count];
+		for (int i = 0; i < count; i++) {
+			timers[i] = new TestTimer(i);
+		}
+
+		// due within a day of 10 ms ticks
+		long start = System.nanoTime();
+		for (TestTimer timer : timers) {
+			wheel.add(timer, 1 + random.nextInt(8640000));
+		}
+		long scheduled = System.nanoTime() - start;
+		assertThat(wheel.size(), is(count));
+
+		start = System.nanoTime();
+		for (int i = 0; i < count; i += 10) {
+			wheel.remove(timers[i]);
+		}
+		long cancelled = System.nanoTime() - start;
+
+		int[] fired = {0};
+		start = System.nanoTime();
+		wheel.advance(8640000L, Integer.MAX_VALUE, timer -> fired[0]++);
+		long expired = System.nanoTime() - start;
+		assertThat(fired[0], is(count - count / 10));
+		assertThat(wheel.size(), is(0));
+
+		System.out.format("Timing wheel of %d timers: schedule %.1f ns, cancel %.1f ns, fire %.1f ns per timer\n",
+			count, (double) scheduled / count, (double) cancelled / (count / 10), (double) expired / fired[0]);
+	}
+}
@@ -0,0 +1,197 @@
+package me.torobev.billing.shm;
+
+import me.torobev.billing.Account;
+import me.torobev.billing.AccountRange;
+import me.torobev.billing.Transfer;
+import me.torobev.billing.accounting.InMemoryAccounting;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static me.torobev.billing.accounting.Accounting.TransferResult.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+public class SharedMemoryTest {
+
+	private static final int CAPACITY = 100000;
+
+	private Path file;
+	private InMemoryAccounting accounting;
+	private SharedMemoryServer server;
+	private SharedMemoryClient client;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		file = Files.createTempFile("billing", ".shm");
+		accounting = new InMemoryAccounting();
+		accounting.createAccounts(10, 100L);
+		server = new SharedMemoryServer(accounting, accounting, file, CAPACITY, 64);
+		server.start();
+		// separate mapping of the same file, like in another process
+		client = new SharedMemoryClient(file, accounting);
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		server.close();
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void readsAndWrites() {
+		assertThat(client.getAccount(1), is(new Account(1, 100L)));
+		assertThat(client.getAccount(1).getVersion(), is(1L));
+		assertThat(client.getAccount(11), nullValue());
+
+		Account created = client.createAccount();
+		assertThat(created, is(new Account(11, 0L)));
+		assertThat(client.increaseAccountBalance(11, 50L), is(true));
+		assertThat(client.increaseAccountBalance(12, 50L), is(false));
+		assertThat(client.execute(new Transfer(1, 11, 30L)), is(OK));
+		assertThat(client.execute(new Transfer(1, 11, 300L)), is(SOURCE_BALANCE_CHECK_FAILED));
+		assertThat(client.execute(new Transfer(1, 12, 30L)), is(DESTINATION_NOT_FOUND));
+		// own writes are mirrored before their results
+		assertThat(client.getAccount(11), is(new Account(11, 80L)));
+		assertThat(client.getAccount(11).getVersion(), is(accounting.getAccount(11).getVersion()));
+		assertThat(client.getAccount(1), is(new Account(1, 70L)));
+
+		// changes made by server itself are mirrored too
+		assertThat(accounting.execute(new Transfer(2, 3, 10L)), is(OK));
+		assertThat(client.removeAccount(4), is(true));
+		assertThat(client.removeAccount(4), is(false));
+		assertThat(client.getAccount(4), nullValue());
+		assertThat(client.getAccount(2), is(new Account(2, 90L)));
+		assertThat(client.getAccount(3), is(new Account(3, 110L)));
+
+		AccountRange range = client.createAccounts(3, 5L);
+		assertThat(range.getFirstId(), is(12));
+		assertThat(client.listAccounts(10, 3), contains(new Account(11, 80L), new Account(12, 5L), new Account(13, 5L)));
+		assertThat(client.getAccounts(new int[]{14, 4, 3, 3}), contains(new Account(3, 110L), new Account(14, 5L)));
+		assertThat(server.getServed(), is(9L));
+	}
+
+	@Test
+	public void beyondCapacity() {
+		AccountRange range = accounting.createAccounts(CAPACITY, 1L);
+		int last = range.getFirstId() + range.getCount() - 1;
+		assertThat(last, is(CAPACITY + 10));
+		assertThat(client.execute(new Transfer(1, last, 10L)), is(OK));
+		// read through fallback
+		assertThat(client.getAccount(last), is(new Account(last, 11L)));
+		assertThat(client.getAccount(1), is(new Account(1, 90L)));
+		assertThat(client.listAccounts(CAPACITY - 2, 4), contains(new Account(CAPACITY - 1, 1L),
+			new Account(CAPACITY, 1L), new Account(CAPACITY + 1, 1L), new Account(CAPACITY + 2, 1L)));
+	}
+
+	@Test
+	public void closed() {
+		server.close();
+		try {
+			client.getAccount(1);
+			throw new AssertionError("Closed shared memory read");
+		} catch (IllegalStateException expected) {
+			// client must reopen new file
+		}
+		assertThat(client.execute(new Transfer(1, 2, 1L)), is(ERROR));
+	}
+
+	@Test
+	public void staleClaim() throws IOException {
+		server.close();
+		server = new SharedMemoryServer(accounting, accounting, file, CAPACITY, 64, MILLISECONDS.toNanos(50L));
+		server.start();
+		client = new SharedMemoryClient(file, accounting);
+		assertThat(client.getAccount(1), is(new Account(1, 100L)));
+
+		// producer dies between claim and put
+		SharedMemory dead = SharedMemory.open(file);
+		long ticket = dead.claim();
+		assertThat(client.execute(new Transfer(1, 2, 10L)), is(OK));
+		assertThat(client.getAccount(2), is(new Account(2, 110L)));
+		assertThat(server.getExpired(), is(1L));
+		// late request is not served
+		assertThat(dead.putRequest(ticket, SharedMemory.OP_TRANSFER, 1, 2, 10L), is(false));
+		assertThat(client.execute(new Transfer(2, 3, 10L)), is(OK));
+		assertThat(accounting.getAccount(1), is(new Account(1, 90L)));
+		assertThat(server.getServed(), is(3L));
+	}
+
+	@Test
+	public void concurrentClients() throws InterruptedException {
+		int count = 1000;
+		accounting.createAccounts(count, 1000L);
+		long total = accounting.getStats().getBalance();
+		AtomicLong failed = new AtomicLong();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			SharedMemoryClient own = new SharedMemoryClient(file, accounting);
+			threads.add(new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int i = 0; i < 10000; i++) {
+					int src = 11 + random.nextInt(count);
+					int dst = 11 + random.nextInt(count);
+					if (own.execute(new Transfer(src, dst, 1 + random.nextInt(100))) == ERROR) {
+						failed.incrementAndGet();
+					}
+					Account account = own.getAccount(src);
+					if (account == null || account.getBalance() < 0L) {
+						failed.incrementAndGet();
+					}
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(failed.get(), is(0L));
+		long mirrored = 0L;
+		for (Account account : client.listAccounts(0, Integer.MAX_VALUE)) {
+			assertThat(account, is(accounting.getAccount(account.getId())));
+			mirrored += account.getBalance();
+		}
+		assertThat(mirrored, is(total));
+	}
+
+	@Test
+	public void benchmark() throws InterruptedException {
+		accounting.createAccounts(CAPACITY - 10, 1000L);
+		while (client.getPosition() < accounting.getLogSize()) {
+			Thread.sleep(1L);
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int reads = 10000000;
+		long sum = 0L;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < reads; i++) {
+				sum += client.getAccount(1 + random.nextInt(CAPACITY)).getBalance();
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.format("Shared memory balance read: %d ns%n", elapsed / reads);
+		}
+		assertThat(sum > 0L, is(true));
+
+		int transfers = 20000;
+		long start = System.nanoTime();
+		for (int i = 0; i < transfers; i++) {
+			int src = 1 + random.nextInt(CAPACITY);
+			int dst = src % CAPACITY + 1;
+			assertThat(client.execute(new Transfer(src, dst, 1L)), is(OK));
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.format("Shared memory transfer round trip: %d ns%n", elapsed / transfers);
+	}
+}
@@ -0,0 +1,72 @@
+package me.torobev.billing.web;
+
+import me.torobev.billing.web.AdmissionHandler.Budget;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class AdmissionHandlerTest {
+
+	@Test
+	public void inFlightLimit() {
+		Budget budget = new Budget(2, 10L, 100L);
+
+		assertThat(budget.tryAcquire(1000L, 0L), is(true));
+		assertThat(budget.tryAcquire(1000L, 0L), is(true));
+		assertThat(budget.tryAcquire(1000L, 0L), is(false));
+		assertThat(budget.getInFlight(), is(2));
+
+		budget.release();
+		assertThat(budget.tryAcquire(1000L, 0L), is(true));
+		assertThat(budget.getAdmitted(), is(3L));
+		assertThat(budget.getShed(), is(1L));
+	}
+
+	@Test
+	public void chargedPerTransfer() {
+		Budget budget = new Budget(10, 10L, 100L);
+
+		assertThat(budget.tryAcquire(1000L, 0L, 8), is(true));
+		// batch larger than the rest of budget
+		assertThat(budget.tryAcquire(1000L, 0L, 3), is(false));
+		assertThat(budget.tryAcquire(1000L, 0L, 2), is(true));
+		assertThat(budget.tryAcquire(1000L, 0L), is(false));
+		assertThat(budget.getInFlight(), is(10));
+
+		budget.release(8);
+		assertThat(budget.tryAcquire(1000L, 0L, 3), is(true));
+		// larger than the whole budget is charged the whole budget
+		budget.release(3);
+		assertThat(budget.tryAcquire(1000L, 0L, 11), is(false));
+		assertThat(budget.getInFlight(), is(2));
+		budget.release(2);
+		assertThat(budget.tryAcquire(1000L, 0L, 11), is(true));
+		assertThat(budget.getInFlight(), is(10));
+		assertThat(budget.tryAcquire(1000L, 0L), is(false));
+		budget.release(11);
+		assertThat(budget.getInFlight(), is(0));
+		assertThat(budget.getAdmitted(), is(24L));
+		assertThat(budget.getShed(), is(16L));
+	}
+
+	@Test
+	public void queueingDelay() {
+		Budget budget = new Budget(100, 10L, 100L);
+
+		// short spike above target is tolerated
+		assertThat(budget.tryAcquire(1000L, 50L), is(true));
+		assertThat(budget.tryAcquire(1050L, 50L), is(true));
+		assertThat(budget.isDropping(), is(false));
+
+		// delay stays above target for whole interval
+		assertThat(budget.tryAcquire(1100L, 50L), is(false));
+		assertThat(budget.tryAcquire(1120L, 20L), is(false));
+		assertThat(budget.isDropping(), is(true));
+
+		// queue drained
+		assertThat(budget.tryAcquire(1130L, 1L), is(true));
+		assertThat(budget.isDropping(), is(false));
+		assertThat(budget.tryAcquire(1140L, 50L), is(true));
+	}
+}
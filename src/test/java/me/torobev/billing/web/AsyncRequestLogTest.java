@@ -0,0 +1,182 @@
+package me.torobev.billing.web;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.core.FileAppender;
+import me.torobev.billing.AccessLogStats;
+import me.torobev.billing.PhaseTiming;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.Slf4jRequestLog;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class AsyncRequestLogTest {
+
+	@Test
+	public void dropsWhenFull() throws Exception {
+		Path file = Files.createTempFile("access", ".log");
+		AsyncRequestLog log = new AsyncRequestLog(file, 4, 1L << 20, 1);
+		for (int i = 0; i < 6; i++) {
+			assertThat(log.offer(0L, "127.0.0.1", "GET", "/accounts/" + i, "HTTP/1.1", 200, 10L, 1L), is(i < 4));
+		}
+		AccessLogStats stats = log.getStats();
+		assertThat(stats.getDepth(), is(4L));
+		assertThat(stats.getDropped(), is(2L));
+
+		log.start();
+		log.stop();
+		stats = log.getStats();
+		assertThat(stats.getDepth(), is(0L));
+		assertThat(stats.getMaxDepth(), is(4L));
+		assertThat(stats.getWritten(), is(4L));
+
+		List<String> lines = Files.readAllLines(file, UTF_8);
+		assertThat(lines.size(), is(4));
+		assertThat(lines.get(3).matches(
+			"127\\.0\\.0\\.1 - - \\[\\d{2}/\\w{3}/\\d{4}:\\d{2}:\\d{2}:\\d{2} [+-]\\d{4}] \"GET /accounts/3 HTTP/1\\.1\" 200 10 1"),
+			is(true));
+		Files.delete(file);
+	}
+
+	@Test
+	public void rollsOver() throws Exception {
+		Path file = Files.createTempFile("access", ".log");
+		AsyncRequestLog log = new AsyncRequestLog(file, 1 << 10, 256L, 2);
+		log.start();
+		for (int i = 0; i < 100; i++) {
+			while (!log.offer(0L, "127.0.0.1", "GET", "/accounts/" + i, "HTTP/1.1", 200, 10L, 1L)) {
+				Thread.yield();
+			}
+			Thread.sleep(i % 10 == 0 ? 2L : 0L);
+		}
+		log.stop();
+
+		assertThat(log.getStats().getFiles(), greaterThan(2L));
+		assertThat(Files.exists(rolled(file, 1)), is(true));
+		assertThat(Files.exists(rolled(file, 2)), is(true));
+		assertThat(Files.exists(rolled(file, 3)), is(false));
+		for (Path path : new Path[]{file, rolled(file, 1), rolled(file, 2)}) {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		int threads = 8;
+		int requests = 20000;
+
+		Path asyncFile = Files.createTempFile("access", ".log");
+		AsyncRequestLog async = new AsyncRequestLog(asyncFile, 1 << 16, 1L << 30, 1);
+		PhaseTiming asyncTiming = serve(async, threads, requests);
+		AccessLogStats stats = async.getStats();
+		assertThat(stats.getWritten() + stats.getDropped(), is((long) threads * requests));
+		assertThat((long) Files.readAllLines(asyncFile, UTF_8).size(), is(stats.getWritten()));
+
+		// synchronous log to file, with appender attached to request log logger for the time of benchmark
+		Path syncFile = Files.createTempFile("access", ".log");
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		ch.qos.logback.classic.Logger logger = context.getLogger("org.eclipse.jetty.server.RequestLog");
+		Level level = logger.getLevel();
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern("%msg%n");
+		encoder.start();
+		FileAppender<ch.qos.logback.classic.spi.ILoggingEvent> appender = new FileAppender<>();
+		appender.setContext(context);
+		appender.setFile(syncFile.toString());
+		appender.setEncoder(encoder);
+		appender.start();
+		logger.addAppender(appender);
+		logger.setAdditive(false);
+		logger.setLevel(Level.INFO);
+		PhaseTiming syncTiming;
+		try {
+			syncTiming = serve(new Slf4jRequestLog(), threads, requests);
+		} finally {
+			logger.setLevel(level);
+			logger.setAdditive(true);
+			logger.detachAppender(appender);
+			appender.stop();
+		}
+		assertThat((long) Files.readAllLines(syncFile, UTF_8).size(), is((long) threads * requests));
+
+		System.out.format("Request log time per request, async: mean %d ns, p99 %d ns, %d dropped; "
+				+ "slf4j: mean %d ns, p99 %d ns\n", asyncTiming.getMeanNanos(), asyncTiming.getP99Nanos(),
+			stats.getDropped(), syncTiming.getMeanNanos(), syncTiming.getP99Nanos());
+		Files.delete(asyncFile);
+		Files.delete(syncFile);
+	}
+
+	private static PhaseTiming serve(RequestLog log, int threads, int requests) throws Exception {
+		Server server = new Server();
+		LocalConnector connector = new LocalConnector(server);
+		server.addConnector(connector);
+		server.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request,
+												 HttpServletResponse response) throws IOException {
+				response.setStatus(200);
+				response.getWriter().write("OK");
+				baseRequest.setHandled(true);
+			}
+		});
+		PhaseStats phases = new PhaseStats(0);
+		server.setRequestLog(new TimedRequestLog(log, phases));
+		server.start();
+
+		ExecutorService executor = newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < requests; i++) {
+						String response = connector.getResponse(
+							"GET /accounts/" + i + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+						assertThat(response.startsWith("HTTP/1.1 200"), is(true));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			// request is logged after response is sent
+			while (phases.getTimings().get(PhaseClock.OTHER).get(Phase.LOG.getMetric()).getCount() < threads * requests) {
+				Thread.sleep(1L);
+			}
+			System.out.format("%s: %.0f requests/s\n", log.getClass().getSimpleName(),
+				threads * requests / ((System.nanoTime() - start) / 1e9));
+		} finally {
+			executor.shutdown();
+			server.stop();
+		}
+		return phases.getTimings().get(PhaseClock.OTHER).get(Phase.LOG.getMetric());
+	}
+
+	private static Path rolled(Path file, int index) {
+		return Paths.get(file + "." + index);
+	}
+}
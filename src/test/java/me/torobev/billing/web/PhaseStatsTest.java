@@ -0,0 +1,63 @@
+package me.torobev.billing.web;
+
+import me.torobev.billing.PhaseTiming;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class PhaseStatsTest {
+
+	@Test
+	public void buckets() {
+		for (long value = 0L; value < 1L << 20; value += 1 + value / 64) {
+			int index = Histogram.index(value);
+			assertThat(Histogram.upperBound(index), greaterThanOrEqualTo(value));
+			assertThat(index == 0 || Histogram.upperBound(index - 1) < value, is(true));
+			// bucket is at most 12.5% wide
+			assertThat(Histogram.upperBound(index) - value, lessThanOrEqualTo(value / 8));
+		}
+		assertThat(Histogram.upperBound(Histogram.index(Long.MAX_VALUE)), is(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void percentiles() {
+		Histogram histogram = new Histogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		PhaseTiming timing = histogram.snapshot();
+		assertThat(timing.getCount(), is(1000L));
+		assertThat(timing.getMeanNanos(), is(500500L));
+		assertThat(timing.getMaxNanos(), is(1000000L));
+		assertThat(timing.getP50Nanos(), greaterThanOrEqualTo(500000L));
+		assertThat(timing.getP50Nanos(), lessThanOrEqualTo(500000L * 9 / 8));
+		assertThat(timing.getP99Nanos(), greaterThanOrEqualTo(990000L));
+		assertThat(timing.getP99Nanos(), lessThanOrEqualTo(1000000L));
+	}
+
+	@Test
+	public void routes() {
+		PhaseStats stats = new PhaseStats(0);
+		PhaseClock clock = new PhaseClock();
+		clock.route("transfer");
+		clock.mark(Phase.PARSE);
+		clock.mark(Phase.ACCOUNTING);
+		clock.mark(Phase.SERIALIZE);
+		stats.record(clock);
+		stats.record("transfer", Phase.LOG, 1000L);
+
+		Map<String, Map<String, PhaseTiming>> timings = stats.getTimings();
+		assertThat(timings.keySet().toString(), is("[transfer]"));
+		assertThat(timings.get("transfer").keySet().toString(), is("[accounting, log, parse, route, serialize]"));
+		assertThat(timings.get("transfer").get("log").getMaxNanos(), is(1000L));
+		assertThat(clock.toServerTiming().matches(
+			"route;dur=[\\d.]+, parse;dur=[\\d.]+, accounting;dur=[\\d.]+, serialize;dur=[\\d.]+, total;dur=[\\d.]+"),
+			is(true));
+		assertThat(stats.sample(), is(false));
+	}
+}